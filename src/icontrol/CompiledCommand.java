@@ -0,0 +1,97 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol;
+
+import java.util.Map;
+
+/**
+ * This class defines a data structure for a pre-parsed Script-Command that
+ * addresses an Instrument. It is generated by <code>Device.compileCommand</code>
+ * during the Syntax-Check and executed with <code>Device.DispatchCommand</code>
+ * during the real run, so that the Command-Line does not need to be tokenized,
+ * and neither the Instrument nor the Script-Method need to be resolved again.<p>
+ * 
+ * Note: Like <code>ScriptMethod</code>, this class is more like a new data type,
+ * so it's members are declared public without explicit getter and setter methods.
+ * 
+ * @see icontrol.drivers.Device#compileCommand(String)
+ * @see icontrol.drivers.Device#DispatchCommand(CompiledCommand)
+ * 
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ */
+public class CompiledCommand {
+    
+    /** The Command-Line this object was compiled from; it is used to re-compile
+     * the command if the Instrument was re-MADE with a different class. */
+    public String       CommandLine;
+    
+    /** The Instrument-Name (e.g. Tsample) */
+    public String       InstrumentName;
+    
+    /** The Instrument instance the command was resolved against. Because the 
+     * Instruments are MADE again for the real run, this reference is re-bound 
+     * in <code>Device.DispatchCommand</code> when necessary. It is of type 
+     * <code>Object</code> to avoid a circular dependency on 
+     * <code>icontrol.drivers.Device</code>. */
+    public Object       DeviceInstance;
+    
+    /** The class of the Instrument the Script-Method was resolved for */
+    public Class<?>     DeviceClass;
+    
+    /** The Instrument-Class-Name of the Instrument the Script-Method was 
+     * resolved for (relevant for generic Script-Methods) */
+    public String       InstrumentClassName;
+    
+    /** The resolved Script-Method */
+    public ScriptMethod Method;
+    
+    /** The parameters already converted into the types the Script-Method expects */
+    public Object[]     ConvertedParameters;
+    
+    /** The names of the script variables (without $) that are passed as 
+     * arguments; the entry is <code>null</code> for arguments that are not 
+     * variables. Is <code>null</code> if no variables are used. The current
+     * values are substituted in <code>Device.DispatchCommand</code>. */
+    public String[]     VariableNames;
+    
+    /** The script variables (name and value) maintained by the 
+     * <code>Dispatcher</code>; can be <code>null</code> */
+    public Map<String, Double> Variables;
+    
+    
+    /**
+     * @return The Command-Line this object was compiled from
+     */
+    // <editor-fold defaultstate="collapsed" desc="toString">
+    @Override
+    public String toString() {
+        return CommandLine;
+    }//</editor-fold>
+}
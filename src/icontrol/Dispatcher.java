@@ -29,8 +29,11 @@
 package icontrol;
 
 import static icontrol.Utilities.getInteger;
+import icontrol.drivers.CommLockRegistry;
+import icontrol.drivers.CommLog;
 import icontrol.drivers.Device;
 import icontrol.drivers.Device.CommPorts;
+import icontrol.drivers.ScriptProfiler;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -39,18 +42,25 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.math.BigInteger;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.logging.Level;
@@ -59,6 +69,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.script.ScriptException;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import org.python.core.PyException;
 
 
@@ -117,6 +128,51 @@ import org.python.core.PyException;
  *      <li>Sub-Scripts can contain MAKE commands, but these Instrument-Names are not
  *          shown in the GUI's Instrument-List.</li>
  *      <li>Sub-Scripts can INCLUDE other Sub-Scripts.</li>
+ *      <li>The lines of a Sub-Script are read only once and are cached until
+ *          the file is modified, so a Sub-Script that is INCLUDED many times is
+ *          not read and compiled again each time. If an error occurs in a
+ *          Sub-Script, the line in the Sub-Script and the lines of the INCLUDE
+ *          commands are reported.</li>
+ *      </ul>
+ *  <li> PARALLEL ... BRANCH ... JOIN</li>
+ *      <ul>
+ *      <li>The Script-Commands between PARALLEL and JOIN are executed in
+ *          parallel branches, which are separated by BRANCH. Each branch is
+ *          processed in it's own thread, and JOIN waits until all branches
+ *          have finished.</li>
+ *      <li>This allows, for instance, to stabilize the temperature while
+ *          sweeping a source-meter on a different bus. Communication with the
+ *          Instruments is still synchronized by the locks in <code>Device</code>.</li>
+ *      <li>If an error occurs in one branch, the other branches are stopped
+ *          and the error is reported for the line in which it occurred.
+ *          Pause and Stop are honored in all branches.</li>
+ *      <li>Only Instrument-Commands are allowed inside a PARALLEL block;
+ *          MAKE, INCLUDE, Python lines and nested PARALLEL blocks are not.</li>
+ *      <li>During the Syntax-Check, the branches are checked one after another.</li>
+ *      </ul>
+ *  <li> SET Name = Value</li>
+ *      <ul>
+ *      <li>Assigns a number, or the value of another variable ($Other), to the
+ *          script variable <code>Name</code>.</li>
+ *      <li>An argument of an Instrument-Command of the form <code>$Name</code>
+ *          is replaced by the current value of the variable each time the
+ *          command is executed, e.g. <code>Tsample SetTemp $T</code>. The
+ *          Command-Line is compiled only once; the value is converted into the
+ *          type the Script-Method expects (see <code>Device.compileCommand</code>).</li>
+ *      </ul>
+ *  <li> FOR Name = Start:Step:Stop [LOG] ... END</li>
+ *      <ul>
+ *      <li>Executes the lines between FOR and END for each value of the 
+ *          script variable <code>Name</code>. The values are generated with
+ *          <code>Utilities.GenerateValues</code>, so they are the same as in
+ *          the sweeps of the Instruments: linearly spaced, or, with LOG,
+ *          logarithmically spaced with Step values per decade.</li>
+ *      <li>Start, Step and Stop can be numbers or variables ($Other).</li>
+ *      <li>FOR loops can be nested and can contain any other command except
+ *          MAKE, but must be closed with END in the same (Sub-)Script, and 
+ *          must not be used inside a PARALLEL block.</li>
+ *      <li>During the Syntax-Check, the lines inside the loop are checked for
+ *          the first and the last value only.</li>
  *      </ul>
  * </ul>
  *
@@ -180,10 +236,339 @@ public final class Dispatcher extends Thread {
     private boolean m_ErrorOccurred;
 
     // is true when the sequencing should be stopped
-    private boolean m_StopSequencing;
+    // (volatile because it is also read by the branches of a PARALLEL block)
+    private volatile boolean m_StopSequencing;
 
-    // holds the number of lines INCLUDED from Sub-Scripts.
-    private int     m_IncludedLines;
+    /** The lines of the iC Sub-Scripts that have been INCLUDED; the key is the
+     * absolute path. See <code>getSubScript</code>. */
+    private final HashMap<String, SubScript> m_SubScripts = new HashMap<String, SubScript>();
+    
+    /** Holds the script compiled during the Syntax-Check. It is used in the
+     * real run to execute the script without tokenizing the Command-Lines and
+     * resolving the Script-Methods again. Is <code>null</code> if the Syntax-Check
+     * failed or the script has not yet been compiled. */
+    private ArrayList<CompiledLine> m_CompiledScript;
+    
+    /** The Command List <code>m_CompiledScript</code> was compiled from */
+    private ArrayList<String> m_CompiledCommandList;
+    
+    /** Holds the script compiled during the last successful Syntax-Check. It
+     * is used instead of checking the script again when the script did not 
+     * change (see <code>getSyntaxCheckKey</code>). Is <code>null</code> if
+     * nothing has been cached. */
+    private ArrayList<CompiledLine> m_CachedScript;
+    
+    /** The names of the iC Sub-Scripts INCLUDED in <code>m_CachedScript</code> */
+    private ArrayList<String> m_CachedIncludes;
+    
+    /** Identifies the script <code>m_CachedScript</code> was compiled from */
+    private String m_CachedScriptKey;
+    
+    
+    /** The script variables assigned with SET and FOR; the map is referenced
+     * by the <code>CompiledCommand</code>s that use a variable. */
+    private final HashMap<String, Double> m_Variables = new HashMap<String, Double>();
+    
+    /** The pattern of a SET command (SET Name = Value) */
+    private static final Pattern SET_PATTERN = 
+            Pattern.compile("(?i)SET\\s+([A-Za-z_]\\w*)\\s*=\\s*(\\S+)");
+    
+    /** The pattern of a FOR command (FOR Name = Start:Step:Stop [LOG]) */
+    private static final Pattern FOR_PATTERN = 
+            Pattern.compile("(?i)FOR\\s+([A-Za-z_]\\w*)\\s*=\\s*([^:\\s]+)\\s*:"
+                          + "\\s*([^:\\s]+)\\s*:\\s*([^:\\s]+)(\\s+LOG)?");
+    
+    /** Defines how a compiled script line is processed */
+    enum LineType {SKIP, PYTHON, MAKE, INCLUDE, COMMAND, PARALLEL, BRANCH, JOIN,
+                           SET, FOR, END}
+    
+    /**
+     * Holds a pre-parsed script line. The lines of an INCLUDED iC Sub-Script
+     * are compiled into their own list, which is referenced by the INCLUDE
+     * command and shared by all INCLUDE commands of the same Sub-Script. 
+     * See also <code>CompiledCommand</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="CompiledLine">
+    static class CompiledLine {
+        
+        /** The original Command-Line */
+        String              Line;
+        
+        /** Defines how the line is processed */
+        LineType            Type;
+        
+        /** The Arguments of a MAKE or INCLUDE command */
+        ArrayList<String>   Arguments;
+        
+        /** The consecutive Python lines to execute (only for <code>PYTHON</code>) */
+        String              PythonCommands;
+        
+        /** The pre-parsed Device-Command (only for <code>COMMAND</code>) */
+        CompiledCommand     Command;
+        
+        /** The INCLUDED iC Sub-Script and it's compiled lines (only for 
+         * <code>INCLUDE</code> of an iC Sub-Script) */
+        File                SubScriptFile;
+        ArrayList<CompiledLine> SubScript;
+        
+        /** The name of the variable (only for <code>SET</code> and <code>FOR</code>) */
+        String              Variable;
+        
+        /** The value of a <code>SET</code> command, or Start, Step and Stop
+         * of a <code>FOR</code> command; numbers or $Variable */
+        String[]            Operands;
+        
+        /** <code>true</code> for logarithmically spaced values of a <code>FOR</code> loop */
+        boolean             Logarithmic;
+    }//</editor-fold>
+    
+    
+    /**
+     * A FOR loop that is being processed. See <code>ScriptFrame</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="Loop">
+    private static class Loop {
+        
+        /** The index of the FOR command */
+        final int               ForIndex;
+        
+        /** The name of the loop variable */
+        final String            Variable;
+        
+        /** The values of the loop variable */
+        final ArrayList<Double> Values;
+        
+        /** The index of the current value */
+        int                     Position = 0;
+        
+        Loop(int ForIndex, String Variable, ArrayList<Double> Values) {
+            this.ForIndex = ForIndex;
+            this.Variable = Variable;
+            this.Values = Values;
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * The lines of an iC Sub-Script read from the file. They are used until the
+     * file is modified. See <code>getSubScript</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="SubScript">
+    private static class SubScript {
+        
+        /** The time of the last modification and the length of the file when it was read */
+        long            LastModified;
+        long            Length;
+        
+        /** The (unmodifiable) Command-Lines */
+        List<String>    Lines;
+    }//</editor-fold>
+    
+    
+    /**
+     * The script, respectively, Sub-Script that is being processed. The main
+     * script is processed in the first frame, and each INCLUDE command of an
+     * iC Sub-Script pushes a new frame, which is removed after the last line
+     * of the Sub-Script has been processed. This way, the lines of a Sub-Script
+     * are not inserted into the Command List, and the exact line number can
+     * be reported if an error occurs.
+     */
+    // <editor-fold defaultstate="collapsed" desc="ScriptFrame">
+    private static class ScriptFrame {
+        
+        /** The script file or <code>null</code> for the main script */
+        final File                      ScriptFile;
+        
+        /** The Command-Lines; is <code>null</code> when processing the
+         * script compiled during the Syntax-Check */
+        final List<String>              Lines;
+        
+        /** The compiled lines; lines that have not been compiled yet are
+         * appended when they are processed */
+        final ArrayList<CompiledLine>   Compiled;
+        
+        /** The index of the line that is being processed */
+        int                             Index = -1;
+        
+        /** The FOR loops of this (Sub-)Script that are being processed; the
+         * innermost loop is the last entry */
+        final ArrayList<Loop>           Loops = new ArrayList<Loop>();
+        
+        
+        ScriptFrame(File ScriptFile, List<String> Lines, ArrayList<CompiledLine> Compiled) {
+            this.ScriptFile = ScriptFile;
+            this.Lines = Lines;
+            this.Compiled = Compiled;
+        }
+        
+        /** @return The number of lines */
+        int size() {
+            return Lines != null ? Lines.size() : Compiled.size();
+        }
+        
+        /** @return The Command-Line with the given index */
+        String getLine(int Index) {
+            return Lines != null ? Lines.get(Index) : Compiled.get(Index).Line;
+        }
+        
+        /** @return The number of the line being processed, and the name of the
+         * Sub-Script (e.g. '3 of Sub.iC') */
+        String describeLine() {
+            return Integer.toString(Index + 1) 
+                    + (ScriptFile == null ? "" : " of " + ScriptFile.getName());
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Processes one branch of a PARALLEL block in it's own thread. The branch
+     * consists of the indices of the (compiled) Command-Lines in the compiled
+     * script. Processing stops when the Stop button was pressed, or when an
+     * error occurred in this or another branch. If an error occurred, the 
+     * Exception and the index of the Command-Line is remembered and reported
+     * by the Dispatcher after all branches have been joined.
+     */
+    // <editor-fold defaultstate="collapsed" desc="ParallelBranch">
+    private final class ParallelBranch extends Thread {
+        
+        /** The compiled script */
+        private final ArrayList<CompiledLine> m_Script;
+        
+        /** The indices of the Command-Lines in <code>m_Script</code> of this branch */
+        private final ArrayList<Integer> m_Lines;
+        
+        /** Appended to the line number for the profiler (e.g. ' of Sub.iC') */
+        private final String m_ScriptName;
+        
+        /** Shared by all branches; holds the branch in which the first error occurred */
+        private final AtomicReference<ParallelBranch> m_FirstFailed;
+        
+        /** The Exception that occurred in this branch, or <code>null</code> */
+        private Exception m_Error;
+        
+        /** The index of the Command-Line that caused <code>m_Error</code> */
+        private int m_ErrorIndex;
+        
+        /** A Device object to be able to call DispatchCommand. It is created
+         * in the constructor because instantiating a Device resets the Stop
+         * flag, which must not happen after another branch has stopped. */
+        private final Device m_Device;
+        
+        
+        ParallelBranch(ArrayList<CompiledLine> Script, ArrayList<Integer> Lines,
+                       String ScriptName, AtomicReference<ParallelBranch> FirstFailed) {
+            m_Script = Script;
+            m_Lines = Lines;
+            m_ScriptName = ScriptName;
+            m_FirstFailed = FirstFailed;
+            m_Device = new Device();
+        }
+        
+        @Override
+        public void run() {
+            
+            for (int Index : m_Lines) {
+                
+                // check for pause button
+                m_GUI.isPaused(true);
+                
+                // exit when the Stop button was pressed or another branch failed
+                if (m_StopSequencing)
+                    break;
+                
+                CompiledLine Line = m_Script.get(Index);
+                
+                // display command line which is being processed
+                m_GUI.DisplayStatusLine(Line.Line, false);
+                
+                // log current script line
+                m_Logger.log(Level.FINE, "now processing (parallel): {0}\n", Line.Line);
+                
+                // record the times for the profiler
+                long ProfilerStart = ScriptProfiler.beginLine();
+                
+                try {
+                    // call Device's DispatchCommand method
+                    m_Device.DispatchCommand(Line.Command);
+                    
+                    ScriptProfiler.endLine((Index + 1) + m_ScriptName, Line.Line, 
+                            Line.Command.InstrumentName, ProfilerStart);
+                    
+                } catch (ScriptException ex) {
+                    failed(ex, Index);
+                    break;
+                    
+                } catch (RuntimeException ex) {
+                    failed(ex, Index);
+                    break;
+                }
+            }
+        }
+        
+        /** Remembers the error and stops all other branches */
+        private void failed(Exception ex, int Index) {
+            m_Error = ex;
+            m_ErrorIndex = Index;
+            
+            // stop the other branches if this branch failed first
+            if (m_FirstFailed.compareAndSet(null, this)) {
+                StopScripting();
+            }
+        }
+    }//</editor-fold>
+
+
+    /**
+     * Processes the branches of a PARALLEL block, each in it's own thread,
+     * and waits until all branches are done. If an error occurred in a branch,
+     * the remaining branches are stopped.
+     *
+     * @param Script The compiled script
+     * @param ScriptName Appended to the line numbers for the profiler
+     * @param Branches The indices of the Command-Lines in <code>Script</code>
+     * of each branch
+     * @return The branch in which the first error occurred, or <code>null</code>
+     * if all branches were processed successfully (or stopped by the user)
+     */
+    // <editor-fold defaultstate="collapsed" desc="runParallelBranches">
+    private ParallelBranch runParallelBranches(ArrayList<CompiledLine> Script, String ScriptName,
+                                               ArrayList<ArrayList<Integer>> Branches) {
+        
+        // holds the branch in which the first error occurred
+        AtomicReference<ParallelBranch> FirstFailed = new AtomicReference<ParallelBranch>();
+        
+        // create all branches before starting them
+        ArrayList<ParallelBranch> Threads = new ArrayList<ParallelBranch>(Branches.size());
+        for (int b=0; b < Branches.size(); b++) {
+            ParallelBranch Branch = new ParallelBranch(Script, Branches.get(b), ScriptName, FirstFailed);
+            Branch.setName("iC Parallel Branch " + (b+1));
+            Threads.add(Branch);
+        }
+        
+        // start all branches
+        for (ParallelBranch Branch : Threads) {
+            Branch.start();
+        }
+        
+        // wait until all branches are done
+        for (ParallelBranch Branch : Threads) {
+            
+            // wait for the thread to finish
+            boolean Interrupted = false;
+            while (Branch.isAlive()) {
+                try {
+                    Branch.join();
+                } catch (InterruptedException ex) {
+                    Interrupted = true;
+                }
+            }
+            if (Interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        return FirstFailed.get();
+    }//</editor-fold>
 
 
     // Convenient access to application wide properties defined in iC.properties
@@ -327,6 +712,10 @@ public final class Dispatcher extends Thread {
     // <editor-fold defaultstate="collapsed" desc="set Command List()">
     public void setCommandList(ArrayList<String> CommandList) {
         m_CommandList = CommandList;
+        
+        // the compiled script is outdated
+        m_CompiledScript = null;
+        m_CompiledCommandList = null;
     }//</editor-fold>
 
 
@@ -769,7 +1158,14 @@ public final class Dispatcher extends Thread {
      * Command Line into Tokens, and calls either <code>HandleMakeCommand</code>,
      * <code>HandleIncludeCommand</code>, or dispatches the Command Line to
      * <code>Device#DispatchCommand</code>. It catches ScriptExceptions and
-     * IOExceptions and performs some clean up after the Script has been processed.
+     * IOExceptions and performs some clean up after the Script has been processed.<p>
+     *
+     * During the Syntax-Check, every line is compiled into a <code>CompiledLine</code>.
+     * If the Syntax-Check was successful, the real run executes these pre-parsed
+     * lines (and <code>CompiledCommand</code>s) without tokenizing the Command-Lines
+     * or resolving the Script-Methods again. The compiled script is also kept
+     * for the next Start, and the Syntax-Check is skipped if the script did 
+     * not change (see <code>getSyntaxCheckKey</code>).
      */
     // <editor-fold defaultstate="collapsed" desc="run">
     @Override
@@ -784,19 +1180,39 @@ public final class Dispatcher extends Thread {
         // don't stop sequencing
         m_StopSequencing = false;
 
-        // no lines have been INCLUDED yet
-        m_IncludedLines = 0;
-
-        // no included lines have been processed yet
-        int CorrectedLine = 0;
-
         // use a working copy of the CommandList
         ArrayList<String> CommandList = new ArrayList<String>( m_CommandList );
         
+        
+        // skip the Syntax-Check if the script did not change since the last 
+        // successful Syntax-Check
+        if (m_SyntaxCheckMode && m_CachedScript != null) {
+            
+            String Key = getSyntaxCheckKey(m_CachedIncludes);
+            
+            if (Key != null && Key.equals(m_CachedScriptKey)) {
+                
+                // use the script compiled during the last Syntax-Check
+                m_CompiledScript = m_CachedScript;
+                m_CompiledCommandList = m_CommandList;
+                
+                m_GUI.DisplayStatusMessage("The script did not change since the last "
+                        + "successful syntax check, so it is not checked again.\n");
+                
+                return;
+            }
+        }
+        
         // make a temporary Device object to be able to call 
         // DisptachCommand and executePython
         Device dev = new Device();
         
+        // start the Python Interpreter for the script in the background
+        if ( m_SyntaxCheckMode &&
+             m_iC_Properties.getInt("Device.PrewarmPython", 0) > 0 ) {
+            Device.prewarmPythonInterpreter();
+        }
+        
         
         // restart Python Interpreter in case Python is still running from 
         // a previous run
@@ -832,12 +1248,77 @@ public final class Dispatcher extends Thread {
         // start the stopwatch
         Device.tic();
         
+        // forget the script variables of the previous run
+        m_Variables.clear();
+        
+        // profile the real run if desired
+        final boolean Profiling = !m_SyntaxCheckMode &&
+                m_iC_Properties.getInt("Dispatcher.Profile", 0) == 1;
+        if (Profiling) {
+            ScriptProfiler.start();
+            
+            // show the most time consuming lines while the script runs
+            final int TopN = m_iC_Properties.getInt("Dispatcher.ProfileTopN", 0);
+            if (TopN > 0) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        ScriptProfiler.showLiveView(m_GUI.getTheFrame(), TopN);
+                    }
+                });
+            }
+        }
+        
+        // reset the contention statistics of the communication Locks
+        CommLockRegistry.resetStatistics();
+        
         // init Python Command line for consecutive Python commands
-        String PythonCommandsLine = "";
+        StringBuilder PythonCommands = new StringBuilder();
+        
+        // use the script compiled during the Syntax-Check if it was compiled
+        // from the same Command List, otherwise compile it while processing it
+        boolean UseCompiledScript = !m_SyntaxCheckMode 
+                && m_CompiledScript != null
+                && m_CompiledCommandList == m_CommandList;
+        
+        // holds the compiled script
+        ArrayList<CompiledLine> CompiledScript = UseCompiledScript ? 
+                m_CompiledScript : new ArrayList<CompiledLine>(CommandList.size());
+        
+        // the compiled script is either used now or outdated
+        m_CompiledScript = null;
+        m_CompiledCommandList = null;
+        
+        // holds the compiled lines of the INCLUDED iC Sub-Scripts, so that a
+        // Sub-Script INCLUDED several times is compiled only once
+        IdentityHashMap<List<String>, ArrayList<CompiledLine>> CompiledSubScripts =
+                new IdentityHashMap<List<String>, ArrayList<CompiledLine>>();
+        
+        // the main script is processed in the first frame, INCLUDED iC
+        // Sub-Scripts in the following frames
+        ArrayList<ScriptFrame> Frames = new ArrayList<ScriptFrame>();
+        Frames.add(new ScriptFrame(null, UseCompiledScript ? null : CommandList, CompiledScript));
+        
+        // holds the indices of the Command-Lines of each branch while a
+        // PARALLEL block is processed, null outside of a PARALLEL block
+        ArrayList<ArrayList<Integer>> ParallelBranches = null;
 
 
         // iterate through all command lines
-        for (int i=0; i < CommandList.size(); i++ ) {
+        while ( !Frames.isEmpty() ) {
+            
+            // advance to the next line of the (Sub-)Script being processed
+            ScriptFrame Frame = Frames.get(Frames.size() - 1);
+            int i = ++Frame.Index;
+            
+            // continue with the INCLUDING script after the last line of a Sub-Script
+            if (i >= Frame.size()) {
+                Frames.remove(Frames.size() - 1);
+                continue;
+            }
+            
+            // get the current line
+            String CurrentLine = Frame.getLine(i);
 
             // check for pause button
             m_GUI.isPaused(true);
@@ -850,11 +1331,11 @@ public final class Dispatcher extends Thread {
                 m_GUI.Pause();
 
                 // also display Command Line which will be processed
-                m_GUI.DisplayStatusMessage("now processing: " + CommandList.get(i) + "\n", false);
+                m_GUI.DisplayStatusMessage("now processing: " + CurrentLine + "\n", false);
             }
 
             // display command line which will be / is being processed
-            m_GUI.DisplayStatusLine(CommandList.get(i), false);
+            m_GUI.DisplayStatusLine(CurrentLine, false);
 
 
             // exit sequencing when m_StopScripting flag is set
@@ -863,141 +1344,220 @@ public final class Dispatcher extends Thread {
 
             // log current script line
             if ( !m_SyntaxCheckMode ) {
-                m_Logger.log(Level.FINE, "now processing: {0}\n", CommandList.get(i));
+                m_Logger.log(Level.FINE, "now processing: {0}\n", CurrentLine);
             }
+            
+            // record the times of this line for the profiler
+            long ProfilerStart = ScriptProfiler.beginLine();
+            String ProfilerKey = Profiling ? Frame.describeLine() : null;
 
 
             /////////////////////////////
             // catch all ScriptExceptions (and others)
             // and shown them to the user
             try {
-
-                // split the Command Line into it's Tokens
-                ArrayList<String> Tokens = Utilities.Tokenizer( CommandList.get(i) );
-
-
-                ////////////////////////////////
-                // let's use nice variable names
-
-                // the string corresponding to the commmand respectively
-                // to the VariableName of the Instrument
-                String FirstToken = Tokens.get(0);
-
-                // optional Arguments
-                ArrayList<String> Arguments = new ArrayList<String>(Tokens);
-                Arguments.remove(0);
-
-
-                /* Correct linenumbers for INCLUDE:
-                 * INCLUDE increases m_IncludedLines for each line in the Sub-Script
-                 * and inserts them at the position following the INCLUDE command.
-                 * As long as not all those included lines have been processed, the
-                 * correct line number to present to the user in case of an error is
-                 * the one with the INCLUDE command itself, so the m_CorrectedLine
-                 * counter needs to be adapted whenever a command line is processed.
-                 * There is a bug: if an error is in the last line of an INCLUDED
-                 * script, the line number for inside the scipt is not shown.
-                 */
-                if (m_IncludedLines > 0) {
-                    // not all lines that have been INCLUDED as a Sub-Script
-                    // have yet been processed, so correct the m_CorrectLines counter
-                    m_IncludedLines--;
-                    CorrectedLine++;
+                
+                // the pre-parsed line
+                CompiledLine Compiled;
+                
+                if (i < Frame.Compiled.size()) {
+                    
+                    // get the line compiled during the Syntax-Check or when
+                    // the Sub-Script was INCLUDED before
+                    Compiled = Frame.Compiled.get(i);
+                    
+                } else {
+                    
+                    // compile the line
+                    long ParseStart = System.nanoTime();
+                    Compiled = compileLine(CurrentLine, 
+                            i + 1 < Frame.size() ? Frame.getLine(i + 1) : null,
+                            PythonCommands, ParallelBranches != null, !Frame.Loops.isEmpty());
+                    Frame.Compiled.add(Compiled);
+                    
+                    ScriptProfiler.addParseTime(ParseStart);
                 }
 
 
                 ///////////////////
                 // process commands
-
-                // empty command string?
-                if (FirstToken.isEmpty()) {
-                    // just go to the next command string line
-                    continue;
-                }
-
-                // comment line?
-                if ( FirstToken.startsWith("%") || FirstToken.startsWith("//")) {
-                    // ignore this line and go to the next command line
-                    continue;
-                }
                 
-                /////////////////////////////////////
-                // handle consecutive Python commands
-                // PythonInterpreter requires that indented command lines are
-                // sent as one string
-                // http://old.nabble.com/PythonInterpreter-question-td27760276.html
-                
-                // get the current line
-                String line = CommandList.get(i).replaceFirst("\\s*", "");
-                
-                // does it start with '|'?
-                if ( line.startsWith("|")) {
+                switch (Compiled.Type) {
                     
-                    // remove the '|' from the CommandLine and
-                    // add it to the Python Commands Line
-                    PythonCommandsLine += line.replaceFirst("\\|", "") + "\n";
-                
-                    // does the next line also start with '|' (commented: or is it an empty line?)
-                    if ( i+1 < CommandList.size() && 
-                         ( CommandList.get(i+1).replaceFirst("\\s*", "").startsWith("|") /*||
-                           CommandList.get(i+1).replaceFirst("\\s*", "").isEmpty()*/ ) ) {
-
-                        // yes, so let's get the next line via the for-loop
-                        continue;
-                    } else {
-
-                        // no, so execute the Python lines
-                        dev.execPython(PythonCommandsLine);
+                    // empty command strings, comment lines and Python lines
+                    // that are not the last line of a Python block
+                    case SKIP:
+                        // just go to the next command string line
+                        break;
                         
-                        // reset PythonCommandsLine
-                        PythonCommandsLine = "";
-
-                        // go to the next command line
-                        continue;
+                    // execute the Python lines
+                    case PYTHON:
+                        dev.execPython(Compiled.PythonCommands);
+                        break;
+                        
+                    // handle what is to be done in a separate method
+                    case MAKE:
+                        HandleMakeCommand(Compiled.Arguments);
+                        break;
+                        
+                    case INCLUDE:
+                        if (UseCompiledScript && Compiled.SubScript != null) {
+                            
+                            // process the Sub-Script compiled during the Syntax-Check
+                            Frames.add(new ScriptFrame(Compiled.SubScriptFile, null, Compiled.SubScript));
+                            
+                        } else if ( Compiled.Arguments.size() == 1 &&
+                                    !Compiled.Arguments.get(0).toLowerCase().endsWith(".py") ) {
+                            
+                            // find the iC Sub-Script and get it's lines
+                            File SubScriptFile = findIncludeFile(Compiled.Arguments.get(0));
+                            List<String> Lines = getSubScript(SubScriptFile);
+                            
+                            // a Sub-Script must not INCLUDE itself
+                            for (ScriptFrame F : Frames) {
+                                if (F.Lines == Lines) {
+                                    throw new ScriptException("The script file\n'" + SubScriptFile.getPath() 
+                                            + "'\nINCLUDES itself, which would never end.\n");
+                                }
+                            }
+                            
+                            // get the compiled lines if the Sub-Script was INCLUDED before
+                            ArrayList<CompiledLine> SubScript = CompiledSubScripts.get(Lines);
+                            if (SubScript == null) {
+                                SubScript = new ArrayList<CompiledLine>(Lines.size());
+                                CompiledSubScripts.put(Lines, SubScript);
+                            }
+                            Compiled.SubScriptFile = SubScriptFile;
+                            Compiled.SubScript = SubScript;
+                            
+                            // display status msg to the user
+                            m_GUI.DisplayStatusMessage("Included file " + SubScriptFile.getPath() + "\n", false);
+                            
+                            // process the Sub-Script in a new frame
+                            Frames.add(new ScriptFrame(SubScriptFile, Lines, SubScript));
+                            
+                        } else {
+                            // execute Python scripts (also checks the number of arguments)
+                            HandleIncludeCommand(new ArrayList<String>(), -1, Compiled.Arguments);
+                        }
+                        break;
+                        
+                    case COMMAND:
+                        
+                        // compile the Command Line if that has not been done
+                        if (Compiled.Command == null) {
+                            long ParseStart = System.nanoTime();
+                            Compiled.Command = dev.compileCommand(CurrentLine, m_Variables);
+                            ScriptProfiler.addParseTime(ParseStart);
+                        }
+                        
+                        // inside a PARALLEL block, the command is processed
+                        // in it's branch after JOIN (except in Syntax-Check mode)
+                        if (ParallelBranches != null && !m_SyntaxCheckMode) {
+                            ParallelBranches.get(ParallelBranches.size() - 1).add(i);
+                            break;
+                        }
+                        
+                        // call Device's DispatchCommand method
+                        // see Remark in javadoc (How to write new Instrument-Classes)
+                        dev.DispatchCommand(Compiled.Command);
+                        break;
+                        
+                    case PARALLEL:
+                        // start the first branch
+                        ParallelBranches = new ArrayList<ArrayList<Integer>>();
+                        ParallelBranches.add(new ArrayList<Integer>());
+                        break;
+                        
+                    case BRANCH:
+                        // start the next branch
+                        ParallelBranches.add(new ArrayList<Integer>());
+                        break;
+                        
+                    case JOIN:
+                        // process all branches and wait until they are done
+                        ParallelBranch Failed = runParallelBranches(Frame.Compiled, 
+                                Frame.ScriptFile == null ? "" : " of " + Frame.ScriptFile.getName(),
+                                ParallelBranches);
+                        ParallelBranches = null;
+                        
+                        // report an error for the line in which it occurred
+                        if (Failed != null) {
+                            
+                            Frame.Index = Failed.m_ErrorIndex;
+                            CurrentLine = Frame.Compiled.get(Failed.m_ErrorIndex).Line;
+                            
+                            if (Failed.m_Error instanceof ScriptException) {
+                                throw (ScriptException) Failed.m_Error;
+                            } else {
+                                throw (RuntimeException) Failed.m_Error;
+                            }
+                        }
+                        break;
+                        
+                    case SET:
+                        // assign the variable
+                        m_Variables.put(Compiled.Variable, getOperand(Compiled.Operands[0]));
+                        break;
+                        
+                    case FOR: {
+                        // generate the values like the sweeps of the Instruments do
+                        ArrayList<Double> Values = new Utilities().GenerateValues(
+                                getOperand(Compiled.Operands[0]), 
+                                getOperand(Compiled.Operands[2]),
+                                getOperand(Compiled.Operands[1]), 
+                                Compiled.Logarithmic, null, 0);
+                        
+                        // check the first and the last value in Syntax-Check mode
+                        if (m_SyntaxCheckMode && Values.size() > 2) {
+                            Values = new ArrayList<Double>(Arrays.asList(
+                                    Values.get(0), Values.get(Values.size() - 1)));
+                        }
+                        
+                        // start the loop with the first value
+                        Frame.Loops.add(new Loop(i, Compiled.Variable, Values));
+                        m_Variables.put(Compiled.Variable, Values.get(0));
+                        break;
                     }
-                }
-                
-
-                // for debugging: display the reconstructed Command Line from the Tokens
-                if (false) {
-                    m_GUI.DisplayStatusMessage(CommandList.get(i) + "\n", false);
-                    m_GUI.DisplayStatusMessage(Tokens.get(0) + " ", false);
-                    for (int ii=1; ii<Tokens.size()-1; ii++) {
-                        m_GUI.DisplayStatusMessage(Tokens.get(ii) + ";", false);
+                        
+                    case END: {
+                        // END must close a FOR loop of the same (Sub-)Script
+                        if (Frame.Loops.isEmpty()) {
+                            throw new ScriptException("END without a preceding FOR.\n");
+                        }
+                        Loop CurrentLoop = Frame.Loops.get(Frame.Loops.size() - 1);
+                        
+                        if (++CurrentLoop.Position < CurrentLoop.Values.size()) {
+                            // continue after the FOR command with the next value
+                            m_Variables.put(CurrentLoop.Variable, 
+                                    CurrentLoop.Values.get(CurrentLoop.Position));
+                            Frame.Index = CurrentLoop.ForIndex;
+                        } else {
+                            // the loop is done
+                            Frame.Loops.remove(Frame.Loops.size() - 1);
+                        }
+                        break;
                     }
-                    m_GUI.DisplayStatusMessage(Tokens.get(Tokens.size()-1) + "\n\n", false);
                 }
-
-
-                ////////////////////////
-                // is it a MAKE command?
-                if ( FirstToken.equalsIgnoreCase("MAKE") ) {
-                    // handle what is to be done in a separate method
-                    HandleMakeCommand(Arguments);
-
-                    // go to the next command line
-                    continue;
+                
+                // record the times of this line (commands inside a PARALLEL 
+                // block are recorded in their branch)
+                if ( Profiling && Compiled.Type != LineType.SKIP &&
+                     !(Compiled.Type == LineType.COMMAND && ParallelBranches != null) ) {
+                    ScriptProfiler.endLine(ProfilerKey, CurrentLine, 
+                            Compiled.Type == LineType.COMMAND ? 
+                                Compiled.Command.InstrumentName : Compiled.Type.toString(),
+                            ProfilerStart);
                 }
-
-                ////////////////////////////
-                // is it an INCLUDE command?
-                else if(FirstToken.equalsIgnoreCase("INCLUDE")) {
-                    // handle what is to be done in a separate method
-                    HandleIncludeCommand(CommandList, i, Arguments);
+                
+                // a PARALLEL block must be closed with JOIN (in the same Sub-Script)
+                if ( ParallelBranches != null && i + 1 == Frame.size() ) {
+                    throw new ScriptException("The PARALLEL block is not closed with JOIN.\n");
                 }
-
-
-                //////////////////////////////////////////
-                // does the Command address an Instrument?
-                //
-                // A ScriptException is thrown if the command does not address
-                // an instrument, hence, this else-branch should be last in the
-                // series of this if-else structure
-                else {
-                    
-                    // call Device's DispatchCommand method
-                    // see Remark in javadoc (How to write new Instrument-Classes)
-                    dev.DispatchCommand(CommandList.get(i));
+                
+                // a FOR loop must be closed with END (in the same Sub-Script)
+                if ( !Frame.Loops.isEmpty() && Frame.Index + 1 == Frame.size() ) {
+                    throw new ScriptException("The FOR loop is not closed with END.\n");
                 }
 
 
@@ -1012,21 +1572,16 @@ public final class Dispatcher extends Thread {
                 // get the message of the exception
                 String str = ex.getMessage();
 
-                // correct line number for INCLUDED Sub-Scripts
-                int Line = i + 1 - CorrectedLine;
-
-                // append line number
-                str += "\n" + "Line " + Integer.toString(Line);
-
-                // append line number of Sub-Script if any
-                // because of the +1 the line number of an error that occurred in
-                // the last line of an INCLUDED script is not shown to the user.
-                if ( m_IncludedLines > 0 ) {
-                    str += " (line " + Integer.toString(m_IncludedLines+1) + " from the end)";
-                }
+                // append line number (and Sub-Script)
+                str += "\n" + "Line " + Frame.describeLine();
 
                 // append command line
-                str += ": " + CommandList.get(i);
+                str += ": " + CurrentLine;
+                
+                // append the lines of the INCLUDE commands
+                for (int f = Frames.size() - 2; f >= 0; f--) {
+                    str += "\nINCLUDED in line " + Frames.get(f).describeLine();
+                }
 
                 // append info that scripting will be stopped
                 str += "\n\nProcessing of the script will be stopped.";
@@ -1072,6 +1627,17 @@ public final class Dispatcher extends Thread {
                 break;
             }
         } // end iterate through all command lines
+        
+        // keep the compiled script for the real run if the Syntax-Check
+        // processed the entire script without errors
+        if (m_SyntaxCheckMode && !m_ErrorOccurred && !m_StopSequencing) {
+            m_CompiledScript = CompiledScript;
+            m_CompiledCommandList = m_CommandList;
+            
+            // also remember it to skip the next Syntax-Check if the script
+            // does not change
+            CacheCompiledScript(CompiledScript);
+        }
 
         ///////////
         // clean up
@@ -1079,6 +1645,26 @@ public final class Dispatcher extends Thread {
         // in Syntax-Check mode there should not be anything that needs to be
         // stopped, but stop it anyways, just in case
         StopScripting();
+        
+        // log the contention statistics of the communication Locks
+        if ( !m_SyntaxCheckMode ) {
+            m_Logger.log(Level.FINE, "Communication Lock statistics:\n{0}", 
+                    CommLockRegistry.getStatistics());
+        }
+        
+        // write the profile next to the data files
+        if (Profiling) {
+            ScriptProfiler.stop();
+            
+            String FileName = m_GUI.getFileName(".profile.txt");
+            try {
+                ScriptProfiler.writeReport(FileName);
+                m_GUI.DisplayStatusMessage("The profile of the script was saved in " + FileName + "\n");
+                
+            } catch (IOException ex) {
+                m_GUI.DisplayStatusMessage("Error: " + ex.getMessage() + "\n");
+            }
+        }
 
 
 
@@ -1133,6 +1719,9 @@ public final class Dispatcher extends Thread {
         }
 
 
+        // write all pending records of the Comm logger
+        CommLog.flush();
+        
         // release all used instruments
         m_UsedInstruments.clear();
         
@@ -1344,16 +1933,18 @@ public final class Dispatcher extends Thread {
             // get URL (without URL=)
             String HostAdr = Arguments.get(2).replaceFirst("\\s*URL\\s*\\s*=\\s*", "");
             
-            // display Status message that networking is not supported by any instruments
-            // TODO @LAN delme when an instrument uses LAN communication
-            String dummy = "WARNING: You have chosen network communication (URL=...) which is not supported by any instrument yet.\nThe script will likely not work as anticipated.\n";
-            m_GUI.DisplayStatusMessage(dummy, false);
-            
+            // split off the port number (e.g. 192.168.0.10:5025); if none is 
+            // given, LAN_Driver.DefaultPort is used
+            int Port = -1;
+            Matcher m = Pattern.compile("([^:]+):(\\d+)").matcher(HostAdr.trim());
+            if (m.matches()) {
+                HostAdr = m.group(1);
+                Port = Integer.parseInt(m.group(2));
+            }
                         
             // store the URL
-            // TODO @LAN define protocol, port number, and file in Instrument.properties
             try {
-                LAN_InstrumentURL = new URL("http", HostAdr, -1, "");
+                LAN_InstrumentURL = new URL("http", HostAdr.trim(), Port, "");
                 
             } catch (MalformedURLException ex) {
                 String str = "The specified URL\n"
@@ -1575,60 +2166,199 @@ public final class Dispatcher extends Thread {
 
 
     /**
-     * Handles an 'INCLUDE' command. <p>
-     * General structure: INCLUDE ScriptFile<br>
-     * ScriptFile can either be a 'regular' iC script or a Python script.
-     * <p>
+     * Compiles a Command-Line into a <code>CompiledLine</code>, that is, it
+     * splits the Command-Line into it's Tokens, identifies the type of the line,
+     * collects consecutive Python lines, and parses SET and FOR commands. It also
+     * checks that the line is allowed inside a PARALLEL block, respectively, a
+     * FOR loop. Commands that address an Instrument are not compiled here but in
+     * <code>run</code> right before they are dispatched, because the Instrument
+     * is MADE in a previous line.
      *
-     * The ScriptFile can contain a fully qualified path. If no path is
-     * specified (no file with only ScriptFile as file name is found, the file
-     * to include is first searched in the Project Directory, then in the default
-     * directory specified in 
-     * <code>iC_Properties.getPath("iC.DefaultPath", "$user.home$/iC")</code>).
-     * If no file extension was specified (ScriptFile does not contain
-     * a '.', the default extension '.iC' is added. Sub-Scripts can MAKE new
-     * Instruments and these Instruments are now shown in the GUI's 
-     * Instrument-List. If the FileName ends in .py, the script is executed by 
-     * the Python Interpreter.<p>
-     *
-     * The command lines contained in the specified script are included in the
-     * script at the line following the INCLUDE command. The new command lines are
-     * not shown to the user. In case of an error, the line number in the Sub-Script
-     * might not be correct if two INCLUDE commands are closer together than the line count
-     * of the first Sub-Script, or if the error occurs in the last line of the
-     * INCLUDED script. It's not so important because the line is shown
-     * anyways, so I will ignore this for the moment.<p>
-     * 
-     * 
-     * This method is also called from the view to properly handle sub-scripts 
-     * on load.
-     *
-     * @param CommandList contains the Strings comprising the original Script
-     *
-     * @param Index the index of the INCLUDE command in the CommandList.
-     *
-     * @param Arguments contains the file name of the script file to include
-     *
-     * @throws ScriptException when 1) the script file could not be found, or 2)
-     * an IO-error occurred during reading from the file, or 3) a Python error
-     * occurred during executing a Python Script.
+     * @param CurrentLine The Command-Line to compile
+     * @param NextLine The next Command-Line of the (Sub-)Script or <code>null</code>
+     * if <code>CurrentLine</code> is the last line; used to find the last line
+     * of consecutive Python lines
+     * @param PythonCommands Collects consecutive Python lines; it is emptied
+     * when the last line of the Python block has been compiled
+     * @param InParallelBlock <code>true</code> if the line is inside a PARALLEL block
+     * @param InLoop <code>true</code> if the line is inside a FOR loop
+     * @return The compiled line
+     * @throws ScriptException when the line is not allowed at this position or
+     * a SET or FOR command is invalid
      */
-    // <editor-fold defaultstate="collapsed" desc="Handle Include Command">
-    protected void HandleIncludeCommand(  ArrayList<String> CommandList,
-                                        int Index,
-                                        ArrayList<String> Arguments )
-            throws ScriptException {
+    // <editor-fold defaultstate="collapsed" desc="compileLine">
+    CompiledLine compileLine(String CurrentLine, String NextLine, StringBuilder PythonCommands,
+                             boolean InParallelBlock, boolean InLoop)
+                 throws ScriptException {
+        
+        CompiledLine Compiled = new CompiledLine();
+        Compiled.Line = CurrentLine;
+        
+        // split the Command Line into it's Tokens
+        ArrayList<String> Tokens = Utilities.Tokenizer( CurrentLine );
 
-        // check number of arguments
-        if (Arguments.size() != 1) {
-            throw new ScriptException("Expected 1 argument but found " +
-                    Integer.toString(Arguments.size()) + ".\n");
+
+        ////////////////////////////////
+        // let's use nice variable names
+
+        // the string corresponding to the commmand respectively
+        // to the VariableName of the Instrument
+        String FirstToken = Tokens.get(0);
+
+        // optional Arguments
+        Compiled.Arguments = new ArrayList<String>(Tokens);
+        Compiled.Arguments.remove(0);
+
+
+        // get the current line without leading whitespaces
+        String line = CurrentLine.replaceFirst("\\s*", "");
+
+
+        /////////////////////////
+        // identify the line type
+
+        // empty command string or comment line?
+        if ( FirstToken.isEmpty() ||
+             FirstToken.startsWith("%") || FirstToken.startsWith("//")) {
+
+            // ignore this line and go to the next command line
+            Compiled.Type = LineType.SKIP;
         }
 
+        /////////////////////////////////////
+        // handle consecutive Python commands
+        // PythonInterpreter requires that indented command lines are
+        // sent as one string
+        // http://old.nabble.com/PythonInterpreter-question-td27760276.html
 
-        // use nice variable names
-        String IncludeName = Arguments.get(0);
-                
+        // does it start with '|'?
+        else if ( line.startsWith("|")) {
+
+            // remove the '|' from the CommandLine and
+            // add it to the Python Commands Line
+            PythonCommands.append(line.replaceFirst("\\|", "")).append('\n');
+
+            // does the next line also start with '|' (commented: or is it an empty line?)
+            if ( NextLine != null && 
+                 ( NextLine.replaceFirst("\\s*", "").startsWith("|") /*||
+                   NextLine.replaceFirst("\\s*", "").isEmpty()*/ ) ) {
+
+                // yes, so let's get the next line via the for-loop
+                Compiled.Type = LineType.SKIP;
+            } else {
+
+                // no, so remember to execute the Python lines
+                Compiled.Type = LineType.PYTHON;
+                Compiled.PythonCommands = PythonCommands.toString();
+
+                // reset PythonCommands
+                PythonCommands.setLength(0);
+            }
+        }
+
+        // is it a MAKE command?
+        else if ( FirstToken.equalsIgnoreCase("MAKE") ) {
+            Compiled.Type = LineType.MAKE;
+        }
+
+        // is it an INCLUDE command?
+        else if(FirstToken.equalsIgnoreCase("INCLUDE")) {
+            Compiled.Type = LineType.INCLUDE;
+        }
+
+        // does it start, separate or end a PARALLEL block?
+        else if (FirstToken.equalsIgnoreCase("PARALLEL")) {
+            Compiled.Type = LineType.PARALLEL;
+        } else if (FirstToken.equalsIgnoreCase("BRANCH")) {
+            Compiled.Type = LineType.BRANCH;
+        } else if (FirstToken.equalsIgnoreCase("JOIN")) {
+            Compiled.Type = LineType.JOIN;
+        }
+
+        // is it a SET or FOR command, or does it END a FOR loop?
+        else if (FirstToken.equalsIgnoreCase("SET")) {
+            Compiled.Type = LineType.SET;
+            parseVariableCommand(Compiled, SET_PATTERN, "SET Name = Value");
+        } else if (FirstToken.equalsIgnoreCase("FOR")) {
+            Compiled.Type = LineType.FOR;
+            parseVariableCommand(Compiled, FOR_PATTERN, "FOR Name = Start:Step:Stop [LOG]");
+        } else if (FirstToken.equalsIgnoreCase("END")) {
+            Compiled.Type = LineType.END;
+        }
+
+        // does the Command address an Instrument?
+        // A ScriptException is thrown in compileCommand if the 
+        // command does not address an instrument. Because the
+        // Instrument is MADE in a previous line, the command is 
+        // compiled right before it is dispatched below.
+        else {
+            Compiled.Type = LineType.COMMAND;
+        }
+
+
+        //////////////////////////////////////
+        // check the structure of PARALLEL blocks
+        if (InParallelBlock) {
+            if ( line.startsWith("|") ||
+                 Compiled.Type == LineType.MAKE ||
+                 Compiled.Type == LineType.INCLUDE ||
+                 Compiled.Type == LineType.PARALLEL ||
+                 Compiled.Type == LineType.SET ||
+                 Compiled.Type == LineType.FOR ||
+                 Compiled.Type == LineType.END ) {
+                String str = "Python lines, MAKE, INCLUDE, SET, FOR, END and nested\n"
+                        + "PARALLEL commands are not allowed inside a PARALLEL block.\n";
+                throw new ScriptException(str);
+            }
+        } else if ( Compiled.Type == LineType.BRANCH ||
+                    Compiled.Type == LineType.JOIN ) {
+            String str = FirstToken + " can only be used inside a PARALLEL block.\n";
+            throw new ScriptException(str);
+        }
+
+        // an Instrument can only be MADE once
+        if ( InLoop && Compiled.Type == LineType.MAKE ) {
+            throw new ScriptException("MAKE is not allowed inside a FOR loop.\n");
+        }
+
+        if ( (Compiled.Type == LineType.PARALLEL ||
+              Compiled.Type == LineType.BRANCH ||
+              Compiled.Type == LineType.JOIN ||
+              Compiled.Type == LineType.END) &&
+             !Compiled.Arguments.isEmpty() ) {
+            String str = FirstToken + " does not accept any arguments.\n";
+            throw new ScriptException(str);
+        }
+
+        // for debugging: display the reconstructed Command Line from the Tokens
+        if (false) {
+            m_GUI.DisplayStatusMessage(CurrentLine + "\n", false);
+            m_GUI.DisplayStatusMessage(Tokens.get(0) + " ", false);
+            for (int ii=1; ii<Tokens.size()-1; ii++) {
+                m_GUI.DisplayStatusMessage(Tokens.get(ii) + ";", false);
+            }
+            m_GUI.DisplayStatusMessage(Tokens.get(Tokens.size()-1) + "\n\n", false);
+        }
+        
+        return Compiled;
+    }//</editor-fold>
+    
+    
+    /**
+     * Searches the script file to INCLUDE. The file is searched 1) as specified
+     * (full path), 2) in the Project directory, and 3) in the default iC 
+     * directory. If <code>IncludeName</code> does not contain an extension,
+     * '.iC' is appended.
+     *
+     * @param IncludeName The name of the script file as specified in the
+     * INCLUDE command
+     * @return The script file
+     * @throws ScriptException when the script file could not be found
+     */
+    // <editor-fold defaultstate="collapsed" desc="findIncludeFile">
+    private File findIncludeFile(String IncludeName)
+            throws ScriptException {
+        
         // append default extension if none was specified
         if ( !IncludeName.contains(".")) {
             IncludeName += ".iC";
@@ -1636,10 +2366,6 @@ public final class Dispatcher extends Thread {
         
         // start with this file name
         String FileName = IncludeName;
-
-        // add the next command after the Include command itself
-        Index++;
-        
         
         // start searching for the include file (was full path specified?)
         File f = new File(FileName);
@@ -1674,6 +2400,216 @@ public final class Dispatcher extends Thread {
             }   
         }
         
+        return f;
+    }//</editor-fold>
+    
+    
+    /**
+     * Builds a key that identifies the script to process, that is, the Command
+     * List, the iC Sub-Scripts it INCLUDES, and the definitions of the Generic
+     * Instruments. The key is the SHA-256 hash of the Command-Lines, the path,
+     * time of the last modification, and length of all INCLUDED files, and the
+     * name, time of the last modification, and length of all files in the 
+     * directory of the Generic Instruments. When the key did not change since the
+     * last successful Syntax-Check, the script does not need to be checked again.
+     *
+     * @param IncludeNames The names of the iC Sub-Scripts INCLUDED in the script
+     * as specified in the INCLUDE command. Because the script did not change if
+     * the key did not change, the same Sub-Scripts are INCLUDED.
+     * @return The key or <code>null</code> if an INCLUDED file could not be found
+     */
+    // <editor-fold defaultstate="collapsed" desc="getSyntaxCheckKey">
+    private String getSyntaxCheckKey(ArrayList<String> IncludeNames) {
+        
+        MessageDigest Digest;
+        try {
+            Digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform supports SHA-256, so this should not happen
+            m_Logger.log(Level.SEVERE, "getSyntaxCheckKey: SHA-256 is not available.\n", ex);
+            return null;
+        }
+        
+        // use a StringBuilder to collect the content
+        StringBuilder sb = new StringBuilder();
+        
+        // the Command-Lines
+        for (String Line : m_CommandList) {
+            sb.append(Line).append('\n');
+        }
+        
+        // the INCLUDED files
+        for (String IncludeName : IncludeNames) {
+            try {
+                File f = findIncludeFile(IncludeName);
+                sb.append("INCLUDE ").append(f.getAbsolutePath())
+                  .append(' ').append(f.lastModified())
+                  .append(' ').append(f.length()).append('\n');
+                
+            } catch (ScriptException ex) {
+                // the file was removed or moved, so the script must be checked again
+                return null;
+            }
+        }
+        
+        // the definitions of the Generic Instruments
+        File GenericInstrumentDir = new File( m_iC_Properties.getPath(
+                "iC.DefaultPathGenericInstruments", "$user.home$/iC/Generic Instruments") );
+        File[] GenericInstrumentFiles = GenericInstrumentDir.listFiles();
+        if (GenericInstrumentFiles != null) {
+            Arrays.sort(GenericInstrumentFiles);
+            for (File f : GenericInstrumentFiles) {
+                sb.append("GENERIC ").append(f.getName())
+                  .append(' ').append(f.lastModified())
+                  .append(' ').append(f.length()).append('\n');
+            }
+        }
+        
+        // calculate the hash
+        byte[] Hash = Digest.digest( sb.toString().getBytes(Charset.forName("UTF-8")) );
+        
+        return new BigInteger(1, Hash).toString(16);
+    }//</editor-fold>
+    
+    
+    /**
+     * Remembers the script compiled during a successful Syntax-Check, so that
+     * the next Syntax-Check can be skipped if the script did not change. 
+     * Scripts that execute Python code are not cached because the outcome
+     * of the Python code can depend on more than the script. Caching can be
+     * disabled in the iC.properties (Dispatcher.CacheSyntaxCheck).
+     *
+     * @param CompiledScript The compiled script
+     */
+    // <editor-fold defaultstate="collapsed" desc="CacheCompiledScript">
+    private void CacheCompiledScript(ArrayList<CompiledLine> CompiledScript) {
+        
+        // forget the previous script
+        m_CachedScript = null;
+        m_CachedIncludes = null;
+        m_CachedScriptKey = null;
+        
+        // is caching enabled?
+        if (m_iC_Properties.getInt("Dispatcher.CacheSyntaxCheck", 1) != 1) {
+            return;
+        }
+        
+        // collect the INCLUDED Sub-Scripts
+        ArrayList<String> IncludeNames = new ArrayList<String>();
+        if ( !collectIncludes(CompiledScript, IncludeNames, 
+                new IdentityHashMap<ArrayList<CompiledLine>, Boolean>()) ) {
+            
+            // don't cache scripts that execute Python code
+            return;
+        }
+        
+        // remember the script
+        m_CachedScriptKey = getSyntaxCheckKey(IncludeNames);
+        if (m_CachedScriptKey != null) {
+            m_CachedScript = CompiledScript;
+            m_CachedIncludes = IncludeNames;
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Collects the names of the iC Sub-Scripts INCLUDED in a compiled script,
+     * including the Sub-Scripts INCLUDED in Sub-Scripts.
+     *
+     * @param Script The compiled script
+     * @param IncludeNames The names as specified in the INCLUDE commands are
+     * added to this list
+     * @param Visited The compiled Sub-Scripts that have already been visited
+     * @return <code>false</code> if the script executes Python code
+     */
+    // <editor-fold defaultstate="collapsed" desc="collectIncludes">
+    private boolean collectIncludes(ArrayList<CompiledLine> Script, ArrayList<String> IncludeNames,
+                                    IdentityHashMap<ArrayList<CompiledLine>, Boolean> Visited) {
+        
+        // visit every compiled Sub-Script only once
+        if (Visited.put(Script, Boolean.TRUE) != null) {
+            return true;
+        }
+        
+        for (CompiledLine Line : Script) {
+            
+            if (Line.Type == LineType.PYTHON) {
+                return false;
+            }
+            
+            if (Line.Type == LineType.INCLUDE) {
+                if (Line.SubScript == null) {
+                    // it's a Python script
+                    return false;
+                }
+                if ( !IncludeNames.contains(Line.Arguments.get(0)) ) {
+                    IncludeNames.add(Line.Arguments.get(0));
+                }
+                
+                if ( !collectIncludes(Line.SubScript, IncludeNames, Visited) ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }//</editor-fold>
+
+
+    /**
+     * Handles an 'INCLUDE' command. <p>
+     * General structure: INCLUDE ScriptFile<br>
+     * ScriptFile can either be a 'regular' iC script or a Python script.
+     * <p>
+     *
+     * The ScriptFile can contain a fully qualified path. If no path is
+     * specified (no file with only ScriptFile as file name is found, the file
+     * to include is first searched in the Project Directory, then in the default
+     * directory specified in 
+     * <code>iC_Properties.getPath("iC.DefaultPath", "$user.home$/iC")</code>).
+     * If no file extension was specified (ScriptFile does not contain
+     * a '.', the default extension '.iC' is added. Sub-Scripts can MAKE new
+     * Instruments and these Instruments are now shown in the GUI's 
+     * Instrument-List. If the FileName ends in .py, the script is executed by 
+     * the Python Interpreter.<p>
+     *
+     * The command lines contained in the specified script are inserted in
+     * <code>CommandList</code> at the line following the INCLUDE command. 
+     * <code>run</code> does not use this to process iC Sub-Scripts but processes
+     * them in a new <code>ScriptFrame</code> (see <code>getSubScript</code>).<p>
+     * 
+     * This method is also called from the view to properly handle sub-scripts 
+     * on load.
+     *
+     * @param CommandList contains the Strings comprising the original Script
+     *
+     * @param Index the index of the INCLUDE command in the CommandList.
+     *
+     * @param Arguments contains the file name of the script file to include
+     *
+     * @throws ScriptException when 1) the script file could not be found, or 2)
+     * an IO-error occurred during reading from the file, or 3) a Python error
+     * occurred during executing a Python Script.
+     */
+    // <editor-fold defaultstate="collapsed" desc="Handle Include Command">
+    protected void HandleIncludeCommand(  ArrayList<String> CommandList,
+                                        int Index,
+                                        ArrayList<String> Arguments )
+            throws ScriptException {
+
+        // check number of arguments
+        if (Arguments.size() != 1) {
+            throw new ScriptException("Expected 1 argument but found " +
+                    Integer.toString(Arguments.size()) + ".\n");
+        }
+
+
+        // find the file to include (appends the default extension if none was specified)
+        File f = findIncludeFile(Arguments.get(0));
+        String FileName = f.getPath();
+
+        // add the next command after the Include command itself
+        Index++;
+        
         
         
         ////////////////////////////////
@@ -1712,13 +2648,114 @@ public final class Dispatcher extends Thread {
         ///////////////////////
         // Include as iC script
         
+        // get the lines of the Sub-Script
+        List<String> Lines = getSubScript(f);
+        
+        // display status msg to the user
+        m_GUI.DisplayStatusMessage("Included file " + FileName + "\n", false);
+        
+        // include all command lines
+        CommandList.addAll(Index, Lines);
+
+    }//</editor-fold>
+    
+    
+    /**
+     * Parses the arguments of a SET or FOR command and stores the name of the
+     * variable and the operands in the compiled line.
+     * 
+     * @param Compiled The compiled line; <code>Arguments</code> must be set
+     * @param ThePattern <code>SET_PATTERN</code> or <code>FOR_PATTERN</code>
+     * @param Usage The syntax of the command shown in the error message
+     * @throws ScriptException when the command does not match the pattern
+     */
+    // <editor-fold defaultstate="collapsed" desc="parseVariableCommand">
+    private static void parseVariableCommand(CompiledLine Compiled, Pattern ThePattern,
+                                             String Usage)
+                   throws ScriptException {
+        
+        // rebuild the command from the Tokens (without comments)
+        String Command = Usage.substring(0, Usage.indexOf(' '));
+        for (String Argument : Compiled.Arguments) {
+            Command += " " + Argument;
+        }
+        
+        Matcher m = ThePattern.matcher(Command);
+        if ( !m.matches() ) {
+            String str = "The command is invalid. The syntax is:\n" + Usage + "\n";
+            throw new ScriptException(str);
+        }
+        
+        // the name of the variable
+        Compiled.Variable = m.group(1);
+        
+        // the value, respectively, Start, Step and Stop
+        if (ThePattern == SET_PATTERN) {
+            Compiled.Operands = new String[] {m.group(2)};
+        } else {
+            Compiled.Operands = new String[] {m.group(2), m.group(3), m.group(4)};
+            Compiled.Logarithmic = (m.group(5) != null);
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * @param Operand A number or the name of a script variable preceded by $
+     * @return The value of the number, respectively, the variable
+     * @throws ScriptException when the variable is not defined or the number
+     * could not be converted
+     */
+    // <editor-fold defaultstate="collapsed" desc="getOperand">
+    private double getOperand(String Operand)
+            throws ScriptException {
+        
+        // is it a variable?
+        if (Operand.startsWith("$")) {
+            Double Value = m_Variables.get(Operand.substring(1));
+            
+            if (Value == null) {
+                String str = "The variable '" + Operand.substring(1) + "' is not defined.\n"
+                        + "Use SET or FOR to assign a value before it is used.\n";
+                throw new ScriptException(str);
+            }
+            return Value;
+        }
+        
+        // no, so convert the number
+        return Utilities.getDouble(Operand);
+    }//</editor-fold>
+    
+    
+    /**
+     * Returns the Command-Lines of an iC Sub-Script. The lines are read only
+     * once and are cached until the time of the last modification or the 
+     * length of the file changes, so that a Sub-Script INCLUDED many times
+     * is not read each time.
+     *
+     * @param ScriptFile The iC Sub-Script
+     * @return The (unmodifiable) Command-Lines. The same instance is returned
+     * as long as the file is not modified.
+     * @throws ScriptException when the file could not be opened or read
+     */
+    // <editor-fold defaultstate="collapsed" desc="getSubScript">
+    private synchronized List<String> getSubScript(File ScriptFile)
+            throws ScriptException {
+        
+        // use nice variable names
+        String FileName = ScriptFile.getPath();
+        long LastModified = ScriptFile.lastModified();
+        long Length = ScriptFile.length();
+        
+        // return the cached lines if the file was not modified
+        SubScript Cached = m_SubScripts.get(ScriptFile.getAbsolutePath());
+        if (Cached != null && Cached.LastModified == LastModified && Cached.Length == Length) {
+            return Cached.Lines;
+        }
+        
         // open file
         BufferedReader fr;
         try {
-            fr = new BufferedReader(new FileReader(FileName));
-            
-            // display status msg to the user
-            m_GUI.DisplayStatusMessage("Included file " + FileName + "\n", false);
+            fr = new BufferedReader(new FileReader(ScriptFile));
 
         } catch (FileNotFoundException ex) {
             String str = "The script file\n'" + FileName + "'\n could not be opened.\n\n";
@@ -1728,19 +2765,12 @@ public final class Dispatcher extends Thread {
             throw new ScriptException(str);
         }
 
-        // include all command lines
+        // read all command lines
+        ArrayList<String> Lines = new ArrayList<String>();
         String line="";
         try {
             while ( (line = fr.readLine()) != null ) {
-
-                // append the line
-                CommandList.add(Index, line);
-
-                // remember to add the next line at the next index
-                Index++;
-
-                // increase the counter of INCLUDED lines
-                m_IncludedLines++;
+                Lines.add(line);
             }
 
         } catch (IOException ex) {
@@ -1748,13 +2778,20 @@ public final class Dispatcher extends Thread {
             str += "reported cause: " + ex.getMessage() +"\n";
 
             throw new ScriptException(str);
+            
+        } finally {
+            // close the file
+            try { fr.close(); } catch (IOException ignore) {}
         }
         
-        // close the file
-        if ( fr != null ) {
-            try { fr.close(); } catch (IOException ignore) {}    
-        }
-
+        // remember the lines
+        Cached = new SubScript();
+        Cached.LastModified = LastModified;
+        Cached.Length = Length;
+        Cached.Lines = Collections.unmodifiableList(Lines);
+        m_SubScripts.put(ScriptFile.getAbsolutePath(), Cached);
+        
+        return Cached.Lines;
     }//</editor-fold>
 
 
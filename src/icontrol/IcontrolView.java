@@ -143,6 +143,7 @@ package icontrol;
 
 
 import icontrol.dialogs.WhatsNew;
+import icontrol.drivers.CommTrace;
 import icontrol.drivers.Device;
 import icontrol.drivers.Device.CommPorts;
 import icontrol.scriptsincolour.ui.ScriptLineRenderer;
@@ -4002,6 +4003,18 @@ public final class IcontrolView   extends FrameView implements GUI_Interface {
 
         // log Logger level
         m_Comm_Logger.log(Level.CONFIG, "Comm-Logger Level = {0}\n", m_Logger.getLevel().toString());
+        
+        // write the binary Comm trace if enabled
+        if (m_iC_Properties.getInt("iC.CommTrace", 0) == 1) {
+            try {
+                CommTrace.open(new File(LogFilePath
+                        + System.getProperty("file.separator") + DateString + "_Comm_Trace.bin"));
+                
+            } catch (IOException ex) {
+                DisplayStatusMessage("Error: Could not open the binary Comm trace:\n"
+                        + ex.getMessage() + "\n");
+            }
+        }
         //</editor-fold>
         
         
@@ -4308,6 +4321,11 @@ public final class IcontrolView   extends FrameView implements GUI_Interface {
         // Instrument Classes
         m_Dispatcher = new Dispatcher(this);
         
+        // start the Python Interpreter in the background if desired
+        if (m_iC_Properties.getInt("Device.PrewarmPython", 0) == 1) {
+            Device.prewarmPythonInterpreter();
+        }
+        
         
 
         ///////////////////////////
@@ -29,8 +29,16 @@
 package icontrol;
 
 import static icontrol.Utilities.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.MathContext;
 import java.util.ArrayList;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -74,6 +82,22 @@ public class ScriptMethod
     /** The types of the arguments this method accepts */
     public Class<?>[]   ParameterTypes;
     
+    /** A pre-bound <code>MethodHandle</code> to <code>ReferenceToMethod</code>
+     * with the type (Object Instance, Object[] Arguments)Object. It is generated
+     * in <code>prepareInvocation</code> and used by <code>invoke</code>. It is
+     * <code>null</code> for generic methods, or if the method is not accessible. */
+    public MethodHandle Handle;
+    
+    /** The classes the Arguments must have to be passed to <code>Handle</code>
+     * without conversion, that is, <code>ParameterTypes</code> with primitive
+     * types replaced by their wrapper classes. Built with <code>Handle</code>. */
+    private Class<?>[]  ArgumentClasses;
+    
+    /** The converters from String to the type of each argument in 
+     * <code>ParameterTypes</code>. Generated in <code>prepareInvocation</code>;
+     * an entry is <code>null</code> if the type is not supported. */
+    public ParameterConverter[] Converters;
+    
     /** Flag that stores whether or not the method was defined as a generic GPIB
      * Instrument or as programmatic method. It is <code>false</code> per default,
      * and set to <code>true</code> in <code>parseDefinition</code>. */
@@ -131,6 +155,277 @@ public class ScriptMethod
     
     
 
+    /**
+     * Converts the String of a Script-Command's argument into the type the
+     * Script-Method expects. One converter exists for each supported type, see
+     * <code>getConverter</code>.
+     */
+    public interface ParameterConverter {
+        
+        /**
+         * @param Value The argument as specified in the Script-Command
+         * @return The converted value
+         * @throws ScriptException when the conversion failed
+         */
+        Object convert(String Value) throws ScriptException;
+    }
+    
+    /** Converts to <code>int</code> */
+    // <editor-fold defaultstate="collapsed" desc="Converters">
+    private static final ParameterConverter INTEGER_CONVERTER = new ParameterConverter() {
+        public Object convert(String Value) throws ScriptException {
+            return getInteger(Value);
+        }
+    };
+    
+    /** Converts to <code>double</code> */
+    private static final ParameterConverter DOUBLE_CONVERTER = new ParameterConverter() {
+        public Object convert(String Value) throws ScriptException {
+            return getDouble(Value);
+        }
+    };
+    
+    /** Converts to <code>float</code> */
+    private static final ParameterConverter FLOAT_CONVERTER = new ParameterConverter() {
+        public Object convert(String Value) throws ScriptException {
+            return getFloat(Value);
+        }
+    };
+    
+    /** Converts to <code>boolean</code> */
+    private static final ParameterConverter BOOLEAN_CONVERTER = new ParameterConverter() {
+        public Object convert(String Value) throws ScriptException {
+            return getBoolean(Value);
+        }
+    };
+    
+    /** Does not convert <code>String</code>s */
+    private static final ParameterConverter STRING_CONVERTER = new ParameterConverter() {
+        public Object convert(String Value) {
+            return Value;
+        }
+    };//</editor-fold>
+    
+    
+    /**
+     * Returns the converter for the given type.
+     * 
+     * @param Type The type of an argument of a Script-Method
+     * @return The converter for <code>int</code>, <code>double</code>, 
+     * <code>float</code>, <code>boolean</code>, and <code>String</code>,
+     * or <code>null</code> if the type is not supported.
+     */
+    // <editor-fold defaultstate="collapsed" desc="getConverter">
+    public static ParameterConverter getConverter(Class<?> Type) {
+        
+        if (Type == Integer.TYPE) {
+            return INTEGER_CONVERTER;
+        } else if (Type == Double.TYPE) {
+            return DOUBLE_CONVERTER;
+        } else if (Type == Float.TYPE) {
+            return FLOAT_CONVERTER;
+        } else if (Type == Boolean.TYPE) {
+            return BOOLEAN_CONVERTER;
+        } else if (Type == String.class) {
+            return STRING_CONVERTER;
+        } else {
+            return null;
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Converts an argument that is already a Java object (instead of a 
+     * <code>String</code> from a Command-Line) into the type this Script-Method
+     * expects. Used for calls from Python (see <code>Device.invokeScriptMethod</code>)
+     * and for script variables (see <code>Device.compileCommand</code>).<p>
+     * 
+     * <code>Number</code>s are converted to <code>int</code>, <code>double</code>,
+     * <code>float</code>, or, without trailing zeros, to <code>String</code>. 
+     * <code>String</code>s are converted as if they appeared in a Script-Command, 
+     * and all other arguments are passed unchanged if they are an instance of 
+     * the required type. <code>prepareInvocation</code> must have been called.
+     * 
+     * @param Index The index of the argument
+     * @param Argument The argument to convert
+     * @return The converted argument
+     * @throws ScriptException when the argument could not be converted
+     */
+    // <editor-fold defaultstate="collapsed" desc="convertArgument">
+    public Object convertArgument(int Index, Object Argument)
+           throws ScriptException {
+        
+        // the expected type
+        Class<?> Type = ParameterTypes[Index];
+        
+        // convert native numbers
+        if (Argument instanceof Number) {
+            Number nr = (Number) Argument;
+            
+            if (Type == Integer.TYPE) {
+                // don't silently drop fractional digits
+                if (nr.doubleValue() != Math.rint(nr.doubleValue())) {
+                    throw new ScriptException("Argument " + (Index+1) + " of '" 
+                            + DeviceCommandName + "' must be an integer number but was "
+                            + nr + ".\n");
+                }
+                return nr.intValue();
+            } else if (Type == Double.TYPE) {
+                return nr.doubleValue();
+            } else if (Type == Float.TYPE) {
+                return nr.floatValue();
+            } else if (Type == String.class) {
+                // e.g. 0.30000000000000004 becomes 0.3
+                return new BigDecimal(nr.doubleValue()).round(new MathContext(12))
+                        .stripTrailingZeros().toPlainString();
+            }
+        }
+        
+        // use the converters of the Script-Command for Strings
+        if (Argument instanceof String && Converters[Index] != null) {
+            return Converters[Index].convert( (String)Argument );
+        }
+        
+        // pass all other arguments if they have the correct type
+        if (Argument instanceof Boolean && Type == Boolean.TYPE) {
+            return Argument;
+        } else if ( Type.isInstance(Argument) ) {
+            return Argument;
+        }
+        
+        // the argument is not suitable
+        String str = "Argument " + (Index+1) + " of '" + DeviceCommandName 
+                + "' must be of type " + Type.getSimpleName() + " but was "
+                + (Argument == null ? "undefined" : Argument.getClass().getSimpleName()) + ".\n";
+        throw new ScriptException(str);
+    }//</editor-fold>
+    
+    
+    /**
+     * Builds the <code>Converters</code> for all <code>ParameterTypes</code>
+     * and, for programmatic methods, the <code>Handle</code> used in 
+     * <code>invoke</code>. This is done once when the Script-Methods of an
+     * Instrument-Class are indexed, so that dispatching a Script-Command does
+     * not need to choose the converters or use <code>Method.invoke</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="prepareInvocation">
+    public void prepareInvocation() {
+        
+        // build the converters
+        ParameterConverter[] conv = new ParameterConverter[ParameterTypes.length];
+        for (int i=0; i<ParameterTypes.length; i++) {
+            conv[i] = getConverter(ParameterTypes[i]);
+        }
+        Converters = conv;
+        
+        // build the MethodHandle for programmatic methods
+        if ( !isGenericGPIB && ReferenceToMethod != null && Handle == null) {
+            try {
+                MethodHandle mh = MethodHandles.publicLookup().unreflect(ReferenceToMethod);
+                
+                // static methods have no receiver, so ignore the Instance
+                if (Modifier.isStatic(ReferenceToMethod.getModifiers())) {
+                    mh = MethodHandles.dropArguments(mh, 0, Object.class);
+                }
+                
+                // (Instance, Arguments...)ReturnType -> (Object, Object[])Object
+                Handle = mh.asType(MethodType.genericMethodType(ParameterTypes.length + 1))
+                           .asSpreader(Object[].class, ParameterTypes.length);
+                
+                // remember the classes invoke can pass to the Handle unchanged
+                ArgumentClasses = MethodType.methodType(void.class, ParameterTypes)
+                                            .wrap().parameterArray();
+                
+            } catch (IllegalAccessException ex) {
+                // use Method.invoke instead
+                m_Logger.log(Level.FINE, "Could not make a MethodHandle for {0}: {1}\n", 
+                        new Object[]{DeviceCommandName, ex.getMessage()});
+            }
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Invokes the programmatic Script-Method, either with the pre-bound 
+     * <code>Handle</code> or via Reflection if no <code>Handle</code> is available.
+     * Behaves like <code>Method.invoke</code>, that is, any exception thrown by 
+     * the invoked method is wrapped in an <code>InvocationTargetException</code>,
+     * and unsuitable arguments are reported as <code>IllegalArgumentException</code>.
+     * 
+     * @param Instance The Instrument on which the method is invoked
+     * @param Arguments The converted arguments
+     * @return The value returned by the invoked method, or <code>null</code> for
+     * <code>void</code> methods.
+     * 
+     * @throws InvocationTargetException if the invoked method threw an exception
+     * @throws IllegalAccessException if the method is not accessible
+     * @throws IllegalArgumentException if the Instance or the Arguments do not 
+     * match the method
+     */
+    // <editor-fold defaultstate="collapsed" desc="invoke">
+    public Object invoke(Object Instance, Object[] Arguments) 
+           throws InvocationTargetException, IllegalAccessException {
+        
+        // use Reflection if no MethodHandle is available, or if the arguments
+        // cannot be passed to the Handle as they are; Method.invoke then applies
+        // widening conversions or throws an IllegalArgumentException, so that
+        // a ClassCastException or NullPointerException from the Handle's own
+        // type conversion is not mistaken for one thrown by the method
+        if (Handle == null || !isExactMatch(Instance, Arguments)) {
+            return ReferenceToMethod.invoke(Instance, Arguments);
+        }
+        
+        try {
+            return (Object) Handle.invokeExact(Instance, Arguments);
+            
+        } catch (Throwable ex) {
+            // wrap it like Method.invoke does
+            throw new InvocationTargetException(ex);
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Checks if the Instance and the Arguments can be passed to the 
+     * <code>Handle</code> without a conversion that could fail, that is, if
+     * the number of Arguments is right, the Instance is of the declaring class
+     * (unless the method is static), and every Argument is an instance of
+     * <code>ArgumentClasses</code>; primitive Parameters must not be <code>null</code>
+     * and need exactly their wrapper class.
+     * 
+     * @param Instance The Instrument on which the method is invoked
+     * @param Arguments The converted arguments
+     * @return <code>true</code> if <code>invokeExact</code> can be used
+     */
+    // <editor-fold defaultstate="collapsed" desc="isExactMatch">
+    private boolean isExactMatch(Object Instance, Object[] Arguments) {
+        
+        if (ArgumentClasses == null || Arguments == null 
+                || Arguments.length != ArgumentClasses.length) {
+            return false;
+        }
+        
+        if ( !Modifier.isStatic(ReferenceToMethod.getModifiers()) &&
+             !ReferenceToMethod.getDeclaringClass().isInstance(Instance) ) {
+            return false;
+        }
+        
+        for (int i=0; i<ArgumentClasses.length; i++) {
+            
+            if (ParameterTypes[i].isPrimitive()) {
+                // unboxing needs exactly the wrapper class, and no null
+                if (Arguments[i] == null || Arguments[i].getClass() != ArgumentClasses[i]) {
+                    return false;
+                }
+            } else if (Arguments[i] != null && !ArgumentClasses[i].isInstance(Arguments[i])) {
+                return false;
+            }
+        }
+        
+        return true;
+    }//</editor-fold>
+    
+
     /**
      * This overridden <code>toString</code> method is used by the 
      * <code>DefaultListModel</code> to obtain the text which is to be
@@ -488,6 +783,9 @@ public class ScriptMethod
         // remember that this ScriptMethod is a generic GPIB method
         isGenericGPIB = true;
         
+        // build the converters
+        prepareInvocation();
+        
         // set that this method should be included in the AutoGUI
         AutoGUI = true;
         
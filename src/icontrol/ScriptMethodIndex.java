@@ -0,0 +1,151 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * An immutable index of all Script-Methods of one Instrument-Class (including
+ * the generically defined Script-Methods of the Instrument-Class-Name). The
+ * Script-Methods are indexed by their name and number of arguments, so that
+ * finding the Script-Method for a Script-Command is a single hash look-up.<p>
+ * 
+ * The index is built once per Instrument-Class in <code>Device.getScriptMethodIndex</code>
+ * and shared by all instances of that class, the AutoGUI and the 
+ * <code>MonitorChart</code> threads.
+ * 
+ * @see icontrol.drivers.Device#getScriptMethodIndex()
+ * 
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ */
+public final class ScriptMethodIndex {
+    
+    /** All Script-Methods in the order they were found; unmodifiable */
+    private final List<ScriptMethod> m_AllScriptMethods;
+    
+    /** The Script-Methods with the same name and number of arguments. The key
+     * is generated with <code>makeKey</code>. */
+    private final HashMap<String, List<ScriptMethod>> m_ScriptMethods;
+    
+    /** The names of all Script-Methods */
+    private final HashSet<String> m_Names;
+    
+    
+    /**
+     * Builds the index.
+     * 
+     * @param ScriptMethods All Script-Methods of the Instrument-Class.
+     */
+    // <editor-fold defaultstate="collapsed" desc="Constructor">
+    public ScriptMethodIndex(Collection<ScriptMethod> ScriptMethods) {
+        
+        // remember all Script-Methods
+        m_AllScriptMethods = Collections.unmodifiableList( 
+                new ArrayList<ScriptMethod>(ScriptMethods) );
+        
+        // build the index
+        m_ScriptMethods = new HashMap<String, List<ScriptMethod>>();
+        m_Names = new HashSet<String>();
+        for (ScriptMethod met : m_AllScriptMethods) {
+            
+            // remember the name
+            m_Names.add(met.DeviceCommandName);
+            
+            // get the key
+            String Key = makeKey(met.DeviceCommandName, met.ParameterTypes.length);
+            
+            // get the list of Script-Methods with that key
+            List<ScriptMethod> list = m_ScriptMethods.get(Key);
+            if (list == null) {
+                list = new ArrayList<ScriptMethod>(1);
+                m_ScriptMethods.put(Key, list);
+            }
+            
+            // add the Script-Method
+            list.add(met);
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Generates the key used to index the Script-Methods.
+     */
+    // <editor-fold defaultstate="collapsed" desc="makeKey">
+    private static String makeKey(String Name, int NrOfArguments) {
+        return Name + "/" + NrOfArguments;
+    }//</editor-fold>
+    
+    
+    /**
+     * @return All Script-Methods of the Instrument-Class. The returned list is 
+     * unmodifiable; it might be empty but is never <code>null</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="getAll">
+    public List<ScriptMethod> getAll() {
+        return m_AllScriptMethods;
+    }//</editor-fold>
+    
+    
+    /**
+     * Returns all Script-Methods with the given name (case sensitive) and
+     * number of arguments. More than one Script-Method is returned if the
+     * Instrument-Class defines overloaded methods with the same number of
+     * arguments, which is not allowed.
+     * 
+     * @param Name The name of the Script-Method
+     * @param NrOfArguments The number of arguments the Script-Method accepts
+     * @return The matching Script-Methods. The returned list might be empty
+     * but is never <code>null</code>; do not modify it.
+     */
+    // <editor-fold defaultstate="collapsed" desc="find">
+    public List<ScriptMethod> find(String Name, int NrOfArguments) {
+        
+        // get the Script-Methods
+        List<ScriptMethod> ret = m_ScriptMethods.get( makeKey(Name, NrOfArguments) );
+        
+        return ret != null ? ret : Collections.<ScriptMethod>emptyList();
+    }//</editor-fold>
+    
+    
+    /**
+     * @param Name The name of a Script-Method (case sensitive)
+     * @return <code>true</code> if a Script-Method with this name exists,
+     * regardless of the number of arguments
+     */
+    // <editor-fold defaultstate="collapsed" desc="contains">
+    public boolean contains(String Name) {
+        return m_Names.contains(Name);
+    }//</editor-fold>
+}
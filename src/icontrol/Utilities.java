@@ -29,8 +29,6 @@
 package icontrol;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.script.ScriptException;
@@ -453,13 +451,18 @@ public class Utilities {
      * use escape those characters (\; or \").<p>
      *
      * Example:<br>
-     *  CommandLine = MAKE Tsample  Lakeshore 340; GPIB9<br>
-     *  Tokens = "MAKE", "Tsample", "Lakeshore 340", "GPIB9"<br>
+     *  CommandLine = MAKE Tsample; Lakeshore 340; GPIB 9<br>
+     *  Tokens = "MAKE", "Tsample", "Lakeshore 340", "GPIB 9"<br>
      *  Command Line = PA Measure 0;   V3,  I3,V2 , I2; .tra\;ns; "Test ; Test"<br>
      *  Tokens = "PA", "Measure", "0", "V3,  I3,V2 , I2", ".tra;ns", "Test ; Test"<br>
      * 
      * This method is made static because it is accessed from the View, from 
-     * <code>Dispatcher</code> and from <code>Device</code>
+     * <code>Dispatcher</code> and from <code>Device</code>.<p>
+     *
+     * The Command Line is scanned character by character in a single pass
+     * without using Regular Expressions. The Tokens are identical to the ones
+     * produced by the earlier, Regex based implementation, which is verified
+     * with the golden-test corpus in <code>UtilitiesTest</code>.
      *
      * @param CommandLine is split into Tokens
      *
@@ -471,45 +474,28 @@ public class Utilities {
     // <editor-fold defaultstate="collapsed" desc="Tokenizer">
     static public ArrayList<String> Tokenizer(final String CommandLine) {
 
-        /* define the script-commands that consist of only one word followed
-         * by the Argument List.
-         */
-        final List<String> ONE_WORD_COMMANDS = Arrays.asList("MAKE", "INCLUDE");
-
         // create the return object
         ArrayList<String> Tokens = new ArrayList<String>();
 
-        // do not overwrite the passed String
-        String  Line = CommandLine;
-
-        // remove all characters after a comment (% or //)
-        // http://www.regextester.com/
-        // old (wrong) Regex was [//[%]].+ (removed Path (/) from INCLUDE /Users/kurtp/iC Test/incl.py
-        Line = Line.replaceAll("(//|%).+", "");
-
-        // remove leading and trailing whitespaces of the command string
-        //Line.trim(); somehow does not work
-        Line = Line.replaceAll("^\\s+", "").replaceAll("\\s+$", "");
-
-        /* I am quite confident that there would be a regular expression
-         * able to split the entire Command Line in a very elegant way.
-         * Unfortunately, I am not aware of this solution, but would be
-         * delighted to see a solution. So if you are, or want to become, a
-         * specialist in Regex, please let me know once you found a solution.
-         */
+        // remove all characters after a comment (% or //) and remove leading
+        // and trailing whitespaces of the command string
+        String Line = trimWhitespace( removeComment(CommandLine) );
 
+        // find the first whitespace which separates the Framework-Command or
+        // Instrument-Name from the rest of the Command Line
+        int FirstWhitespace = 0;
+        while ( FirstWhitespace < Line.length() &&
+                !isWhitespace(Line.charAt(FirstWhitespace)) ) {
+            FirstWhitespace++;
+        }
 
-        // split string after first whitespace
-        String[] Token = Line.split("\\s", 2);
-        // Token1[0] contains the Framework-Command or Instrument-Name
-        // Token1[1] contains all parameters (the rest of the string)
-
-        // assign first Token to the ArrayList that is returned
-        Tokens.add(Token[0]);
+        // the first Token contains the Framework-Command or Instrument-Name
+        String FirstToken = Line.substring(0, FirstWhitespace);
+        Tokens.add( trimWhitespace(FirstToken) );
 
-        // check if first Token is a one-word Command
+        // check if first Token is a one-word Command (MAKE, INCLUDE)
         char Delimiter;
-        if (ONE_WORD_COMMANDS.contains(Token[0])) {
+        if (FirstToken.equals("MAKE") || FirstToken.equals("INCLUDE")) {
             // init next delimiter to be DELIMITER
             Delimiter = DELIMITER;
         } else {
@@ -517,99 +503,215 @@ public class Utilities {
             Delimiter = ' ';
         }
 
-
         // if there is a remaining string
-        if ( Token.length > 1 ) {
-            
-            // use nice variable names
-            Line = Token[1];
-
-            // trim whitespace
-            Line = Line.replaceAll("^\\s+", "").replaceAll("\\s+$", "");
+        if (FirstWhitespace < Line.length()) {
 
             // Line now contains the Device Command with optional Parameters
-            // traverse the Sting character by character
+            Line = trimWhitespace( Line.substring(FirstWhitespace + 1) );
+
+            // traverse the String character by character
             boolean split = true;
-            for (int i=0; i < Line.length(); i++){
+            int Start = 0;
+            for (int i=0; i < Line.length(); i++) {
+
+                char c = Line.charAt(i);
+
+                /* An escape character is only recognized if it is not the
+                 * first character of the current Token. This reproduces the
+                 * behavior of the previous implementation, which restarted
+                 * parsing at the beginning of the remaining String after every
+                 * Token and checked for (i > 1).
+                 */
+                boolean Escaped = (i - Start > 1) && Line.charAt(i-1) == '\\';
 
                 // check if an unescaped double-quote (") is found
-                if (Line.charAt(i) == '\"' && (i > 1 ? Line.charAt(i-1) != '\\' : true) ) {
+                if (c == '\"' && !Escaped) {
                     // yes, so flip the flag to split the String
                     split = !split;
                 }
 
-                // check if a DELIMITER or the End of Line is found when split==true
-                if ( split == true && 
-                     Line.charAt(i) == Delimiter ) {
+                // check if an unescaped Delimiter is found when split==true
+                if (split && c == Delimiter && !Escaped) {
 
-                    // don't split if DELIMITER is escaped
-                    if (i > 1 && Line.charAt(i-1) == '\\')
-                        continue;
+                    // add the new Token with escaped DELIMITER and escaped
+                    // double-quotes replaced
+                    Tokens.add( trimWhitespace(unescape(Line, Start, i)) );
 
-                    // get the new Token
-                    String NewToken = Line.substring(0, i);
+                    // continue with the remainder of the Command Line
+                    Start = i + 1;
 
-                    // replace escaped DELIMITER with DELIMITER
-                    NewToken = NewToken.replaceAll("\\\\"+DELIMITER, Character.toString(DELIMITER));
+                    // set the next delimiter to be DELIMITER
+                    Delimiter = DELIMITER;
+                }
+            }
 
-                    // replace escaped double quotes with double quotes (")
-                    NewToken = NewToken.replaceAll("\\\\\"", "\"");
+            // add the remainder (which does not contain a DELIMITER)
+            Tokens.add( trimWhitespace(Line.substring(Start)) );
+        }
 
-                    // add the new Substring to Tokens
-                    Tokens.add( NewToken );
+        return Tokens;
+    }//</editor-fold>
 
-                    // remove that substring from the Line
-                    if (Line.length() > i) {
-                        // get the remainder of the Command Line
-                        Line = Line.substring(i+1);
-                    } else {
-                        // this is when the semicolon is at the end of the String
-                        Line = "";
-                    }
 
-                    // start parsing form the beginning of the String
-                    // i gets incremented by the for-loop
-                    i = -1;
+    /**
+     * Removes a comment (starting with // or %) from the given Command Line.
+     * Reproduces the Regex <code>(//|%).+</code> which was used before in
+     * <code>Tokenizer</code> without the overhead of compiling a Pattern for
+     * every Script-Line; a comment character at the very end of the line is
+     * therefore retained (e.g. in a Path ending with /).
+     *
+     * @param Line The Command Line
+     * @return The Command Line without the comment
+     */
+    // <editor-fold defaultstate="collapsed" desc="removeComment">
+    private static String removeComment(String Line) {
+
+        StringBuilder sb = null;
+        int Copied = 0;
+        int i = 0;
+        while (i < Line.length() - 1) {
+
+            // find the start of the comment text
+            int Text;
+            if (Line.charAt(i) == '/' && Line.charAt(i+1) == '/') {
+                Text = i + 2;
+            } else if (Line.charAt(i) == '%') {
+                Text = i + 1;
+            } else {
+                i++;
+                continue;
+            }
 
-                    // set the next delimiter to be DELIMITER
-                    Delimiter = DELIMITER;
-                }
+            // a comment needs at least one character (. in the Regex)
+            if (Text >= Line.length() || isLineTerminator(Line.charAt(Text))) {
+                i++;
+                continue;
             }
 
-            // add the remainder (which does not contain a DELIMITER)
-            Tokens.add(Line);
+            // find the end of the comment (end of line)
+            int End = Text;
+            while (End < Line.length() && !isLineTerminator(Line.charAt(End))) {
+                End++;
+            }
+
+            // remove the comment
+            if (sb == null) {
+                sb = new StringBuilder(Line.length());
+            }
+            sb.append(Line, Copied, i);
+            Copied = End;
+            i = End;
         }
 
-        
+        // return the original String if no comment was found
+        if (sb == null) {
+            return Line;
+        }
+        return sb.append(Line, Copied, Line.length()).toString();
+    }//</editor-fold>
 
 
-        // remove leading and trailing whitespaces of the tokens
-        // OLD: and double quotes (") at the beginning and the end
-        for (int i=0; i<Tokens.size(); i++) {
-            Tokens.set(i, Tokens.get(i) .replaceAll("^\\s*", "")
-                                        .replaceAll("\\s*$", "")
-                                        //.replaceFirst("^\"", "")
-                                        //.replaceFirst("\"$", "")
-                                        );
+    /**
+     * Removes leading and trailing whitespaces the same way as the Regex
+     * <code>^\s+</code> and <code>\s+$</code> did in earlier versions of
+     * <code>Tokenizer</code>, that is, also when the String ends with a
+     * line terminator which is not a whitespace.
+     *
+     * @param str The String to trim
+     * @return The trimmed String; <code>str</code> if nothing was removed
+     */
+    // <editor-fold defaultstate="collapsed" desc="trimWhitespace">
+    private static String trimWhitespace(String str) {
+
+        int Start = 0;
+        int End = str.length();
+
+        // remove leading whitespaces
+        while (Start < End && isWhitespace(str.charAt(Start))) {
+            Start++;
         }
 
+        // remove trailing whitespaces
+        if (Start < End && !isWhitespace(str.charAt(End-1))) {
+
+            // $ also matches before a final line terminator
+            if (isLineTerminator(str.charAt(End-1))) {
+                int i = End - 1;
+                while (i > Start && isWhitespace(str.charAt(i-1))) {
+                    i--;
+                }
+                if (i < End - 1) {
+                    return str.substring(Start, i) + str.charAt(End-1);
+                }
+            }
+        } else {
+            while (End > Start && isWhitespace(str.charAt(End-1))) {
+                End--;
+            }
+        }
 
+        return str.substring(Start, End);
+    }//</editor-fold>
 
 
-        
-        // for development: display the reconstructed Command Line from the Tokens
-        // displaying the reconstructed Command Line can also be enabled in run()
-//        if (false) {
-//            m_GUI.DisplayStatusMessage(CommandLine + "\n", false);
-//            m_GUI.DisplayStatusMessage(Tokens.get(0) + "|", false);
-//            for (int ii=1; ii<Tokens.size()-1; ii++) {
-//                m_GUI.DisplayStatusMessage(Tokens.get(ii) + "|", false);
-//            }
-//            m_GUI.DisplayStatusMessage(Tokens.get(Tokens.size()-1) + "~\n\n", false);
-//        }
-        
-        return Tokens;
+    /**
+     * Returns the substring of <code>str</code> between <code>Start</code> and
+     * <code>End</code> in which escaped DELIMITERs (\;) and escaped
+     * double-quotes (\") are replaced by DELIMITER and double-quotes.
+     *
+     * @param str The String
+     * @param Start Index of the first character (inclusive)
+     * @param End Index of the last character (exclusive)
+     * @return The unescaped substring
+     */
+    // <editor-fold defaultstate="collapsed" desc="unescape">
+    private static String unescape(String str, int Start, int End) {
+
+        StringBuilder sb = null;
+        for (int i=Start; i < End; i++) {
+
+            char c = str.charAt(i);
+
+            // drop the escape character
+            if (c == '\\' && i+1 < End &&
+                (str.charAt(i+1) == DELIMITER || str.charAt(i+1) == '\"')) {
+                if (sb == null) {
+                    sb = new StringBuilder(End - Start);
+                    sb.append(str, Start, i);
+                }
+                continue;
+            }
+
+            if (sb != null) {
+                sb.append(c);
+            }
+        }
+
+        // return the substring if nothing was escaped
+        if (sb == null) {
+            return str.substring(Start, End);
+        }
+        return sb.toString();
     }//</editor-fold>
+
+
+    /**
+     * @return <code>true</code> if <code>c</code> is a whitespace as defined
+     * by <code>\s</code> in a Regex
+     */
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' ||
+               c == '\f' || c == '\r';
+    }
+
+    /**
+     * @return <code>true</code> if <code>c</code> is a line terminator, that
+     * is, a character not matched by <code>.</code> in a Regex
+     */
+    private static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' ||
+               c == '\u2028' || c == '\u2029';
+    }
     
     /**
      * This method serves as the Client Factory to return the View. When iC is
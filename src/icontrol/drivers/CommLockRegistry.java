@@ -0,0 +1,252 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds one Lock per physical communication resource. Previously, one global
+ * Lock per bus type was used in <code>Device</code>, so that, for instance,
+ * two Instruments on two different COM ports serialized against each other.
+ * With this registry, Instruments on independent resources can be accessed
+ * concurrently (e.g. from <code>MonitorChart</code> threads and the script),
+ * while Instruments that share a resource are still synchronized.<p>
+ *
+ * The resource is identified by a String key which is built in
+ * <code>Device.OpenInstrument</code>, for instance:
+ * <ul>
+ *  <li>GPIB: the type of the GPIB controller (e.g. <code>GPIB NI</code>). All
+ *      Instruments connected to GPIB share the Lock, because iC addresses only
+ *      one board per controller type (e.g. <code>GPIB_NI.BoardNr</code>), the 
+ *      GPIB drivers keep static state (e.g. the receive buffer), and it is 
+ *      unknown how a GPIB controller behaves when two Instruments are addressed
+ *      interleaved. Hence, GPIB is not accessed concurrently.
+ *  <li>RS232: the name of the COM port (e.g. <code>RS232 COM1</code>)
+ *  <li>TMCTL: all Instruments share the Lock <code>TMCTL</code>, because
+ *      <code>TMCTL_Driver</code> uses one instance of the native library and
+ *      one receive buffer for all Instruments (see also 
+ *      <code>TMCTL_Driver.StreamBlockData</code>).
+ *  <li>LAN: host and port (e.g. <code>LAN 192.168.0.10:5025</code>)
+ * </ul>
+ *
+ * Every Lock records how often it was acquired, how often the calling thread
+ * had to wait because another thread held the Lock, and how long it waited.
+ * These contention statistics are available from <code>getStatistics</code>.<p>
+ *
+ * The Locks are fair <code>ReentrantLock</code>s as before.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public final class CommLockRegistry {
+    
+    /** The Locks; the key is the String identifying the resource */
+    private static final ConcurrentHashMap<String, CommLock> m_Locks =
+            new ConcurrentHashMap<String, CommLock>();
+    
+    
+    /**
+     * A fair <code>ReentrantLock</code> that records contention statistics.
+     */
+    // <editor-fold defaultstate="collapsed" desc="CommLock">
+    public static final class CommLock extends ReentrantLock {
+        
+        private static final long serialVersionUID = 1L;
+        
+        /** The resource this Lock protects */
+        private final String m_Resource;
+        
+        /** Number of times the Lock was acquired */
+        private final AtomicLong m_Acquisitions = new AtomicLong();
+        
+        /** Number of times a thread had to wait for the Lock */
+        private final AtomicLong m_Contentions = new AtomicLong();
+        
+        /** Total and maximum time spent waiting for the Lock in ns */
+        private final AtomicLong m_WaitTime = new AtomicLong();
+        private final AtomicLong m_MaxWaitTime = new AtomicLong();
+        
+        
+        CommLock(String Resource) {
+            // make it a fair Lock
+            super(true);
+            
+            m_Resource = Resource;
+        }
+        
+        /**
+         * Acquires the Lock and updates the contention statistics.
+         */
+        @Override
+        public void lock() {
+            
+            // another thread holds the Lock or waits for it
+            boolean Contended = !isHeldByCurrentThread() && 
+                                (isLocked() || hasQueuedThreads());
+            
+            long Start = Contended ? System.nanoTime() : 0;
+            
+            super.lock();
+            
+            m_Acquisitions.incrementAndGet();
+            
+            if (Contended) {
+                long Wait = System.nanoTime() - Start;
+                
+                m_Contentions.incrementAndGet();
+                m_WaitTime.addAndGet(Wait);
+                
+                // attribute the wait time to the script line being processed
+                ScriptProfiler.addLockWait(Wait);
+                
+                // remember the maximum wait time
+                long Max = m_MaxWaitTime.get();
+                while (Wait > Max && !m_MaxWaitTime.compareAndSet(Max, Wait)) {
+                    Max = m_MaxWaitTime.get();
+                }
+            }
+        }
+        
+        /** @return The resource this Lock protects */
+        public String getResource() {
+            return m_Resource;
+        }
+        
+        /** @return How often the Lock was acquired */
+        public long getAcquisitions() {
+            return m_Acquisitions.get();
+        }
+        
+        /** @return How often a thread had to wait for the Lock */
+        public long getContentions() {
+            return m_Contentions.get();
+        }
+        
+        /** @return The total time threads waited for the Lock in ms */
+        public double getWaitTime() {
+            return m_WaitTime.get() / 1e6;
+        }
+        
+        /** @return The longest time a thread waited for the Lock in ms */
+        public double getMaxWaitTime() {
+            return m_MaxWaitTime.get() / 1e6;
+        }
+        
+        /** Resets the contention statistics */
+        void resetStatistics() {
+            m_Acquisitions.set(0);
+            m_Contentions.set(0);
+            m_WaitTime.set(0);
+            m_MaxWaitTime.set(0);
+        }
+    }//</editor-fold>
+    
+    
+    /** Not instantiable; use the static methods */
+    private CommLockRegistry() {}
+    
+    
+    /**
+     * Returns the Lock for the given resource. The same Lock is returned for
+     * the same resource throughout the lifetime of iC.
+     *
+     * @param Resource Identifies the physical communication resource, see the
+     * description of this class.
+     * @return The Lock for this resource; never <code>null</code>
+     */
+    // <editor-fold defaultstate="collapsed" desc="getLock">
+    public static CommLock getLock(String Resource) {
+        
+        CommLock Lock = m_Locks.get(Resource);
+        
+        if (Lock == null) {
+            CommLock NewLock = new CommLock(Resource);
+            Lock = m_Locks.putIfAbsent(Resource, NewLock);
+            if (Lock == null) {
+                Lock = NewLock;
+            }
+        }
+        
+        return Lock;
+    }//</editor-fold>
+    
+    
+    /**
+     * @return All Locks in the registry
+     */
+    // <editor-fold defaultstate="collapsed" desc="getLocks">
+    public static ArrayList<CommLock> getLocks() {
+        return new ArrayList<CommLock>(m_Locks.values());
+    }//</editor-fold>
+    
+    
+    /**
+     * Resets the contention statistics of all Locks. Called from the
+     * <code>Dispatcher</code> before the script is processed.
+     */
+    // <editor-fold defaultstate="collapsed" desc="resetStatistics">
+    public static void resetStatistics() {
+        for (CommLock Lock : m_Locks.values()) {
+            Lock.resetStatistics();
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Returns a human readable summary of the contention statistics of all
+     * Locks that have been acquired since the last call to <code>resetStatistics</code>.
+     *
+     * @return One line per resource, or an empty String if no Lock was used
+     */
+    // <editor-fold defaultstate="collapsed" desc="getStatistics">
+    public static String getStatistics() {
+        
+        StringBuilder ret = new StringBuilder();
+        
+        for (CommLock Lock : m_Locks.values()) {
+            
+            // skip unused Locks
+            if (Lock.getAcquisitions() == 0) {
+                continue;
+            }
+            
+            ret.append(String.format(Locale.US, 
+                    "%s: acquired %d times, contended %d times, waited %.1f ms (max. %.1f ms)\n",
+                    Lock.getResource(), Lock.getAcquisitions(), Lock.getContentions(),
+                    Lock.getWaitTime(), Lock.getMaxWaitTime()));
+        }
+        
+        return ret.toString();
+    }//</editor-fold>
+}
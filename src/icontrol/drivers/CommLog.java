@@ -0,0 +1,444 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import icontrol.iC_Properties;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous logger for the communication with Instruments. The records
+ * (Instrument name, direction, time stamp and message) are stored in a 
+ * pre-allocated ring buffer and are formatted and written to the Comm logger
+ * by a background thread, so that sending to and querying an Instrument is 
+ * not slowed down by writing to the log file.<p>
+ * 
+ * The Comm logger's level is checked before a record is stored, so that 
+ * disabled logging costs (almost) nothing. Because the time stamps are 
+ * formatted only in the background thread, no <code>SimpleDateFormat</code>
+ * is shared between threads.<p>
+ * 
+ * The ring buffer can be used by many threads at the same time without locking:
+ * each record obtains a slot by incrementing a sequence number, and the
+ * background thread processes the slots in the order of the sequence numbers. 
+ * When the ring buffer is full, the calling thread waits until a slot is free,
+ * so no records are lost.<p>
+ * 
+ * The records are also written to the binary trace if one was opened with
+ * <code>CommTrace.open</code>, even if the Comm logger's level is above FINE.<p>
+ * 
+ * The background thread sleeps while the ring buffer is empty and is woken up
+ * by the next record. The payload of a binary record is copied into the slot;
+ * slots that had to grow beyond <code>CommLog.MaxRetainedBytes</code> release
+ * their payload after it was written, so that large binary blocks (e.g. 
+ * waveforms) are not kept in the ring buffer.<p>
+ * 
+ * Set <code>CommLog.Async = 0</code> in the iC.properties to write the records 
+ * in the calling thread, and <code>CommLog.BufferSize</code> to change the
+ * number of records in the ring buffer.
+ * 
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ */
+public final class CommLog {
+    
+    /** The Comm Logger */
+    private static final Logger m_Comm_Logger = Logger.getLogger("Comm");
+    
+    /** Direction of the communication: sent to the Instrument */
+    public static final String SENT = "<-";
+    
+    /** Direction of the communication: received from the Instrument */
+    public static final String RECEIVED = "->";
+    
+    /** Direction of the communication: not sent because in No-Communication Mode */
+    public static final String NOT_SENT = "<n";
+    
+    /** One entry in the ring buffer; the fields are re-used */
+    private static final class Record {
+        
+        /** The sequence number of the record stored in this slot */
+        volatile long Sequence = -1;
+        
+        String InstrumentName;
+        String Direction;
+        long Nanos;
+        
+        /** The message as String, or null if it is stored in <code>Data</code> */
+        String Message;
+        
+        /** The payload of binary messages; grows when required */
+        byte[] Data = new byte[64];
+        int Length;
+    }
+    
+    /** The ring buffer; its length is a power of 2 */
+    private static final Record[] m_Records;
+    
+    /** Used to calculate the slot from the sequence number */
+    private static final int m_Mask;
+    
+    /** The next sequence number to be claimed by a writer */
+    private static final AtomicLong m_Head = new AtomicLong(0);
+    
+    /** The next sequence number to be processed by the background thread */
+    private static final AtomicLong m_Tail = new AtomicLong(0);
+    
+    /** When <code>true</code> the records are written by a background thread */
+    private static final boolean m_Async;
+    
+    /** The background thread, started on first use */
+    private static volatile Thread m_Writer;
+    
+    /** Is <code>true</code> while the background thread is about to sleep or
+     * sleeps because the ring buffer is empty; it is then woken up by 
+     * <code>publish</code> */
+    private static volatile boolean m_WriterWaiting = false;
+    
+    /** The payload of a slot is released after it was written if it is 
+     * larger than this number of bytes */
+    private static final int m_MaxRetainedBytes;
+    
+    /** The hexadecimal digits used in <code>toHexString</code> */
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    
+    /** Used to convert <code>System.nanoTime</code> to the wall clock time */
+    private static final long m_EpochMillis = System.currentTimeMillis();
+    private static final long m_EpochNanos = System.nanoTime();
+    
+    /** Formats the time stamp; used by one thread at a time */
+    private static final SimpleDateFormat m_TimeStampFormat = new SimpleDateFormat("HH:mm:ss");
+    
+    
+    // <editor-fold defaultstate="collapsed" desc="static initializer">
+    static {
+        iC_Properties Properties = new iC_Properties();
+        
+        m_Async = Properties.getInt("CommLog.Async", 1) == 1;
+        
+        // round the buffer size up to a power of 2
+        int Size = Integer.highestOneBit( Math.max(2, Properties.getInt("CommLog.BufferSize", 4096)) - 1) << 1;
+        
+        m_Records = new Record[Size];
+        for (int i=0; i<Size; i++) {
+            m_Records[i] = new Record();
+        }
+        m_Mask = Size - 1;
+        
+        m_MaxRetainedBytes = Properties.getInt("CommLog.MaxRetainedBytes", 4096);
+    }//</editor-fold>
+    
+    
+    /** Prevent instantiation; all methods are static */
+    private CommLog() {}
+    
+    
+    /**
+     * Level guard for the Comm logger; use it to avoid building the message
+     * when it would not be logged anyway.
+     * 
+     * @return <code>true</code> if messages are logged to the Comm logger
+     */
+    // <editor-fold defaultstate="collapsed" desc="isLoggable">
+    public static boolean isLoggable() {
+        return m_Comm_Logger.isLoggable(Level.FINE);
+    }//</editor-fold>
+    
+    
+    /**
+     * Logs a message sent to or received from an Instrument. Returns 
+     * immediately if the Comm logger's level is above FINE and no binary 
+     * trace is written.
+     * 
+     * @param InstrumentName The name of the Instrument
+     * @param Direction One of <code>SENT</code>, <code>RECEIVED</code>, or
+     * <code>NOT_SENT</code>
+     * @param Message The message
+     */
+    // <editor-fold defaultstate="collapsed" desc="log (String)">
+    public static void log(String InstrumentName, String Direction, String Message) {
+        
+        // level guard
+        if ( !isLoggable() && !CommTrace.isOpen() ) {
+            return;
+        }
+        
+        long Nanos = System.nanoTime();
+        
+        // log in the calling thread
+        if ( !m_Async ) {
+            write(InstrumentName, Direction, Nanos, Message, null, 0);
+            return;
+        }
+        
+        // claim a slot and fill it
+        long Sequence = claim();
+        Record R = m_Records[(int)(Sequence & m_Mask)];
+        R.InstrumentName = InstrumentName;
+        R.Direction = Direction;
+        R.Nanos = Nanos;
+        R.Message = Message;
+        R.Length = 0;
+        
+        publish(R, Sequence);
+    }//</editor-fold>
+    
+    
+    /**
+     * Logs binary data sent to or received from an Instrument; the data is 
+     * logged as hexadecimal values. The data is copied into the ring buffer
+     * and the hexadecimal String is built in the background thread. Returns 
+     * immediately if the Comm logger's level is above FINE and no binary 
+     * trace is written.
+     * 
+     * @param InstrumentName The name of the Instrument
+     * @param Direction One of <code>SENT</code>, <code>RECEIVED</code>, or
+     * <code>NOT_SENT</code>
+     * @param Data The data to log
+     * @param Offset The index of the first byte to log
+     * @param Length The number of bytes to log
+     */
+    // <editor-fold defaultstate="collapsed" desc="log (byte[])">
+    public static void log(String InstrumentName, String Direction, 
+                           byte[] Data, int Offset, int Length) {
+        
+        // level guard
+        if ( !isLoggable() && !CommTrace.isOpen() ) {
+            return;
+        }
+        
+        long Nanos = System.nanoTime();
+        
+        // log in the calling thread
+        if ( !m_Async ) {
+            write(InstrumentName, Direction, Nanos, null, 
+                    Arrays.copyOfRange(Data, Offset, Offset + Length), Length);
+            return;
+        }
+        
+        // claim a slot and fill it
+        long Sequence = claim();
+        Record R = m_Records[(int)(Sequence & m_Mask)];
+        R.InstrumentName = InstrumentName;
+        R.Direction = Direction;
+        R.Nanos = Nanos;
+        R.Message = null;
+        if (R.Data.length < Length) {
+            R.Data = new byte[Length];
+        }
+        System.arraycopy(Data, Offset, R.Data, 0, Length);
+        R.Length = Length;
+        
+        publish(R, Sequence);
+    }//</editor-fold>
+    
+    
+    /**
+     * Waits until all records logged so far have been written to the Comm
+     * logger and the binary trace. Call it before the log file is closed or read.
+     */
+    // <editor-fold defaultstate="collapsed" desc="flush">
+    public static void flush() {
+        
+        long Head = m_Head.get();
+        
+        while (m_Async && m_Tail.get() < Head) {
+            
+            // the background thread might not be running
+            if (m_Writer == null || !m_Writer.isAlive()) {
+                break;
+            }
+            LockSupport.parkNanos(1000000L);
+        }
+        
+        // write the buffered frames of the binary trace
+        CommTrace.flush();
+    }//</editor-fold>
+    
+    
+    /**
+     * Claims the next free slot in the ring buffer; waits if the ring buffer 
+     * is full. Starts the background thread if necessary.
+     * 
+     * @return The sequence number of the claimed slot
+     */
+    // <editor-fold defaultstate="collapsed" desc="claim">
+    private static long claim() {
+        
+        // start the background thread
+        if (m_Writer == null) {
+            startWriter();
+        }
+        
+        long Sequence = m_Head.getAndIncrement();
+        
+        // wait until the slot was processed by the background thread
+        while (Sequence - m_Tail.get() >= m_Records.length) {
+            LockSupport.parkNanos(100000L);
+        }
+        
+        return Sequence;
+    }//</editor-fold>
+    
+    
+    /**
+     * Hands a filled slot to the background thread and wakes it up if it 
+     * waits for the next record.
+     * 
+     * @param R The filled slot
+     * @param Sequence The sequence number of the slot
+     */
+    // <editor-fold defaultstate="collapsed" desc="publish">
+    private static void publish(Record R, long Sequence) {
+        
+        R.Sequence = Sequence;
+        
+        if (m_WriterWaiting) {
+            LockSupport.unpark(m_Writer);
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Starts the background thread that writes the records to the Comm logger.
+     */
+    // <editor-fold defaultstate="collapsed" desc="startWriter">
+    private static synchronized void startWriter() {
+        
+        if (m_Writer != null) {
+            return;
+        }
+        
+        m_Writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                
+                long Tail = m_Tail.get();
+                
+                while (true) {
+                    Record R = m_Records[(int)(Tail & m_Mask)];
+                    
+                    // wait for the next record to be published; check again
+                    // after announcing it, so a record published in between
+                    // is not missed
+                    if (R.Sequence != Tail) {
+                        m_WriterWaiting = true;
+                        if (R.Sequence != Tail) {
+                            LockSupport.park();
+                        }
+                        m_WriterWaiting = false;
+                        continue;
+                    }
+                    
+                    // format and log the record
+                    try {
+                        write(R.InstrumentName, R.Direction, R.Nanos, 
+                                R.Message, R.Data, R.Length);
+                    } catch (RuntimeException ex) {
+                        // a failing log handler must not stop the writer
+                    }
+                    
+                    // release the slot and a large payload
+                    R.Message = null;
+                    if (R.Data.length > m_MaxRetainedBytes) {
+                        R.Data = new byte[64];
+                    }
+                    Tail++;
+                    m_Tail.set(Tail);
+                }
+            }
+        }, "iC CommLog writer");
+        
+        m_Writer.setDaemon(true);
+        m_Writer.start();
+    }//</editor-fold>
+    
+    
+    /**
+     * Writes a record to the Comm logger and to the binary trace 
+     * (see <code>CommTrace</code>).
+     */
+    // <editor-fold defaultstate="collapsed" desc="write">
+    private static void write(String InstrumentName, String Direction, long Nanos,
+                              String Message, byte[] Data, int Length) {
+        
+        // log as text
+        if ( isLoggable() ) {
+            String Text = (Message != null) ? Message : toHexString(Data, 0, Length);
+            m_Comm_Logger.log(Level.FINE, format(InstrumentName, Direction, Nanos, Text));
+        }
+        
+        // write to the binary trace
+        CommTrace.write(InstrumentName, Direction, Nanos, Message, Data, Length);
+    }//</editor-fold>
+    
+    
+    /**
+     * Formats a log record as "time stamp direction Instrument-Name: Message".
+     */
+    // <editor-fold defaultstate="collapsed" desc="format">
+    private static String format(String InstrumentName, String Direction, 
+                                 long Nanos, String Message) {
+        
+        // convert to wall clock time
+        long Millis = m_EpochMillis + (Nanos - m_EpochNanos) / 1000000L;
+        
+        String TimeStamp;
+        synchronized (m_TimeStampFormat) {
+            TimeStamp = m_TimeStampFormat.format(new Date(Millis));
+        }
+        
+        return TimeStamp + " " + Direction + " " + InstrumentName + ": " + Message;
+    }//</editor-fold>
+    
+    
+    /**
+     * Converts the bytes into a String with each Byte's hexadecimal value
+     * preceded by "0x" like <code>RS232_Driver.ByteBufferToLogString</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="toHexString">
+    private static String toHexString(byte[] Data, int Offset, int Length) {
+        
+        StringBuilder sb = new StringBuilder(2 + 3*Length);
+        sb.append("0x");
+        
+        for (int i=Offset; i<Offset+Length; i++) {
+            sb.append(' ')
+              .append(HEX_DIGITS[(Data[i] >> 4) & 0x0F])
+              .append(HEX_DIGITS[Data[i] & 0x0F]);
+        }
+        
+        return sb.toString();
+    }//</editor-fold>
+}
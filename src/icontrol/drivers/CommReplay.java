@@ -0,0 +1,307 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import icontrol.iC_Properties;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replays the communication recorded in a binary Comm trace (see 
+ * <code>CommTrace</code>), so that scripts and Instrument classes can be run,
+ * tested, and profiled without the physical Instruments.<p>
+ * 
+ * When <code>iC.ReplayTrace</code> in the iC.properties specifies a trace file,
+ * <code>Device.OpenInstrument</code> does not open the GPIB, RS232, LAN or
+ * TMCTL connection, and <code>Device</code> answers queries with the answers
+ * recorded for the same Instrument-Name and the same message. The recorded
+ * exchanges of each Instrument are searched in the recorded order starting
+ * after the last exchange that was replayed, so that repeated queries (for
+ * instance of a measured value) return the values in the recorded sequence;
+ * when the end is reached, the search starts over at the beginning.<p>
+ * 
+ * With <code>CommReplay.Latency = 1</code> the recorded latency of each query
+ * is reproduced, otherwise the answers are returned immediately, which allows
+ * to measure the CPU-side overhead of the script (parsing, charting, saving 
+ * files, ...) in isolation.
+ * 
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ */
+public class CommReplay {
+    
+    /** The Logger for this class */
+    private static final Logger m_Logger = Logger.getLogger("iC.Instruments.CommReplay");
+    
+    /** The character set of Strings in the trace */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /** One recorded exchange with an Instrument */
+    private static class Exchange {
+        
+        /** The message sent to the Instrument */
+        byte[] Sent;
+        
+        /** The answer of the Instrument; null if no answer was received */
+        byte[] Answer;
+        
+        /** The recorded latency in us, or -1 */
+        int Latency = -1;
+    }
+    
+    /** The recorded exchanges of one Instrument */
+    private static class Recording {
+        
+        final ArrayList<Exchange> Exchanges = new ArrayList<Exchange>();
+        
+        /** The index of the next exchange to start searching from */
+        int Next = 0;
+    }
+    
+    /** The loaded replay; null if no trace is replayed */
+    private static CommReplay m_Replay;
+    
+    /** The file, length and modification date of the loaded replay */
+    private static String m_ReplayKey = "";
+    
+    /** The recordings of all Instruments; the key is the Instrument-Name */
+    private final HashMap<String, Recording> m_Recordings = new HashMap<String, Recording>();
+    
+    /** When <code>true</code>, the recorded latencies are reproduced */
+    private final boolean m_ReproduceLatency;
+    
+    
+    /**
+     * Loads the given trace.
+     * 
+     * @param TraceFile The trace file
+     * @param ReproduceLatency When <code>true</code>, the recorded latencies 
+     * are reproduced
+     * @throws IOException When the trace could not be read
+     */
+    // <editor-fold defaultstate="collapsed" desc="Constructor">
+    public CommReplay(File TraceFile, boolean ReproduceLatency) 
+           throws IOException {
+        
+        m_ReproduceLatency = ReproduceLatency;
+        
+        HashMap<Short, Recording> Ids = new HashMap<Short, Recording>();
+        
+        DataInputStream In = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(TraceFile), 65536));
+        try {
+            CommTrace.readHeader(In);
+            
+            CommTrace.Frame F;
+            while ( (F = CommTrace.readFrame(In)) != null ) {
+                
+                // define a new Instrument
+                if (F.Dir == CommTrace.DIR_NAME) {
+                    String Name = new String(F.Payload, UTF8);
+                    Recording Rec = m_Recordings.get(Name);
+                    if (Rec == null) {
+                        Rec = new Recording();
+                        m_Recordings.put(Name, Rec);
+                    }
+                    Ids.put(F.Id, Rec);
+                    continue;
+                }
+                
+                Recording Rec = Ids.get(F.Id);
+                if (Rec == null) {
+                    continue;
+                }
+                
+                if (F.getDirection() == CommTrace.DIR_SENT) {
+                    // a new exchange
+                    Exchange Ex = new Exchange();
+                    Ex.Sent = F.Payload;
+                    Rec.Exchanges.add(Ex);
+                    
+                } else if (F.getDirection() == CommTrace.DIR_RECEIVED && !Rec.Exchanges.isEmpty()) {
+                    // the answer to the last exchange
+                    Exchange Ex = Rec.Exchanges.get(Rec.Exchanges.size() - 1);
+                    if (Ex.Answer == null) {
+                        Ex.Answer = F.Payload;
+                        Ex.Latency = F.Latency;
+                    }
+                }
+            }
+        } finally {
+            In.close();
+        }
+        
+        // log event
+        m_Logger.log(Level.CONFIG, "Loaded the Comm trace {0} for replay; Instruments: {1}\n",
+                new Object[]{TraceFile.getPath(), m_Recordings.keySet()});
+    }//</editor-fold>
+    
+    
+    /**
+     * Returns the replay of the trace specified in <code>iC.ReplayTrace</code>.
+     * The trace is loaded again when the file has changed; the position in the
+     * recordings is reset each time this method is called with a different 
+     * file. Call <code>rewind</code> to start over at the beginning.
+     * 
+     * @return The replay, or null if no trace is specified
+     * @throws IOException When the trace could not be read
+     */
+    // <editor-fold defaultstate="collapsed" desc="getReplay">
+    public static synchronized CommReplay getReplay() 
+           throws IOException {
+        
+        iC_Properties Properties = new iC_Properties();
+        
+        // get the trace file
+        String FileName = Properties.getString("iC.ReplayTrace", "", true);
+        if (FileName.isEmpty()) {
+            m_Replay = null;
+            m_ReplayKey = "";
+            return null;
+        }
+        File TraceFile = new File(FileName);
+        boolean ReproduceLatency = Properties.getInt("CommReplay.Latency", 0) == 1;
+        
+        // load it if it changed
+        String Key = TraceFile.getAbsolutePath() + "|" + TraceFile.length() + "|" 
+                + TraceFile.lastModified() + "|" + ReproduceLatency;
+        if (m_Replay == null || !Key.equals(m_ReplayKey)) {
+            m_Replay = new CommReplay(TraceFile, ReproduceLatency);
+            m_ReplayKey = Key;
+        }
+        
+        return m_Replay;
+    }//</editor-fold>
+    
+    
+    /**
+     * Starts replaying the recordings of all Instruments from the beginning.
+     */
+    // <editor-fold defaultstate="collapsed" desc="rewind">
+    public synchronized void rewind() {
+        for (Recording Rec : m_Recordings.values()) {
+            Rec.Next = 0;
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Replays sending a message to the Instrument. The replay advances past
+     * the recorded exchange if the message was recorded.
+     * 
+     * @param InstrumentName The Instrument-Name
+     * @param Message The message sent to the Instrument
+     */
+    // <editor-fold defaultstate="collapsed" desc="send">
+    public void send(String InstrumentName, byte[] Message) {
+        find(InstrumentName, Message, false);
+    }//</editor-fold>
+    
+    
+    /**
+     * Replays a query of the Instrument.
+     * 
+     * @param InstrumentName The Instrument-Name
+     * @param Message The message sent to the Instrument
+     * @return The recorded answer
+     * @throws IOException When no answer to this message was recorded
+     */
+    // <editor-fold defaultstate="collapsed" desc="query">
+    public byte[] query(String InstrumentName, byte[] Message) 
+           throws IOException {
+        
+        Exchange Ex = find(InstrumentName, Message, true);
+        
+        if (Ex == null) {
+            String str = "The Comm trace that is replayed does not contain an answer of\n"
+                    + "the Instrument " + InstrumentName + " to the message:\n"
+                    + new String(Message, UTF8).trim() + "\n";
+            throw new IOException(str);
+        }
+        
+        // reproduce the latency
+        if (m_ReproduceLatency && Ex.Latency > 0) {
+            try {
+                Thread.sleep(Ex.Latency / 1000L, (Ex.Latency % 1000) * 1000);
+            } catch (InterruptedException ignore) {}
+        }
+        
+        return Ex.Answer.clone();
+    }//</editor-fold>
+    
+    
+    /**
+     * Replays a query of the Instrument with Strings; see <code>query(String, byte[])</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="query (String)">
+    public String query(String InstrumentName, String Message) 
+           throws IOException {
+        return new String(query(InstrumentName, Message.getBytes(UTF8)), UTF8);
+    }//</editor-fold>
+    
+    
+    /**
+     * Finds the next recorded exchange with the given message and advances 
+     * the replay past it.
+     * 
+     * @param WithAnswer When <code>true</code>, only exchanges with an answer
+     * are considered
+     * @return The exchange, or null if it was not found
+     */
+    // <editor-fold defaultstate="collapsed" desc="find">
+    private synchronized Exchange find(String InstrumentName, byte[] Message, boolean WithAnswer) {
+        
+        Recording Rec = m_Recordings.get(InstrumentName);
+        if (Rec == null) {
+            return null;
+        }
+        
+        int Size = Rec.Exchanges.size();
+        for (int i=0; i<Size; i++) {
+            int Index = (Rec.Next + i) % Size;
+            Exchange Ex = Rec.Exchanges.get(Index);
+            
+            if ( (!WithAnswer || Ex.Answer != null) && Arrays.equals(Ex.Sent, Message) ) {
+                Rec.Next = Index + 1;
+                return Ex;
+            }
+        }
+        
+        return null;
+    }//</editor-fold>
+}
@@ -0,0 +1,472 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a compact binary trace of the communication with Instruments. The
+ * trace is written alongside the text file of the Comm logger (see
+ * <code>IcontrolView.myInit</code>) when <code>iC.CommTrace = 1</code>. The 
+ * records are passed from <code>CommLog</code>, hence, they are written by
+ * the background thread of <code>CommLog</code>.<p>
+ * 
+ * Format of the trace file (all numbers are big-endian as written by 
+ * <code>DataOutputStream</code>):<br>
+ * Header: the 8 bytes <code>MAGIC</code> followed by the wall clock time 
+ * (long, ms since 1970) that corresponds to time 0 of the frames.<br>
+ * Frame: int length of the rest of the frame, long time in us since time 0, 
+ * short Instrument id, byte direction (see <code>DIR_...</code>, or'ed with
+ * <code>DIR_BINARY</code> for binary messages), int latency in us (time since
+ * the last message sent to the Instrument for received frames, -1 otherwise),
+ * and the payload. For <code>DIR_NAME</code> frames, the payload is the UTF-8
+ * encoded name of the Instrument with the given id; these frames precede the
+ * first frame of each Instrument.<p>
+ * 
+ * Format of the index file (trace file name + <code>INDEX_EXTENSION</code>):
+ * A name entry (<code>INDEX_NAME</code>, short Instrument id, the name as
+ * written by <code>writeUTF</code>) for each Instrument, and a block entry 
+ * (<code>INDEX_BLOCK</code>, the time of the first and last frame in the block
+ * in us, the file offset of the first frame, and a bit mask of the Instrument
+ * ids in the block with bit id%64, all long) for each block of frames. The
+ * entries allow <code>CommTraceTool</code> to skip blocks that are outside
+ * the selected time range or do not contain the selected Instrument.
+ * 
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ */
+public final class CommTrace {
+    
+    /** The Logger for this class */
+    private static final Logger m_Logger = Logger.getLogger("iC.Instruments.CommTrace");
+    
+    /** The first bytes of a trace file */
+    public static final byte[] MAGIC = {'i', 'C', 'T', 'R', 'A', 'C', 'E', '1'};
+    
+    /** The extension appended to the trace file name to get the index file */
+    public static final String INDEX_EXTENSION = ".idx";
+    
+    /** Direction: defines the name of an Instrument id */
+    public static final byte DIR_NAME = 0;
+    
+    /** Direction: sent to the Instrument */
+    public static final byte DIR_SENT = 1;
+    
+    /** Direction: received from the Instrument */
+    public static final byte DIR_RECEIVED = 2;
+    
+    /** Direction: not sent because in No-Communication Mode */
+    public static final byte DIR_NOT_SENT = 3;
+    
+    /** Or'ed with the direction if the payload is binary data */
+    public static final byte DIR_BINARY = 0x10;
+    
+    /** Type of an entry in the index file: Instrument name */
+    public static final byte INDEX_NAME = 'N';
+    
+    /** Type of an entry in the index file: block of frames */
+    public static final byte INDEX_BLOCK = 'B';
+    
+    /** Maximum number of frames in one block of the index */
+    private static final int BLOCK_FRAMES = 1024;
+    
+    /** Maximum duration of one block of the index in us */
+    private static final long BLOCK_MICROS = 1000000L;
+    
+    /** The character set of Strings in the trace */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /** One frame of a trace as read by <code>readFrame</code> */
+    static final class Frame {
+        long Micros;
+        short Id;
+        byte Dir;
+        int Latency;
+        byte[] Payload;
+        
+        /** @return The direction without the <code>DIR_BINARY</code> flag */
+        byte getDirection() {
+            return (byte)(Dir & ~DIR_BINARY);
+        }
+        
+        /** @return <code>true</code> if the payload is binary data */
+        boolean isBinary() {
+            return (Dir & DIR_BINARY) != 0;
+        }
+    }
+    
+    /** The open trace, or null if no trace is written */
+    private static CommTrace m_Trace;
+    
+    /** <code>true</code> after the shutdown hook that closes the trace was 
+     * registered in <code>open</code> */
+    private static boolean m_ShutdownHookAdded = false;
+    
+    
+    /** The trace file */
+    private final DataOutputStream m_Out;
+    
+    /** The index file */
+    private final DataOutputStream m_Index;
+    
+    /** System.nanoTime at time 0 of the frames */
+    private final long m_StartNanos;
+    
+    /** Number of bytes written to the trace file */
+    private long m_Offset;
+    
+    /** The ids of the Instruments */
+    private final HashMap<String, Short> m_Ids = new HashMap<String, Short>();
+    
+    /** The time (System.nanoTime) of the last frame sent to an Instrument */
+    private final HashMap<String, Long> m_LastSent = new HashMap<String, Long>();
+    
+    /** The current block of the index */
+    private int m_BlockFrames = 0;
+    private long m_BlockStart;
+    private long m_BlockEnd;
+    private long m_BlockOffset;
+    private long m_BlockMask;
+    
+    
+    /**
+     * Creates the trace and the index file and writes the header.
+     * 
+     * @param TraceFile The trace file
+     * @throws IOException When the files could not be created
+     */
+    // <editor-fold defaultstate="collapsed" desc="Constructor">
+    private CommTrace(File TraceFile) 
+            throws IOException {
+        
+        m_Out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(TraceFile), 65536));
+        m_Index = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(TraceFile.getPath() + INDEX_EXTENSION)));
+        
+        m_StartNanos = System.nanoTime();
+        
+        // write the header
+        m_Out.write(MAGIC);
+        m_Out.writeLong(System.currentTimeMillis());
+        m_Offset = MAGIC.length + 8;
+    }//</editor-fold>
+    
+    
+    /**
+     * Starts writing the trace to the given file. A previously opened trace is
+     * closed. The trace is closed when the Java VM shuts down.
+     * 
+     * @param TraceFile The trace file; the index file is created next to it
+     * @throws IOException When the files could not be created
+     */
+    // <editor-fold defaultstate="collapsed" desc="open">
+    public static synchronized void open(File TraceFile) 
+            throws IOException {
+        
+        // close a previous trace
+        close();
+        
+        m_Trace = new CommTrace(TraceFile);
+        
+        // close the trace when iC exits (the hook closes whichever trace is
+        // open at that time, so it is registered only once)
+        if (!m_ShutdownHookAdded) {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    CommLog.flush();
+                    close();
+                }
+            }, "iC CommTrace close"));
+            m_ShutdownHookAdded = true;
+        }
+        
+        // log event
+        m_Logger.log(Level.CONFIG, "Writing the Comm trace to {0}\n", TraceFile.getPath());
+    }//</editor-fold>
+    
+    
+    /**
+     * @return <code>true</code> if a trace is written
+     */
+    // <editor-fold defaultstate="collapsed" desc="isOpen">
+    public static boolean isOpen() {
+        return m_Trace != null;
+    }//</editor-fold>
+    
+    
+    /**
+     * Writes all buffered frames to the trace and the index file.
+     */
+    // <editor-fold defaultstate="collapsed" desc="flush">
+    public static synchronized void flush() {
+        
+        if (m_Trace == null) {
+            return;
+        }
+        
+        try {
+            m_Trace.m_Out.flush();
+            m_Trace.m_Index.flush();
+        } catch (IOException ex) {
+            m_Logger.log(Level.WARNING, "Could not flush the Comm trace: {0}\n", ex.getMessage());
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Closes the trace. Does nothing if no trace is open.
+     */
+    // <editor-fold defaultstate="collapsed" desc="close">
+    public static synchronized void close() {
+        
+        if (m_Trace == null) {
+            return;
+        }
+        
+        try {
+            m_Trace.writeIndexEntry();
+            m_Trace.m_Out.close();
+            m_Trace.m_Index.close();
+        } catch (IOException ex) {
+            m_Logger.log(Level.WARNING, "Could not close the Comm trace: {0}\n", ex.getMessage());
+        }
+        
+        m_Trace = null;
+    }//</editor-fold>
+    
+    
+    /**
+     * Writes one frame to the trace. Called from <code>CommLog</code>.
+     * 
+     * @param InstrumentName The name of the Instrument
+     * @param Direction One of <code>CommLog.SENT</code>, <code>CommLog.RECEIVED</code>,
+     * or <code>CommLog.NOT_SENT</code>
+     * @param Nanos The time (System.nanoTime) of the communication
+     * @param Message The message, or null if the message is in <code>Data</code>
+     * @param Data The binary message
+     * @param Length The length of the binary message
+     */
+    // <editor-fold defaultstate="collapsed" desc="write">
+    static synchronized void write(String InstrumentName, String Direction, long Nanos,
+                                   String Message, byte[] Data, int Length) {
+        
+        if (m_Trace == null) {
+            return;
+        }
+        
+        try {
+            boolean Binary = (Message == null);
+            if ( !Binary ) {
+                Data = Message.getBytes(UTF8);
+                Length = Data.length;
+            }
+            
+            m_Trace.writeFrame(InstrumentName, Direction, Nanos, Binary, Data, Length);
+            
+        } catch (IOException ex) {
+            m_Logger.log(Level.WARNING, "Could not write to the Comm trace; "
+                    + "the trace is closed: {0}\n", ex.getMessage());
+            close();
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Writes one frame and updates the index.
+     */
+    // <editor-fold defaultstate="collapsed" desc="writeFrame">
+    private void writeFrame(String InstrumentName, String Direction, long Nanos,
+                            boolean Binary, byte[] Data, int Length) 
+            throws IOException {
+        
+        long Micros = (Nanos - m_StartNanos) / 1000L;
+        
+        // get the Instrument id; define it with a name frame if it is new
+        Short Id = m_Ids.get(InstrumentName);
+        if (Id == null) {
+            Id = (short) m_Ids.size();
+            m_Ids.put(InstrumentName, Id);
+            
+            byte[] Name = InstrumentName.getBytes(UTF8);
+            writeFrame(Micros, Id, DIR_NAME, -1, Name, Name.length);
+            
+            m_Index.writeByte(INDEX_NAME);
+            m_Index.writeShort(Id);
+            m_Index.writeUTF(InstrumentName);
+        }
+        
+        // direction and latency
+        byte Dir;
+        int Latency = -1;
+        if (CommLog.SENT.equals(Direction)) {
+            Dir = DIR_SENT;
+            m_LastSent.put(InstrumentName, Nanos);
+            
+        } else if (CommLog.RECEIVED.equals(Direction)) {
+            Dir = DIR_RECEIVED;
+            Long Sent = m_LastSent.remove(InstrumentName);
+            if (Sent != null) {
+                Latency = (int) Math.min(Integer.MAX_VALUE, (Nanos - Sent) / 1000L);
+            }
+        } else {
+            Dir = DIR_NOT_SENT;
+        }
+        
+        if (Binary) {
+            Dir |= DIR_BINARY;
+        }
+        
+        writeFrame(Micros, Id, Dir, Latency, Data, Length);
+    }//</editor-fold>
+    
+    
+    /**
+     * Writes one frame with the given Instrument id and updates the index.
+     */
+    // <editor-fold defaultstate="collapsed" desc="writeFrame (Id)">
+    private void writeFrame(long Micros, short Id, byte Dir, int Latency, 
+                            byte[] Data, int Length) 
+            throws IOException {
+        
+        // start a new block in the index
+        if ( m_BlockFrames > 0 && 
+            (m_BlockFrames >= BLOCK_FRAMES || Micros - m_BlockStart >= BLOCK_MICROS) ) {
+            writeIndexEntry();
+        }
+        if (m_BlockFrames == 0) {
+            m_BlockStart = Micros;
+            m_BlockEnd = Micros;
+            m_BlockOffset = m_Offset;
+            m_BlockMask = 0;
+        }
+        
+        // write the frame
+        int FrameLength = 8 + 2 + 1 + 4 + Length;
+        m_Out.writeInt(FrameLength);
+        m_Out.writeLong(Micros);
+        m_Out.writeShort(Id);
+        m_Out.writeByte(Dir);
+        m_Out.writeInt(Latency);
+        m_Out.write(Data, 0, Length);
+        m_Offset += 4 + FrameLength;
+        
+        // update the block
+        m_BlockFrames++;
+        // frames of different threads might not be in strict order
+        m_BlockStart = Math.min(m_BlockStart, Micros);
+        m_BlockEnd = Math.max(m_BlockEnd, Micros);
+        m_BlockMask |= 1L << (Id & 63);
+    }//</editor-fold>
+    
+    
+    /**
+     * Writes the index entry of the current block.
+     */
+    // <editor-fold defaultstate="collapsed" desc="writeIndexEntry">
+    private void writeIndexEntry() 
+            throws IOException {
+        
+        if (m_BlockFrames == 0) {
+            return;
+        }
+        
+        m_Index.writeByte(INDEX_BLOCK);
+        m_Index.writeLong(m_BlockStart);
+        m_Index.writeLong(m_BlockEnd);
+        m_Index.writeLong(m_BlockOffset);
+        m_Index.writeLong(m_BlockMask);
+        
+        m_BlockFrames = 0;
+    }//</editor-fold>
+    
+    
+    /**
+     * Reads the next frame of a trace. The stream must be positioned at the
+     * start of a frame.
+     * 
+     * @param In The trace
+     * @return The frame, or null at the end of the trace (or if the last frame
+     * is incomplete)
+     * @throws IOException When the trace could not be read
+     */
+    // <editor-fold defaultstate="collapsed" desc="readFrame">
+    static Frame readFrame(DataInputStream In) 
+           throws IOException {
+        
+        Frame F = new Frame();
+        try {
+            int FrameLength = In.readInt();
+            F.Micros = In.readLong();
+            F.Id = In.readShort();
+            F.Dir = In.readByte();
+            F.Latency = In.readInt();
+            F.Payload = new byte[FrameLength - 15];
+            In.readFully(F.Payload);
+            
+        } catch (EOFException ex) {
+            return null;
+        }
+        
+        return F;
+    }//</editor-fold>
+    
+    
+    /**
+     * Reads and checks the header of a trace.
+     * 
+     * @param In The trace
+     * @return The wall clock time (ms) at time 0 of the frames
+     * @throws IOException When the trace could not be read or is not a Comm trace
+     */
+    // <editor-fold defaultstate="collapsed" desc="readHeader">
+    static long readHeader(DataInputStream In) 
+           throws IOException {
+        
+        byte[] Magic = new byte[MAGIC.length];
+        In.readFully(Magic);
+        if ( !Arrays.equals(Magic, MAGIC) ) {
+            throw new IOException("The file is not a Comm trace.");
+        }
+        
+        return In.readLong();
+    }//</editor-fold>
+}
@@ -0,0 +1,408 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Command line tool to slice a binary Comm trace written by <code>CommTrace</code>
+ * by time range and/or Instrument and to export it as text or CSV. The index 
+ * file next to the trace is used to skip the blocks of frames that are not
+ * selected; if it is missing, the whole trace is read.<p>
+ * 
+ * Usage:<br>
+ * <code>java -cp Icontrol.jar icontrol.drivers.CommTraceTool TraceFile 
+ * [-from Time] [-to Time] [-instrument Name]... [-minlatency ms] [-csv] 
+ * [-out File]</code><br>
+ * Time is either "yyyy-MM-dd HH:mm:ss" or "HH:mm:ss" on the day the trace was
+ * started. With <code>-minlatency</code> only received frames whose latency
+ * is at least the given time are exported, which is useful to find slow queries.
+ * 
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ */
+public class CommTraceTool {
+    
+    /** The character set of Strings in the trace */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /** Time stamp format of the exported frames */
+    private final SimpleDateFormat m_TimeStampFormat = 
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    
+    /** The wall clock time (ms) at time 0 of the frames */
+    private long m_StartMillis;
+    
+    /** The Instrument names of the ids */
+    private final HashMap<Short, String> m_Names = new HashMap<Short, String>();
+    
+    /** One block entry of the index */
+    private static class Block {
+        long Start, End, Offset, Mask;
+    }
+    
+    // selection
+    private long m_From = Long.MIN_VALUE;
+    private long m_To = Long.MAX_VALUE;
+    private final HashSet<String> m_Instruments = new HashSet<String>();
+    private int m_MinLatency = -1;
+    private boolean m_CSV = false;
+    
+    
+    /**
+     * Parses the command line and exports the selected frames.
+     * 
+     * @param args See the class' javadoc
+     */
+    // <editor-fold defaultstate="collapsed" desc="main">
+    public static void main(String[] args) {
+        
+        if (args.length == 0) {
+            System.err.println("Usage: CommTraceTool TraceFile [-from Time] [-to Time] "
+                    + "[-instrument Name]... [-minlatency ms] [-csv] [-out File]\n"
+                    + "Time is 'yyyy-MM-dd HH:mm:ss' or 'HH:mm:ss'");
+            System.exit(1);
+        }
+        
+        CommTraceTool Tool = new CommTraceTool();
+        File TraceFile = new File(args[0]);
+        String From = null, To = null, Out = null;
+        
+        try {
+            // parse the options
+            for (int i=1; i<args.length; i++) {
+                if ("-from".equals(args[i]) && i+1 < args.length) {
+                    From = args[++i];
+                } else if ("-to".equals(args[i]) && i+1 < args.length) {
+                    To = args[++i];
+                } else if ("-instrument".equals(args[i]) && i+1 < args.length) {
+                    Tool.m_Instruments.add(args[++i]);
+                } else if ("-minlatency".equals(args[i]) && i+1 < args.length) {
+                    Tool.m_MinLatency = (int) Math.round(1000 * Double.parseDouble(args[++i]));
+                } else if ("-csv".equals(args[i])) {
+                    Tool.m_CSV = true;
+                } else if ("-out".equals(args[i]) && i+1 < args.length) {
+                    Out = args[++i];
+                } else {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            
+            // export
+            PrintWriter Writer = new PrintWriter(new OutputStreamWriter(
+                    Out == null ? System.out : new FileOutputStream(Out), UTF8));
+            try {
+                Tool.export(TraceFile, From, To, Writer);
+            } finally {
+                Writer.close();
+            }
+            
+        } catch (IOException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.exit(2);
+        } catch (RuntimeException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            System.exit(1);
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Exports the selected frames of the trace.
+     * 
+     * @param TraceFile The trace file
+     * @param From The start of the time range, or null
+     * @param To The end of the time range, or null
+     * @param Writer Receives the exported frames
+     * @throws IOException When the trace could not be read or is invalid
+     */
+    // <editor-fold defaultstate="collapsed" desc="export">
+    public void export(File TraceFile, String From, String To, PrintWriter Writer) 
+           throws IOException {
+        
+        RandomAccessFile Trace = new RandomAccessFile(TraceFile, "r");
+        try {
+            // read the header
+            m_StartMillis = CommTrace.readHeader(new DataInputStream(
+                    Channels.newInputStream(Trace.getChannel())));
+            long HeaderLength = CommTrace.MAGIC.length + 8;
+            
+            // convert the time range to us since time 0
+            if (From != null) {
+                m_From = 1000L * (parseTime(From) - m_StartMillis);
+            }
+            if (To != null) {
+                m_To = 1000L * (parseTime(To) - m_StartMillis);
+            }
+            
+            // read the index
+            ArrayList<Block> Blocks = readIndex(new File(TraceFile.getPath() + CommTrace.INDEX_EXTENSION));
+            
+            if (m_CSV) {
+                Writer.println("Time,Instrument,Direction,Latency [ms],Message");
+            }
+            
+            if (Blocks == null) {
+                // no index: read the whole trace
+                exportFrames(Trace, HeaderLength, Trace.length(), Writer);
+                
+            } else {
+                // read the selected blocks
+                long Mask = selectedMask();
+                for (int i=0; i<Blocks.size(); i++) {
+                    Block B = Blocks.get(i);
+                    if (B.End < m_From || B.Start > m_To || (B.Mask & Mask) == 0) {
+                        continue;
+                    }
+                    long End = (i+1 < Blocks.size()) ? Blocks.get(i+1).Offset : Trace.length();
+                    exportFrames(Trace, B.Offset, End, Writer);
+                }
+            }
+        } finally {
+            Trace.close();
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Reads the index file.
+     * 
+     * @return The blocks of the index, or null if there is no index file
+     */
+    // <editor-fold defaultstate="collapsed" desc="readIndex">
+    private ArrayList<Block> readIndex(File IndexFile) 
+            throws IOException {
+        
+        if ( !IndexFile.exists() ) {
+            return null;
+        }
+        
+        ArrayList<Block> Blocks = new ArrayList<Block>();
+        DataInputStream In = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(IndexFile)));
+        try {
+            while (true) {
+                byte Type;
+                try {
+                    Type = In.readByte();
+                } catch (EOFException ex) {
+                    break;
+                }
+                
+                if (Type == CommTrace.INDEX_NAME) {
+                    short Id = In.readShort();
+                    m_Names.put(Id, In.readUTF());
+                    
+                } else if (Type == CommTrace.INDEX_BLOCK) {
+                    Block B = new Block();
+                    B.Start = In.readLong();
+                    B.End = In.readLong();
+                    B.Offset = In.readLong();
+                    B.Mask = In.readLong();
+                    Blocks.add(B);
+                    
+                } else {
+                    throw new IOException(IndexFile.getPath() + " is not a valid index.");
+                }
+            }
+        } catch (EOFException ex) {
+            // the last entry is incomplete; use the entries read so far
+        } finally {
+            In.close();
+        }
+        
+        return Blocks;
+    }//</editor-fold>
+    
+    
+    /**
+     * @return The bit mask of the selected Instrument ids (all bits set if 
+     * no Instrument was selected)
+     */
+    // <editor-fold defaultstate="collapsed" desc="selectedMask">
+    private long selectedMask() {
+        
+        if (m_Instruments.isEmpty()) {
+            return -1L;
+        }
+        
+        long Mask = 0;
+        for (Short Id : m_Names.keySet()) {
+            if (m_Instruments.contains(m_Names.get(Id))) {
+                Mask |= 1L << (Id & 63);
+            }
+        }
+        return Mask;
+    }//</editor-fold>
+    
+    
+    /**
+     * Exports the selected frames between the given file offsets.
+     */
+    // <editor-fold defaultstate="collapsed" desc="exportFrames">
+    private void exportFrames(RandomAccessFile Trace, long Start, long End, PrintWriter Writer) 
+            throws IOException {
+        
+        Trace.seek(Start);
+        DataInputStream In = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(Trace.getChannel()), 65536));
+        
+        long Offset = Start;
+        while (Offset < End) {
+            
+            // read the next frame; stop if the last frame is incomplete
+            CommTrace.Frame F = CommTrace.readFrame(In);
+            if (F == null) {
+                break;
+            }
+            Offset += 4 + 15 + F.Payload.length;
+            
+            // remember the Instrument name
+            if (F.Dir == CommTrace.DIR_NAME) {
+                m_Names.put(F.Id, new String(F.Payload, UTF8));
+                continue;
+            }
+            String Name = m_Names.containsKey(F.Id) ? m_Names.get(F.Id) : ("#" + F.Id);
+            
+            // apply the selection
+            if (F.Micros < m_From || F.Micros > m_To) {
+                continue;
+            }
+            if ( !m_Instruments.isEmpty() && !m_Instruments.contains(Name) ) {
+                continue;
+            }
+            if (m_MinLatency >= 0 && F.Latency < m_MinLatency) {
+                continue;
+            }
+            
+            exportFrame(F, Name, Writer);
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Exports one frame as text or as CSV.
+     */
+    // <editor-fold defaultstate="collapsed" desc="exportFrame">
+    private void exportFrame(CommTrace.Frame F, String Name, PrintWriter Writer) {
+        
+        String Time = m_TimeStampFormat.format(m_StartMillis + F.Micros / 1000L);
+        
+        String Direction;
+        switch (F.getDirection()) {
+            case CommTrace.DIR_SENT:     Direction = CommLog.SENT; break;
+            case CommTrace.DIR_RECEIVED: Direction = CommLog.RECEIVED; break;
+            default:                     Direction = CommLog.NOT_SENT;
+        }
+        
+        // the message
+        String Message;
+        if (F.isBinary()) {
+            StringBuilder sb = new StringBuilder("0x");
+            for (byte b : F.Payload) {
+                sb.append(String.format(" %02X", b));
+            }
+            Message = sb.toString();
+        } else {
+            Message = new String(F.Payload, UTF8);
+        }
+        
+        String LatencyString = F.Latency < 0 ? "" 
+                : String.format(Locale.US, "%.3f", F.Latency / 1000.0);
+        
+        if (m_CSV) {
+            Writer.println(Time + "," + quote(Name) + "," + Direction + "," 
+                    + LatencyString + "," + quote(Message));
+        } else {
+            Writer.print(Time + " " + Direction + " " + Name + ": " + Message.trim());
+            Writer.println(F.Latency < 0 ? "" : "  [" + LatencyString + " ms]");
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Quotes a field for CSV.
+     */
+    // <editor-fold defaultstate="collapsed" desc="quote">
+    private static String quote(String Field) {
+        return "\"" + Field.replace("\"", "\"\"") + "\"";
+    }//</editor-fold>
+    
+    
+    /**
+     * Parses a time given as "yyyy-MM-dd HH:mm:ss" or as "HH:mm:ss" on the day
+     * the trace was started.
+     * 
+     * @return The time in ms since 1970
+     */
+    // <editor-fold defaultstate="collapsed" desc="parseTime">
+    private long parseTime(String Time) {
+        
+        try {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(Time).getTime();
+            
+        } catch (ParseException ignore) {}
+        
+        try {
+            Calendar T = Calendar.getInstance();
+            T.setTime(new SimpleDateFormat("HH:mm:ss").parse(Time));
+            
+            Calendar Day = Calendar.getInstance();
+            Day.setTimeInMillis(m_StartMillis);
+            Day.set(Calendar.HOUR_OF_DAY, T.get(Calendar.HOUR_OF_DAY));
+            Day.set(Calendar.MINUTE, T.get(Calendar.MINUTE));
+            Day.set(Calendar.SECOND, T.get(Calendar.SECOND));
+            Day.set(Calendar.MILLISECOND, 0);
+            
+            return Day.getTimeInMillis();
+            
+        } catch (ParseException ex) {
+            throw new IllegalArgumentException("Could not parse the time " + Time 
+                    + "; use 'yyyy-MM-dd HH:mm:ss' or 'HH:mm:ss'.");
+        }
+    }//</editor-fold>
+}
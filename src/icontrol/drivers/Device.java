@@ -33,39 +33,63 @@ package icontrol.drivers;
 import icontrol.Utilities;
 import icontrol.GUI_Interface;
 import icontrol.AutoGUIAnnotation;
+import icontrol.CompiledCommand;
 import java.lang.reflect.Method;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import icontrol.Dispatcher;
 import icontrol.IcontrolView;
 import icontrol.ScriptMethod;
+import icontrol.ScriptMethodIndex;
 import icontrol.dialogs.JythonPrompt;
 import icontrol.dialogs.WrongIDN;
 import icontrol.iC_Annotation;
 import icontrol.iC_Properties;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.nio.ByteBuffer;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Locale;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.DataFormatException;
 import javax.script.ScriptException;
 import javax.swing.JOptionPane;
+import org.python.core.CompileMode;
+import org.python.core.CompilerFlags;
+import org.python.core.Py;
+import org.python.core.PyCode;
+import org.python.core.PyDictionary;
 import org.python.core.PyException;
 import org.python.core.PyInteger;
+import org.python.core.PyString;
 import org.python.util.PythonInterpreter;
 import static icontrol.Utilities.*;
 
@@ -190,7 +214,7 @@ public class Device {
     protected static GPIBcontroller m_GPIBcontroller;
 
     /** is true when processing of the script should be stopped */
-    protected static boolean m_StopScripting;
+    protected static volatile boolean m_StopScripting;
 
     /** remembers the start time of processing the script */
     protected static long m_tic;
@@ -221,22 +245,45 @@ public class Device {
 
 
     /**
-     * Stores the Lock for the GPIB controller.
+     * Stores the Lock for the communication resource (GPIB controller, COM port,
+     * TMCTL device or LAN host) this Instrument is connected to. It is obtained 
+     * from <code>CommLockRegistry</code> in <code>OpenInstrument</code>, so that
+     * Instruments on independent resources can communicate concurrently.
      * Using a Lock on a per GPIB address makes no sense, because who knows how
      * the GPIB controller behaves when two Instruments are addresses interleaved.
      * For the NI driver the single thread methods are used anyways.
+     * Use <code>getCommLock</code> to access it.
      */
-    protected static ReentrantLock m_LockGPIBController = new ReentrantLock(true);  
+    private ReentrantLock m_CommLock;
     
-    /** Stores the Lock for the RS232 port. */
-    protected static ReentrantLock m_LockRS232Port = new ReentrantLock(true);
+    /** When <code>true</code>, all communication with this Instrument is processed
+     * in <code>m_CommandQueue</code>. Set in <code>OpenInstrument</code> from
+     * the iC.properties (Device.UseCommandQueue). */
+    private boolean m_UseCommandQueue = false;
     
-    /** Stores the Lock for the TMCTL library. */
-    protected static ReentrantLock m_LockTMCTLlib = new ReentrantLock(true);
+    /** The command queue of this Instrument, serviced by a dedicated thread; 
+     * created on first use. See <code>submitToInstrument</code>. */
+    private ThreadPoolExecutor m_CommandQueue;
+    
+    /** The thread that currently services <code>m_CommandQueue</code> */
+    private volatile Thread m_CommandQueueThread;
+    
+    /** When not null, the communication with this Instrument is replayed from
+     * a recorded Comm trace instead of using a driver. Set in 
+     * <code>OpenInstrument</code> from the iC.properties (iC.ReplayTrace). */
+    private CommReplay m_Replay;
+    
+    
+    /**
+     * A unit of work that communicates with the Instrument. It is submitted to
+     * the Instrument's command queue with <code>submitToInstrument</code>.
+     *
+     * @param <T> The type of the result
+     */
+    public interface CommTask<T> {
+        T call() throws IOException;
+    }
 
-    /** Defines the format of the time stamp which precedes lines in the Comm logger
-     * Could be changed to HH:mm:ss.S */
-    private static final SimpleDateFormat m_TimeStampFormat = new SimpleDateFormat("HH:mm:ss");
 
        
     /** 
@@ -258,11 +305,43 @@ public class Device {
      * <code>m_GenericGPIBInstruments</code>. */
     protected String m_InstrumentClassName = "";
     
+    /** 
+     * Stores the index of all Script-Methods per Instrument-Class. The key
+     * is the class name plus the Instrument-Class-Name (to distinguish generic
+     * Instruments). See <code>getScriptMethodIndex</code>.
+     */
+    private static final ConcurrentHashMap<String, ScriptMethodIndex> m_ScriptMethodIndices =
+            new ConcurrentHashMap<String, ScriptMethodIndex>();
+    
     /** Handle to the Jython/Python Interpreter. Is null if no Python statement
      * has been issued. It's static because only one PythonInterpreter exists
      * for all instances of Device. */ 
     private static PythonInterpreter m_PythonInterpreter;
     
+    /** Caches the compiled Python code blocks executed in <code>execPython</code>;
+     * the key is the source text. The least recently used block is removed when
+     * more than Device.PythonCodeCacheSize blocks are cached. The compiled code
+     * does not depend on the Python Interpreter's namespace, hence, the cache
+     * is kept when the Python Interpreter is reset. */
+    private static final Map<String, PyCode> m_PythonCodeCache = 
+            Collections.synchronizedMap(new LinkedHashMap<String, PyCode>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PyCode> Eldest) {
+            return size() > m_iC_Properties.getInt("Device.PythonCodeCacheSize", 256);
+        }
+    });
+    
+    /** The names of the Instruments that were exported to the Python 
+     * Interpreter as <code>InstrumentProxy</code>s; see 
+     * <code>exportInstrumentsToPython</code>. */
+    private static final HashSet<String> m_InstrumentsInPython = new HashSet<String>();
+    
+    /** Creates and initializes a Python Interpreter in the background; it is
+     * used by the next <code>resetPythonInterpreter</code>. Is null if no
+     * Python Interpreter is being pre-warmed. Guarded by Device.class. See
+     * <code>prewarmPythonInterpreter</code>. */
+    private static FutureTask<PrewarmedPython> m_PythonPrewarm = null;
+    
     /** Handle to the Form (Window) that shows the Python output and the Python
      * command line. Must be static so that the only one Jython Prompt Window 
      * is accessible in all instances of Device. */
@@ -282,6 +361,24 @@ public class Device {
      */
     protected String m_TerminationCharacters = "";
     
+    /** Receive termination characters (optional). If not empty, receiving an
+     * answer via RS232 ends as soon as the answer ends with these characters
+     * instead of after <code>RS232_Driver.TimeOut</code> without new data. 
+     * Answers received via LAN end with these characters, respectively with 
+     * a line feed if empty.
+     * Empty per default; can be set with the key 'ClassName'.ReceiveTerminationCharacters
+     * in iC.properties.
+     */
+    protected String m_ReceiveTerminationCharacters = "";
+    
+    /**
+     * Collects the raw answer of a binary block query that is received in 
+     * several chunks; see <code>ReceiveBinaryBlock</code>. It is reused (and
+     * grown if necessary) for all binary block queries of this Instrument and
+     * must only be accessed while holding the Lock of the communication port.
+     */
+    private byte[] m_BinaryBlockBuffer = new byte[0];
+    
     
     /**
      * Class that defines a generic Instrument. It is static so that it can 
@@ -531,6 +628,18 @@ public class Device {
                 // log event
                 m_Logger.log(Level.CONFIG, "{0}: setting Termination Characters to >>{1}<<\n", new Object[]{ClassName, TerminationCharacters});
             }
+            
+            // get the receive termination characters or an empty String
+            String ReceiveTerminationCharacters = m_iC_Properties.getString(
+                    ClassName + ".ReceiveTerminationCharacters", "", true);
+            
+            // set receive termination characters
+            if ( !ReceiveTerminationCharacters.isEmpty() ) {
+                m_ReceiveTerminationCharacters = ReceiveTerminationCharacters;
+                
+                // log event
+                m_Logger.log(Level.CONFIG, "{0}: setting Receive Termination Characters to >>{1}<<\n", new Object[]{ClassName, ReceiveTerminationCharacters});
+            }
         }
         
         
@@ -539,14 +648,18 @@ public class Device {
 
     /**
      * Call this to stop processing the script. This 'signal' should be used
-     * to stop any running threads (for instance in <code>iC_Instrument.MonitorChart</code>,
-     * or <code>Agilent4155.WaitUntilReady</code>).
+     * to stop any running threads (for instance in <code>Agilent4155.WaitUntilReady</code>).
+     * Tasks scheduled with <code>PollingService</code> (for instance in 
+     * <code>iC_Instrument.MonitorChart</code>) are cancelled.
      */
     // <editor-fold defaultstate="collapsed" desc="StopScripting">
     public static void StopScripting() {
 
         // remember to stop sequencing in the Dispatcher
         m_StopScripting = true;
+        
+        // cancel all monitoring tasks
+        PollingService.cancelAll();
 
         /* Future implementations might traverse all Used Instruments and call
          * a method 'Stop'. This 'Stop' would be implementd in Device without
@@ -621,10 +734,47 @@ public class Device {
         // remember the communication port/protocol
         m_UsedCommPort = CommPort;
         
+        // process all communication in a command queue if desired
+        m_UseCommandQueue = m_iC_Properties.getInt("Device.UseCommandQueue", 0) == 1;
+        
+        // get the Lock for the communication resource
+        switch (CommPort) {
+            case GPIB:
+                m_CommLock = CommLockRegistry.getLock("GPIB " + m_GPIBcontroller);
+                break;
+            case RS232:
+                m_CommLock = CommLockRegistry.getLock("RS232 " + RS232_ComPortName);
+                break;
+            case LAN:
+                m_CommLock = CommLockRegistry.getLock("LAN " + (LAN_InstrumentURL == null ? "" :
+                        LAN_InstrumentURL.getHost() + ":" + LAN_Driver.getPort(LAN_InstrumentURL)));
+                break;
+            case TMCTL:
+                // the TMCTL library and TMCTL_Driver's receive buffer are shared
+                m_CommLock = CommLockRegistry.getLock("TMCTL");
+                break;
+            default:
+                m_CommLock = null;
+        }
+        
+        // replay a recorded Comm trace instead of using a driver if desired
+        m_Replay = null;
+        if ( !inNoCommunicationMode() &&
+             !m_SyntaxCheckMode) {
+            try {
+                m_Replay = CommReplay.getReplay();
+            } catch (IOException ex) {
+                String str = "Could not load the Comm trace to replay (iC.ReplayTrace):\n"
+                        + ex.getMessage() + "\n";
+                throw new ScriptException(str);
+            }
+        }
+        
         // establish the connection to the instrument
         // if Syntax check is done and IO-communication desired
         if ( !inNoCommunicationMode() &&
-             !m_SyntaxCheckMode) {
+             !m_SyntaxCheckMode && 
+             m_Replay == null) {
             switch (CommPort) {
                 case none:
                     break;
@@ -654,6 +804,26 @@ public class Device {
     }//</editor-fold>
 
 
+    /**
+     * Returns the Lock for the communication resource of this Instrument (see
+     * <code>CommLockRegistry</code>). Communication with the Instrument must be
+     * done while holding this Lock to ensure thread safety. If the Instrument
+     * has not been opened with <code>OpenInstrument</code>, the Lock shared by 
+     * all Instruments using the same communication port/protocol is returned.
+     *
+     * @return The Lock; never <code>null</code>
+     */
+    // <editor-fold defaultstate="collapsed" desc="getCommLock">
+    protected final ReentrantLock getCommLock() {
+        
+        if (m_CommLock == null) {
+            m_CommLock = CommLockRegistry.getLock(String.valueOf(m_UsedCommPort));
+        }
+        
+        return m_CommLock;
+    }//</editor-fold>
+
+
 
     /** 
      * Establishes the connection to the instrument via GPIB bus using a class
@@ -866,8 +1036,9 @@ public class Device {
      * established, override <code>Device.Open</code>; see the javadoc there for more
      * details.<p>
      *
-     * @param InstrumentURL the URL of the instrument (IP address or host name). The
-     * protocol, port number and file are defined in the iC.properties.
+     * @param InstrumentURL the URL of the instrument (IP address or host name). If
+     * it does not specify a port number, <code>LAN_Driver.DefaultPort</code> 
+     * defined in the iC.properties is used.
      *
      * @throws ScriptException when the network connection could not be established.
      *
@@ -1245,7 +1416,7 @@ public class Device {
      * instance <code>GPIB_NI</code> and <code>GPIB_Prologix</code>). These
      * methods try to switch the Instrument to 'local' mode and then close
      * the connection. For RS232 communication it closes the serial port, and for
-     * LAN communication it closes the input/output streams to the URL. For
+     * LAN communication it closes the network connection. For
      * the TMCTL library it calls TMCTL's Finish method<p>
      *
      * Remark: This method is not called when in Syntax-Check mode or when in
@@ -1259,6 +1430,20 @@ public class Device {
     // <editor-fold defaultstate="collapsed" desc="CloseInstrument">
     public void CloseInstrument()
            throws IOException {
+        
+        // stop the command queue after all submitted work is done
+        ThreadPoolExecutor Queue;
+        synchronized (this) {
+            Queue = m_CommandQueue;
+        }
+        if (Queue != null) {
+            Queue.shutdown();
+            try {
+                Queue.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
         // is a GPIB driver used?
         if (m_GPIB_Driver != null) {
@@ -1277,7 +1462,7 @@ public class Device {
         // is a LAN connection used?
         if (m_LAN_Driver != null) {
             
-            // close network connection (respectively the in/out streams)
+            // close network connection
             m_LAN_Driver.CloseConnection();
         }
         
@@ -1338,6 +1523,46 @@ public class Device {
             return false;
     }//</editor-fold>
 
+    
+    /**
+     * Determines if the communication with this Instrument is replayed from a
+     * recorded Comm trace (see <code>CommReplay</code>) instead of using a 
+     * driver. In replay mode the GPIB, RS232, LAN or TMCTL driver is not 
+     * opened.
+     *
+     * @return <code>true</code> if this instrument is in replay mode
+     */
+    // <editor-fold defaultstate="collapsed" desc="inReplayMode">
+    public final boolean inReplayMode() {
+        return m_Replay != null;
+    }//</editor-fold>
+    
+    
+    /**
+     * Throws a <code>ScriptException</code> if this Instrument is in replay 
+     * mode (see <code>inReplayMode</code>). Instrument classes that access
+     * <code>m_GPIB_Driver</code>, <code>m_RS232_Driver</code>, 
+     * <code>m_LAN_Driver</code>, or <code>m_TMCTL_Driver</code> directly, 
+     * for instance to read the Status Byte, must call this method first 
+     * because the drivers are not opened in replay mode. Block Data can be
+     * received with <code>QueryBinaryBlock</code> or <code>StreamBinaryBlock</code>,
+     * which are replayed.
+     *
+     * @param Operation Describes what is not supported; used in the error message
+     * @throws ScriptException When in replay mode
+     */
+    // <editor-fold defaultstate="collapsed" desc="checkNotReplayed">
+    protected final void checkNotReplayed(String Operation) 
+              throws ScriptException {
+        
+        if (m_Replay != null) {
+            String str = Operation + " of the Instrument " + m_InstrumentName 
+                    + " is not supported in replay mode.\n"
+                    + "Clear iC.ReplayTrace in the iC.properties to use the Instrument.\n";
+            throw new ScriptException(str);
+        }
+    }//</editor-fold>
+
 
     /**
      * This method calls @link{IcontrolView.isPaused}. See the javadoc
@@ -1404,6 +1629,11 @@ public class Device {
      * but I remove the static for now, and keep thinking. See also the remark in
      * javadoc (How to write new Instrument-Classes).<p>
      *
+     * Remark: This method calls <code>compileCommand</code> and then
+     * <code>DispatchCommand(CompiledCommand)</code>. Code that executes the same
+     * Command-Line many times (e.g. the <code>Dispatcher</code>) should compile
+     * it once and dispatch the <code>CompiledCommand</code> instead.<p>
+     *
      * @param CommandLine to be dispatched and processed. The first Token in the
      * Command Line contains the Instrument Name, and the remainder contains the
      * Instrument Command and the Parameters. An example would be the String
@@ -1429,11 +1659,67 @@ public class Device {
     public final Object DispatchCommand(String CommandLine)
                  throws ScriptException  {
 
+        // compile the Command Line and dispatch it
+        return DispatchCommand( compileCommand(CommandLine) );
+    }//</editor-fold>
+    
+    
+    /**
+     * Pre-parses a Command-Line that addresses an Instrument. It tokenizes the
+     * Command-Line, identifies the Instance of the addressed Instrument, finds 
+     * the Script-Method implementing the command, and converts the parameters
+     * into the appropriate types. The returned object can be executed with
+     * <code>DispatchCommand(CompiledCommand)</code> as often as desired without
+     * parsing the Command-Line again. This is used by the <code>Dispatcher</code>
+     * to compile the script during the Syntax-Check.<p>
+     * 
+     * See <code>DispatchCommand(String)</code> for details.
+     * 
+     * @param CommandLine to be compiled. The first Token in the Command Line
+     * contains the Instrument Name, and the remainder contains the Instrument
+     * Command and the Parameters.
+     * 
+     * @return The pre-parsed Script-Command
+     * 
+     * @throws ScriptException is thrown when
+     * 1) the specified Instrument Name was not recognized, or
+     * 2) the Script-Command did not contain a Device-Command, or
+     * 3) none or more than one functions with the same name and number of arguments are found, or
+     * 4) when an error occurred when the strings were converted into the appropriate
+     * variable type.
+     */
+    // <editor-fold defaultstate="collapsed" desc="compileCommand">
+    public final CompiledCommand compileCommand(String CommandLine)
+                 throws ScriptException  {
+        return compileCommand(CommandLine, null);
+    }//</editor-fold>
+    
+    
+    /**
+     * Pre-parses a Command-Line that addresses an Instrument and may use script
+     * variables as arguments. An argument of the form <code>$Name</code>, where
+     * <code>Name</code> is a key in <code>Variables</code>, is not converted
+     * from the Command-Line but takes the current value of the variable each
+     * time the command is executed with <code>DispatchCommand(CompiledCommand)</code>.
+     * Arguments starting with $ that do not name a variable are passed 
+     * unchanged.<p>
+     * 
+     * See <code>compileCommand(String)</code> for details.
+     * 
+     * @param CommandLine to be compiled
+     * @param Variables The script variables (see <code>Dispatcher</code>); 
+     * can be <code>null</code>. The map is referenced by the returned object.
+     * @return The pre-parsed Script-Command
+     * @throws ScriptException see <code>compileCommand(String)</code>
+     */
+    // <editor-fold defaultstate="collapsed" desc="compileCommand (with variables)">
+    public final CompiledCommand compileCommand(String CommandLine, Map<String, Double> Variables)
+                 throws ScriptException  {
+
         //////////////////
         // local variables
 
         Device      DeviceInstance;         // the instance of the addressed Instrument
-        boolean     MethodCalled = false;   // flag to remember if a method was invoked
         
 
         // split the Command Line into it's Tokens
@@ -1498,38 +1784,22 @@ public class Device {
         
         // make an array of actual parameters having the correct types
         Object[] ConvertedParameters= new Object[ Types.length ];
+        
+        // the names of the variables used as arguments (if any)
+        String[] VariableNames = null;
+
 
+        // make sure the converters have been built
+        if (met.Converters == null) {
+            met.prepareInvocation();
+        }
 
         // for all types convert the passed parameters from String to the
-        // appropriate type.
+        // appropriate type using the pre-built converters
         for (int i=0; i<Types.length; i++) {
 
-            // is type an Integer?
-            if ( Types[i] == Integer.TYPE ) {
-                ConvertedParameters[i] = getInteger(Arguments.get(i+1)) ;
-            }
-
-            // is type an Double?
-            else if(Types[i] == Double.TYPE) {
-                ConvertedParameters[i] = getDouble(Arguments.get(i+1)) ;
-            }
-
-            // is type an Float?
-            else if(Types[i] == Float.TYPE) {
-                ConvertedParameters[i] = getFloat(Arguments.get(i+1)) ;
-            }
-
-            // is type a Boolean?
-            else if(Types[i] == Boolean.TYPE) {
-                ConvertedParameters[i] = getBoolean(Arguments.get(i+1)) ;
-            }
-
-            // is type an String?
-            else if(Types[i] == String.class) {
-                ConvertedParameters[i] = Arguments.get(i+1) ;
-            }
-
-            else {
+            // is the type supported?
+            if (met.Converters[i] == null) {
                 // no supported data type was found
                 String str = "An unexcepted error occurred in Device.DispatchCommand().\n"
                     + "The selected data type '" + Types[i].toString() + "' is not supported.\n"
@@ -1539,6 +1809,122 @@ public class Device {
 
                 throw new ScriptException(str);
             }
+            
+            // is the argument a script variable?
+            String Argument = Arguments.get(i+1);
+            if ( Variables != null && Argument.startsWith("$") &&
+                 Variables.containsKey(Argument.substring(1)) ) {
+                
+                // yes, so remember it's name and check the current value
+                if (VariableNames == null) {
+                    VariableNames = new String[Types.length];
+                }
+                VariableNames[i] = Argument.substring(1);
+                ConvertedParameters[i] = met.convertArgument(i, Variables.get(VariableNames[i]));
+                
+            } else {
+                // convert the parameter
+                ConvertedParameters[i] = met.Converters[i].convert( Argument );
+            }
+        }
+        
+        
+        ////////////////////////
+        // build the return value
+        CompiledCommand ret = new CompiledCommand();
+        ret.CommandLine = CommandLine;
+        ret.InstrumentName = InstrumentName;
+        ret.DeviceInstance = DeviceInstance;
+        ret.DeviceClass = DeviceInstance.getClass();
+        ret.InstrumentClassName = DeviceInstance.m_InstrumentClassName;
+        ret.Method = met;
+        ret.ConvertedParameters = ConvertedParameters;
+        ret.VariableNames = VariableNames;
+        ret.Variables = Variables;
+        
+        return ret;
+    }//</editor-fold>
+    
+    
+    /**
+     * Executes a Script-Command that was pre-parsed with <code>compileCommand</code>.
+     * The addressed Instrument is looked up again by it's name, because
+     * the Instruments are MADE anew for the real run after the Syntax-Check. If
+     * the Instrument was MADE with a different Instrument-Class than the one
+     * the command was compiled for, the Command-Line is compiled again and
+     * <code>Command</code> is updated with the result.<p>
+     * 
+     * See <code>DispatchCommand(String)</code> for details.
+     * 
+     * @param Command The pre-parsed Script-Command
+     * 
+     * @return The <code>Object</code> that is returned by the invoked method; 
+     * can be <code>null</code>. See <code>DispatchCommand(String)</code>.
+     * 
+     * @throws ScriptException is thrown when
+     * 1) the specified Instrument Name was not recognized, or
+     * 2) when the Syntax-check failed, or
+     * 3) when the invoked method threw an Exception.
+     */
+    // <editor-fold defaultstate="collapsed" desc="DispatchCommand (compiled)">
+    public final Object DispatchCommand(CompiledCommand Command)
+                 throws ScriptException  {
+        
+        //////////////////
+        // local variables
+
+        Device      DeviceInstance;         // the instance of the addressed Instrument
+        boolean     MethodCalled = false;   // flag to remember if a method was invoked
+        
+        
+        //////////////////////////////////////////
+        // does the Command address an Instrument?
+        DeviceInstance = m_UsedInstruments.get(Command.InstrumentName);
+        
+        if (DeviceInstance == null) {
+            // the command line was not recognized, so throw a ScriptException
+            String str = "The Instrument Name '" + Command.InstrumentName +"' is not recognized.\n";
+            str += "Please check the spelling.\n";
+
+            throw new ScriptException (str);
+        }
+        
+        // was the Instrument re-MADE?
+        if (DeviceInstance != Command.DeviceInstance) {
+            
+            // is it still the same kind of Instrument?
+            if ( DeviceInstance.getClass() != Command.DeviceClass ||
+                 !DeviceInstance.m_InstrumentClassName.equals(Command.InstrumentClassName) ) {
+                
+                // no, so the Script-Method needs to be resolved again
+                CompiledCommand Recompiled = compileCommand(Command.CommandLine, Command.Variables);
+                
+                // update the passed command, so that the next execution of the
+                // same line does not need to compile it again
+                Command.DeviceClass = Recompiled.DeviceClass;
+                Command.InstrumentClassName = Recompiled.InstrumentClassName;
+                Command.Method = Recompiled.Method;
+                Command.ConvertedParameters = Recompiled.ConvertedParameters;
+                Command.VariableNames = Recompiled.VariableNames;
+                Command.DeviceInstance = Recompiled.DeviceInstance;
+            } else {
+                
+                // yes, so just re-bind the Instrument
+                Command.DeviceInstance = DeviceInstance;
+            }
+        }
+        
+        // use a shorter variable name
+        ScriptMethod met = Command.Method;
+        
+        // substitute the current values of the script variables
+        if (Command.VariableNames != null) {
+            for (int i=0; i<Command.VariableNames.length; i++) {
+                if (Command.VariableNames[i] != null) {
+                    Command.ConvertedParameters[i] = met.convertArgument(i, 
+                            Command.Variables.get(Command.VariableNames[i]));
+                }
+            }
         }
 
         
@@ -1554,12 +1940,12 @@ public class Device {
                 if ( met.isGenericGPIB ) {
                     // execute generic command
                     m_LastReturnValue = DeviceInstance.invokeGenericScriptMethod(
-                            met, ConvertedParameters);
+                            met, Command.ConvertedParameters);
                     
                 } else {
-                    // use Reflection
-                    m_LastReturnValue = met.ReferenceToMethod.invoke(
-                            DeviceInstance, ConvertedParameters);
+                    // use the MethodHandle (or Reflection)
+                    m_LastReturnValue = met.invoke(
+                            DeviceInstance, Command.ConvertedParameters);
                 }
             }
 
@@ -1588,7 +1974,7 @@ public class Device {
             // log stack trace
             m_Logger.severe(icontrol.Utilities.printStackTrace(ex));
 
-            String str = "The device command '" + Arguments.get(0) + "' caused an error.\n"
+            String str = "The device command '" + met.DeviceCommandName + "' caused an error.\n"
                 + "Please check the error message and/or the log-file\n"
                 + "and try to correct the error.\n\n"
                 + ex.getCause().getMessage() + "\n"
@@ -1616,8 +2002,8 @@ public class Device {
         // no method was called
         if (MethodCalled == false) {
             
-            String str = "The instrument '" + InstrumentName + "' does not\n"
-                + "handle the command '" + Arguments.get(0) + "'.\n"
+            String str = "The instrument '" + Command.InstrumentName + "' does not\n"
+                + "handle the command '" + met.DeviceCommandName + "'.\n"
                 + "Choose an other instrument, a different command, or\n"
                 + "implement the command.\n";
 
@@ -1626,6 +2012,63 @@ public class Device {
 
         return m_LastReturnValue;
     }//</editor-fold>
+    
+    /**
+     * Invokes a Script-Method with arguments that are already Java objects
+     * instead of Strings from a Command-Line. This is used by 
+     * <code>InstrumentProxy</code> so that Python scripts can call
+     * Script-Methods with native numbers and receive the returned objects 
+     * (e.g. <code>double[][]</code>) without converting them to and from 
+     * <code>String</code>s. The call is dispatched through 
+     * <code>DispatchCommand(CompiledCommand)</code>, hence, the Syntax-Check
+     * and error handling is the same as for Script-Commands.<p>
+     * 
+     * <code>Number</code>s are converted to <code>int</code>, <code>double</code>,
+     * or <code>float</code> as required by the Script-Method, <code>String</code>s
+     * are converted as if they appeared in a Script-Command, and all other 
+     * arguments are passed unchanged if they are an instance of the required type.
+     * 
+     * @param ScriptMethodName The name of the Script-Method (case sensitive)
+     * @param Arguments The arguments to pass to the Script-Method
+     * 
+     * @return The <code>Object</code> that is returned by the invoked method; 
+     * can be <code>null</code>.
+     * 
+     * @throws ScriptException is thrown when none or more than one suitable
+     * Script-Method was found, when an argument could not be converted, or
+     * when the invoked method threw an Exception.
+     */
+    // <editor-fold defaultstate="collapsed" desc="invokeScriptMethod">
+    public final Object invokeScriptMethod(String ScriptMethodName, Object... Arguments)
+                 throws ScriptException {
+        
+        // this throws an Exception if not exacly one suitable method was found
+        ScriptMethod met = findScriptMethod(ScriptMethodName, Arguments.length);
+        
+        // make sure the converters have been built
+        if (met.Converters == null) {
+            met.prepareInvocation();
+        }
+        
+        // convert the arguments
+        Object[] ConvertedParameters = new Object[Arguments.length];
+        for (int i=0; i<Arguments.length; i++) {
+            ConvertedParameters[i] = met.convertArgument(i, Arguments[i]);
+        }
+        
+        // build the Command
+        CompiledCommand Command = new CompiledCommand();
+        Command.CommandLine = m_InstrumentName + " " + ScriptMethodName;
+        Command.InstrumentName = m_InstrumentName;
+        Command.DeviceInstance = this;
+        Command.DeviceClass = getClass();
+        Command.InstrumentClassName = m_InstrumentClassName;
+        Command.Method = met;
+        Command.ConvertedParameters = ConvertedParameters;
+        
+        // dispatch it
+        return DispatchCommand(Command);
+    }//</editor-fold>
 
 
     
@@ -1638,6 +2081,8 @@ public class Device {
      * if defined.<p>
      *
      * This method uses a Lock depending on the communication port to ensure thread safety.
+     * If the command queue is used (see <code>submitToInstrument</code>), the
+     * String is sent from the Instrument's command queue.
      *
      * Remark: To prevent unintended behavior on non-English environments (where
      * the decimal point might not be '.' but ',') it is recommended to use the
@@ -1650,7 +2095,36 @@ public class Device {
      * up from the respective driver, e.g. <code>GPIB_Driver.SendCommand</code>.
      */
     // <editor-fold defaultstate="collapsed" desc="SendToInstrument">
-    public void SendToInstrument(String Message)
+    public void SendToInstrument(final String Message)
+                    throws IOException {
+        
+        // record the time for the profiler
+        long ProfilerStart = ScriptProfiler.beginIO();
+        
+        try {
+            // process it in the command queue if it is used
+            if ( inCommandQueueMode() ) {
+                waitForInstrument( submitToInstrument(new CommTask<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        SendToInstrumentDirect(Message);
+                        return null;
+                    }
+                }));
+            } else {
+                SendToInstrumentDirect(Message);
+            }
+        } finally {
+            ScriptProfiler.endIO(m_InstrumentName, ProfilerStart);
+        }
+    }//</editor-fold>
+    
+    /**
+     * Sends the String to the Instrument in the calling thread. See
+     * <code>SendToInstrument</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="SendToInstrumentDirect">
+    private void SendToInstrumentDirect(String Message)
                     throws IOException {
         
         // append Termination Characters (same code is also in QueryInstrument)
@@ -1663,15 +2137,19 @@ public class Device {
         if (inNoCommunicationMode()) {
             
             // log message
-            m_Comm_Logger.log(Level.FINE, "{0} <n {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()) , m_InstrumentName, Message});
+            CommLog.log(m_InstrumentName, CommLog.NOT_SENT, Message);
 
             return;
             
         } else {
             // log the message
-            m_Comm_Logger.log(Level.FINE, "{0} <- {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, Message});
+            CommLog.log(m_InstrumentName, CommLog.SENT, Message);
+        }
+        
+        // replay a recorded Comm trace
+        if (m_Replay != null) {
+            m_Replay.send(m_InstrumentName, Message.getBytes("UTF-8"));
+            return;
         }
 
         
@@ -1683,7 +2161,7 @@ public class Device {
             case GPIB:
                 
                 // lock the Lock
-                m_LockGPIBController.lock();
+                getCommLock().lock();
 
                 try {     
                     // send the message
@@ -1708,7 +2186,7 @@ public class Device {
                     // finally is also called when a new Exception is thrown in catch{}
 
                     // release the Lock
-                    m_LockGPIBController.unlock();
+                    getCommLock().unlock();
                 }
                 
                 // exit switch statement
@@ -1716,11 +2194,13 @@ public class Device {
                 
             case RS232:
                 // lock the Lock
-                m_LockRS232Port.lock();
+                getCommLock().lock();
 
                 try {
-                    // send the message
-                    m_RS232_Driver.Send( Message.getBytes(CHARACTER_ENCODING) );
+                    // send the message; when writes are coalesced, the next
+                    // query (or Send that waits) waits until all data was sent
+                    boolean Coalesce = m_iC_Properties.getInt("RS232_Driver.CoalesceWrites", 0) == 1;
+                    m_RS232_Driver.Send( Message.getBytes(CHARACTER_ENCODING), !Coalesce );
 
                 } catch (IOException ex) {
                     
@@ -1741,7 +2221,7 @@ public class Device {
                     // finally is also called when a new Exception is thrown in catch{}
 
                     // release the Lock
-                    m_LockRS232Port.unlock();   
+                    getCommLock().unlock();   
                 }
                 
                 // exit switch statement
@@ -1752,7 +2232,7 @@ public class Device {
             case TMCTL:
                               
                 // lock the Lock
-                m_LockTMCTLlib.lock();
+                getCommLock().lock();
 
                 try {     
                     // send the message
@@ -1777,7 +2257,7 @@ public class Device {
                     // finally is also called when a new Exception is thrown in catch{}
 
                     // release the Lock
-                    m_LockTMCTLlib.unlock();
+                    getCommLock().unlock();
                 }
                 
                 // exit switch statement
@@ -1786,7 +2266,39 @@ public class Device {
                 
             //////    
             // LAN
-            // TODO 3* implement SendViaLAN
+            case LAN:
+                
+                // lock the Lock
+                getCommLock().lock();
+
+                try {
+                    // send the message
+                    m_LAN_Driver.Send( Message.getBytes(CHARACTER_ENCODING) );
+
+                } catch (IOException ex) {
+
+                    String str = "An error occurred during LAN communication.\n";
+                    str += ex.getMessage() + "\n";
+
+                    // log event
+                    m_Logger.severe(str);
+
+                    // also log to Comm logger
+                    m_Comm_Logger.severe(ex.getMessage());
+
+                    // TODO 4* ask User what to do. retry, ignore, stop
+
+                    throw new IOException(str, ex);
+                    
+                } finally {
+                    // finally is also called when a new Exception is thrown in catch{}
+
+                    // release the Lock
+                    getCommLock().unlock();
+                }
+                
+                // exit switch statement
+                break;
                 
             default:
                 String str = "The selected communication protocol is not supported.\n"
@@ -1824,26 +2336,28 @@ public class Device {
         // log message and return if in No-Communication Mode
         if (inNoCommunicationMode()) {
             // log message
-            m_Comm_Logger.log(Level.FINE, "{0} <n {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()) , m_InstrumentName, Message});
+            CommLog.log(m_InstrumentName, CommLog.NOT_SENT, Message);
 
             return;
         }
 
-        // send via driver derived from GPIB_Driver
-        if (m_GPIB_Driver instanceof GPIB_Driver) {
+        // send via driver derived from GPIB_Driver (or replay a recorded Comm trace)
+        if (m_Replay != null || m_GPIB_Driver instanceof GPIB_Driver) {
         //if (m_GPIB_Driver.getClass().getSuperclass() == GPIB_Driver.class) {
 
             // lock the Lock
-            m_LockGPIBController.lock();
+            getCommLock().lock();
             
             try {
                 // log the message
-                m_Comm_Logger.log(Level.FINE, "{0} <- {1}: {2}", new Object[]{
-                    m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, Message});
+                CommLog.log(m_InstrumentName, CommLog.SENT, Message);
 
-                // send the message
-                m_GPIB_Driver.Send(Message);
+                // send the message (or replay a recorded Comm trace)
+                if (m_Replay != null) {
+                    m_Replay.send(m_InstrumentName, Message.getBytes(CHARACTER_ENCODING));
+                } else {
+                    m_GPIB_Driver.Send(Message);
+                }
 
             } catch (IOException ex) {
 
@@ -1863,7 +2377,7 @@ public class Device {
                 // finally is also called when a new Exception is thrown in catch{}
 
                 // release the Lock
-                m_LockGPIBController.unlock();
+                getCommLock().unlock();
             }
         } else {
             String str = "The employed GPIB driver was not derived from GPIB_Driver.\n"
@@ -1893,30 +2407,28 @@ public class Device {
     protected final void SendViaRS232(ByteBuffer Message) 
                     throws IOException {
 
-        // build a string representation of Message
-        String MessageString = RS232_Driver.ByteBufferToLogString(Message);
-
-        
         // log message and return if in No-Communication Mode
         if (inNoCommunicationMode()) {
             // log message
-            m_Comm_Logger.log(Level.FINE, "{0} <n {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()) , 
-                m_InstrumentName, MessageString});
+            CommLog.log(m_InstrumentName, CommLog.NOT_SENT, Message.array(), Message.arrayOffset(), Message.limit());
 
             return;
         }
 
         // lock the Lock
-        m_LockRS232Port.lock();
+        getCommLock().lock();
         
         try {
             // log the message
-            m_Comm_Logger.log(Level.FINE, "{0} <- {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, MessageString});
+            CommLog.log(m_InstrumentName, CommLog.SENT, Message.array(), Message.arrayOffset(), Message.limit());
 
-            // send the message
-            m_RS232_Driver.Send(Message.array());
+            // send the message (or replay a recorded Comm trace)
+            if (m_Replay != null) {
+                m_Replay.send(m_InstrumentName, Arrays.copyOfRange(
+                        Message.array(), Message.arrayOffset(), Message.arrayOffset() + Message.limit()));
+            } else {
+                m_RS232_Driver.Send(Message.array());
+            }
 
         } catch (IOException ex) {
 
@@ -1934,7 +2446,7 @@ public class Device {
             // finally is also called when a new Exception is thrown in catch{}
 
             // release the Lock
-            m_LockRS232Port.unlock();   
+            getCommLock().unlock();   
         }
     }//</editor-fold>
     
@@ -1968,23 +2480,24 @@ public class Device {
         // log message and return if in No-Communication Mode
         if (inNoCommunicationMode()) {
             // log message
-            m_Comm_Logger.log(Level.FINE, "{0} <n {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()) , 
-                m_InstrumentName, Message});
+            CommLog.log(m_InstrumentName, CommLog.NOT_SENT, Message);
 
             return;
         }
 
         // lock the Lock
-        m_LockRS232Port.lock();
+        getCommLock().lock();
         
         try {
             // log the message
-            m_Comm_Logger.log(Level.FINE, "{0} <- {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, Message});
+            CommLog.log(m_InstrumentName, CommLog.SENT, Message);
 
-            // send the message
-            m_RS232_Driver.Send( Message.getBytes("UTF-8") );
+            // send the message (or replay a recorded Comm trace)
+            if (m_Replay != null) {
+                m_Replay.send(m_InstrumentName, Message.getBytes("UTF-8"));
+            } else {
+                m_RS232_Driver.Send( Message.getBytes("UTF-8") );
+            }
 
         } catch (IOException ex) {
 
@@ -2002,7 +2515,7 @@ public class Device {
             // finally is also called when a new Exception is thrown in catch{}
 
             // release the Lock
-            m_LockRS232Port.unlock();   
+            getCommLock().unlock();   
         }
     }//</editor-fold>
 
@@ -2012,7 +2525,7 @@ public class Device {
      * No-Communication-Mode. The String to send is in any case logged
      * to <code>m_Comm_Logger</code>.<p>
      *
-     * This method uses a Lock on the GPIB controller to ensure thread safety.
+     * This method uses a Lock on the network connection to ensure thread safety.
      * Note: Declaring the method as synchronized resulted in communication errors when
      * different threads tried to access the same instrument.<p>
      *
@@ -2020,9 +2533,9 @@ public class Device {
      * the decimal point might not be '.' but ',') it is recommended to use the
      * <code>Locale.US</code>, for instance like <code>String.format(Locale.US, ...</code>.
      *
-     * @param Message is sent to the GPIB
-     * @throws IOException if the transmission caused a GPIB error; bubbles
-     * up from <code>GPIB_Driver.SendCommand</code>.
+     * @param Message is sent over the network
+     * @throws IOException if the transmission caused an error; bubbles
+     * up from <code>LAN_Driver.Send</code>.
      * @deprecated Implement and use <code>SendToInstrument</code> instead
      */
     // <editor-fold defaultstate="collapsed" desc="SendViaLAN">
@@ -2030,19 +2543,53 @@ public class Device {
     protected final void SendViaLAN(String Message)
                     throws IOException {
         
-        // just display an "error" message
-        m_GUI.DisplayStatusMessage("Sending via LAN is not yet supported.", false);
-        
-        // see SendViaGPIB for an example code
+        // log message and return if in No-Communication Mode
+        if (inNoCommunicationMode()) {
+            // log message
+            CommLog.log(m_InstrumentName, CommLog.NOT_SENT, Message);
+
+            return;
+        }
 
+        // lock the Lock
+        getCommLock().lock();
         
-    }//</editor-fold>
+        try {
+            // log the message
+            CommLog.log(m_InstrumentName, CommLog.SENT, Message);
 
+            // send the message (or replay a recorded Comm trace)
+            if (m_Replay != null) {
+                m_Replay.send(m_InstrumentName, Message.getBytes(CHARACTER_ENCODING));
+            } else {
+                m_LAN_Driver.Send( Message.getBytes(CHARACTER_ENCODING) );
+            }
 
-    /**
-     * Sends a string via the TMCTL library to the instrument if it is not in
-     * No-Communication-Mode. The String to send is in any case logged
-     * to <code>m_Comm_Logger</code>.<p>
+        } catch (IOException ex) {
+
+            // log event
+            m_Logger.severe(ex.getMessage());
+
+            // also log to Comm logger
+            m_Comm_Logger.severe(ex.getMessage());
+
+            // TODO 4* ask User what to do. retry, ignore, stop
+
+            throw ex;
+            
+        } finally {
+            // finally is also called when a new Exception is thrown in catch{}
+
+            // release the Lock
+            getCommLock().unlock();   
+        }
+    }//</editor-fold>
+
+
+    /**
+     * Sends a string via the TMCTL library to the instrument if it is not in
+     * No-Communication-Mode. The String to send is in any case logged
+     * to <code>m_Comm_Logger</code>.<p>
      *
      * This method uses a Lock on the TMCTL library to ensure thread safety.
      * Note: Declaring the method as synchronized resulted in communication errors when
@@ -2065,23 +2612,25 @@ public class Device {
         // log message and return if in No-Communication Mode
         if (inNoCommunicationMode()) {
             // log message
-            m_Comm_Logger.log(Level.FINE, "{0} <n {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()) , m_InstrumentName, Message});
+            CommLog.log(m_InstrumentName, CommLog.NOT_SENT, Message);
 
             return;
         }
 
         
         // lock the Lock
-        m_LockTMCTLlib.lock();
+        getCommLock().lock();
 
         try {
             // log the message
-            m_Comm_Logger.log(Level.FINE, "{0} <- {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, Message});
+            CommLog.log(m_InstrumentName, CommLog.SENT, Message);
 
-            // send the message
-            m_TMCTL_Driver.Send(Message);
+            // send the message (or replay a recorded Comm trace)
+            if (m_Replay != null) {
+                m_Replay.send(m_InstrumentName, Message.getBytes(CHARACTER_ENCODING));
+            } else {
+                m_TMCTL_Driver.Send(Message);
+            }
 
         } catch (IOException ex) {
 
@@ -2102,7 +2651,7 @@ public class Device {
             // finally is also called when a new Exception is thrown in catch{}
 
             // release the Lock
-            m_LockTMCTLlib.unlock();
+            getCommLock().unlock();
         }
     }//</editor-fold>
 
@@ -2114,7 +2663,8 @@ public class Device {
      * to <code>m_Comm_Logger</code>.<p>
      *
      * This method uses a Lock on the chosed communication port to ensure thread 
-     * safety.<p>
+     * safety. If the command queue is used (see <code>submitToInstrument</code>),
+     * the query is processed in the Instrument's command queue.<p>
      *
      * Remark: To prevent unintended behavior on non-English environments (where
      * the decimal point might not be '.' but ',') it is recommended to use the
@@ -2128,7 +2678,34 @@ public class Device {
      * or <code>GPIB_Driver.Receive</code>.
      */
     // <editor-fold defaultstate="collapsed" desc="QueryInstrument">
-    protected String QueryInstrument(String Message)
+    protected String QueryInstrument(final String Message)
+                    throws IOException {
+        
+        // record the time for the profiler
+        long ProfilerStart = ScriptProfiler.beginIO();
+        
+        try {
+            // process it in the command queue if it is used
+            if ( inCommandQueueMode() ) {
+                return waitForInstrument( submitToInstrument(new CommTask<String>() {
+                    @Override
+                    public String call() throws IOException {
+                        return QueryInstrumentDirect(Message);
+                    }
+                }));
+            } else {
+                return QueryInstrumentDirect(Message);
+            }
+        } finally {
+            ScriptProfiler.endIO(m_InstrumentName, ProfilerStart);
+        }
+    }//</editor-fold>
+    
+    /**
+     * Queries the Instrument in the calling thread. See <code>QueryInstrument</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="QueryInstrumentDirect">
+    private String QueryInstrumentDirect(String Message)
                     throws IOException {
 
         // returned value if in No-Communication Mode
@@ -2143,16 +2720,22 @@ public class Device {
         // log message and return if in No-Communication Mode
         if (inNoCommunicationMode()) {
             // log message
-            m_Comm_Logger.log(Level.FINE, "{0} <n {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, Message});
+            CommLog.log(m_InstrumentName, CommLog.NOT_SENT, Message);
 
             return ret;
             
         } else {
             
             // log message
-            m_Comm_Logger.log(Level.FINE, "{0} <- {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, Message});
+            CommLog.log(m_InstrumentName, CommLog.SENT, Message);
+        }
+        
+        // replay a recorded Comm trace
+        if (m_Replay != null) {
+            ret = m_Replay.query(m_InstrumentName, Message);
+            
+            CommLog.log(m_InstrumentName, CommLog.RECEIVED, ret);
+            return ret;
         }
         
         // switch according to the chosen communication port
@@ -2163,14 +2746,11 @@ public class Device {
             case GPIB:
 
                 // lock the Lock
-                m_LockGPIBController.lock();
+                getCommLock().lock();
 
                 try {
-                    // write to Instrument
-                    m_GPIB_Driver.Send(Message);
-
-                    // read from Instrument
-                    ret = m_GPIB_Driver.Receive(true);
+                    // write to Instrument and read its answer
+                    ret = m_GPIB_Driver.Query(Message, true);
 
                 } catch (IOException ex) {
 
@@ -2191,7 +2771,7 @@ public class Device {
                     // finally is also called when a new Exception is thrown in catch{}
 
                     // release the lock
-                    m_LockGPIBController.unlock();
+                    getCommLock().unlock();
                 }
                 
                 // end switch statement
@@ -2202,14 +2782,15 @@ public class Device {
             case RS232:
                 
                 // lock the Lock
-                m_LockRS232Port.lock();
+                getCommLock().lock();
 
                 try {
                     // write to Instrument
                     m_RS232_Driver.Send( Message.getBytes(CHARACTER_ENCODING) );
                     
                     // read from Instrument
-                    byte[] ans = m_RS232_Driver.Receive();
+                    byte[] ans = m_RS232_Driver.Receive(
+                            m_ReceiveTerminationCharacters.getBytes(CHARACTER_ENCODING), 0);
 
                     // convert to a String
                     ret = new String(ans, CHARACTER_ENCODING);
@@ -2233,7 +2814,7 @@ public class Device {
                     // finally is also called when a new Exception is thrown in catch{}
 
                     // release the lock
-                    m_LockRS232Port.unlock();
+                    getCommLock().unlock();
                 }
                 
                 // end switch statement
@@ -2245,7 +2826,7 @@ public class Device {
             case TMCTL:
 
                 // lock the Lock
-                m_LockTMCTLlib.lock();
+                getCommLock().lock();
 
                 try {
                     // write to Instrument
@@ -2273,7 +2854,7 @@ public class Device {
                     // finally is also called when a new Exception is thrown in catch{}
 
                     // release the lock
-                    m_LockTMCTLlib.unlock();
+                    getCommLock().unlock();
                 }
                 
                 // end switch statement
@@ -2281,8 +2862,46 @@ public class Device {
                 
             //////    
             // LAN
-            // TODO 3* implement QueryViaLAN
+            case LAN:
+                
+                // lock the Lock
+                getCommLock().lock();
+
+                try {
+                    // write to Instrument
+                    m_LAN_Driver.Send( Message.getBytes(CHARACTER_ENCODING) );
+
+                    // read from Instrument
+                    byte[] ans = m_LAN_Driver.Receive(
+                            m_ReceiveTerminationCharacters.getBytes(CHARACTER_ENCODING), 0);
+
+                    // convert to a String
+                    ret = new String(ans, CHARACTER_ENCODING);
+
+                } catch (IOException ex) {
+
+                    String str = "An error occurred during LAN communication.\n";
+                    str += ex.getMessage() + "\n";
+
+                    // log event
+                    m_Logger.severe(str);
+
+                    // also log to Comm logger
+                    m_Comm_Logger.severe(ex.getMessage());
+
+                    // TODO 4* ask User what to do. retry, ignore, stop
+
+                    throw new IOException(str, ex);
+                    
+                } finally {
+                    // finally is also called when a new Exception is thrown in catch{}
+
+                    // release the Lock
+                    getCommLock().unlock();
+                }
                 
+                // end switch statement
+                break;
                 
             default:
                 String str = "The selected communication protocol is not supported.\n"
@@ -2292,11 +2911,703 @@ public class Device {
         } // end switch
 
         // log received GPIB traffic
-        m_Comm_Logger.log(Level.FINE, "{0} -> {1}: {2}", new Object[]{
-            m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, ret});
+        CommLog.log(m_InstrumentName, CommLog.RECEIVED, ret);
+                    
+        
+        return ret;
+    }//</editor-fold>
+
+    
+    /**
+     * Queries the Instrument for an IEEE 488.2 definite-length binary block
+     * (<code>#&lt;n&gt;&lt;length&gt;&lt;data bytes&gt;</code>), for instance 
+     * waveform or trace data, and returns the data bytes without converting
+     * them into a String. Works for all communication ports. The answer is 
+     * read until exactly the number of data bytes specified in the header has
+     * been received; bytes preceding the <code>#</code> (e.g. a header echoed
+     * by the Instrument) and the terminator following the data are discarded.
+     * The Message and the received bytes are logged like in 
+     * <code>QueryInstrument</code>.<p>
+     *
+     * Binary transfers are considerably smaller than ASCII transfers and the
+     * data does not need to be parsed; use for instance
+     * <code>Buffer.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer()</code> to
+     * access the data.
+     *
+     * @param Message is sent over the chosen communication port, e.g. GPIB.
+     * @param Buffer The data bytes are stored in this buffer which is cleared 
+     * first. If it is <code>null</code>, a new buffer is returned.
+     * @return The data bytes from position 0 to the limit, or an empty 
+     * buffer if in No-Communication-Mode.
+     * @throws IOException if the transmission caused a communication error, 
+     * if the answer is not a definite-length binary block, or if the block does
+     * not fit into <code>Buffer</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="QueryBinaryBlock">
+    protected ByteBuffer QueryBinaryBlock(final String Message, final ByteBuffer Buffer)
+                    throws IOException {
+        
+        // record the time for the profiler
+        long ProfilerStart = ScriptProfiler.beginIO();
+        
+        try {
+            // process it in the command queue if it is used
+            if ( inCommandQueueMode() ) {
+                return waitForInstrument( submitToInstrument(new CommTask<ByteBuffer>() {
+                    @Override
+                    public ByteBuffer call() throws IOException {
+                        return QueryBinaryBlockDirect(Message, Buffer);
+                    }
+                }));
+            } else {
+                return QueryBinaryBlockDirect(Message, Buffer);
+            }
+        } finally {
+            ScriptProfiler.endIO(m_InstrumentName, ProfilerStart);
+        }
+    }//</editor-fold>
+    
+    /**
+     * Queries a binary block and returns it in a new buffer.
+     * See <code>QueryBinaryBlock(String, ByteBuffer)</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="QueryBinaryBlock (pooled buffer)">
+    protected ByteBuffer QueryBinaryBlock(String Message)
+                    throws IOException {
+        return QueryBinaryBlock(Message, null);
+    }//</editor-fold>
+    
+    /**
+     * Queries a binary block in the calling thread. See <code>QueryBinaryBlock</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="QueryBinaryBlockDirect">
+    private ByteBuffer QueryBinaryBlockDirect(String Message, ByteBuffer Buffer)
+                    throws IOException {
+        
+        // append Termination Characters (same code is also in SendToInstrument)
+        if (    !m_TerminationCharacters.isEmpty() 
+             && !Message.endsWith(m_TerminationCharacters) ) {
+            Message += m_TerminationCharacters;
+        }
+
+        // log message and return if in No-Communication Mode
+        if (inNoCommunicationMode()) {
+            // log message
+            CommLog.log(m_InstrumentName, CommLog.NOT_SENT, Message);
+
+            return ByteBuffer.allocate(0);
+            
+        } else {
+            
+            // log message
+            CommLog.log(m_InstrumentName, CommLog.SENT, Message);
+        }
+        
+        if (m_Replay != null) {
+            // replay a recorded Comm trace
+            byte[] ans = m_Replay.query(m_InstrumentName, Message.getBytes("UTF-8"));
+            return getBinaryBlockData(Message, ans, ans.length, false, Buffer);
+            
+        } else {
+            
+            // lock the Lock
+            getCommLock().lock();
+
+            try {
+                ByteBuffer Answer = ReceiveBinaryBlock(Message);
+                
+                // the answer might be in m_BinaryBlockBuffer, so copy the data
+                // while holding the Lock
+                return getBinaryBlockData(Message, Answer.array(), Answer.limit(), 
+                        Answer.array() == m_BinaryBlockBuffer, Buffer);
+
+            } catch (IOException ex) {
+
+                String str = "An error occurred while receiving a binary block.\n";
+                str += ex.getMessage() + "\n";
+
+                // log event
+                m_Logger.severe(str);
+
+                // also log to Comm logger
+                m_Comm_Logger.severe(ex.getMessage());
+
+                // TODO 4* ask User what to do. retry, ignore, stop
+
+                throw new IOException(str, ex);
+
+            } finally {
+                // finally is also called when a new Exception is thrown in catch{}
+
+                // release the lock
+                getCommLock().unlock();
+            }
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Queries the Instrument for a binary block like <code>QueryBinaryBlock</code>,
+     * but passes the data bytes to the <code>Consumers</code> while they are
+     * received instead of returning them, so that even very large blocks 
+     * need not be held in memory (see <code>TMCTL_Driver.StreamBlockData</code>).
+     * Only TMCTL Instruments stream the data; for the other communication 
+     * ports, in replay mode, and in No-Communication-Mode, the block is 
+     * received with <code>QueryBinaryBlock</code> and passed to the Consumers
+     * at once.<p>
+     * 
+     * The streamed block is logged with a <code>#9</code> header like in 
+     * <code>QueryBinaryBlock</code>, so a recorded Comm trace can be replayed
+     * with either method. To log it, the block is collected in memory, but 
+     * only if the Comm logger or the Comm trace is enabled.
+     *
+     * @param Message is sent over the chosen communication port
+     * @param Consumers Each chunk of data bytes is passed to these Consumers
+     * in the given order
+     * @return The number of data bytes (0 in No-Communication-Mode)
+     * @throws IOException if the transmission caused a communication error, 
+     * if the answer is not a definite-length binary block, or when a Consumer
+     * threw an Exception
+     */
+    // <editor-fold defaultstate="collapsed" desc="StreamBinaryBlock">
+    protected int StreamBinaryBlock(final String Message, final TMCTL_Driver.BlockDataConsumer... Consumers)
+                    throws IOException {
+        
+        // receive the whole block and pass it on
+        if (m_UsedCommPort != CommPorts.TMCTL || m_Replay != null || inNoCommunicationMode()) {
+            
+            ByteBuffer Data = QueryBinaryBlock(Message);
+            
+            for (TMCTL_Driver.BlockDataConsumer Consumer : Consumers) {
+                Consumer.begin(Data.remaining());
+            }
+            for (TMCTL_Driver.BlockDataConsumer Consumer : Consumers) {
+                Consumer.accept(Data.duplicate());
+            }
+            
+            return Data.remaining();
+        }
+        
+        // record the time for the profiler
+        long ProfilerStart = ScriptProfiler.beginIO();
+        
+        try {
+            // process it in the command queue if it is used
+            if ( inCommandQueueMode() ) {
+                return waitForInstrument( submitToInstrument(new CommTask<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        return StreamBinaryBlockDirect(Message, Consumers);
+                    }
+                }));
+            } else {
+                return StreamBinaryBlockDirect(Message, Consumers);
+            }
+        } finally {
+            ScriptProfiler.endIO(m_InstrumentName, ProfilerStart);
+        }
+    }//</editor-fold>
+    
+    /**
+     * Streams a binary block from a TMCTL Instrument in the calling thread. 
+     * See <code>StreamBinaryBlock</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="StreamBinaryBlockDirect">
+    private int StreamBinaryBlockDirect(String Message, TMCTL_Driver.BlockDataConsumer[] Consumers)
+                    throws IOException {
+        
+        // append Termination Characters (same code is also in SendToInstrument)
+        if (    !m_TerminationCharacters.isEmpty() 
+             && !Message.endsWith(m_TerminationCharacters) ) {
+            Message += m_TerminationCharacters;
+        }
+        
+        // log message
+        CommLog.log(m_InstrumentName, CommLog.SENT, Message);
+        
+        // collect the block to log it
+        final ByteArrayOutputStream Logged;
+        if (CommLog.isLoggable() || CommTrace.isOpen()) {
+            Logged = new ByteArrayOutputStream();
+            
+            Consumers = Arrays.copyOf(Consumers, Consumers.length + 1);
+            Consumers[Consumers.length - 1] = new TMCTL_Driver.BlockDataConsumer() {
+                @Override
+                public void begin(int NrDataBytes) throws IOException {
+                    // the same header as in ReceiveBinaryBlock
+                    Logged.write(String.format(Locale.US, "#9%09d", NrDataBytes)
+                            .getBytes(CHARACTER_ENCODING));
+                }
+                
+                @Override
+                public void accept(ByteBuffer Chunk) {
+                    byte[] Data = new byte[Chunk.remaining()];
+                    Chunk.get(Data);
+                    Logged.write(Data, 0, Data.length);
+                }
+            };
+        } else {
+            Logged = null;
+        }
+        
+        // lock the Lock
+        getCommLock().lock();
+        
+        try {
+            m_TMCTL_Driver.Send(Message);
+            
+            int NrBytes = m_TMCTL_Driver.StreamBlockData(Consumers);
+            
+            // log received traffic
+            if (Logged != null) {
+                CommLog.log(m_InstrumentName, CommLog.RECEIVED, Logged.toByteArray(), 0, Logged.size());
+            }
+            
+            return NrBytes;
+            
+        } catch (IOException ex) {
+
+            String str = "An error occurred while receiving a binary block.\n";
+            str += ex.getMessage() + "\n";
+
+            // log event
+            m_Logger.severe(str);
+
+            // also log to Comm logger
+            m_Comm_Logger.severe(ex.getMessage());
+
+            throw new IOException(str, ex);
+
+        } finally {
+            // release the lock
+            getCommLock().unlock();
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Logs the raw answer of a binary block query, locates the data bytes, 
+     * and returns them in <code>Buffer</code> or in a new buffer. The data
+     * bytes are copied once, or not at all if <code>Buffer</code> is 
+     * <code>null</code> and the raw answer is not reused.
+     *
+     * @param Message The message that was sent; used in the error message
+     * @param Answer The raw answer
+     * @param Length The number of bytes in <code>Answer</code>
+     * @param Reused <code>true</code> if <code>Answer</code> is reused by the
+     * next query (i.e. it is <code>m_BinaryBlockBuffer</code>)
+     * @param Buffer The buffer to copy the data bytes into; can be <code>null</code>
+     * @return The data bytes from position 0 to the limit
+     * @throws IOException if the answer is not a complete definite-length 
+     * binary block, or if the block does not fit into <code>Buffer</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="getBinaryBlockData">
+    private ByteBuffer getBinaryBlockData(String Message, byte[] Answer, int Length, 
+                                          boolean Reused, ByteBuffer Buffer)
+                    throws IOException {
+        
+        // log received traffic
+        CommLog.log(m_InstrumentName, CommLog.RECEIVED, Answer, 0, Length);
+        
+        // locate the data bytes
+        int[] Block = parseBinaryBlockHeader(Answer, Length);
+        if (Block == null || Block[0] + Block[1] > Length) {
+            String str = "The answer of " + m_InstrumentName + " to\n" + Message.trim()
+                    + "\nis not a complete IEEE 488.2 definite-length binary block.\n";
+            throw new IOException(str);
+        }
+        
+        // return the data in a new buffer
+        if (Buffer == null) {
+            if (Reused) {
+                return ByteBuffer.wrap(Arrays.copyOfRange(Answer, Block[0], Block[0] + Block[1]));
+            } else {
+                return ByteBuffer.wrap(Answer, Block[0], Block[1]).slice();
+            }
+        }
+        
+        // copy the data into the given buffer
+        if (Buffer.capacity() < Block[1]) {
+            String str = "The binary block of " + Block[1] + " bytes received from " 
+                    + m_InstrumentName + "\ndoes not fit into the buffer of " 
+                    + Buffer.capacity() + " bytes.\n";
+            throw new IOException(str);
+        }
+        Buffer.clear();
+        Buffer.put(Answer, Block[0], Block[1]);
+        Buffer.flip();
+        
+        return Buffer;
+    }//</editor-fold>
+    
+    
+    /**
+     * Sends the Message via the chosen communication port and receives the 
+     * answer (a binary block). Reads in chunks until as many bytes have been
+     * received as are specified in the header of the binary block. When the 
+     * first chunk contains the entire block it is returned as it is, otherwise
+     * the chunks are collected in <code>m_BinaryBlockBuffer</code>. Must be 
+     * called while holding the Lock of the communication port.
+     *
+     * @param Message is sent over the chosen communication port
+     * @return The raw answer from position 0 to the limit; it is backed by 
+     * <code>m_BinaryBlockBuffer</code> or by the received chunk.
+     * @throws IOException if the transmission caused a communication error
+     */
+    // <editor-fold defaultstate="collapsed" desc="ReceiveBinaryBlock">
+    private ByteBuffer ReceiveBinaryBlock(String Message)
+            throws IOException {
+        
+        // send the message
+        switch (m_UsedCommPort) {
+            case GPIB:
+                m_GPIB_Driver.Send(Message);
+                break;
+                
+            case RS232:
+                m_RS232_Driver.Send( Message.getBytes(CHARACTER_ENCODING) );
+                break;
+                
+            case LAN:
+                m_LAN_Driver.Send( Message.getBytes(CHARACTER_ENCODING) );
+                break;
+                
+            case TMCTL:
+                m_TMCTL_Driver.Send(Message);
+                
+                // TMCTL parses the header itself, so prepend a header
+                ByteBuffer Data = m_TMCTL_Driver.ReceiveBlockData();
+                int NrBytes = Math.min(Data.position(), Data.capacity() - 1);
+                byte[] Header = String.format(Locale.US, "#9%09d", NrBytes).getBytes(CHARACTER_ENCODING);
+                
+                if (m_BinaryBlockBuffer.length < Header.length + NrBytes) {
+                    m_BinaryBlockBuffer = new byte[Header.length + NrBytes];
+                }
+                System.arraycopy(Header, 0, m_BinaryBlockBuffer, 0, Header.length);
+                System.arraycopy(Data.array(), 0, m_BinaryBlockBuffer, Header.length, NrBytes);
+                
+                return ByteBuffer.wrap(m_BinaryBlockBuffer, 0, Header.length + NrBytes);
+                
+            default:
+                String str = "The selected communication protocol is not supported.\n"
+                        + "This should not occur, so please tell the developer.\n";
+                throw new IOException(str);
+        }
+        
+        // receive until the block is complete
+        byte[] Answer = null;
+        int Length = 0;
+        int Needed = 2;
+        while (Length < Needed) {
+            
+            // read the next chunk
+            byte[] Chunk;
+            switch (m_UsedCommPort) {
+                case GPIB:
+                    Chunk = m_GPIB_Driver.ReceiveBytes();
+                    break;
+                case RS232:
+                    Chunk = m_RS232_Driver.Receive(null, Needed - Length);
+                    break;
+                default:
+                    // read at most the initial size of the receive buffer, so
+                    // it does not grow to the size of the block
+                    Chunk = m_LAN_Driver.Receive(null, Math.min(Needed - Length,
+                            m_iC_Properties.getInt("LAN_Driver.ReceiveBufferSize", 65536)));
+                    break;
+            }
+            
+            if (Chunk.length == 0) {
+                throw new IOException("Time out after receiving " + Length + " bytes of the binary block.\n");
+            }
+            
+            if (Answer == null) {
+                // use the first chunk as it is; it often contains the entire block
+                Answer = Chunk;
+                
+            } else {
+                // collect the chunks in the buffer of this Instrument
+                if (Answer != m_BinaryBlockBuffer) {
+                    if (m_BinaryBlockBuffer.length < Length + Chunk.length) {
+                        m_BinaryBlockBuffer = new byte[Math.max(Length + Chunk.length, 
+                                2 * m_BinaryBlockBuffer.length)];
+                    }
+                    System.arraycopy(Answer, 0, m_BinaryBlockBuffer, 0, Length);
+                    Answer = m_BinaryBlockBuffer;
+                    
+                } else if (m_BinaryBlockBuffer.length < Length + Chunk.length) {
+                    m_BinaryBlockBuffer = Arrays.copyOf(m_BinaryBlockBuffer, 
+                            Math.max(Length + Chunk.length, 2 * m_BinaryBlockBuffer.length));
+                    Answer = m_BinaryBlockBuffer;
+                }
+                System.arraycopy(Chunk, 0, Answer, Length, Chunk.length);
+            }
+            Length += Chunk.length;
+            
+            // how many bytes are needed
+            int[] Block = parseBinaryBlockHeader(Answer, Length);
+            if (Block != null) {
+                Needed = Block[0] + Block[1];
+            } else {
+                // the header is not complete yet
+                Needed = Length + 1;
+            }
+        }
+        
+        // RS232 and LAN: read the terminator so it does not precede the next answer
+        if (Length == Needed && m_UsedCommPort != CommPorts.GPIB) {
+            try {
+                byte[] Terminator = (m_ReceiveTerminationCharacters.isEmpty() ? "\n" 
+                        : m_ReceiveTerminationCharacters).getBytes(CHARACTER_ENCODING);
+                if (m_UsedCommPort == CommPorts.RS232) {
+                    m_RS232_Driver.Receive(Terminator, Terminator.length);
+                } else {
+                    m_LAN_Driver.Receive(Terminator, Terminator.length);
+                }
+            } catch (SocketTimeoutException ignore) {
+                // the Instrument did not send a terminator
+            }
+        }
+        
+        return ByteBuffer.wrap(Answer, 0, Length);
+    }//</editor-fold>
+    
+    
+    /**
+     * Parses the header of an IEEE 488.2 definite-length binary block
+     * (<code>#&lt;n&gt;&lt;length&gt;</code>, where n is the number of digits of
+     * length). Bytes preceding the <code>#</code> are skipped.
+     *
+     * @param Data The received bytes
+     * @param Length The number of valid bytes in <code>Data</code>
+     * @return The index of the first data byte and the number of data bytes,
+     * or <code>null</code> if the header is not complete yet.
+     * @throws IOException if the header is not a definite-length header.
+     */
+    // <editor-fold defaultstate="collapsed" desc="parseBinaryBlockHeader">
+    static int[] parseBinaryBlockHeader(byte[] Data, int Length)
+           throws IOException {
+        
+        // find the start of the block
+        int Start = 0;
+        while (Start < Length && Data[Start] != '#') {
+            Start++;
+        }
+        if (Start + 1 >= Length) {
+            return null;
+        }
+        
+        // number of digits of the length
+        int NrDigits = Data[Start + 1] - '0';
+        if (NrDigits == 0) {
+            throw new IOException("Indefinite-length binary blocks (#0) are not supported.\n");
+        }
+        if (NrDigits < 1 || NrDigits > 9) {
+            throw new IOException("The binary block header contains an invalid number of digits.\n");
+        }
+        if (Start + 2 + NrDigits > Length) {
+            return null;
+        }
+        
+        // the length of the data
+        int DataLength = 0;
+        for (int i = Start + 2; i < Start + 2 + NrDigits; i++) {
+            if (Data[i] < '0' || Data[i] > '9') {
+                throw new IOException("The binary block header contains an invalid length.\n");
+            }
+            DataLength = 10 * DataLength + (Data[i] - '0');
+        }
+        
+        return new int[] {Start + 2 + NrDigits, DataLength};
+    }//</editor-fold>
+
+    
+    /**
+     * Sends a String to the Instrument without waiting until it was sent. The
+     * work is processed in the command queue of this Instrument (if enabled 
+     * in the iC.properties with Device.UseCommandQueue = 1), otherwise it is
+     * processed right away in the calling thread. Commands submitted to the 
+     * same Instrument are processed in the order they were submitted.<p>
+     *
+     * This allows, for instance, to start measurements on several Instruments
+     * and then wait for all of them to finish (e.g. with 
+     * <code>CompletableFuture.allOf</code>) instead of blocking on each one
+     * in turn. This method can also be called from Python.
+     *
+     * @param Message The String to send; see <code>SendToInstrument</code>
+     * @return A Future that completes when the String was sent, or completes
+     * exceptionally with the <code>IOException</code> thrown by <code>SendToInstrument</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="SendToInstrumentAsync">
+    public CompletableFuture<Void> SendToInstrumentAsync(final String Message) {
+        
+        return submitToInstrument(new CommTask<Void>() {
+            @Override
+            public Void call() throws IOException {
+                SendToInstrument(Message);
+                return null;
+            }
+        });
+    }//</editor-fold>
+    
+    
+    /**
+     * Queries the Instrument without waiting for the answer. See 
+     * <code>SendToInstrumentAsync</code> for how the query is processed.
+     *
+     * @param Message The String to send; see <code>QueryInstrument</code>
+     * @return A Future that completes with the Instrument's answer, or completes
+     * exceptionally with the <code>IOException</code> thrown by <code>QueryInstrument</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="QueryInstrumentAsync">
+    public CompletableFuture<String> QueryInstrumentAsync(final String Message) {
+        
+        return submitToInstrument(new CommTask<String>() {
+            @Override
+            public String call() throws IOException {
+                return QueryInstrument(Message);
+            }
+        });
+    }//</editor-fold>
+    
+    
+    /**
+     * Submits work that communicates with the Instrument to the Instrument's
+     * command queue. The queue is serviced by one dedicated thread per
+     * Instrument, so the Instrument is accessed by only this thread, which
+     * avoids that several threads (the script, <code>MonitorChart</code>, 
+     * Python) convoy on the Lock of the communication resource.<p>
+     *
+     * If the command queue is not used (see <code>inCommandQueueMode</code>),
+     * when called from within the command queue, or when the calling thread 
+     * holds the Lock of the communication port, the work is processed right
+     * away in the calling thread and a completed Future is returned.
+     *
+     * @param <T> The type of the result
+     * @param Task The work to process
+     * @return A Future that completes with the result of <code>Task</code>
+     */
+    // <editor-fold defaultstate="collapsed" desc="submitToInstrument">
+    public final <T> CompletableFuture<T> submitToInstrument(final CommTask<T> Task) {
+        
+        final CompletableFuture<T> ret = new CompletableFuture<T>();
+        
+        // the task
+        Runnable Work = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ret.complete(Task.call());
+                    
+                } catch (IOException ex) {
+                    ret.completeExceptionally(ex);
                     
+                } catch (RuntimeException ex) {
+                    ret.completeExceptionally(ex);
+                }
+            }
+        };
+        
+        if ( inCommandQueueMode() ) {
+            // process it in the command queue
+            try {
+                getCommandQueue().execute(Work);
+            } catch (RejectedExecutionException ex) {
+                ret.completeExceptionally( new IOException(
+                        "The command queue of " + m_InstrumentName + " has been closed.\n", ex) );
+            }
+        } else {
+            // process it right away
+            Work.run();
+        }
+        
+        return ret;
+    }//</editor-fold>
+    
+    
+    /**
+     * Waits until the work submitted with <code>submitToInstrument</code> is
+     * done and returns it's result.
+     *
+     * @param <T> The type of the result
+     * @param Future Returned from <code>submitToInstrument</code>
+     * @return The result of the work
+     * @throws IOException When the work threw an <code>IOException</code> or
+     * when waiting was interrupted
+     */
+    // <editor-fold defaultstate="collapsed" desc="waitForInstrument">
+    public final <T> T waitForInstrument(CompletableFuture<T> Future)
+           throws IOException {
+        
+        try {
+            return Future.get();
+            
+        } catch (InterruptedException ex) {
+            // restore the interrupted status
+            Thread.currentThread().interrupt();
+            
+            throw new IOException("Waiting for " + m_InstrumentName + " was interrupted.\n", ex);
+            
+        } catch (ExecutionException ex) {
+            
+            // re-throw the original Exception
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            } else if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            } else {
+                throw new IOException(ex.getCause());
+            }
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * @return <code>true</code> if communication with this Instrument is 
+     * processed in it's command queue and the calling thread is not the 
+     * thread servicing the command queue. The command queue is not used in
+     * Syntax-Check mode, and not when the calling thread holds the Lock of 
+     * the communication port (e.g. while the YokogawaDL9000 transfers a
+     * waveform), because the command queue would wait for the Lock forever.
+     */
+    // <editor-fold defaultstate="collapsed" desc="inCommandQueueMode">
+    protected final boolean inCommandQueueMode() {
+        return m_UseCommandQueue && !m_SyntaxCheckMode &&
+               Thread.currentThread() != m_CommandQueueThread &&
+               !getCommLock().isHeldByCurrentThread();
+    }//</editor-fold>
+    
+    
+    /**
+     * Returns the command queue of this Instrument and creates it if necessary.
+     * The thread servicing the queue is a daemon thread which terminates 
+     * when the queue was idle for some time; it is restarted when new work
+     * is submitted.
+     *
+     * @return The command queue
+     */
+    // <editor-fold defaultstate="collapsed" desc="getCommandQueue">
+    private synchronized ThreadPoolExecutor getCommandQueue() {
         
-        return ret;
+        if (m_CommandQueue == null) {
+            
+            m_CommandQueue = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "iC Command Queue " + m_InstrumentName);
+                            t.setDaemon(true);
+                            
+                            // remember the thread to detect calls from within the queue
+                            m_CommandQueueThread = t;
+                            
+                            return t;
+                        }
+                    });
+            m_CommandQueue.allowCoreThreadTimeOut(true);
+        }
+        
+        return m_CommandQueue;
     }//</editor-fold>
     
     
@@ -2334,32 +3645,30 @@ public class Device {
         // log message and return if in No-Communication Mode
         if (inNoCommunicationMode()) {
             // log message
-            m_Comm_Logger.log(Level.FINE, "{0} <n {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, Message});
+            CommLog.log(m_InstrumentName, CommLog.NOT_SENT, Message);
 
             return ret;
         }
 
-        // send via driver derived from GPIB_Driver
-        if (m_GPIB_Driver instanceof GPIB_Driver) {
+        // send via driver derived from GPIB_Driver (or replay a recorded Comm trace)
+        if (m_Replay != null || m_GPIB_Driver instanceof GPIB_Driver) {
 
             // lock the Lock
-            m_LockGPIBController.lock();
+            getCommLock().lock();
             
             try {
                 // log message
-                m_Comm_Logger.log(Level.FINE, "{0} <- {1}: {2}", new Object[]{
-                    m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, Message});
-
-                // write to Instrument
-                m_GPIB_Driver.Send(Message);
+                CommLog.log(m_InstrumentName, CommLog.SENT, Message);
 
-                // read from Instrument
-                ret = m_GPIB_Driver.Receive(true);
+                // write to Instrument and read its answer (or replay a recorded Comm trace)
+                if (m_Replay != null) {
+                    ret = m_Replay.query(m_InstrumentName, Message);
+                } else {
+                    ret = m_GPIB_Driver.Query(Message, true);
+                }
 
                 // log received GPIB traffic
-                m_Comm_Logger.log(Level.FINE, "{0} -> {1}: {2}", new Object[]{
-                    m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, ret});
+                CommLog.log(m_InstrumentName, CommLog.RECEIVED, ret);
 
             } catch (IOException ex) {
 
@@ -2370,7 +3679,9 @@ public class Device {
                 m_Logger.severe(str);
 
                 // log GPIB Status to Comm logger
-                m_Comm_Logger.severe(m_GPIB_Driver.getGPIBStatus());
+                if (m_GPIB_Driver != null) {
+                    m_Comm_Logger.severe(m_GPIB_Driver.getGPIBStatus());
+                }
 
                 // TODO 4* ask User what to do. retry, ignore, stop
 
@@ -2379,7 +3690,7 @@ public class Device {
                 // finally is also called when a new Exception is thrown in catch{}
 
                 // release the lock
-                m_LockGPIBController.unlock();
+                getCommLock().unlock();
             }
         }
 
@@ -2422,32 +3733,36 @@ public class Device {
         // log message and return if in No-Communication Mode
         if (inNoCommunicationMode()) {
             // log message
-            m_Comm_Logger.log(Level.FINE, "{0} <n {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, Message});
+            CommLog.log(m_InstrumentName, CommLog.NOT_SENT, Message);
 
             return ret;
         }
 
         // lock the Lock
-        m_LockRS232Port.lock();
+        getCommLock().lock();
         
         try {
             // log message
-            m_Comm_Logger.log(Level.FINE, "{0} <- {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, Message});
+            CommLog.log(m_InstrumentName, CommLog.SENT, Message);
 
-            // write to Instrument
-            m_RS232_Driver.Send( Message.getBytes("UTF-8") );
+            byte[] ans;
+            if (m_Replay != null) {
+                // replay a recorded Comm trace
+                ans = m_Replay.query(m_InstrumentName, Message.getBytes("UTF-8"));
+            } else {
+                // write to Instrument
+                m_RS232_Driver.Send( Message.getBytes("UTF-8") );
 
-            // read from Instrument
-            byte[] ans = m_RS232_Driver.Receive();
+                // read from Instrument
+                ans = m_RS232_Driver.Receive(
+                        m_ReceiveTerminationCharacters.getBytes("UTF-8"), 0);
+            }
             
             // convert to a String
             ret = new String(ans, "UTF-8");
 
             // log received GPIB traffic
-            m_Comm_Logger.log(Level.FINE, "{0} -> {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, ret});
+            CommLog.log(m_InstrumentName, CommLog.RECEIVED, ret);
 
         } catch (IOException ex) {
 
@@ -2464,7 +3779,7 @@ public class Device {
             // finally is also called when a new Exception is thrown in catch{}
 
             // release the lock
-            m_LockRS232Port.unlock();
+            getCommLock().unlock();
         }
 
         return ret;
@@ -2494,44 +3809,70 @@ public class Device {
     protected final ByteBuffer QueryViaRS232(ByteBuffer Message, int WaitTime)
                     throws IOException {
         
+        return QueryViaRS232(Message, WaitTime, 0);
+    }//</editor-fold>
+    
+    
+    /**
+     * Same as <code>QueryViaRS232(ByteBuffer, int)</code>, but returns as soon
+     * as <code>ExpectedLength</code> bytes have been received instead of waiting
+     * for <code>RS232_Driver.TimeOut</code> without new data. Useful for
+     * binary protocols with fixed-length answers such as Modbus.<p>
+     *
+     * @param Message is sent over the RS232.
+     * @param WaitTime in msec waited between sending the message and receiving
+     * the answer. Can be 0.
+     * @param ExpectedLength The length of the expected answer in bytes; shorter
+     * answers (for instance error replies) are returned after the time out. Can
+     * be 0 to always wait for the time out.
+     * 
+     * @return Returns the data read from RS232, or a <code>ByteBuffer</code> with a 
+     * limit of 0 if in No-Communication-Mode. The return value should never be null.
+     * 
+     * @throws IOException if the transmission caused a RS232 error; bubbles
+     * up from <code>RS232_Driver.SendCommand</code> or <code>RS232_Driver.Receive</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="QueryViaRS232 (ByteBuffer, ExpectedLength)">
+    protected final ByteBuffer QueryViaRS232(ByteBuffer Message, int WaitTime, int ExpectedLength)
+                    throws IOException {
+        
         // returned value if in No-Communication Mode
         ByteBuffer ret = ByteBuffer.allocate(0);
         
-        // build a string representation of Message
-        String MessageString = RS232_Driver.ByteBufferToLogString(Message);
-
         // log message and return if in No-Communication Mode
         if (inNoCommunicationMode()) {
             // log message
-            m_Comm_Logger.log(Level.FINE, "{0} <n {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, MessageString});
+            CommLog.log(m_InstrumentName, CommLog.NOT_SENT, Message.array(), Message.arrayOffset(), Message.limit());
 
             return ret;
         }
 
         // lock the Lock
-        m_LockRS232Port.lock();
+        getCommLock().lock();
         
         try {
             // log message
-            m_Comm_Logger.log(Level.FINE, "{0} <- {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, MessageString});
+            CommLog.log(m_InstrumentName, CommLog.SENT, Message.array(), Message.arrayOffset(), Message.limit());
           
-            // write to Instrument
-            m_RS232_Driver.Send(Message.array());
-            
-            // wait as long as specified
-            try {Thread.sleep(WaitTime);} catch (InterruptedException ignore) {}
+            if (m_Replay != null) {
+                // replay a recorded Comm trace
+                ret = ByteBuffer.wrap( m_Replay.query(m_InstrumentName, Arrays.copyOfRange(
+                        Message.array(), Message.arrayOffset(), Message.arrayOffset() + Message.limit())) );
+            } else {
+                // write to Instrument
+                m_RS232_Driver.Send(Message.array());
 
-            // read from Instrument
-            ret = ByteBuffer.wrap( m_RS232_Driver.Receive() );
-            
-            // build a string representation of the answer
-            MessageString = RS232_Driver.ByteBufferToLogString(ret);
+                // wait as long as specified
+                if (WaitTime > 0) {
+                    try {Thread.sleep(WaitTime);} catch (InterruptedException ignore) {}
+                }
 
-            // log received GPIB traffic
-            m_Comm_Logger.log(Level.FINE, "{0} -> {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, MessageString});
+                // read from Instrument
+                ret = ByteBuffer.wrap( m_RS232_Driver.Receive(null, ExpectedLength) );
+            }
+            
+            // log received RS232 traffic
+            CommLog.log(m_InstrumentName, CommLog.RECEIVED, ret.array(), 0, ret.limit());
 
         } catch (IOException ex) {
 
@@ -2548,7 +3889,7 @@ public class Device {
             // finally is also called when a new Exception is thrown in catch{}
 
             // release the lock
-            m_LockRS232Port.unlock();
+            getCommLock().unlock();
         }
 
         return ret;
@@ -2556,39 +3897,84 @@ public class Device {
 
     
     /**
-     * Sends a string via GPIB to the Instrument, and reads the Instrument's
+     * Sends a string via LAN (TCP) to the Instrument, and reads the Instrument's
      * reply. Does that only if the Instrument is not in No-Communication-Mode.
      * The String to send and a possible answer is logged to
      * <code>m_Comm_Logger</code>.<p>
      *
-     * This method uses a Lock on the GPIB controller to ensure thread safety.
-     * Note: Declaring the method as synchronized resulted in communication errors when
-     * different threads tried to access the same instrument.<p>
+     * This method uses a Lock on the network connection to ensure thread safety.
+     * The answer is complete when it ends with <code>m_ReceiveTerminationCharacters</code>,
+     * respectively with a line feed if they are not defined.<p>
      *
      * Remark: To prevent unintended behavior on non-English environments (where
      * the decimal point might not be '.' but ',') it is recommended to use the
      * <code>Locale.US</code>, for instance like <code>String.format(Locale.US, ...</code>.
      *
-     * @param Message is sent over the GPIB.
-     * @return Returns the string read from GPIB, or an empty String if
+     * @param Message is sent over the network.
+     * @return Returns the string read from the network, or an empty String if
      * in No-Communication-Mode.
-     * @throws IOException if the transmission caused a GPIB error; bubbles
-     * up from <code>GPIB_Driver.SendCommand</code> or <code>GPIB_Driver.Receive</code>.
+     * @throws IOException if the transmission caused an error; bubbles
+     * up from <code>LAN_Driver.Send</code> or <code>LAN_Driver.Receive</code>.
      * @deprecated Implement and use <code>QueryInstrument</code> instead
      */
-    // TODO @LAN implement QueryViaLAN - see remarks to SendViaLAN()
     // <editor-fold defaultstate="collapsed" desc="QueryCommand Via LAN">
     @Deprecated
     protected final String QueryViaLAN(String Message)
                     throws IOException {
 
         // returned value if in No-Communication Mode
-        String ret = "LAN communication is not yet supported";
+        String ret = "";
+        
+        // log message and return if in No-Communication Mode
+        if (inNoCommunicationMode()) {
+            // log message
+            CommLog.log(m_InstrumentName, CommLog.NOT_SENT, Message);
+
+            return ret;
+        }
+
+        // lock the Lock
+        getCommLock().lock();
         
-        // just display an "error" message
-        m_GUI.DisplayStatusMessage("Querying via LAN is not yet supported.", false);
+        try {
+            // log message
+            CommLog.log(m_InstrumentName, CommLog.SENT, Message);
+
+            if (m_Replay != null) {
+                // replay a recorded Comm trace
+                ret = new String( m_Replay.query(m_InstrumentName, 
+                        Message.getBytes(CHARACTER_ENCODING)), CHARACTER_ENCODING );
+            } else {
+                // write to Instrument
+                m_LAN_Driver.Send( Message.getBytes(CHARACTER_ENCODING) );
+
+                // read from Instrument
+                ret = new String( m_LAN_Driver.Receive(
+                        m_ReceiveTerminationCharacters.getBytes(CHARACTER_ENCODING), 0), 
+                        CHARACTER_ENCODING );
+            }
 
-        // see QueryViaGPIB for an example code
+            // log received LAN traffic
+            CommLog.log(m_InstrumentName, CommLog.RECEIVED, ret);
+
+        } catch (IOException ex) {
+
+            // log event
+            m_Logger.severe(ex.getMessage());
+
+            // also log to Comm logger
+            m_Comm_Logger.severe(ex.getMessage());
+
+            // TODO 4* ask User what to do. retry, ignore, stop
+
+            throw ex;
+            
+        } finally {
+            // finally is also called when a new Exception is thrown in catch{}
+
+            // release the lock
+            getCommLock().unlock();
+        }
 
         return ret;
     }//</editor-fold>
@@ -2626,8 +4012,7 @@ public class Device {
         // log message and return if in No-Communication Mode
         if (inNoCommunicationMode()) {
             // log message
-            m_Comm_Logger.log(Level.FINE, "{0} <n {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, Message});
+            CommLog.log(m_InstrumentName, CommLog.NOT_SENT, Message);
 
             return ret;
         }
@@ -2635,22 +4020,25 @@ public class Device {
         
 
         // lock the Lock
-        m_LockTMCTLlib.lock();
+        getCommLock().lock();
 
         try {
             // log message
-            m_Comm_Logger.log(Level.FINE, "{0} <- {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, Message});
+            CommLog.log(m_InstrumentName, CommLog.SENT, Message);
 
-            // write to Instrument
-            m_TMCTL_Driver.Send(Message);
+            if (m_Replay != null) {
+                // replay a recorded Comm trace
+                ret = m_Replay.query(m_InstrumentName, Message);
+            } else {
+                // write to Instrument
+                m_TMCTL_Driver.Send(Message);
 
-            // read from Instrument
-            ret = m_TMCTL_Driver.Receive(true);
+                // read from Instrument
+                ret = m_TMCTL_Driver.Receive(true);
+            }
 
             // log received GPIB traffic
-            m_Comm_Logger.log(Level.FINE, "{0} -> {1}: {2}", new Object[]{
-                m_TimeStampFormat.format(Calendar.getInstance().getTime()), m_InstrumentName, ret});
+            CommLog.log(m_InstrumentName, CommLog.RECEIVED, ret);
 
         } catch (IOException ex) {
 
@@ -2671,7 +4059,7 @@ public class Device {
             // finally is also called when a new Exception is thrown in catch{}
 
             // release the lock
-            m_LockTMCTLlib.unlock();
+            getCommLock().unlock();
         }
 
         return ret;
@@ -2780,10 +4168,15 @@ public class Device {
      *
      * @param NrIterations Specifies how many times the *IDN? query should be
      * performed.
+     * @throws ScriptException When in replay mode
      * @see GPIB_Driver#SpeedTest(int) 
      */
     // <editor-fold defaultstate="collapsed" desc="Speed Test">
-    public void SpeedTest(int NrIterations) {
+    public void SpeedTest(int NrIterations) 
+           throws ScriptException {
+        
+        // the GPIB driver is not opened in replay mode
+        checkNotReplayed("The GPIB speed test");
         
         // perform standard speed test
         m_GPIB_Driver.SpeedTest(NrIterations);
@@ -2822,25 +4215,13 @@ public class Device {
         ScriptMethod    ret = null;
         
 
-        // get all methods
-        ArrayList<ScriptMethod> AllScriptMethods = listAllScriptMethods();
+        // get all methods with the same name and number of arguments
+        List<ScriptMethod> Candidates = getScriptMethodIndex().find(Name, NrOfArguments);
         
-        // identify the proper method to call
-        for (ScriptMethod met : AllScriptMethods) {
-
-            // first, match the names (case sensitive)
-            if ( !met.DeviceCommandName.equals(Name) ) {
-                continue;
-            }
-
-            // second, check if the class is a descendent from class Device
-            // this is now done in listAllScriptMethods
-
-            // third, match the number of arguments
-            if ( met.ParameterTypes.length != NrOfArguments ) {
-                // wrong number of arguments, so search the next method
-                continue;
-            }
+        // the name (case sensitive) and the number of arguments was already 
+        // matched by the index, and the check if the class is a descendent 
+        // from class Device is done in buildScriptMethodList
+        for (ScriptMethod met : Candidates) {
                                 
             // remember the Method to invoke
             ret = met;
@@ -3223,6 +4604,9 @@ public class Device {
             try { fr.close(); } catch (IOException ignore) {}    
         }
         
+        // the generic Script-Methods changed, so discard the indices
+        m_ScriptMethodIndices.clear();
+        
         
         //////////////////////////////////////
         // register the new generic Instrument
@@ -3298,14 +4682,65 @@ public class Device {
      * <code>Device</code> or it's descendants. All public methods can be invoked
      * from the Script, but note that not all returned methods have to bare an 
      * <code>@AutoGUIAnnotation</code>. This method also returns generically defined
-     * methods.
+     * methods. The methods are taken from the shared <code>ScriptMethodIndex</code>.
      * 
      * @return A list of methods that can be invoked via script commands. The
-     * returned list might be empty but is never null.
+     * returned list might be empty but is never null. It is a copy which can
+     * be modified (e.g. sorted).
      */
     // <editor-fold defaultstate="collapsed" desc="listAllScriptMethods">
     public ArrayList<ScriptMethod> listAllScriptMethods() {
         
+        // return a copy so that the caller can sort it
+        return new ArrayList<ScriptMethod>( getScriptMethodIndex().getAll() );
+    }//</editor-fold>
+    
+    
+    /**
+     * Returns the index of all Script-Methods of this Instrument-Class and
+     * Instrument-Class-Name. The index is built once with 
+     * <code>buildScriptMethodList</code> and shared by all instances of the 
+     * same class (and the same generic Instrument), so that the Reflection 
+     * mechanism is used only once per Instrument-Class. The indices are
+     * discarded when generic Instruments are loaded.
+     * 
+     * @return The index of all Script-Methods; never <code>null</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="getScriptMethodIndex">
+    public final ScriptMethodIndex getScriptMethodIndex() {
+        
+        // the key (the Instrument-Class-Name identifies the generic Instrument)
+        String Key = this.getClass().getName() + "|" + m_InstrumentClassName;
+        
+        // get the index
+        ScriptMethodIndex ret = m_ScriptMethodIndices.get(Key);
+        
+        // build the index if necessary
+        if (ret == null) {
+            ret = new ScriptMethodIndex( buildScriptMethodList() );
+            
+            // another thread might have been faster
+            ScriptMethodIndex dummy = m_ScriptMethodIndices.putIfAbsent(Key, ret);
+            if (dummy != null) {
+                ret = dummy;
+            }
+        }
+        
+        return ret;
+    }//</editor-fold>
+    
+    
+    /**
+     * Finds all Script-Methods using Reflection and adds the generically defined
+     * methods. This is what <code>listAllScriptMethods</code> did before the
+     * Script-Methods were indexed; use <code>getScriptMethodIndex</code> instead.
+     * 
+     * @return A list of methods that can be invoked via script commands. The
+     * returned list might be empty but is never null.
+     */
+    // <editor-fold defaultstate="collapsed" desc="buildScriptMethodList">
+    private ArrayList<ScriptMethod> buildScriptMethodList() {
+        
         // holds the return value
         ArrayList<ScriptMethod> ret = new ArrayList<ScriptMethod>();
        
@@ -3358,6 +4793,9 @@ public class Device {
             // remember that it is not a generic method (would not be necessary)
             sm.isGenericGPIB = false;
             
+            // build the converters and the MethodHandle
+            sm.prepareInvocation();
+            
             
             // *** AutoGUI
             
@@ -3481,9 +4919,12 @@ public class Device {
             // export the result of the last command to the Python environment
             m_PythonInterpreter.set("_ans", Device.m_LastReturnValue);
             
+            // export the Instruments (if they changed)
+            exportInstrumentsToPython();
+            
             
-            // now execute the intended Python command
-            m_PythonInterpreter.exec(PythonCommand);
+            // now execute the intended Python command (compiled only once)
+            m_PythonInterpreter.exec( getPythonCode(PythonCommand) );
             
         } catch (PyException ex) {
             
@@ -3505,8 +4946,75 @@ public class Device {
             throw new ScriptException(Message);            
         }
     }//</editor-fold>
+    
+    /**
+     * Exports all Instruments in <code>m_UsedInstruments</code> to the Python
+     * Interpreter as <code>InstrumentProxy</code> objects, so that a Python
+     * script can call Script-Methods directly, e.g. <code>Tsample.SetTemp(300)</code>
+     * or <code>data = OSC.getWaveform(1)</code>. The proxies are also available
+     * in the dictionary <code>instruments</code>. The Instruments are only 
+     * exported again when the set of Instrument-Names has changed; because 
+     * the proxies look up the Instrument by it's name upon each call, they
+     * remain valid when an Instrument is MADE anew.
+     */
+    // <editor-fold defaultstate="collapsed" desc="exportInstrumentsToPython">
+    private static void exportInstrumentsToPython() {
+        
+        // did the Instruments change?
+        if ( m_InstrumentsInPython.equals(m_UsedInstruments.keySet()) ) {
+            return;
+        }
+        
+        // make a proxy for each Instrument
+        PyDictionary Instruments = new PyDictionary();
+        for (String Name : m_UsedInstruments.keySet()) {
+            InstrumentProxy Proxy = new InstrumentProxy(Name);
+            
+            m_PythonInterpreter.set(Name, Proxy);
+            Instruments.__setitem__(Name, Proxy);
+        }
+        m_PythonInterpreter.set("instruments", Instruments);
+        
+        // remember the exported Instruments
+        m_InstrumentsInPython.clear();
+        m_InstrumentsInPython.addAll(m_UsedInstruments.keySet());
+    }//</editor-fold>
 
     
+    /**
+     * Returns the compiled code of the given Python source text. The source
+     * is compiled only once and the compiled code is cached in 
+     * <code>m_PythonCodeCache</code>, so that Python blocks which are executed 
+     * repeatedly (for instance in loops) are not parsed and compiled every time.<p>
+     * 
+     * The source is compiled like <code>PythonInterpreter.exec(String)</code>
+     * does, except that <code>from __future__</code> statements executed 
+     * before do not affect the compilation.
+     * 
+     * @param PythonCommand The Python source text
+     * @return The compiled code
+     * @throws PyException When the source contains a syntax error
+     */
+    // <editor-fold defaultstate="collapsed" desc="getPythonCode">
+    static PyCode getPythonCode(String PythonCommand) {
+        
+        // get the cached code
+        PyCode Code = m_PythonCodeCache.get(PythonCommand);
+        
+        // compile and cache it if necessary
+        if (Code == null) {
+            Code = Py.compile_flags(PythonCommand, "<string>", 
+                    CompileMode.exec, new CompilerFlags());
+            
+            if (m_iC_Properties.getInt("Device.PythonCodeCacheSize", 256) > 0) {
+                m_PythonCodeCache.put(PythonCommand, Code);
+            }
+        }
+        
+        return Code;
+    }//</editor-fold>
+    
+    
     /**
      * Resets the Python Interpreter (PI) by discarding the old PI and making
      * a new PI. After the new PI is instantiated, the file Startup.py residing
@@ -3528,56 +5036,48 @@ public class Device {
          * http://old.nabble.com/PythonInterpreter-question-td27760276.html
          */
         
+        // use a pre-warmed Python Interpreter if one is available
+        PrewarmedPython Prewarmed = takePrewarmedPythonInterpreter();
+        
         // make a new Python Interpreter
         // to reset all variables declared in a previous run or during Syntax-check
-        m_PythonInterpreter = new PythonInterpreter();
+        if (Prewarmed != null) {
+            m_PythonInterpreter = Prewarmed.Interpreter;
+        } else {
+            m_PythonInterpreter = new PythonInterpreter();
+        }
 
         // assign new Python Interpreter to the JythonPrompt Form
         m_JythonPromptWindow.setPythonInterpreter(m_PythonInterpreter);
-
-
-        ///////////////////////////////////
-        // export useful iC stuff to Python
-
-        // make a new Device dummy object
-        Device dev = new Device();
-
-        // get the iC directory
-        String iC_Dir = m_iC_Properties.getPath("iC.DefaultPath", "$user.home$/iC/");
-
-        // make full file name for Startup.py
-        String FileName = iC_Dir + "Python_Scripts" + System.getProperty("file.separator")
-                                 +"Startup.py";
+        
+        // the new Interpreter does not know the Instruments yet
+        m_InstrumentsInPython.clear();
 
 
         try {
-            // make the Device instance accessible in Python
-            // use _ to mark it as a instance variable; see Python style guide
-            // http://www.python.org/dev/peps/pep-0008 (Method Names and Instance Variables)
-            m_PythonInterpreter.set("_device", dev);
-
-            // export the Project Directory
-            m_PythonInterpreter.set("project_directory", m_GUI.getProjectPath());
-
-            // export the iC directory       
-            m_PythonInterpreter.set("iC_directory", iC_Dir);
-
-
             // display the Message
             if ( !Message.isEmpty() ) {
                 execPython("print '" + Message + "'");
             }
-
-            // check if the file exists
-            if ( (new File(FileName)).exists() ) {
-
-                // yes, so execute it
-                m_PythonInterpreter.execfile(FileName);
-
+            
+            if (Prewarmed != null) {
+                
+                // the Device instance is made here and not on the background
+                // thread, because it's constructor resets m_StopScripting
+                m_PythonInterpreter.set("_device", new Device());
+                
+                // the Project Directory might have changed in the meantime
+                m_PythonInterpreter.set("project_directory", m_GUI.getProjectPath());
+                
+                // show the output of Startup.py
+                if ( !Prewarmed.Output.isEmpty() ) {
+                    m_PythonInterpreter.getSystemState().stdout
+                            .invoke("write", new PyString(Prewarmed.Output));
+                }
             } else {
-
-                // no, show a Status message
-                m_GUI.DisplayStatusMessage("Error: Could not find " + FileName + "\n", false);
+                
+                // export useful iC stuff to Python and execute Startup.py
+                initPythonInterpreter(m_PythonInterpreter, new Device());
             }
 
             // store system state and local variables
@@ -3593,6 +5093,173 @@ public class Device {
             throw new ScriptException(str);
         }
         
+        // pre-warm the Interpreter for the real run after the Syntax-Check
+        if ( m_SyntaxCheckMode && 
+             m_iC_Properties.getInt("Device.PrewarmPython", 0) > 0 ) {
+            prewarmPythonInterpreter();
+        }
+        
+    }//</editor-fold>
+    
+    
+    /**
+     * Exports useful iC stuff to the given Python Interpreter and executes
+     * Startup.py in the iC directory. Used by <code>resetPythonInterpreter</code>
+     * and, on a background thread, by <code>prewarmPythonInterpreter</code>.
+     * 
+     * @param Interpreter The new Python Interpreter
+     * @param dev The Device instance exported as <code>_device</code>; if 
+     * <code>null</code>, <code>_device</code> is not exported. A new Device 
+     * must not be made on a background thread, because the constructor resets
+     * <code>m_StopScripting</code> and would discard a Stop pressed meanwhile.
+     * @throws PyException when executing Startup.py caused a Python error
+     */
+    // <editor-fold defaultstate="collapsed" desc="initPythonInterpreter">
+    private static void initPythonInterpreter(PythonInterpreter Interpreter, Device dev) {
+
+        // get the iC directory
+        String iC_Dir = m_iC_Properties.getPath("iC.DefaultPath", "$user.home$/iC/");
+
+        // make full file name for Startup.py
+        String FileName = iC_Dir + "Python_Scripts" + System.getProperty("file.separator")
+                                 +"Startup.py";
+        
+        // make the Device instance accessible in Python
+        // use _ to mark it as a instance variable; see Python style guide
+        // http://www.python.org/dev/peps/pep-0008 (Method Names and Instance Variables)
+        if (dev != null) {
+            Interpreter.set("_device", dev);
+        }
+
+        // export the Project Directory
+        Interpreter.set("project_directory", m_GUI.getProjectPath());
+
+        // export the iC directory       
+        Interpreter.set("iC_directory", iC_Dir);
+        
+        // check if the file exists
+        if ( (new File(FileName)).exists() ) {
+
+            // yes, so execute it
+            Interpreter.execfile(FileName);
+
+        } else {
+
+            // no, show a Status message
+            m_GUI.DisplayStatusMessage("Error: Could not find " + FileName + "\n", false);
+        }
+    }//</editor-fold>
+    
+    
+    /** A Python Interpreter that was initialized in the background, together 
+     * with the output Startup.py produced. */
+    static final class PrewarmedPython {
+        
+        /** The initialized Python Interpreter */
+        PythonInterpreter Interpreter;
+        
+        /** The output of Startup.py; shown when the Interpreter is used */
+        String Output;
+    }
+    
+    
+    /**
+     * Starts to create and initialize a Python Interpreter (including the 
+     * execution of Startup.py) on a background thread, so that the next
+     * <code>resetPythonInterpreter</code>, for instance upon the first Python
+     * command of a script, does not stall the script while Jython starts. 
+     * Does nothing if a Python Interpreter is already being pre-warmed.<p>
+     * 
+     * This method is called at application start when 
+     * <code>Device.PrewarmPython</code> is 1, and when the Syntax-Check starts
+     * when it is 1 or 2. Startup.py is executed before <code>_device</code> 
+     * is exported, so it may define functions that use <code>_device</code>
+     * but should not call them.
+     */
+    // <editor-fold defaultstate="collapsed" desc="prewarmPythonInterpreter">
+    public static synchronized void prewarmPythonInterpreter() {
+        
+        // is an Interpreter already being pre-warmed?
+        if (m_PythonPrewarm != null) {
+            return;
+        }
+        
+        m_PythonPrewarm = new FutureTask<PrewarmedPython>(new Callable<PrewarmedPython>() {
+            @Override
+            public PrewarmedPython call() {
+                
+                PrewarmedPython ret = new PrewarmedPython();
+                
+                // make the Interpreter and remember it's output
+                StringWriter Output = new StringWriter();
+                ret.Interpreter = new PythonInterpreter();
+                ret.Interpreter.setOut(Output);
+                
+                // export iC stuff and execute Startup.py; _device is exported
+                // when the Interpreter is taken in resetPythonInterpreter
+                initPythonInterpreter(ret.Interpreter, null);
+                
+                // also load the classes used to compile and execute code
+                ret.Interpreter.exec( getPythonCode("pass") );
+                
+                ret.Output = Output.toString();
+                
+                return ret;
+            }
+        });
+        
+        // start it
+        Thread t = new Thread(m_PythonPrewarm, "iC Python pre-warm");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }//</editor-fold>
+    
+    
+    /**
+     * Returns the pre-warmed Python Interpreter, if one was started with
+     * <code>prewarmPythonInterpreter</code>. Waits until it is initialized, 
+     * which is still faster than starting a new one.
+     * 
+     * @return The pre-warmed Python Interpreter, or <code>null</code> if none
+     * was started or it could not be created.
+     * @throws ScriptException when Startup.py caused a Python error
+     */
+    // <editor-fold defaultstate="collapsed" desc="takePrewarmedPythonInterpreter">
+    static PrewarmedPython takePrewarmedPythonInterpreter()
+                   throws ScriptException {
+        
+        // take the pre-warmed Interpreter
+        FutureTask<PrewarmedPython> Task;
+        synchronized (Device.class) {
+            Task = m_PythonPrewarm;
+            m_PythonPrewarm = null;
+        }
+        
+        if (Task == null) {
+            return null;
+        }
+        
+        try {
+            return Task.get();
+            
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+            
+        } catch (ExecutionException ex) {
+            
+            // re-throw Python errors from Startup.py as before
+            if (ex.getCause() instanceof PyException) {
+                String str = "Python error:\n" + ex.getCause().toString();
+                throw new ScriptException(str);
+            }
+            
+            // start a new Interpreter instead
+            m_Logger.log(Level.WARNING, "Could not pre-warm the Python Interpreter:\n{0}", 
+                    icontrol.Utilities.printStackTrace(ex.getCause()));
+            return null;
+        }
     }//</editor-fold>
    
     
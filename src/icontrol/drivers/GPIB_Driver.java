@@ -91,6 +91,36 @@ abstract public class GPIB_Driver {
      * @throws IOException When the transmission caused a GPIB error
      */
     protected abstract String Receive(boolean Trim) throws IOException;
+    
+    /**
+     * Receives data from the Instrument specified in <code>Open</code> like
+     * <code>Receive</code>, but returns the data bytes as they were received
+     * without converting them into a String. Used to receive binary data, for 
+     * instance IEEE 488.2 definite-length blocks. Each call reads until the end
+     * of the message (EOI) or until the receive buffer is full, so large blocks
+     * might require several calls.
+     *
+     * @return The data bytes sent by the Instrument (including terminators).
+     * @throws IOException When the transmission caused a GPIB error
+     */
+    protected abstract byte[] ReceiveBytes() throws IOException;
+    
+    /**
+     * Sends the given String to the Instrument specified in <code>Open</code>
+     * and receives its answer. Drivers can override this method to combine 
+     * sending and receiving; this implementation calls <code>Send</code> and
+     * <code>Receive</code>.
+     *
+     * @param Msg Data to be sent
+     * @param Trim If <code>true</code>, newline (\n) and carriage return (\r)
+     * characters are removed from the end of the returned String.
+     * @return The data bytes sent by the Instrument wrapped in a String.
+     * @throws IOException When the transmission caused a GPIB error
+     */
+    protected String Query(String Msg, boolean Trim) throws IOException {
+        Send(Msg);
+        return Receive(Trim);
+    }
 
 
     /**
@@ -558,6 +558,37 @@ public class GPIB_IOtech extends GPIB_Driver {
 
         return ret;
     }//</editor-fold>
+    
+    
+    /**
+     * Receives data from the Instrument specified in <code>Open</code> without
+     * converting it into a String. See <code>Receive</code> and 
+     * <code>GPIB_Driver.ReceiveBytes</code>.
+     *
+     * @return The data bytes sent by the Instrument.
+     * @throws IOException When the transmission caused a GPIB error
+     */
+    // <editor-fold defaultstate="collapsed" desc="ReceiveBytes">
+    @Override
+    protected byte[] ReceiveBytes()
+              throws IOException {
+        
+        // address the instrument to talk
+        WriteToIOtech(String.format("ENTER %02d", m_GPIB_Adr));
+        
+        // wait a bit (500 might be too long, 250 is too short)
+        try {Thread.sleep(500);} catch (InterruptedException ignore) {};
+        
+        String str = "An error occurred when trying to receive data via the IOtech GPIB-RS232 controller.\n";
+        checkCommunicationError(str);
+        
+        // return when developing
+        if (m_IOtechDebug)
+            return new byte[0];
+
+        // read the data
+        return m_RS232Driver.Receive();
+    }//</editor-fold>
 
 
 
@@ -43,6 +43,7 @@ import icontrol.IcontrolView;
 import icontrol.iC_Properties;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -1021,6 +1022,52 @@ public class GPIB_NI extends GPIB_Driver {
         // local variables
         String ret = "";
 
+        // receive the data
+        int NrBytes = ReceiveIntoBuffer();
+
+
+        // convert to a String of the correct size
+        ret = new String(m_ReceiveBuffer.array(), 0, NrBytes, CHARACTER_ENCODING);
+
+        // remove trailing newline & carriage return
+        if (Trim)
+            ret = ret.replaceFirst("[\\n[\\r]]+$", "");
+
+        return ret;
+    }//</editor-fold>
+    
+    
+    /**
+     * Receives data from the Instrument specified in <code>Open</code> without
+     * converting it into a String. See <code>Receive</code> and 
+     * <code>GPIB_Driver.ReceiveBytes</code>.
+     *
+     * @return The data bytes sent by the Instrument.
+     * @throws IOException When the transmission caused a GPIB error
+     */
+    // <editor-fold defaultstate="collapsed" desc="ReceiveBytes">
+    @Override
+    protected byte[] ReceiveBytes()
+           throws IOException {
+        
+        // receive the data
+        int NrBytes = ReceiveIntoBuffer();
+        
+        return Arrays.copyOf(m_ReceiveBuffer.array(), NrBytes);
+    }//</editor-fold>
+    
+    
+    /**
+     * Reads data from the Instrument into <code>m_ReceiveBuffer</code> using 
+     * either 488.1 or 488.2 function calls.
+     *
+     * @return The number of data bytes that have been received.
+     * @throws IOException When the transmission caused a GPIB error
+     */
+    // <editor-fold defaultstate="collapsed" desc="ReceiveIntoBuffer">
+    private int ReceiveIntoBuffer()
+            throws IOException {
+
         // check RECEIVE_BUFFER_SIZE vs. limit
         if (RECEIVE_BUFFER_SIZE != m_ReceiveBuffer.limit())
             m_Logger.warning("RECEIVE_BUFFER_SIZE != m_ReceiveBuffer.limit()\n");
@@ -1039,18 +1086,8 @@ public class GPIB_NI extends GPIB_Driver {
         checkErrorGPIB(str, false);
 
 
-        // get the number of Bytes that have been recieved
-        int NrBytes = (int)m_ibcntl.getValue();
-
-
-        // convert to a String of the correct size
-        ret = new String(m_ReceiveBuffer.array(), 0, NrBytes, CHARACTER_ENCODING);
-
-        // remove trailing newline & carriage return
-        if (Trim)
-            ret = ret.replaceFirst("[\\n[\\r]]+$", "");
-
-        return ret;
+        // return the number of Bytes that have been recieved
+        return (int)m_ibcntl.getValue();
     }//</editor-fold>
 
 
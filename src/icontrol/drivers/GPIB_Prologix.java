@@ -1,4 +1,3 @@
-// TODO 1* dont always send ++addr (speed wise this doesn't help, so skip it)
 /*
  * This software was developed at the National Institute of Standards and
  * Technology by a guest researcher in the course of his official duties and
@@ -40,6 +39,7 @@ import icontrol.iC_Properties;
 import static icontrol.Utilities.getInteger;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -114,6 +114,28 @@ public class GPIB_Prologix extends GPIB_Driver {
     /** Storage for the number of bytes used in many different methods.
      * Defined central to avoid multiple creations/destructions */
     private IntByReference m_NrBytes = new IntByReference();
+    
+    /** Storage for the status of the FTDI chip used in <code>ReadBytesFromPrologix</code> */
+    private IntByReference m_AmountInRxQueue = new IntByReference(),
+                           m_AmountInTxQueue = new IntByReference(),
+                           m_EventStatus = new IntByReference();
+    
+    /** Collects the data read in <code>ReadBytesFromPrologix</code>; grows if necessary */
+    private byte[] m_ReadBuffer = new byte[256];
+    
+    /** 
+     * The GPIB address the Prologix controller currently talks to (set with 
+     * ++addr), or -1 if it is not known. Used to skip redundant ++addr commands
+     * when pipelining is enabled. All Instruments on the controller share the
+     * same Lock (see <code>Device.getCommLock</code>), which also guards this field.
+     */
+    private static int m_AddressedInstrument = -1;
+    
+    /** The current ++auto setting of the Prologix controller (0 or 1), or -1 if it is not known */
+    private static int m_AutoRead = -1;
+    
+    /** If <code>true</code>, <code>Query</code> uses ++auto 1 for this Instrument */
+    private boolean m_UseAutoRead = false;
 
 
 
@@ -293,10 +315,33 @@ public class GPIB_Prologix extends GPIB_Driver {
     private final int TIMEOUT_GPIB = 
             (new iC_Properties()).getInt("GPIB_Prologix.TimeOutGPIB", 3000);
 
-    // Used during development
-    // with ++read eoi no wait time appears to be necessary anymore
-    // TODO delete mid 2012)
-    private final int DEBUG_PROLOGIX_RW_DELAY = 0;
+    /** 
+     * The last byte of the answers of the Instruments (e.g. 10 for a line feed),
+     * or -1 if the answers are not terminated. Reading an answer in
+     * <code>ReadBytesFromPrologix</code> ends as soon as the received data ends
+     * with this byte.
+     */
+    private final int READ_TERMINATOR = 
+            (new iC_Properties()).getInt("GPIB_Prologix.ReadTerminator", 10);
+    
+    /** 
+     * If <code>true</code>, <code>ReadBytesFromPrologix</code> polls the 
+     * receive queue of the FTDI chip instead of waiting for the USB time out.
+     */
+    private final boolean POLL_RX_QUEUE = 
+            (new iC_Properties()).getInt("GPIB_Prologix.PollRxQueue", 1) == 1;
+    
+    /** The longest interval in ms between polling the receive queue */
+    private final int POLL_INTERVAL_MAX = 
+            (new iC_Properties()).getInt("GPIB_Prologix.PollIntervalMax", 8);
+    
+    /** 
+     * If <code>true</code>, the Prologix commands and the message of a query are
+     * sent in one USB transfer, and ++addr is only sent when the addressed
+     * Instrument changes.
+     */
+    private final boolean PIPELINING = 
+            (new iC_Properties()).getInt("GPIB_Prologix.Pipelining", 1) == 1;
 
 
     /**
@@ -752,16 +797,16 @@ public class GPIB_Prologix extends GPIB_Driver {
 
         // suggested from Prologix' support
         try {
-            Thread.sleep(250);//DEBUG_PROLOGIX_RW_DELAY
+            Thread.sleep(250);
             m_Logger.log(Level.FINER, "Waited 250ms\n");
-            //m_Logger.log(Level.FINER, "Waited {0}ms\n", Integer.toString(DEBUG_PROLOGIX_RW_DELAY));
         } catch (InterruptedException ex) {}
 
         // *** First attempt
-        // get a list of supported commands
+        // get a list of supported commands (the answer has several lines, so
+        // do not stop reading at the first line feed)
         // to find if the firmware supports the ++savecfg command
         WriteToPrologix("++help");
-        String Response = ReadFromPrologix();
+        String Response = new String( ReadBytesFromPrologix(false) );
 
         // interestingly, the Prologix sometimes does not send
         // any response. upon a second query, it does however
@@ -771,7 +816,7 @@ public class GPIB_Prologix extends GPIB_Driver {
         if (Response.length() < 1700) {
             // *** Second attempt
             WriteToPrologix("++help");
-            Response = ReadFromPrologix();
+            Response = new String( ReadBytesFromPrologix(false) );
             m_GUI.DisplayStatusMessage("Second Attempt on ++ help read " + Integer.toString(Response.length()) + " bytes\n", false);
         }
 
@@ -817,6 +862,8 @@ public class GPIB_Prologix extends GPIB_Driver {
             WriteToPrologix("++auto 0");
             m_Logger.finer("++auto set to 0\n");
         }
+        m_AutoRead = 0;
+        m_AddressedInstrument = -1;
 
         // -----
         // enable the assertion of the EOI signal with the last character
@@ -908,13 +955,6 @@ public class GPIB_Prologix extends GPIB_Driver {
         Response = ReadFromPrologix().trim();
         m_Logger.log(Level.FINER, "++ver= {0}\n", Response);
 
-
-        // suggested from Prologix' support
-        try {
-            Thread.sleep(DEBUG_PROLOGIX_RW_DELAY);
-            m_Logger.log(Level.FINER, "Waited {0}ms\n", Integer.toString(DEBUG_PROLOGIX_RW_DELAY));
-        } catch (InterruptedException ex) {}
-
     }//</editor-fold>
 
 
@@ -957,6 +997,10 @@ public class GPIB_Prologix extends GPIB_Driver {
         str = "Could not set the GPIB address " + adr + ".\n";
         checkCommunicationError(str);
         m_Logger.log(Level.FINER, "Just set the address to {0}.\n", adr);
+        
+        // the controller's state is not known anymore
+        m_AddressedInstrument = -1;
+        m_AutoRead = -1;
 
 
         
@@ -1021,6 +1065,17 @@ public class GPIB_Prologix extends GPIB_Driver {
 
         // store GPIB address
         m_GPIB_Adr = GPIB_Address;
+        
+        // use ++auto 1 for queries of this Instrument?
+        m_UseAutoRead = false;
+        if (PIPELINING) {
+            String Addresses = m_iC_Properties.getString("GPIB_Prologix.AutoReadAddresses", "");
+            for (String Adr : Addresses.split(",")) {
+                if (Adr.trim().equals(Integer.toString(GPIB_Address))) {
+                    m_UseAutoRead = true;
+                }
+            }
+        }
 
         // send Selected Device Clear
         Send("++clr\n");
@@ -1175,26 +1230,17 @@ public class GPIB_Prologix extends GPIB_Driver {
             return 0;
         }
 
-        // suggested from Prologix' support (not necessary any more it seems)
-        if (DEBUG_PROLOGIX_RW_DELAY > 0 ) {
-            try {
-                Thread.sleep(DEBUG_PROLOGIX_RW_DELAY);
-                m_Logger.log(Level.FINEST, "Waited {0}ms\n", Integer.toString(DEBUG_PROLOGIX_RW_DELAY));
-            } catch (InterruptedException ex) {}
+        // address the Instrument and send the message in one transfer
+        if (PIPELINING) {
+            String Commands = AddressInstrument(false);
+            
+            return WritePipelined(Commands + Msg) - Commands.length();
         }
 
         // tell Prologix controller to address the right Instrument
         String Adr = String.format(Locale.US, "++addr %d", m_GPIB_Adr);
         WriteToPrologix(Adr);
 
-        // suggested from Prologix' support (not necessary any more it seems)
-        if (DEBUG_PROLOGIX_RW_DELAY > 0 ) {
-            try {
-                Thread.sleep(DEBUG_PROLOGIX_RW_DELAY);
-                m_Logger.log(Level.FINEST, "Waited {0}ms\n", Integer.toString(DEBUG_PROLOGIX_RW_DELAY));
-            } catch (InterruptedException ex) {}
-        }
-
         // send the message
         int NrBytes = WriteToPrologix(Msg);
 
@@ -1238,7 +1284,8 @@ public class GPIB_Prologix extends GPIB_Driver {
 
 
     /**
-     * Read data from the Prologix GPIB-USB controller.
+     * Read data from the Prologix GPIB-USB controller. See 
+     * <code>ReadBytesFromPrologix</code>.
      * 
      * @return The data read from the controller. The String's length equals
      * the number of bytes received from the Prologix controller.
@@ -1249,140 +1296,142 @@ public class GPIB_Prologix extends GPIB_Driver {
     private synchronized String ReadFromPrologix()
                          throws IOException {
 
-        // local variables
-        String ret = "";
-        String dummy = "";
-        IntByReference AmountInRxQueue = new IntByReference();
-        IntByReference AmountInTxQueue = new IntByReference();
-        IntByReference EventStatus = new IntByReference();
+        // read from Prologix and convert to a String
+        return new String( ReadBytesFromPrologix(true) );
+    }//</editor-fold>
+    
+    
+    /**
+     * Reads an answer from the Prologix controller.<p>
+     * 
+     * If <code>GPIB_Prologix.PollRxQueue</code> is enabled, the receive queue 
+     * of the FTDI chip is polled and the available bytes are read right away.
+     * Reading ends as soon as the data ends with <code>READ_TERMINATOR</code>
+     * (if <code>StopAtTerminator</code> is <code>true</code>), or when no more
+     * data arrived for the USB time out. The polling interval starts at 1 ms
+     * and doubles up to <code>GPIB_Prologix.PollIntervalMax</code> while no
+     * data arrives, so most answers are returned within a few ms after the
+     * last byte arrived instead of after the USB time out. If no data arrives
+     * at all, reading ends after the GPIB time out.<p>
+     * 
+     * Otherwise a single <code>FT_Read</code> is performed which returns after
+     * the USB time out.
+     *
+     * @param StopAtTerminator If <code>true</code>, reading ends when the data
+     * ends with <code>READ_TERMINATOR</code>; use <code>false</code> for
+     * binary data which may contain this byte.
+     * @return The data bytes read from the Prologix controller
+     * @throws IOException When the transmission caused an error
+     */
+    // <editor-fold defaultstate="collapsed" desc="ReadBytesFromPrologix">
+    private synchronized byte[] ReadBytesFromPrologix(boolean StopAtTerminator)
+                         throws IOException {
 
         // check RECEIVE_BUFFER_SIZE vs. limit
         if (RECEIVE_BUFFER_SIZE != m_ReceiveBuffer.limit())
             m_Logger.warning("RECEIVE_BUFFER_SIZE != m_ReceiveBuffer.limit()\n");
+        
+        if ( !POLL_RX_QUEUE ) {
+            
+            // read from prologix
+            m_Status = m_ftd2xx.FT_Read(m_ftPrologix, m_ReceiveBuffer,
+                        m_ReceiveBuffer.limit(), m_NrBytes);
+            
+            // check for communication errors
+            String str = "Error receiving data from the Prologix GPIB-USB controller.\n";
+            checkCommunicationError(str);
 
-        // optimizing Prologix's FT_Read() performance by reading the number of 
-        // bytes in the queue instead of letting a USB Timeout occur.
-        // nice try, but doesn't work because the queue is often beeing filled after
-        // it's size is queries.
-        if (false) {
-
-            // wait a bit
-            try {Thread.sleep(30);} catch (InterruptedException ex) {}
-
+            // log number of bytes read
+            m_Logger.log(Level.FINEST, "ReadFromPrologix just read {0} bytes\n",
+                    Integer.toString(m_NrBytes.getValue()));
 
+            // return the data bytes of the correct size
+            return Arrays.copyOf(m_ReceiveBuffer.array(), m_NrBytes.getValue());
+        }
+        
+        /* TODO 3* fix Prologix on a Mac
+         * On a Mac, the returned number of bytes is correct, but the ReceiveBuffer
+         * only contains 0's. On Windows, the same code works correctly. Using
+         * C to call the FTDI methods directly works, so it seems to be related
+         * to Java/JNA. Interestingly, using C it's nessesary to send ++help\n\r (10, 13)
+         * and using \r\n reads 0 bytes. In Java on Win, I send \r\n and using
+         * \n\r on Mac doesn't work either.
+         * Installed the 64 bit version of the D2XX drivers (which looks the
+         * same as the 32 bit version) and starting java without -d32 option
+         * gives an error of an invalid FT_Handle. check what could cause this.
+         */
+        
+        // local variables
+        int Length = 0;
+        int PollInterval = 1;
+        long Start = System.currentTimeMillis();
+        long LastReceived = Start;
+        
+        while (true) {
+            
             // get nr of bytes in the receive queue
-            m_Status = m_ftd2xx.FT_GetStatus(m_ftPrologix, AmountInRxQueue,
-                      AmountInTxQueue, EventStatus);
+            m_Status = m_ftd2xx.FT_GetStatus(m_ftPrologix, m_AmountInRxQueue,
+                      m_AmountInTxQueue, m_EventStatus);
 
             // check for communication errors
             String str = "Could not determine the number of availble bytes in the RxQueue.\n";
             checkCommunicationError(str);
-
-            // check if Buffer is big enough
-            if (m_ReceiveBuffer.limit() <= AmountInRxQueue.getValue()) {
-                str = "The Receive Buffer Size is too small; please increase the size in iC.properties.\n";
-                throw new IOException(str);
-            }
-
-            // log number of available bytes
-            m_Comm_Logger.log(Level.FINEST, "ReadFromPrologix: {0} bytes in RxQueue\n",
-                    Integer.toString(AmountInRxQueue.getValue()));
-
-
             
-            // do as long as there are bytes available to read
-            while (AmountInRxQueue.getValue() > 0) {
-
-                // read from Prologix
-                m_Status = m_ftd2xx.FT_Read(m_ftPrologix, m_ReceiveBuffer,
-                            AmountInRxQueue.getValue(), m_NrBytes);
+            int Available = Math.min(m_AmountInRxQueue.getValue(), m_ReceiveBuffer.limit());
+            
+            if (Available > 0) {
+                
+                // read the available bytes (returns without waiting)
+                m_Status = m_ftd2xx.FT_Read(m_ftPrologix, m_ReceiveBuffer, Available, m_NrBytes);
 
                 // check for communication errors
                 str = "Error receiving data from the Prologix GPIB-USB controller.\n";
                 checkCommunicationError(str);
-
-                // check for TimeOut
-                if (m_NrBytes.getValue() != AmountInRxQueue.getValue()) {
-                    str = "Error: A USB TimeOut occurred during reading from the Prologix GPIB-USB controller.\n"
-                        + "The received data is likely incorrect!\n";
-                    m_GUI.DisplayStatusMessage(str);
+                
+                // append to the read buffer
+                int NrBytes = m_NrBytes.getValue();
+                if (m_ReadBuffer.length < Length + NrBytes) {
+                    m_ReadBuffer = Arrays.copyOf(m_ReadBuffer, 
+                            Math.max(Length + NrBytes, 2 * m_ReadBuffer.length));
                 }
-
-                // convert to a String
-                dummy = new String(m_ReceiveBuffer.array());
-
-                // set the correct size
-                ret += dummy.substring(0, m_NrBytes.getValue());
-
-                // log number of bytes read
-                m_Comm_Logger.log(Level.FINEST, "ReadFromPrologix just read {0} bytes\n",
-                        Integer.toString(m_NrBytes.getValue()));
-
-                // wait a bit
-                try {Thread.sleep(30);} catch (InterruptedException ex) {}
-
-
-                // get nr of bytes in the receive queue
-                m_Status = m_ftd2xx.FT_GetStatus(m_ftPrologix, AmountInRxQueue,
-                          AmountInTxQueue, EventStatus);
-
-                // check for communication errors
-                str = "Could not determine the number of availble bytes in the RxQueue.\n";
-                checkCommunicationError(str);
-
-                // check if Buffer is big enough
-                if (m_ReceiveBuffer.limit() <= AmountInRxQueue.getValue()) {
-                    str = "The Receive Buffer Size is too small; please increase the size in iC.properties.\n";
-                    throw new IOException(str);
+                System.arraycopy(m_ReceiveBuffer.array(), 0, m_ReadBuffer, Length, NrBytes);
+                Length += NrBytes;
+                
+                LastReceived = System.currentTimeMillis();
+                PollInterval = 1;
+                
+                // is the answer complete?
+                if (StopAtTerminator && READ_TERMINATOR >= 0 && Length > 0
+                        && m_ReadBuffer[Length - 1] == (byte) READ_TERMINATOR) {
+                    break;
                 }
-
-                // log number of bytes read
-                m_Comm_Logger.log(Level.FINEST, "ReadFromPrologix: {0} bytes in RxQueue\n",
-                        Integer.toString(AmountInRxQueue.getValue()));
+                
+            } else {
+                
+                // did the data end or did the GPIB time out pass?
+                long Now = System.currentTimeMillis();
+                if ( (Length > 0 && Now - LastReceived >= TIMEOUT_USB)
+                        || Now - Start >= TIMEOUT_GPIB + TIMEOUT_USB) {
+                    break;
+                }
+                
+                // wait a bit longer each time
+                try {
+                    Thread.sleep(PollInterval);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                PollInterval = Math.min(2 * PollInterval, POLL_INTERVAL_MAX);
             }
-
-        } else {
-
-
-            // read from prologix
-            m_Status = m_ftd2xx.FT_Read(m_ftPrologix, m_ReceiveBuffer,
-                        m_ReceiveBuffer.limit(), m_NrBytes);
-            
-            /* TODO 3* fix Prologix on a Mac
-             * On a Mac, the returned number of bytes is correct, but the ReceiveBuffer
-             * only contains 0's. On Windows, the same code works correctly. Using
-             * C to call the FTDI methods directly works, so it seems to be related
-             * to Java/JNA. Interestingly, using C it's nessesary to send ++help\n\r (10, 13)
-             * and using \r\n reads 0 bytes. In Java on Win, I send \r\n and using
-             * \n\r on Mac doesn't work either.
-             * Installed the 64 bit version of the D2XX drivers (which looks the
-             * same as the 32 bit version) and starting java without -d32 option
-             * gives an error of an invalid FT_Handle. check what could cause this.
-             */
-
-            // check for communication errors
-            String str = "Error receiving data from the Prologix GPIB-USB controller.\n";
-            checkCommunicationError(str);
-
-
-            // convert to a String
-            ret = new String(m_ReceiveBuffer.array());
-
-            // set the correct size
-            ret = ret.substring(0, m_NrBytes.getValue());
-
-            // log number of bytes read
-            m_Logger.log(Level.FINEST, "ReadFromPrologix just read {0} bytes\n",
-                    Integer.toString(m_NrBytes.getValue()));
         }
+        
+        // log number of bytes read
+        m_Logger.log(Level.FINEST, "ReadFromPrologix just read {0} bytes in {1} ms\n",
+                new Object[] {Length, System.currentTimeMillis() - Start});
 
-        /*
-         * There is no way to detect TimeOuts unless the number of bytes to
-         * be read is known because even when a TimeOut occurred, the Status
-         * will be FT_OK (see page 17).
-         */
-
-        return ret;
+        // return the data bytes of the correct size
+        return Arrays.copyOf(m_ReadBuffer, Length);
     }//</editor-fold>
 
 
@@ -1407,42 +1456,106 @@ public class GPIB_Prologix extends GPIB_Driver {
     protected String Receive(boolean Trim)
               throws IOException {
         
+        // address the Instrument to talk
+        RequestRead();
+
+        // read the data
+        String ret = ReadFromPrologix();
+
+        // remove trailing newline & carriage return
+        if (Trim)
+            ret = ret.replaceFirst("[\\n[\\r]]+$", "");
+
+        return ret;
+    }//</editor-fold>
+    
+    
+    /**
+     * Receives data from the Instrument specified in <code>Open</code> without
+     * converting it into a String. See <code>Receive</code> and 
+     * <code>GPIB_Driver.ReceiveBytes</code>.
+     *
+     * @return The data bytes sent by the Instrument.
+     * @throws IOException When the transmission caused a GPIB error
+     */
+    // <editor-fold defaultstate="collapsed" desc="ReceiveBytes">
+    @Override
+    protected byte[] ReceiveBytes()
+              throws IOException {
+        
+        // address the Instrument to talk
+        RequestRead();
+        
+        // read the data (binary data may contain the terminator)
+        return ReadBytesFromPrologix(false);
+    }//</editor-fold>
+    
+    
+    /**
+     * Tells the Prologix controller to address the Instrument specified in
+     * <code>Open</code> to send data until EOI.
+     *
+     * @throws IOException When the transmission caused an error
+     */
+    // <editor-fold defaultstate="collapsed" desc="RequestRead">
+    private void RequestRead()
+            throws IOException {
+        
         // commands that address the Prologix controller start with ++
         // and must be terminated with \n to be executed
 
-        // suggested from Prologix' support (not necessary any more it seems)
-        if (DEBUG_PROLOGIX_RW_DELAY > 0 ) {
-            try {
-                Thread.sleep(DEBUG_PROLOGIX_RW_DELAY);
-                m_Logger.log(Level.FINEST, "Waited {0}ms\n", Integer.toString(DEBUG_PROLOGIX_RW_DELAY));
-            } catch (InterruptedException ex) {}
+        // address the Instrument and request the data in one transfer
+        if (PIPELINING) {
+            WritePipelined(AddressInstrument(false) + "++read eoi");
+            return;
         }
-
         
         // tell Prologix controller to address the right Instrument
         String Adr = String.format(Locale.US, "++addr %d", m_GPIB_Adr);
         WriteToPrologix(Adr);
 
-        // suggested from Prologix' support (not necessary any more it seems)
-        if (DEBUG_PROLOGIX_RW_DELAY > 0 ) {
-            try {
-                Thread.sleep(DEBUG_PROLOGIX_RW_DELAY);
-                m_Logger.log(Level.FINEST, "Waited {0}ms\n", Integer.toString(DEBUG_PROLOGIX_RW_DELAY));
-            } catch (InterruptedException ex) {}
-        }
-
         // tell the Prologix controller to address the Instrument
         // to send data (become talker)
         WriteToPrologix("++read eoi");  // was ++read
 
-        // suggested from Prologix' support (not necessary any more it seems)
-        if (DEBUG_PROLOGIX_RW_DELAY > 0 ) {
-            try {
-                Thread.sleep(DEBUG_PROLOGIX_RW_DELAY);
-                m_Logger.log(Level.FINEST, "Waited {0}ms\n", Integer.toString(DEBUG_PROLOGIX_RW_DELAY));
-            } catch (InterruptedException ex) {}
+    }//</editor-fold>
+    
+    
+    /**
+     * Sends the given String via the GPIB bus to the Instrument specified in
+     * <code>Open</code> and receives its answer. If pipelining is enabled 
+     * (<code>GPIB_Prologix.Pipelining</code>), the ++addr command (only if
+     * another Instrument was addressed before), the message and ++read eoi
+     * are sent in one USB transfer. If the Instrument's GPIB address is listed
+     * in <code>GPIB_Prologix.AutoReadAddresses</code>, ++auto 1 is used instead
+     * of ++read eoi, so only the message needs to be sent for subsequent queries.
+     *
+     * @param Msg Data to be sent
+     * @param Trim If <code>true</code>, newline (\n) and carriage return (\r)
+     * characters are removed from the end of the returned String.
+     * @return The data bytes sent by the Instrument wrapped in a String.
+     * @throws IOException When the transmission caused a GPIB error
+     */
+    // <editor-fold defaultstate="collapsed" desc="Query">
+    @Override
+    protected String Query(String Msg, boolean Trim)
+              throws IOException {
+        
+        // send and receive separately
+        if ( !PIPELINING || Msg.isEmpty() ) {
+            return super.Query(Msg, Trim);
         }
-
+        
+        // address the Instrument and send the message
+        String Batch = AddressInstrument(m_UseAutoRead) 
+                     + (Msg.endsWith("\r\n") ? Msg : Msg + "\r\n");
+        
+        // address the Instrument to talk unless ++auto 1 does it
+        if ( !m_UseAutoRead ) {
+            Batch += "++read eoi";
+        }
+        WritePipelined(Batch);
+        
         // read the data
         String ret = ReadFromPrologix();
 
@@ -1452,6 +1565,62 @@ public class GPIB_Prologix extends GPIB_Driver {
 
         return ret;
     }//</editor-fold>
+    
+    
+    /**
+     * Returns the Prologix commands that need to precede data sent to the
+     * Instrument specified in <code>Open</code>: ++auto if the setting needs
+     * to change, and ++addr if another Instrument is currently addressed. 
+     * Updates the remembered state of the controller, hence, the returned 
+     * commands must be sent.
+     *
+     * @param AutoRead The required ++auto setting
+     * @return The commands, each terminated with \r\n, or an empty String
+     */
+    // <editor-fold defaultstate="collapsed" desc="AddressInstrument">
+    private String AddressInstrument(boolean AutoRead) {
+        
+        String ret = "";
+        
+        // change ++auto
+        int Auto = AutoRead ? 1 : 0;
+        if (m_AutoRead != Auto) {
+            ret += "++auto " + Auto + "\r\n";
+            m_AutoRead = Auto;
+        }
+        
+        // address the Instrument
+        if (m_AddressedInstrument != m_GPIB_Adr) {
+            ret += String.format(Locale.US, "++addr %d\r\n", m_GPIB_Adr);
+            m_AddressedInstrument = m_GPIB_Adr;
+        }
+        
+        return ret;
+    }//</editor-fold>
+    
+    
+    /**
+     * Sends several lines to the Prologix controller in one transfer. If that
+     * fails, the remembered state of the controller is discarded, so the next
+     * transfer sends ++auto and ++addr again.
+     *
+     * @param Lines The data to be sent, lines separated by \r\n
+     * @return The number of bytes that have been sent
+     * @throws IOException When the transmission caused an error
+     */
+    // <editor-fold defaultstate="collapsed" desc="WritePipelined">
+    private int WritePipelined(String Lines)
+            throws IOException {
+        
+        try {
+            return WriteToPrologix(Lines);
+            
+        } catch (IOException ex) {
+            m_AddressedInstrument = -1;
+            m_AutoRead = -1;
+            throw ex;
+        }
+    }//</editor-fold>
 
 
 
@@ -0,0 +1,205 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import javax.script.ScriptException;
+import org.python.core.Py;
+import org.python.core.PyObject;
+import org.python.core.PyString;
+
+/**
+ * Represents an Instrument in the Python Interpreter, so that Python scripts
+ * can call the Instrument's Script-Methods directly, e.g. 
+ * <code>Tsample.SetTemp(300)</code> or <code>data = OSC.getWaveform(1)</code>.
+ * The arguments are passed as native Python numbers (or Strings) and converted
+ * to the types the Script-Method expects, and the returned object, for instance
+ * a <code>double[][]</code>, is passed to Python as an array without 
+ * converting it into a <code>String</code>.<p>
+ * 
+ * The proxy only stores the Instrument-Name and looks up the Instrument in
+ * <code>Device.m_UsedInstruments</code> upon each access, hence, it remains
+ * valid when the Instrument is MADE anew for the real run after the 
+ * Syntax-Check. Attributes which are not Script-Methods are taken from the
+ * Java object of the Instrument, and passing the proxy to a Java method 
+ * passes the Instrument itself.<p>
+ * 
+ * The proxies are exported to Python in <code>Device.exportInstrumentsToPython</code>.
+ * 
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ */
+public class InstrumentProxy extends PyObject {
+    
+    private static final long serialVersionUID = 1L;
+    
+    /** The name of the Instrument as used in the script */
+    private final String m_InstrumentName;
+    
+    
+    /**
+     * Constructor.
+     * @param InstrumentName The name of the Instrument
+     */
+    // <editor-fold defaultstate="collapsed" desc="InstrumentProxy">
+    public InstrumentProxy(String InstrumentName) {
+        m_InstrumentName = InstrumentName;
+    }//</editor-fold>
+    
+    
+    /**
+     * @return The Instrument this proxy refers to
+     * Throws a Python RuntimeError if the Instrument is not MADE anymore.
+     */
+    // <editor-fold defaultstate="collapsed" desc="getDevice">
+    private Device getDevice() {
+        
+        Device dev = Device.m_UsedInstruments.get(m_InstrumentName);
+        
+        if (dev == null) {
+            throw Py.RuntimeError("The Instrument '" + m_InstrumentName 
+                    + "' is not MADE in the current script.");
+        }
+        
+        return dev;
+    }//</editor-fold>
+    
+    
+    /**
+     * Returns a callable object if <code>Name</code> is the name of a 
+     * Script-Method of the Instrument, otherwise the attribute of the Java 
+     * object of the Instrument.
+     */
+    // <editor-fold defaultstate="collapsed" desc="__findattr_ex__">
+    @Override
+    public PyObject __findattr_ex__(String Name) {
+        
+        Device dev = getDevice();
+        
+        // is it a Script-Method?
+        if ( dev.getScriptMethodIndex().contains(Name) ) {
+            return new ScriptMethodCall(m_InstrumentName, Name);
+        }
+        
+        // no, so use the Java object
+        return Py.java2py(dev).__findattr_ex__(Name);
+    }//</editor-fold>
+    
+    
+    /** Passing the proxy to Java passes the Instrument */
+    // <editor-fold defaultstate="collapsed" desc="__tojava__">
+    @Override
+    public Object __tojava__(Class<?> c) {
+        
+        Device dev = Device.m_UsedInstruments.get(m_InstrumentName);
+        
+        if (dev != null && c.isInstance(dev)) {
+            return dev;
+        }
+        
+        return super.__tojava__(c);
+    }//</editor-fold>
+    
+    
+    // <editor-fold defaultstate="collapsed" desc="__repr__">
+    @Override
+    public PyString __repr__() {
+        return new PyString("<Instrument " + m_InstrumentName + ">");
+    }//</editor-fold>
+    
+    
+    /**
+     * A Script-Method of an Instrument as seen from Python. Calling it invokes
+     * the Script-Method with <code>Device.invokeScriptMethod</code>.
+     */
+    private static class ScriptMethodCall extends PyObject {
+        
+        private static final long serialVersionUID = 1L;
+        
+        /** The name of the Instrument */
+        private final String m_InstrumentName;
+        
+        /** The name of the Script-Method */
+        private final String m_ScriptMethodName;
+        
+        // <editor-fold defaultstate="collapsed" desc="ScriptMethodCall">
+        ScriptMethodCall(String InstrumentName, String ScriptMethodName) {
+            m_InstrumentName = InstrumentName;
+            m_ScriptMethodName = ScriptMethodName;
+        }//</editor-fold>
+        
+        
+        /**
+         * Converts the Python arguments into Java objects, invokes the 
+         * Script-Method, and converts the returned object into a Python object.
+         * A <code>ScriptException</code> is re-thrown as Python RuntimeError.
+         */
+        // <editor-fold defaultstate="collapsed" desc="__call__">
+        @Override
+        public PyObject __call__(PyObject[] Arguments, String[] Keywords) {
+            
+            // keywords are not supported
+            if (Keywords.length > 0) {
+                throw Py.TypeError(m_ScriptMethodName + "() does not accept keyword arguments");
+            }
+            
+            // get the Instrument
+            Device dev = Device.m_UsedInstruments.get(m_InstrumentName);
+            if (dev == null) {
+                throw Py.RuntimeError("The Instrument '" + m_InstrumentName 
+                    + "' is not MADE in the current script.");
+            }
+            
+            // convert the arguments into Java objects
+            Object[] Args = new Object[Arguments.length];
+            for (int i=0; i<Arguments.length; i++) {
+                Object obj = Arguments[i].__tojava__(Object.class);
+                
+                Args[i] = (obj == Py.NoConversion) ? Arguments[i] : obj;
+            }
+            
+            try {
+                // invoke the Script-Method
+                Object ret = dev.invokeScriptMethod(m_ScriptMethodName, Args);
+                
+                return Py.java2py(ret);
+                
+            } catch (ScriptException ex) {
+                throw Py.RuntimeError(ex.getMessage());
+            }
+        }//</editor-fold>
+        
+        
+        // <editor-fold defaultstate="collapsed" desc="__repr__">
+        @Override
+        public PyString __repr__() {
+            return new PyString("<Script-Method " + m_InstrumentName + "." 
+                    + m_ScriptMethodName + ">");
+        }//</editor-fold>
+    }
+}
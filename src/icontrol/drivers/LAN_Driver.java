@@ -29,14 +29,18 @@
 package icontrol.drivers;
 
 import icontrol.iC_Properties;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
 import java.net.URL;
-import java.net.URLConnection;
-import java.net.UnknownServiceException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.script.ScriptException;
@@ -44,6 +48,15 @@ import javax.script.ScriptException;
 /**
  * "Driver" class to support network communication over TCP-IP.<p>
  * 
+ * The Instruments are addressed with raw SCPI over a plain TCP socket (as on 
+ * port 5025 of most LXI instruments). Each connection uses a non-blocking 
+ * <code>SocketChannel</code> with TCP_NODELAY enabled, and one selector thread
+ * shared by all LAN Instruments reads the incoming data into a direct 
+ * <code>ByteBuffer</code> of the connection which is reused for all answers.
+ * <code>Receive</code> returns as soon as the answer is complete instead of
+ * waiting for a time out; data received after the answer is kept for the next
+ * <code>Receive</code> until the next message is sent.<p>
+ * 
  * To convert between <code>String</code> and <code>byte[]</code> use the
  * UTF-8 character set, for instance String.getBytes(Charset.forName("UTF-8"))<p>
  * 
@@ -62,14 +75,37 @@ public class LAN_Driver {
      */
     protected static iC_Properties m_iC_Properties;
     
-    /** Handle to access the network connection */
-    private URLConnection m_URLConnection;
+    /** The Selector shared by all LAN connections; created on first use */
+    private static Selector m_Selector;
+    
+    /** 
+     * Work to be done on the selector thread, for instance registering a new
+     * connection or changing the interest set of a <code>SelectionKey</code>
+     */
+    private static final ConcurrentLinkedQueue<Runnable> m_SelectorTasks = 
+            new ConcurrentLinkedQueue<Runnable>();
+    
+    /** The network connection to the Instrument */
+    private SocketChannel m_Channel;
+    
+    /** The key of <code>m_Channel</code> in <code>m_Selector</code> */
+    private SelectionKey m_Key;
     
-    /** The input stream of the network connection */
-    private BufferedReader m_URLReader;
+    /** 
+     * The data received from the Instrument that has not been returned by
+     * <code>Receive</code> yet. Is filled by the selector thread and guarded by
+     * <code>this</code>.
+     */
+    private ByteBuffer m_ReceiveBuffer;
+    
+    /** The buffer used to send data to the Instrument; reused for all messages */
+    private ByteBuffer m_SendBuffer;
+    
+    /** Is set by the selector thread when the Instrument closed the connection */
+    private boolean m_EndOfStream = false;
     
-    /** The output stream of the network connection */
-    private BufferedWriter m_URLWriter;
+    /** The address of the Instrument used in messages */
+    private String m_Address = "";
     
     
     
@@ -89,98 +125,484 @@ public class LAN_Driver {
     
     
     /**
-     * Opens the specified network address using the specified network protocol.
+     * Opens a TCP connection to the host and port specified in the URL. If the 
+     * URL does not specify a port, <code>LAN_Driver.DefaultPort</code> is used.
+     * The protocol and the file of the URL are ignored.
      * 
      * @param InstrumentURL The URL of the Instrument (protocol + IP address or 
-     * host name)
+     * host name, optionally a port number)
      * 
      * @throws ScriptException when the network connection could not be opened due
      * to an I/O error.
      */
-    // <editor-fold defaultstate="collapsed" desc="Open Port">
+    // <editor-fold defaultstate="collapsed" desc="Open Connection">
     public void OpenConnection(URL InstrumentURL) 
            throws ScriptException {
         
-        // init
-        m_URLConnection = null;
+        // check the URL
+        if (InstrumentURL == null || InstrumentURL.getHost() == null
+                || InstrumentURL.getHost().isEmpty()) {
+            String str = "Could not open the network connection to\n"
+                    + InstrumentURL + "\nbecause it does not specify a host name or IP address.\n";
+            throw new ScriptException(str);
+        }
+        
+        // get the port
+        int Port = getPort(InstrumentURL);
+        
+        m_Address = InstrumentURL.getHost() + ":" + Port;
         
         // log status
-        m_Logger.log(Level.FINER, "Trying to open the network connection to {0}\n", InstrumentURL);
+        m_Logger.log(Level.FINER, "Trying to open the network connection to {0}\n", m_Address);
+        
+        // allocate the buffers
+        int BufferSize = m_iC_Properties.getInt("LAN_Driver.ReceiveBufferSize", 65536);
+        m_ReceiveBuffer = ByteBuffer.allocateDirect(BufferSize);
+        m_SendBuffer = ByteBuffer.allocateDirect(1024);
+        m_EndOfStream = false;
         
         try {
+            // connect (blocking, so the connect time out can be used)
+            m_Channel = SocketChannel.open();
+            m_Channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            m_Channel.socket().connect(new InetSocketAddress(InstrumentURL.getHost(), Port),
+                    m_iC_Properties.getInt("LAN_Driver.ConnectTimeOut", 3000));
             
-            // TODO @LAN once I know what parts of the URL are necessary, I can check for
-            // protocol, host, etc to avoid a null exception
+            // hand the connection to the selector thread
+            m_Channel.configureBlocking(false);
+            register();
             
+        } catch (IOException ex) {
             
-            // open connection
-            m_URLConnection = InstrumentURL.openConnection();
+            // close the channel
+            if (m_Channel != null) {
+                try { m_Channel.close(); } catch (IOException ignore) {}
+                m_Channel = null;
+            }
             
-            // enable output to the URL
-            m_URLConnection.setDoOutput(true);
+            String str = "Could not open the network connection to\n"
+                    + m_Address + "\nThe error message returned was:\n"
+                    + ex.getMessage() + "\n";
+            throw new ScriptException(str);
+        }
+        
+        // log status
+        m_Logger.log(Level.CONFIG, "Opened network connection to {0}\n", m_Address);
+    }//</editor-fold>
+    
+    
+    /**
+     * Returns the port the connection to the Instrument is opened on, that is,
+     * the port specified in the URL or <code>LAN_Driver.DefaultPort</code> if 
+     * the URL does not specify a port. Also used to identify the Lock of the
+     * connection in <code>Device.OpenInstrument</code>.
+     * 
+     * @param InstrumentURL The URL of the Instrument
+     * @return The port
+     */
+    // <editor-fold defaultstate="collapsed" desc="getPort">
+    public static int getPort(URL InstrumentURL) {
+        
+        int Port = InstrumentURL.getPort();
+        if (Port < 0) {
+            Port = (new iC_Properties()).getInt("LAN_Driver.DefaultPort", 5025);
+        }
+        return Port;
+    }//</editor-fold>
+    
+    
+    /**
+     * Registers <code>m_Channel</code> with the shared Selector for reading.
+     * Starts the selector thread if it is not running yet.
+     * 
+     * @throws IOException when the Selector could not be opened
+     */
+    // <editor-fold defaultstate="collapsed" desc="register">
+    private void register() 
+            throws IOException {
+        
+        Selector TheSelector = getSelector();
+        
+        // register on the selector thread, because register blocks while
+        // the selector thread is waiting in select()
+        m_SelectorTasks.add(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (LAN_Driver.this) {
+                    if (!m_Channel.isOpen()) {
+                        return;
+                    }
+                    try {
+                        m_Key = m_Channel.register(m_Selector, SelectionKey.OP_READ, LAN_Driver.this);
+                    } catch (IOException ex) {
+                        m_Logger.log(Level.SEVERE, "Could not register {0}: {1}", 
+                                new Object[]{m_Address, ex.getMessage()});
+                        m_EndOfStream = true;
+                    }
+                    LAN_Driver.this.notifyAll();
+                }
+            }
+        });
+        TheSelector.wakeup();
+    }//</editor-fold>
+    
+    
+    /**
+     * Returns the Selector shared by all LAN connections. Opens it and starts
+     * the selector thread on first use.
+     * 
+     * @return The shared Selector
+     * @throws IOException when the Selector could not be opened
+     */
+    // <editor-fold defaultstate="collapsed" desc="getSelector">
+    private static synchronized Selector getSelector() 
+            throws IOException {
+        
+        if (m_Selector == null) {
+            m_Selector = Selector.open();
             
-            // connect
-            m_URLConnection.connect();
+            Thread SelectorThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SelectorLoop();
+                }
+            }, "iC LAN selector");
+            SelectorThread.setDaemon(true);
+            SelectorThread.start();
+        }
+        
+        return m_Selector;
+    }//</editor-fold>
+    
+    
+    /**
+     * The loop of the selector thread. Runs the queued tasks and reads the data
+     * of all connections that have data available into their receive buffer,
+     * and wakes up the threads waiting in <code>Receive</code> or <code>Send</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="SelectorLoop">
+    private static void SelectorLoop() {
+        
+        while (true) {
+            try {
+                // run queued tasks
+                Runnable Task;
+                while ( (Task = m_SelectorTasks.poll()) != null ) {
+                    Task.run();
+                }
+                
+                // wait for data
+                m_Selector.select();
+                
+                // process the ready connections
+                Iterator<SelectionKey> it = m_Selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey Key = it.next();
+                    it.remove();
+                    
+                    if (Key.isValid()) {
+                        ((LAN_Driver) Key.attachment()).ready(Key);
+                    }
+                }
+            } catch (Exception ex) {
+                // keep the selector thread alive for the other connections
+                m_Logger.log(Level.SEVERE, "Error in the LAN selector thread", ex);
+            }
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Called by the selector thread when <code>m_Channel</code> is ready for 
+     * reading or writing. Received data is appended to <code>m_ReceiveBuffer</code>
+     * which is enlarged when full.
+     * 
+     * @param Key The <code>SelectionKey</code> of this connection
+     */
+    // <editor-fold defaultstate="collapsed" desc="ready">
+    private synchronized void ready(SelectionKey Key) {
+        
+        try {
+            if (Key.isWritable()) {
+                // Send waits for the socket buffer to drain
+                Key.interestOps(SelectionKey.OP_READ);
+            }
             
-            // assign input stream
-            m_URLReader = new BufferedReader( new InputStreamReader( 
-                    m_URLConnection.getInputStream() ));
+            if (Key.isReadable()) {
+                int Read;
+                do {
+                    // make room in the receive buffer
+                    if (!m_ReceiveBuffer.hasRemaining()) {
+                        ByteBuffer Larger = ByteBuffer.allocateDirect(2 * m_ReceiveBuffer.capacity());
+                        m_ReceiveBuffer.flip();
+                        Larger.put(m_ReceiveBuffer);
+                        m_ReceiveBuffer = Larger;
+                    }
+                    
+                    Read = m_Channel.read(m_ReceiveBuffer);
+                } while (Read > 0);
+                
+                // did the Instrument close the connection?
+                if (Read < 0) {
+                    m_EndOfStream = true;
+                    Key.cancel();
+                }
+            }
+        } catch (IOException ex) {
+            m_Logger.log(Level.SEVERE, "Error reading from {0}: {1}", 
+                    new Object[]{m_Address, ex.getMessage()});
+            m_EndOfStream = true;
+            Key.cancel();
+        }
+        
+        // wake up waiting threads
+        notifyAll();
+    }//</editor-fold>
+    
+    
+    /**
+     * Sends the bytes to the Instrument. Returns as soon as all bytes were 
+     * handed to the network stack. Data received before the message is sent,
+     * for instance the rest of an answer that was not read, is discarded, so
+     * that it is not returned as the answer to this message.
+     * 
+     * @param Message The bytes to send
+     * 
+     * @throws IOException when the connection is not open, the Instrument
+     * closed the connection, or the bytes could not be sent within 
+     * <code>LAN_Driver.TimeOut</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="Send">
+    public synchronized void Send(byte[] Message) 
+           throws IOException {
+        
+        checkConnection();
+        
+        // discard data that was not read
+        if (m_ReceiveBuffer.position() > 0) {
+            m_Logger.log(Level.FINE, "Discarding {0} unread bytes from {1}\n", 
+                    new Object[]{m_ReceiveBuffer.position(), m_Address});
+            m_ReceiveBuffer.clear();
+        }
+        
+        // copy into the (reusable) send buffer
+        if (m_SendBuffer.capacity() < Message.length) {
+            m_SendBuffer = ByteBuffer.allocateDirect(Message.length);
+        }
+        m_SendBuffer.clear();
+        m_SendBuffer.put(Message);
+        m_SendBuffer.flip();
+        
+        long Deadline = System.currentTimeMillis() + m_iC_Properties.getInt("LAN_Driver.TimeOut", 3000);
+        
+        while (m_SendBuffer.hasRemaining()) {
             
-            // assign output stream
-            m_URLWriter = new BufferedWriter( new OutputStreamWriter(
-                    m_URLConnection.getOutputStream() ));
+            if (m_Channel.write(m_SendBuffer) == 0) {
+                
+                // the socket buffer is full, so let the selector thread
+                // tell when it was drained
+                final SelectionKey Key = m_Key;
+                if (Key != null) {
+                    m_SelectorTasks.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (Key.isValid()) {
+                                Key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            }
+                        }
+                    });
+                    m_Selector.wakeup();
+                }
+                
+                waitUntil(Deadline, "sending to");
+                checkConnection();
+            }
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Receives an answer from the Instrument. The answer is complete at the 
+     * first <code>Terminator</code> or when <code>ExpectedLength</code>
+     * bytes have been received, whatever comes first. If neither is specified,
+     * a line feed is used as terminator, as is common for SCPI. Fails when no
+     * data arrived for <code>LAN_Driver.TimeOut</code> ms, so large answers
+     * that arrive steadily can take longer. Data received after the answer is
+     * returned by the next call.
+     * 
+     * @param Terminator The answer is complete when it ends with these bytes; 
+     * can be <code>null</code> or empty.
+     * @param ExpectedLength The answer is complete when this many bytes have
+     * been received; can be 0 to not check the length.
+     * 
+     * @return The data bytes received from the Instrument (including the Terminator)
+     * 
+     * @throws IOException when the connection is not open, the Instrument
+     * closed the connection, or no data arrived within the time out.
+     */
+    // <editor-fold defaultstate="collapsed" desc="Receive">
+    public synchronized byte[] Receive(byte[] Terminator, int ExpectedLength) 
+           throws IOException {
+        
+        // use a line feed as default terminator
+        if ( (Terminator == null || Terminator.length == 0) && ExpectedLength <= 0 ) {
+            Terminator = new byte[] {'\n'};
+        }
+        
+        int TimeOut = m_iC_Properties.getInt("LAN_Driver.TimeOut", 3000);
+        long Deadline = System.currentTimeMillis() + TimeOut;
+        int Received = m_ReceiveBuffer.position();
+        
+        // wait until the answer is complete
+        int End;
+        while ( (End = getAnswerLength(Terminator, ExpectedLength)) < 0 ) {
             
-        } catch (NullPointerException ex) {
-            String str = "Could not open the network connection to\n"
-                    + InstrumentURL + "\nThe error message returned was:\n"
-                    + ex.getMessage() + "\n"
-                    + "It is likely that the URL is not properly formed.\n";
-            throw new ScriptException(str);
+            if (m_EndOfStream) {
+                throw new EOFException("The Instrument at " + m_Address 
+                        + " closed the network connection.\n");
+            }
+            checkConnection();
             
-        } catch (UnknownServiceException ex) {
-            String str = "The specified URL\n"
-                    + InstrumentURL + "\ndoes not support output. The error message returned was:\n"
-                    + ex.getMessage() + "\n";
-            throw new ScriptException(str);
+            // restart the time out when data arrived
+            if (m_ReceiveBuffer.position() != Received) {
+                Received = m_ReceiveBuffer.position();
+                Deadline = System.currentTimeMillis() + TimeOut;
+            }
             
-        } catch (IOException ex) {
-            String str = "Could not open the network connection to\n"
-                    + InstrumentURL + "\nThe error message returned was:\n"
-                    + ex.getMessage() + "\n";
-            throw new ScriptException(str);
+            waitUntil(Deadline, "receiving from");
         }
         
-        // log status
-        m_Logger.log(Level.CONFIG, "Opened network connection to {0}\n", InstrumentURL);
+        // return the answer and keep the remaining bytes
+        m_ReceiveBuffer.flip();
+        byte[] ret = new byte[End];
+        m_ReceiveBuffer.get(ret);
+        m_ReceiveBuffer.compact();
+        
+        return ret;
     }//</editor-fold>
     
     
+    /**
+     * Checks if the data in <code>m_ReceiveBuffer</code> contains a complete 
+     * answer.
+     * 
+     * @param Terminator The answer is complete at the first occurrence of these
+     * bytes; can be <code>null</code> or empty.
+     * @param ExpectedLength The answer is complete when this many bytes have
+     * been received; can be 0 to not check the length.
+     * @return The length of the answer (including the Terminator), or -1 if 
+     * the answer is not complete.
+     */
+    // <editor-fold defaultstate="collapsed" desc="getAnswerLength">
+    private int getAnswerLength(byte[] Terminator, int ExpectedLength) {
+        
+        int Length = m_ReceiveBuffer.position();
+        
+        // the answer ends after ExpectedLength bytes at the latest
+        if (ExpectedLength > 0 && Length > ExpectedLength) {
+            Length = ExpectedLength;
+        }
+        
+        // find the first terminator
+        if (Terminator != null && Terminator.length > 0) {
+            for (int Start = 0; Start + Terminator.length <= Length; Start++) {
+                int i = 0;
+                while (i < Terminator.length && m_ReceiveBuffer.get(Start + i) == Terminator[i]) {
+                    i++;
+                }
+                if (i == Terminator.length) {
+                    return Start + Terminator.length;
+                }
+            }
+        }
+        
+        // check the length
+        if (ExpectedLength > 0 && Length == ExpectedLength) {
+            return ExpectedLength;
+        }
+        
+        return -1;
+    }//</editor-fold>
+    
+    
+    /**
+     * Waits until the selector thread signals new data or until the
+     * <code>Deadline</code> has passed. Must be called while holding the lock
+     * on <code>this</code>.
+     * 
+     * @param Deadline The time (as returned by <code>System.currentTimeMillis</code>)
+     * when waiting ends with an Exception
+     * @param Action Used in the error message
+     * @throws IOException when the Deadline has passed or the thread was interrupted
+     */
+    // <editor-fold defaultstate="collapsed" desc="waitUntil">
+    private void waitUntil(long Deadline, String Action) 
+            throws IOException {
+        
+        long Remaining = Deadline - System.currentTimeMillis();
+        if (Remaining <= 0) {
+            throw new SocketTimeoutException("Time out while " + Action 
+                    + " the Instrument at " + m_Address + ".\n");
+        }
+        
+        try {
+            wait(Remaining);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while " + Action 
+                    + " the Instrument at " + m_Address + ".\n", ex);
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Checks that the network connection is open.
+     * 
+     * @throws IOException when the connection is not open
+     */
+    // <editor-fold defaultstate="collapsed" desc="checkConnection">
+    private void checkConnection() 
+            throws IOException {
+        
+        if (m_Channel == null || !m_Channel.isOpen()) {
+            throw new IOException("The network connection to " + m_Address + " is not open.\n");
+        }
+    }//</editor-fold>
+    
     
     /**
      * Closes the network connection. Called from <code>Device.Closeinstrument</code>.
      * 
-     * @throws IOException When closing the in/out streams caused an error.
+     * @throws IOException When closing the connection caused an error.
      */
     // <editor-fold defaultstate="collapsed" desc="Close Connection">
-    public void CloseConnection() 
+    public synchronized void CloseConnection() 
            throws IOException {
         
-        // close in-out streams
+        if (m_Channel == null) {
+            return;
+        }
+        
         try {
-            if (m_URLReader != null) {
-                m_URLReader.close();
-            }
+            // closing the channel also cancels its key
+            m_Channel.close();
             
-            if (m_URLWriter != null) {
-                m_URLWriter.close();
+            // let the Selector release the key
+            if (m_Selector != null) {
+                m_Selector.wakeup();
             }
+            
         } catch (IOException ex) {
-            String str = "Closing the URL reader/writer streams caused the error:\n"
-                    + ex.getMessage() + "\n";
+            String str = "Closing the network connection to " + m_Address 
+                    + " caused the error:\n" + ex.getMessage() + "\n";
             throw new IOException(str, ex);
+        } finally {
+            // wake up waiting threads
+            notifyAll();
         }
         
-
+        // log status
+        m_Logger.log(Level.CONFIG, "Closed network connection to {0}\n", m_Address);
     }//</editor-fold>
     
 }
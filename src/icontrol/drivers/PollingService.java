@@ -0,0 +1,349 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import icontrol.iC_Properties;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A scheduler service shared by all monitoring tasks (for instance 
+ * <code>iC_Instrument.MonitorChart</code> or <code>LakeshoreTC.monitorTemp</code>).
+ * Instead of starting a new Thread that loops with <code>Thread.sleep</code>,
+ * the monitoring tasks implement <code>PollingTask</code> and are scheduled
+ * with <code>schedule</code>. This has the following advantages:
+ * <ul>
+ *  <li>Only a few threads are used, regardless of the number of monitoring
+ *      tasks.
+ *  <li>The tasks are executed at a fixed rate, so the sampling times do not
+ *      drift (<code>Thread.sleep</code> does not account for the time it took
+ *      to acquire the sample). The first sample is aligned to a multiple of the 
+ *      period, so tasks with the same (or a multiple of the) period fall due 
+ *      at the same time.
+ *  <li>Polls of the same Instrument/command that fall due at the same time are
+ *      merged, that is, the Instrument is queried only once. See <code>query</code>.
+ *  <li>All tasks are cancelled when the script is stopped (<code>Device.StopScripting</code>),
+ *      and <code>PollingTask.stopped</code> is called after the last sample 
+ *      to close files and save charts.
+ * </ul>
+ *
+ * When scripting is paused, the samples are skipped.<p>
+ *
+ * The number of threads can be specified in the iC.properties 
+ * (PollingService.NrOfThreads).
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public final class PollingService {
+    
+    /** The Logger for this class */
+    private static final Logger m_Logger = Logger.getLogger("iC.Instruments.PollingService");
+    
+    /** The scheduler executing all tasks; created on first use */
+    private static ScheduledThreadPoolExecutor m_Scheduler;
+    
+    /** All scheduled tasks that have not been cancelled yet */
+    private static final ArrayList<ScheduledPoll> m_Tasks = new ArrayList<ScheduledPoll>();
+    
+    /** The results of the merged queries; the key is the query key and the due time */
+    private static final ConcurrentHashMap<String, MergedQuery> m_Queries =
+            new ConcurrentHashMap<String, MergedQuery>();
+    
+    
+    /**
+     * A monitoring task that is executed periodically by the <code>PollingService</code>.
+     */
+    public interface PollingTask {
+        
+        /**
+         * Acquires one sample. Is called at a fixed rate, but never concurrently.
+         * Exceptions should be handled in this method; a RuntimeException is 
+         * logged and the task continues with the next sample.
+         * 
+         * @param DueTime The time in ms (as in <code>System.currentTimeMillis</code>)
+         * at which this sample was scheduled; use it as key in <code>query</code>.
+         */
+        void sample(long DueTime);
+        
+        /**
+         * Is called once after the task has been cancelled and the last sample
+         * has been acquired, for instance to close files.
+         */
+        void stopped();
+    }
+    
+    
+    /**
+     * Wraps a <code>PollingTask</code>; makes sure <code>sample</code> and
+     * <code>stopped</code> are not called concurrently and computes the due times.
+     */
+    // <editor-fold defaultstate="collapsed" desc="ScheduledPoll">
+    private static final class ScheduledPoll implements Runnable {
+        
+        private final PollingTask m_Task;
+        
+        /** The period in ms */
+        private final long m_Period;
+        
+        /** The due time of the next sample in ms */
+        private long m_DueTime;
+        
+        /** The handle to cancel the task */
+        private ScheduledFuture<?> m_Future;
+        
+        /** Is true after the task was cancelled */
+        private boolean m_Stopped = false;
+        
+        
+        ScheduledPoll(PollingTask Task, long Period, long FirstDueTime) {
+            m_Task = Task;
+            m_Period = Period;
+            m_DueTime = FirstDueTime;
+        }
+        
+        @Override
+        public synchronized void run() {
+            
+            // the due time of this sample
+            long DueTime = m_DueTime;
+            m_DueTime += m_Period;
+            
+            // don't sample when stopped or paused
+            if (m_Stopped || Device.m_StopScripting || Device.m_GUI.isPaused(false)) {
+                return;
+            }
+            
+            try {
+                m_Task.sample(DueTime);
+                
+            } catch (RuntimeException ex) {
+                // keep the task running (an Exception would cancel it)
+                m_Logger.log(Level.SEVERE, "A PollingTask threw an Exception.\n", ex);
+            }
+        }
+        
+        /** Cancels the task and calls <code>PollingTask.stopped</code> */
+        synchronized void stop() {
+            
+            if (m_Stopped) {
+                return;
+            }
+            m_Stopped = true;
+            
+            m_Future.cancel(false);
+            
+            try {
+                m_Task.stopped();
+                
+            } catch (RuntimeException ex) {
+                m_Logger.log(Level.SEVERE, "A PollingTask threw an Exception when it was stopped.\n", ex);
+            }
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * The result of a query that is shared by all tasks polling the same
+     * Instrument/command at the same due time.
+     */
+    private static final class MergedQuery {
+        final long              DueTime;
+        final FutureTask<?>     Result;
+        
+        MergedQuery(long DueTime, FutureTask<?> Result) {
+            this.DueTime = DueTime;
+            this.Result = Result;
+        }
+    }
+    
+    
+    /** Not instantiable; use the static methods */
+    private PollingService() {}
+    
+    
+    /**
+     * Schedules the given task to be executed every <code>Period</code> ms 
+     * until the script is stopped. The first sample is taken at the next
+     * multiple of <code>Period</code>.
+     *
+     * @param Task The monitoring task
+     * @param Period The time between two samples in ms; must be &gt; 0
+     */
+    // <editor-fold defaultstate="collapsed" desc="schedule">
+    public static synchronized void schedule(PollingTask Task, long Period) {
+        
+        // align the first sample to a multiple of the period
+        long Now = System.currentTimeMillis();
+        long FirstDueTime = (Now / Period + 1) * Period;
+        
+        ScheduledPoll Poll = new ScheduledPoll(Task, Period, FirstDueTime);
+        
+        synchronized (Poll) {
+            Poll.m_Future = getScheduler().scheduleAtFixedRate(Poll, 
+                    FirstDueTime - Now, Period, TimeUnit.MILLISECONDS);
+        }
+        
+        m_Tasks.add(Poll);
+    }//</editor-fold>
+    
+    
+    /**
+     * Cancels all scheduled tasks. Called from <code>Device.StopScripting</code>.
+     * <code>PollingTask.stopped</code> is called in the scheduler's threads
+     * after the last sample has been acquired, so this method does not block.
+     */
+    // <editor-fold defaultstate="collapsed" desc="cancelAll">
+    public static synchronized void cancelAll() {
+        
+        for (final ScheduledPoll Poll : m_Tasks) {
+            m_Scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Poll.stop();
+                }
+            });
+        }
+        m_Tasks.clear();
+        
+        // forget all results
+        m_Queries.clear();
+    }//</editor-fold>
+    
+    
+    /**
+     * Executes <code>Query</code> unless another task has already executed a 
+     * query with the same <code>Key</code> for the same <code>DueTime</code>,
+     * in which case the result of that query is returned. This way, polls 
+     * of the same Instrument/command that fall due together are merged.
+     *
+     * @param <T> The type of the result
+     * @param Key Identifies the Instrument and the command; use <code>makeKey</code>
+     * @param DueTime The due time passed to <code>PollingTask.sample</code>
+     * @param Query Queries the Instrument
+     * @return The result of the query
+     * @throws Exception The Exception thrown by <code>Query</code>
+     */
+    // <editor-fold defaultstate="collapsed" desc="query">
+    @SuppressWarnings("unchecked")
+    public static <T> T query(String Key, long DueTime, Callable<T> Query)
+           throws Exception {
+        
+        FutureTask<T> NewResult = new FutureTask<T>(Query);
+        MergedQuery Merged = m_Queries.putIfAbsent(Key + "@" + DueTime, 
+                                                   new MergedQuery(DueTime, NewResult));
+        
+        FutureTask<T> Result;
+        if (Merged == null) {
+            // no other task queried it, so do it now
+            Result = NewResult;
+            Result.run();
+            
+            // forget older results
+            Iterator<Map.Entry<String, MergedQuery>> it = m_Queries.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue().DueTime < DueTime) {
+                    it.remove();
+                }
+            }
+        } else {
+            // use the result of the other task
+            Result = (FutureTask<T>) Merged.Result;
+        }
+        
+        try {
+            return Result.get();
+            
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            } else {
+                throw ex;
+            }
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Builds the key used in <code>query</code>.
+     *
+     * @param InstrumentName The name of the Instrument (e.g. Tsample)
+     * @param CommandName The Script-Method (e.g. getTemp)
+     * @param Arguments The arguments of the Script-Method
+     * @return The key
+     */
+    // <editor-fold defaultstate="collapsed" desc="makeKey">
+    public static String makeKey(String InstrumentName, String CommandName, Object[] Arguments) {
+        return InstrumentName + " " + CommandName + Arrays.deepToString(Arguments);
+    }//</editor-fold>
+    
+    
+    /**
+     * @return The scheduler; it is created on first use
+     */
+    // <editor-fold defaultstate="collapsed" desc="getScheduler">
+    private static ScheduledThreadPoolExecutor getScheduler() {
+        
+        if (m_Scheduler == null) {
+            
+            // get the number of threads
+            int NrOfThreads = new iC_Properties().getInt("PollingService.NrOfThreads", 4);
+            
+            m_Scheduler = new ScheduledThreadPoolExecutor(Math.max(1, NrOfThreads),
+                    new ThreadFactory() {
+                        private int m_Counter = 0;
+                        
+                        @Override
+                        public synchronized Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "iC PollingService " + (++m_Counter));
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            
+            // remove cancelled tasks from the queue right away
+            m_Scheduler.setRemoveOnCancelPolicy(true);
+        }
+        
+        return m_Scheduler;
+    }//</editor-fold>
+}
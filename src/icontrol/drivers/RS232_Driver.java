@@ -31,6 +31,8 @@ package icontrol.drivers;
 import gnu.io.CommPortIdentifier;
 import gnu.io.PortInUseException;
 import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
 import gnu.io.UnsupportedCommOperationException;
 import icontrol.iC_Properties;
 import java.io.IOException;
@@ -38,8 +40,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.TooManyListenersException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.script.ScriptException;
@@ -85,6 +88,39 @@ public class RS232_Driver {
     /** Time in ms it takes to transmit one byte; used in <code>Send</code> */
     private float m_TimeToTransmit = 0;
     
+    /** 
+     * Receive buffer that is reused in <code>Receive</code>; it grows when
+     * a longer answer is received.
+     */
+    private byte[] m_ReceiveBuffer = new byte[256];
+    
+    /**
+     * Is <code>true</code> when the serial port supports blocking reads with
+     * a receive time out, in which case <code>Receive</code> waits in
+     * <code>InputStream.read</code> instead of polling <code>available()</code>.
+     */
+    private boolean m_BlockingReads = false;
+    
+    /**
+     * Is <code>true</code> when the serial port reports an empty output buffer
+     * with a <code>SerialPortEvent.OUTPUT_BUFFER_EMPTY</code> event, in which case
+     * <code>waitUntilSent</code> waits for this event rather than for the
+     * computed transmission time.
+     */
+    private volatile boolean m_DrainEvents = false;
+    
+    /** Lock to wait for and signal an empty output buffer */
+    private final Object m_DrainLock = new Object();
+    
+    /** Set to <code>true</code> by the serial port event listener */
+    private boolean m_OutputEmpty = true;
+    
+    /** Number of bytes written since the output buffer was last drained */
+    private int m_BytesInFlight = 0;
+    
+    /** Time (System.currentTimeMillis) when bytes were last written */
+    private long m_LastWriteTime = 0;
+    
     
     
     /**
@@ -224,6 +260,56 @@ public class RS232_Driver {
             throw new ScriptException(ex);
         }
         
+        // enable blocking reads with a time out if supported by the port
+        m_BlockingReads = false;
+        if (m_iC_Properties.getInt("RS232_Driver.BlockingReads", 1) == 1) {
+            try {
+                // return from read as soon as one byte was received, or after the time out
+                m_Port.enableReceiveThreshold(1);
+                m_Port.enableReceiveTimeout(m_iC_Properties.getInt("RS232_Driver.TimeOut", 250));
+                
+                m_BlockingReads = m_Port.isReceiveTimeoutEnabled();
+                
+            } catch (UnsupportedCommOperationException ex) {
+                // fall back to polling
+                m_Port.disableReceiveThreshold();
+                m_BlockingReads = false;
+            }
+        }
+        
+        // log receive mode
+        m_Logger.log(Level.CONFIG, "{0} uses blocking reads: {1}\n", 
+                new Object[]{ComPortName, m_BlockingReads});
+        
+        // get notified when the output buffer is empty if supported by the port
+        m_DrainEvents = false;
+        if (m_iC_Properties.getInt("RS232_Driver.DrainEvents", 1) == 1) {
+            try {
+                m_Port.addEventListener(new SerialPortEventListener() {
+                    @Override
+                    public void serialEvent(SerialPortEvent Event) {
+                        if (Event.getEventType() == SerialPortEvent.OUTPUT_BUFFER_EMPTY) {
+                            synchronized (m_DrainLock) {
+                                m_OutputEmpty = true;
+                                m_DrainLock.notifyAll();
+                            }
+                        }
+                    }
+                });
+                m_Port.notifyOnOutputEmpty(true);
+                
+                m_DrainEvents = true;
+                
+            } catch (TooManyListenersException ex) {
+                // fall back to the computed transmission time
+                m_DrainEvents = false;
+            }
+        }
+        
+        // log transmit mode
+        m_Logger.log(Level.CONFIG, "{0} uses output buffer empty events: {1}\n", 
+                new Object[]{ComPortName, m_DrainEvents});
+        
     }//</editor-fold>
     
     
@@ -250,6 +336,14 @@ public class RS232_Driver {
     public void ClosePort() 
            throws IOException {
         
+        // make sure all data was sent before closing the port
+        waitUntilSent();
+        
+        // stop listening to serial port events
+        if (m_Port != null) {
+            m_Port.removeEventListener();
+        }
+        
         // close in-out streams
         try {
             if (m_InStream != null) {
@@ -283,9 +377,9 @@ public class RS232_Driver {
      * Sends the given <code>byte[]</code> via the RS232 port (and flushes
      * the output stream to make sure the data is sent). Returns immediately
      * if <code>Message</code> is empty. After sending the data to the output
-     * stream, this method waits the time it takes theoretically to send the data.
-     * This is to ensure that the data could have been received before the program
-     * proceeds (and attempts to read).<p>
+     * stream, this method waits until the data has been sent (see 
+     * <code>waitUntilSent</code>). This is to ensure that the data could have
+     * been received before the program proceeds (and attempts to read).<p>
      * 
      * @param Message The data bytes to be sent.
      * 
@@ -296,27 +390,50 @@ public class RS232_Driver {
     protected void Send(byte[] Message) 
               throws IOException {
         
+        Send(Message, true);
+    }//</editor-fold>
+    
+    
+    /**
+     * Sends the given <code>byte[]</code> via the RS232 port and flushes
+     * the output stream. Returns immediately if <code>Message</code> is empty.<p>
+     * 
+     * When <code>WaitUntilSent</code> is <code>false</code>, this method returns
+     * as soon as the data was handed to the serial port, so that several small 
+     * writes are transmitted back-to-back and only one wait is required (either 
+     * by calling <code>waitUntilSent</code> or by the next <code>Send</code>
+     * with <code>WaitUntilSent = true</code>).
+     * 
+     * @param Message The data bytes to be sent.
+     * @param WaitUntilSent When <code>true</code>, waits until all data written
+     * so far has been transmitted.
+     * 
+     * @throws IOException When an IO error occurred during sending to the
+     * output stream. This should actually not occur.
+     */
+    // <editor-fold defaultstate="collapsed" desc="Send (WaitUntilSent)">
+    protected void Send(byte[] Message, boolean WaitUntilSent) 
+              throws IOException {
+        
         // do nothing if Message is empty
         if (Message.length == 0) {
             return;
         }
         
         try {
+            // the output buffer is about to be filled
+            synchronized (m_DrainLock) {
+                m_OutputEmpty = false;
+                m_BytesInFlight += Message.length;
+                m_LastWriteTime = System.currentTimeMillis();
+            }
+            
             // send the message
             m_OutStream.write(Message);
             
             // flush output stream
             m_OutStream.flush();
             
-            // to be save, wait until the data has been sent before proceeding
-            // TODO 8* test TimeToTransmit
-            if (m_TimeToTransmit > 0) {
-                try { 
-                    Thread.sleep(Math.round(Message.length * m_TimeToTransmit));
-                } catch (InterruptedException ignore) {}
-            }
-            
-            
         } catch (IOException ex) {
             String str = "An unexpected IO error occurred when sending to\n"
                     + "the RS232 port " + m_PortName + ":\n"
@@ -324,6 +441,70 @@ public class RS232_Driver {
             
             throw new IOException(str);
         }
+        
+        // to be save, wait until the data has been sent before proceeding
+        if (WaitUntilSent) {
+            waitUntilSent();
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Waits until all data written with <code>Send</code> has been transmitted.
+     * If the serial port reports an empty output buffer, this method returns as
+     * soon as the <code>OUTPUT_BUFFER_EMPTY</code> event was received. Otherwise
+     * it waits until the time it takes theoretically to send the data (computed
+     * from the baud rate) has passed since the last write.<p>
+     * 
+     * If the event is not received within the computed time plus
+     * <code>RS232_Driver.DrainMargin</code> ms, the port is assumed not to
+     * support the event, and the computed time is used from then on.
+     */
+    // <editor-fold defaultstate="collapsed" desc="waitUntilSent">
+    protected void waitUntilSent() {
+        
+        synchronized (m_DrainLock) {
+            
+            // nothing to wait for
+            if (m_BytesInFlight == 0) {
+                return;
+            }
+            
+            // the time when the data has theoretically been sent
+            long SentTime = m_LastWriteTime + Math.round(m_BytesInFlight * m_TimeToTransmit);
+            
+            if (m_DrainEvents) {
+                // wait for the output buffer empty event
+                long Deadline = SentTime + m_iC_Properties.getInt("RS232_Driver.DrainMargin", 50);
+                long Now = System.currentTimeMillis();
+                
+                while ( !m_OutputEmpty && Now < Deadline ) {
+                    try { 
+                        m_DrainLock.wait(Deadline - Now);
+                    } catch (InterruptedException ignore) {}
+                    Now = System.currentTimeMillis();
+                }
+                
+                // use the computed time if the event did not arrive
+                if ( !m_OutputEmpty ) {
+                    m_DrainEvents = false;
+                    
+                    m_Logger.log(Level.CONFIG, "{0} did not report an empty output buffer; "
+                            + "using the computed transmission time.\n", m_PortName);
+                }
+            } else {
+                // wait the remaining computed transmission time
+                long Remaining = SentTime - System.currentTimeMillis();
+                if (Remaining > 0) {
+                    try { 
+                        Thread.sleep(Remaining);
+                    } catch (InterruptedException ignore) {}
+                }
+            }
+            
+            // all data has been sent
+            m_BytesInFlight = 0;
+        }
     }//</editor-fold>
     
     
@@ -336,7 +517,8 @@ public class RS232_Driver {
      * 
      * Note: In theory one could end transmission upon receiving a end-of-transmission
      * character, but because, in general, the data stream can contain any character
-     * including this eot-character this is not recommended.
+     * including this eot-character this is not recommended. Instruments that do
+     * terminate their answers can use {@link #Receive(byte[], int)} instead.
      * 
      * @return The data bytes received from the RS232
      * 
@@ -347,46 +529,98 @@ public class RS232_Driver {
     protected byte[] Receive() 
               throws IOException {
         
-        // local variables
-        ArrayList<Byte> ans = new ArrayList<Byte>();
-        int Attempts = 0;
-        byte[] buffer = new byte[108];
+        return Receive(null, 0);
+    }//</editor-fold>
+    
+    
+    /**
+     * Reads from the serial port until the answer is complete. The answer is
+     * considered complete when it ends with the <code>Terminator</code>, when 
+     * <code>ExpectedLength</code> bytes have been received, or when no data was 
+     * received for the time out value defined in <code>RS232_Driver.TimeOut</code>,
+     * whatever comes first. Hence, terminated or fixed-length answers are returned
+     * as soon as the last byte has arrived instead of after the time out.<p>
+     * 
+     * If the serial port supports it (see <code>RS232_Driver.BlockingReads</code>),
+     * the data is read with blocking reads which return as soon as data is 
+     * available, otherwise the input stream is polled. The data is collected
+     * in a receive buffer that is reused for subsequent calls.
+     * 
+     * @param Terminator The answer is complete when it ends with these bytes; 
+     * can be <code>null</code> or empty to not check for a terminator.
+     * @param ExpectedLength The answer is complete when this many bytes have
+     * been received; can be 0 to not check the length. Bytes after the expected
+     * length are not read, so they are returned by the next call.
+     * 
+     * @return The data bytes received from the RS232 (including the Terminator)
+     * 
+     * @throws IOException If an IO error occurred during reading the input
+     * stream. This should actually not occur.
+     */
+    // <editor-fold defaultstate="collapsed" desc="Receive (Terminator, ExpectedLength)">
+    protected byte[] Receive(byte[] Terminator, int ExpectedLength) 
+              throws IOException {
         
+        // local variables
+        int Length = 0;
         
         // time out value
         int TimeOut = m_iC_Properties.getInt("RS232_Driver.TimeOut", 250);
         
+        // the time when the last data was received
+        long LastReceived = System.currentTimeMillis();
+        
         try {
-            do {
-                // get number of available bytes
-                int len = m_InStream.available();
-
+            while (true) {
+                
+                // make room in the receive buffer
+                if (Length == m_ReceiveBuffer.length) {
+                    m_ReceiveBuffer = Arrays.copyOf(m_ReceiveBuffer, 2 * m_ReceiveBuffer.length);
+                }
+                
+                // read at most the expected length, so the next answer is not consumed
+                int Max = m_ReceiveBuffer.length - Length;
+                if (ExpectedLength > 0) {
+                    Max = Math.min(Max, ExpectedLength - Length);
+                }
+                
+                // read from input stream
+                int len = 0;
+                if (m_BlockingReads) {
+                    // returns when data arrived or after the time out
+                    len = m_InStream.read(m_ReceiveBuffer, Length, Max);
+                    
+                } else if (m_InStream.available() > 0) {
+                    len = m_InStream.read(m_ReceiveBuffer, Length, Max);
+                }
+                
                 if (len > 0) {
-                    // read from input stream
-                    len = m_InStream.read(buffer);
+                    // append to the received data
+                    Length += len;
+                    LastReceived = System.currentTimeMillis();
                     
-                    // append to return value
-                    for (int i=0; i<len; i++) {
-                        ans.add(buffer[i]);
+                    // is the answer complete?
+                    if (ExpectedLength > 0 && Length >= ExpectedLength) {
+                        break;
+                    }
+                    if (endsWith(m_ReceiveBuffer, Length, Terminator)) {
+                        break;
                     }
-                    
-                    // wait short time (might speed up transmission in some cases)
-
-                    // reset attempts
-                    Attempts = 0;
                 } else {
-                    // no data is in the queue
-
-                    // count attempts
-                    Attempts++;
-
-                    // if not waited long before, wait long
-                    if (Attempts < 2) {
-                        // wait for time-out period
-                        try{ Thread.sleep(TimeOut); } catch (InterruptedException ex) {/*ignore*/}                        
+                    // no data was received
+                    long Silence = System.currentTimeMillis() - LastReceived;
+                    
+                    // end of transmission?
+                    if (m_BlockingReads || Silence >= TimeOut) {
+                        break;
                     }
+                    
+                    // wait a short time before polling again
+                    try { 
+                        Thread.sleep(Math.min(5, TimeOut - Silence)); 
+                    } catch (InterruptedException ex) {/*ignore*/}
                 }
-            } while (Attempts < 2);
+            }
             
         } catch (IOException ex) {
             String str = "An unexpected IO error occurred when reading from\n"
@@ -397,14 +631,35 @@ public class RS232_Driver {
             throw new IOException(str);
         }
         
-        // convert to a byte[]
-        byte[] ret = new byte[ans.size()];
-        for (int i=0; i<ans.size(); i++) {
-            ret[i] = ans.get(i);
+        // return the answer
+        return Arrays.copyOf(m_ReceiveBuffer, Length);
+    }//</editor-fold>
+    
+    
+    /**
+     * Checks if the first <code>Length</code> bytes in <code>Data</code> end
+     * with <code>Terminator</code>.
+     * 
+     * @param Data The received data
+     * @param Length The number of valid bytes in <code>Data</code>
+     * @param Terminator The termination bytes; can be <code>null</code>
+     * @return <code>true</code> if a non-empty Terminator was found at the end
+     */
+    // <editor-fold defaultstate="collapsed" desc="endsWith">
+    private static boolean endsWith(byte[] Data, int Length, byte[] Terminator) {
+        
+        // no Terminator specified
+        if (Terminator == null || Terminator.length == 0 || Length < Terminator.length) {
+            return false;
         }
         
-        // return the answer
-        return ret;
+        // compare the last bytes
+        for (int i=0; i<Terminator.length; i++) {
+            if (Data[Length - Terminator.length + i] != Terminator[i]) {
+                return false;
+            }
+        }
+        return true;
     }//</editor-fold>
     
       
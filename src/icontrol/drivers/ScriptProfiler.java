@@ -0,0 +1,504 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.swing.JDialog;
+import javax.swing.JFrame;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+
+/**
+ * Records where the time goes while a script is processed. For every script 
+ * line, and for every Instrument, the wall time is split into
+ * <ul>
+ *  <li>Parse: tokenizing and compiling the Command-Line in the <code>Dispatcher</code>
+ *  <li>Lock: waiting for the Lock of the communication resource (see 
+ *      <code>CommLockRegistry</code>)
+ *  <li>I/O: communicating with the Instrument in <code>SendToInstrument</code>
+ *      and <code>QueryInstrument</code> (without waiting for the Lock)
+ *  <li>Sleep: deliberate waiting, e.g. <code>Wait</code> or waiting until a
+ *      temperature is stable (see <code>sleep</code>)
+ *  <li>Dispatch: the remainder, i.e. dispatching the command and the 
+ *      processing done in the Instrument-Class
+ * </ul>
+ * 
+ * The times of a script line are accumulated per thread while the line is
+ * processed (between <code>beginLine</code> and <code>endLine</code>), so
+ * recording costs only a few calls to <code>System.nanoTime</code>. When the
+ * profiler is not started, all methods return immediately.<p>
+ * 
+ * The <code>Dispatcher</code> starts the profiler when 
+ * <code>Dispatcher.Profile = 1</code> in the iC.properties, writes the report
+ * with <code>writeReport</code> next to the data files after the script has 
+ * been processed, and shows the <code>Dispatcher.ProfileTopN</code> most 
+ * time consuming lines in a window that is updated every second 
+ * (<code>showLiveView</code>).
+ * 
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ */
+public final class ScriptProfiler {
+    
+    /** Indices of the times in the accumulators */
+    private static final int PARSE = 0;
+    private static final int LOCK = 1;
+    private static final int IO = 2;
+    private static final int SLEEP = 3;
+    
+    /** <code>true</code> while the profiler records */
+    private static volatile boolean m_Enabled = false;
+    
+    /** The times of the script line that is being processed by this thread */
+    private static final ThreadLocal<Accumulator> m_Current = new ThreadLocal<Accumulator>() {
+        @Override
+        protected Accumulator initialValue() {
+            return new Accumulator();
+        }
+    };
+    
+    /** The statistics per script line; the key identifies the line */
+    private static final LinkedHashMap<String, Entry> m_Lines = new LinkedHashMap<String, Entry>();
+    
+    /** The statistics per Instrument */
+    private static final LinkedHashMap<String, Entry> m_Instruments = new LinkedHashMap<String, Entry>();
+    
+    
+    /** The times accumulated by one thread for the current script line (in ns) */
+    private static final class Accumulator {
+        final long[] Times = new long[4];
+        
+        /** Nesting depth of <code>beginIO</code>; only the outermost call counts */
+        int IODepth = 0;
+        
+        /** The lock wait time when the outermost <code>beginIO</code> was called */
+        long LockAtIO;
+    }
+    
+    
+    /** The statistics of a script line, respectively, an Instrument (in ns) */
+    private static final class Entry {
+        
+        /** Identifies the line (e.g. '3 of Sub.iC') or the Instrument */
+        final String Key;
+        
+        /** The Command-Line or the Instrument-Name */
+        final String Description;
+        
+        /** How often the line was processed, respectively, how often the
+         * Instrument was addressed */
+        long Count;
+        
+        /** The wall time of the script lines */
+        long Total;
+        
+        /** The times, see <code>PARSE</code> etc. */
+        final long[] Times = new long[4];
+        
+        /** The number of calls to <code>SendToInstrument</code> and 
+         * <code>QueryInstrument</code> (only for Instruments) */
+        long IOCalls;
+        
+        Entry(String Key, String Description) {
+            this.Key = Key;
+            this.Description = Description;
+        }
+        
+        /** @return The wall time not spent parsing, waiting, communicating or sleeping */
+        long getDispatch() {
+            return Math.max(0, Total - Times[PARSE] - Times[LOCK] - Times[IO] - Times[SLEEP]);
+        }
+    }
+    
+    
+    /** Not instantiable; use the static methods */
+    private ScriptProfiler() {}
+    
+    
+    /**
+     * Clears the statistics and starts recording.
+     */
+    // <editor-fold defaultstate="collapsed" desc="start">
+    public static void start() {
+        synchronized (m_Lines) {
+            m_Lines.clear();
+            m_Instruments.clear();
+        }
+        m_Enabled = true;
+    }//</editor-fold>
+    
+    
+    /**
+     * Stops recording; the statistics are kept until the next <code>start</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="stop">
+    public static void stop() {
+        m_Enabled = false;
+    }//</editor-fold>
+    
+    
+    /** @return <code>true</code> while the profiler records */
+    // <editor-fold defaultstate="collapsed" desc="isEnabled">
+    public static boolean isEnabled() {
+        return m_Enabled;
+    }//</editor-fold>
+    
+    
+    /**
+     * Marks the beginning of a script line in the calling thread.
+     * @return The start time to pass to <code>endLine</code>, or 0 if the
+     * profiler is not recording
+     */
+    // <editor-fold defaultstate="collapsed" desc="beginLine">
+    public static long beginLine() {
+        if ( !m_Enabled ) {
+            return 0;
+        }
+        
+        Accumulator acc = m_Current.get();
+        Arrays.fill(acc.Times, 0);
+        acc.IODepth = 0;
+        
+        return System.nanoTime();
+    }//</editor-fold>
+    
+    
+    /**
+     * Marks the end of a script line in the calling thread and adds the 
+     * times to the statistics of the line and the Instrument.
+     * 
+     * @param Key Identifies the script line, e.g. the line number and Sub-Script
+     * @param Line The Command-Line
+     * @param InstrumentName The Instrument addressed by the line, or the 
+     * Framework-Command (e.g. PYTHON)
+     * @param Start The value returned by <code>beginLine</code>
+     */
+    // <editor-fold defaultstate="collapsed" desc="endLine">
+    public static void endLine(String Key, String Line, String InstrumentName, long Start) {
+        if ( !m_Enabled || Start == 0 ) {
+            return;
+        }
+        
+        long Total = System.nanoTime() - Start;
+        long[] Times = m_Current.get().Times;
+        
+        synchronized (m_Lines) {
+            add(getEntry(m_Lines, Key, Line), Total, Times, true);
+            add(getEntry(m_Instruments, InstrumentName, InstrumentName), Total, Times, false);
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Adds the time spent parsing a Command-Line in the calling thread.
+     * @param Start The value of <code>System.nanoTime</code> when parsing started
+     */
+    // <editor-fold defaultstate="collapsed" desc="addParseTime">
+    public static void addParseTime(long Start) {
+        if (m_Enabled) {
+            m_Current.get().Times[PARSE] += System.nanoTime() - Start;
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Adds the time the calling thread waited for a communication Lock; 
+     * called from <code>CommLockRegistry.CommLock.lock</code>.
+     * @param Nanos The wait time in ns
+     */
+    // <editor-fold defaultstate="collapsed" desc="addLockWait">
+    static void addLockWait(long Nanos) {
+        if (m_Enabled) {
+            m_Current.get().Times[LOCK] += Nanos;
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Marks the beginning of the communication with an Instrument in the
+     * calling thread. Must be followed by <code>endIO</code> (in a finally block).
+     * @return The start time to pass to <code>endIO</code>, or 0 if the
+     * profiler is not recording
+     */
+    // <editor-fold defaultstate="collapsed" desc="beginIO">
+    static long beginIO() {
+        if ( !m_Enabled ) {
+            return 0;
+        }
+        
+        Accumulator acc = m_Current.get();
+        if (acc.IODepth++ == 0) {
+            acc.LockAtIO = acc.Times[LOCK];
+        }
+        
+        return System.nanoTime();
+    }//</editor-fold>
+    
+    
+    /**
+     * Marks the end of the communication with an Instrument and adds the
+     * time, without the time spent waiting for the Lock, to the current line
+     * and the Instrument.
+     * @param InstrumentName The Instrument
+     * @param Start The value returned by <code>beginIO</code>
+     */
+    // <editor-fold defaultstate="collapsed" desc="endIO">
+    static void endIO(String InstrumentName, long Start) {
+        if (Start == 0) {
+            return;
+        }
+        
+        Accumulator acc = m_Current.get();
+        if (--acc.IODepth > 0) {
+            return;
+        }
+        
+        long Lock = acc.Times[LOCK] - acc.LockAtIO;
+        long IOTime = Math.max(0, System.nanoTime() - Start - Lock);
+        acc.Times[IO] += IOTime;
+        
+        synchronized (m_Lines) {
+            Entry e = getEntry(m_Instruments, InstrumentName, InstrumentName);
+            e.IOCalls++;
+            e.Times[IO] += IOTime;
+            e.Times[LOCK] += Lock;
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Sleeps and records the time as deliberate waiting of the current line
+     * and the Instrument. Use instead of <code>Thread.sleep</code> where an
+     * Instrument-Class waits on purpose (e.g. <code>Wait</code>, or until the
+     * temperature is stable).
+     * 
+     * @param InstrumentName The Instrument that waits
+     * @param Millis The time to sleep in ms
+     * @throws InterruptedException bubbles up from <code>Thread.sleep</code>
+     */
+    // <editor-fold defaultstate="collapsed" desc="sleep">
+    public static void sleep(String InstrumentName, long Millis)
+           throws InterruptedException {
+        
+        if ( !m_Enabled ) {
+            Thread.sleep(Millis);
+            return;
+        }
+        
+        long Start = System.nanoTime();
+        try {
+            Thread.sleep(Millis);
+        } finally {
+            long Slept = System.nanoTime() - Start;
+            m_Current.get().Times[SLEEP] += Slept;
+            
+            synchronized (m_Lines) {
+                getEntry(m_Instruments, InstrumentName, InstrumentName).Times[SLEEP] += Slept;
+            }
+        }
+    }//</editor-fold>
+    
+    
+    // <editor-fold defaultstate="collapsed" desc="getEntry">
+    private static Entry getEntry(Map<String, Entry> Entries, String Key, String Description) {
+        Entry e = Entries.get(Key);
+        if (e == null) {
+            e = new Entry(Key, Description);
+            Entries.put(Key, e);
+        }
+        return e;
+    }//</editor-fold>
+    
+    
+    /** 
+     * Adds the times of a script line to the entry; the caller synchronizes.
+     * The lock wait, I/O and sleep times of Instruments are added in 
+     * <code>endIO</code> and <code>sleep</code> (<code>AllTimes = false</code>).
+     */
+    // <editor-fold defaultstate="collapsed" desc="add">
+    private static void add(Entry e, long Total, long[] Times, boolean AllTimes) {
+        e.Count++;
+        e.Total += Total;
+        e.Times[PARSE] += Times[PARSE];
+        
+        if (AllTimes) {
+            e.Times[LOCK] += Times[LOCK];
+            e.Times[IO] += Times[IO];
+            e.Times[SLEEP] += Times[SLEEP];
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * Returns a copy of the entries sorted by the total time (largest first).
+     * The caller synchronizes on <code>m_Lines</code>.
+     */
+    // <editor-fold defaultstate="collapsed" desc="sorted">
+    private static ArrayList<Entry> sorted(Map<String, Entry> Entries) {
+        ArrayList<Entry> ret = new ArrayList<Entry>(Entries.values());
+        Collections.sort(ret, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(b.Total, a.Total);
+            }
+        });
+        return ret;
+    }//</editor-fold>
+    
+    
+    /** Formats one entry as tab separated values (times in s) */
+    // <editor-fold defaultstate="collapsed" desc="format">
+    private static String format(Entry e) {
+        return String.format(Locale.US, "%s\t%d\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%s",
+                e.Key, e.Count, e.Total/1e9, e.Times[PARSE]/1e9, e.getDispatch()/1e9,
+                e.Times[LOCK]/1e9, e.Times[IO]/1e9, e.Times[SLEEP]/1e9, e.Description);
+    }//</editor-fold>
+    
+    
+    /**
+     * Writes the statistics per script line and per Instrument as tab separated
+     * values, sorted by the total time, so that the report can be opened and
+     * sorted in a spreadsheet. All times are in seconds.
+     * 
+     * @param FileName The file name of the report
+     * @throws IOException when the report could not be written
+     */
+    // <editor-fold defaultstate="collapsed" desc="writeReport">
+    public static void writeReport(String FileName)
+           throws IOException {
+        
+        PrintWriter out = new PrintWriter(new FileWriter(FileName));
+        try {
+            synchronized (m_Lines) {
+                out.println("% Script lines (times in s)");
+                out.println("Line\tCount\tTotal\tParse\tDispatch\tLock wait\tI/O\tSleep\tCommand-Line");
+                for (Entry e : sorted(m_Lines)) {
+                    out.println(format(e));
+                }
+                
+                out.println();
+                out.println("% Instruments (Total and Parse of the script lines that address "
+                        + "the Instrument; Lock wait, I/O and Sleep also from Python and other threads)");
+                out.println("Instrument\tCount\tTotal\tParse\tDispatch\tLock wait\tI/O\tSleep\tI/O calls");
+                for (Entry e : sorted(m_Instruments)) {
+                    out.println(format(e).replaceFirst("[^\t]*$", Long.toString(e.IOCalls)));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        
+        if (out.checkError()) {
+            throw new IOException("Could not write the profile to " + FileName);
+        }
+    }//</editor-fold>
+    
+    
+    /**
+     * @param N The number of lines
+     * @return The N script lines with the largest total time, formatted as 
+     * a table
+     */
+    // <editor-fold defaultstate="collapsed" desc="getTopLines">
+    public static String getTopLines(int N) {
+        
+        StringBuilder ret = new StringBuilder(String.format(Locale.US, 
+                "%-14s %6s %9s %9s %9s %9s %9s  %s\n",
+                "Line", "Count", "Total", "Dispatch", "Lock", "I/O", "Sleep", "Command-Line"));
+        
+        synchronized (m_Lines) {
+            ArrayList<Entry> Entries = sorted(m_Lines);
+            for (int i=0; i < Math.min(N, Entries.size()); i++) {
+                Entry e = Entries.get(i);
+                ret.append(String.format(Locale.US, "%-14s %6d %9.2f %9.2f %9.2f %9.2f %9.2f  %s\n",
+                        e.Key, e.Count, e.Total/1e9, e.getDispatch()/1e9, 
+                        e.Times[LOCK]/1e9, e.Times[IO]/1e9, e.Times[SLEEP]/1e9, e.Description));
+            }
+        }
+        
+        return ret.toString();
+    }//</editor-fold>
+    
+    
+    /**
+     * Shows a window with the N most time consuming script lines, which is
+     * updated every second until the window is closed. Must be called on the
+     * Event Dispatch Thread.
+     * 
+     * @param Owner The frame of the GUI
+     * @param N The number of lines shown
+     */
+    // <editor-fold defaultstate="collapsed" desc="showLiveView">
+    public static void showLiveView(JFrame Owner, final int N) {
+        
+        final JDialog View = new JDialog(Owner, "iC Profiler - Top " + N + " lines (times in s)", false);
+        View.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        
+        final JTextArea Text = new JTextArea(N + 2, 100);
+        Text.setEditable(false);
+        Text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        View.add(new JScrollPane(Text));
+        
+        // update the view every second
+        final Timer Update = new Timer(1000, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Text.setText(getTopLines(N));
+            }
+        });
+        
+        // stop updating when the window is closed
+        View.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                Update.stop();
+            }
+        });
+        
+        View.pack();
+        View.setLocationRelativeTo(Owner);
+        View.setVisible(true);
+        Update.start();
+    }//</editor-fold>
+}
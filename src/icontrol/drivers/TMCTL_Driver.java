@@ -47,6 +47,7 @@ import com.sun.jna.ptr.IntByReference;
 import icontrol.iC_Properties;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -67,7 +68,9 @@ import java.util.logging.Logger;
  *      <code>m_DeviceID</code>, and sets the TimeOut value.
  *  <li>To send/receive data use <code>Send</code> and <code>Receive</code>.
  *  <li>To receive Block-Data (e.g. to receive a waveform from an oscilloscope)
- *      use <code>ReceiveBlockData</code>
+ *      use <code>ReceiveBlockData</code>, or <code>StreamBlockData</code> to 
+ *      hand the data to <code>BlockDataConsumer</code>s chunk by chunk without
+ *      collecting it in memory.
  *  <li>To close the connection to an Instrument call <code>CloseInstrument</code>.
  *  <li>Each communication with the TMCTL library checks the status of the last 
  *      transaction using <code>checkErrorTMCTL</code> which throws an 
@@ -94,6 +97,33 @@ public class TMCTL_Driver {
     
     /** Receive Buffer */
     private static ByteBuffer m_ReceiveBuffer = null;
+    
+    
+    /**
+     * Processes Block-Data received with <code>StreamBlockData</code> chunk by
+     * chunk, for instance to write it to a file or to convert the samples.
+     */
+    public interface BlockDataConsumer {
+        
+        /**
+         * Is called once before the first chunk is received.
+         * 
+         * @param NrDataBytes The number of data bytes in the block (without 
+         * header and terminator)
+         * @throws IOException When the data cannot be processed
+         */
+        void begin(int NrDataBytes) throws IOException;
+        
+        /**
+         * Is called for each chunk of received data. The data is between the
+         * position and the limit of <code>Chunk</code>. The buffer is reused
+         * for the next chunk, so it must not be kept after this method returns.
+         * 
+         * @param Chunk The received data bytes
+         * @throws IOException When the data cannot be processed
+         */
+        void accept(ByteBuffer Chunk) throws IOException;
+    }
 
 
     /**
@@ -712,6 +742,8 @@ public class TMCTL_Driver {
      * which sends the waveform data not via the regular <code>TmcReceive</code> method
      * but requires block-transfer of the data. All the data available is read 
      * from the instrument, but it is read in chunks of size<code>RECEIVE_BUFFER_SIZE</code>.
+     * For large blocks consider <code>StreamBlockData</code> which does not 
+     * collect the data in memory.
      * 
      * @return A <code>ByteBuffer</code> with the received data.
      * @throws IOException When communication via the TMCTL library failed
@@ -720,6 +752,47 @@ public class TMCTL_Driver {
     public ByteBuffer ReceiveBlockData() 
               throws IOException {
         
+        // collect the data in a buffer
+        final ByteBuffer[] ReturnBuffer = new ByteBuffer[1];
+        
+        StreamBlockData(new BlockDataConsumer() {
+            @Override
+            public void begin(int NrDataBytes) {
+                // make an appropriate buffer (including the terminator)
+                ReturnBuffer[0] = ByteBuffer.allocate(NrDataBytes + 1);
+            }
+
+            @Override
+            public void accept(ByteBuffer Chunk) {
+                ReturnBuffer[0].put(Chunk);
+            }
+        });
+        
+        // return result
+        return ReturnBuffer[0];        
+    }// </editor-fold>
+    
+    
+    /**
+     * Receives Block-Data from the Instrument like <code>ReceiveBlockData</code>,
+     * but hands each chunk of data to the <code>Consumers</code> right after it
+     * was received instead of copying it into a buffer for the whole block. 
+     * The chunks are passed in the receive buffer of this class, so the data 
+     * is not copied at all unless a Consumer does so. The terminator following
+     * the data is not passed to the Consumers.<p>
+     * 
+     * This way, even very large waveforms can be written to a file (see 
+     * <code>toChannel</code>) or converted while they are received.
+     * 
+     * @param Consumers Each chunk is passed to these Consumers in the given order
+     * @return The number of data bytes in the block
+     * @throws IOException When communication via the TMCTL library failed or 
+     * when a Consumer threw an Exception
+     */
+    // <editor-fold defaultstate="collapsed" desc="StreamBlockData">
+    public int StreamBlockData(BlockDataConsumer... Consumers) 
+              throws IOException {
+        
         // local variables
         IntByReference NrDataBytes = new IntByReference();
         IntByReference NrDataBytesReceived = new IntByReference();
@@ -735,34 +808,74 @@ public class TMCTL_Driver {
             checkErrorTMCTL(str, false);
         }
         
-        // make an appropriate buffer
-        ByteBuffer ReturnBuffer = ByteBuffer.allocate(NrDataBytes.getValue() + 1);
+        // the number of data bytes that remain to be passed to the Consumers
+        int Remaining = NrDataBytes.getValue();
+        
+        for (BlockDataConsumer Consumer : Consumers) {
+            Consumer.begin(Remaining);
+        }
         
-       
         // read all data
-        boolean ReadMore = true;
-        while (ReadMore) {
-            // get Waveform Data (as Bytes)
-            Status = m_TMCTL.TmcReceiveBlockData(m_DeviceID, m_ReceiveBuffer, m_ReceiveBuffer.limit(),
-                    NrDataBytesReceived, EndFlag);
-
-            // check for errors
-            if (Status != 0) {
-                String str = "Error receiving the Block Data.\n";
-                checkErrorTMCTL(str, false);
-            }
+        try {
+            boolean ReadMore = true;
+            while (ReadMore) {
+                // get Waveform Data (as Bytes)
+                m_ReceiveBuffer.clear();
+                Status = m_TMCTL.TmcReceiveBlockData(m_DeviceID, m_ReceiveBuffer, m_ReceiveBuffer.limit(),
+                        NrDataBytesReceived, EndFlag);
+
+                // check for errors
+                if (Status != 0) {
+                    String str = "Error receiving the Block Data.\n";
+                    checkErrorTMCTL(str, false);
+                }
+            
+                // pass the received data (without the terminator) to the Consumers
+                int Length = Math.min(NrDataBytesReceived.getValue(), Remaining);
+                Remaining -= Length;
             
-            // add received data to the return buffer
-            ReturnBuffer.put(m_ReceiveBuffer.array(), 0, NrDataBytesReceived.getValue());
+                for (BlockDataConsumer Consumer : Consumers) {
+                    m_ReceiveBuffer.limit(Length).position(0);
+                    Consumer.accept(m_ReceiveBuffer);
+                }
             
-            // check Endflag to decide if all the data was read
-            if (EndFlag.getValue() == 1) {
-                ReadMore = false;
+                // check Endflag to decide if all the data was read
+                if (EndFlag.getValue() == 1) {
+                    ReadMore = false;
+                }
             }
+        } finally {
+            // restore the receive buffer
+            m_ReceiveBuffer.clear();
         }
         
-        // return result
-        return ReturnBuffer;        
+        return NrDataBytes.getValue();
+    }// </editor-fold>
+    
+    
+    /**
+     * Returns a <code>BlockDataConsumer</code> that writes the data bytes to
+     * a channel, for instance to a <code>FileChannel</code> to archive the raw
+     * data. The channel is not closed.
+     * 
+     * @param Channel The data is written to this channel
+     * @return The Consumer
+     */
+    // <editor-fold defaultstate="collapsed" desc="toChannel">
+    public static BlockDataConsumer toChannel(final WritableByteChannel Channel) {
+        
+        return new BlockDataConsumer() {
+            @Override
+            public void begin(int NrDataBytes) {}
+
+            @Override
+            public void accept(ByteBuffer Chunk) 
+                   throws IOException {
+                while (Chunk.hasRemaining()) {
+                    Channel.write(Chunk);
+                }
+            }
+        };
     }// </editor-fold>
     
 
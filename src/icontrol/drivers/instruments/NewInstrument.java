@@ -32,6 +32,7 @@ import icontrol.AutoGUIAnnotation;
 import icontrol.IcontrolView;
 import static icontrol.Utilities.*;
 import icontrol.drivers.Device;
+import icontrol.drivers.PollingService;
 import icontrol.iC_Annotation;
 import icontrol.drivers.Device.CommPorts;
 import java.io.IOException;
@@ -483,67 +484,64 @@ public class NewInstrument extends Device {
         }
 
 
-        // if new code requires to start a new task, the following anonymous
-        // inner class can be used. Ensure that the task terminates itself
-        // upon the Stop signal.
+        // if new code requires to start a periodic task, the following anonymous
+        // inner class can be used. The task is scheduled with the PollingService
+        // which cancels it upon the Stop signal.
         // See iC_Instrument.MonitorChart() for a working example displaying
         // data in a chart.
 
         /**
-         * Implement a new class from an anonymous inner class that extends
-         * Thread and implements run(), in which the actual job is done.<p>
+         * Implement a new class from an anonymous inner class that implements
+         * <code>PollingService.PollingTask</code>; <code>sample</code> is called
+         * periodically by the <code>PollingService</code>.<p>
          *
-         * The thread pauses, respectively, stops when <code>m_Paused</code>, respectively,
-         * <code>m_StopScripting</code> is true.
+         * No samples are taken while scripting is paused, and the task is 
+         * cancelled when <code>m_StopScripting</code> is true.
          */
-        // <editor-fold defaultstate="collapsed" desc="myThread as anonymous inner class">
-        class myThread extends Thread {
+        // <editor-fold defaultstate="collapsed" desc="myTask as anonymous inner class">
+        class myTask implements PollingService.PollingTask {
 
             // member variables
             public String       m_dummy;
 
             /** Constructor  */
-            public myThread(String dummy) {
+            public myTask(String dummy) {
                 // assign the passed values
                 m_dummy = dummy;
             }
 
 
             @Override
-            public void run() {
+            public void sample(long DueTime) {
                 // local variables
                 float dummy = 0.0f;
 
-                // Display a status message
-                m_GUI.DisplayStatusMessage("Starting the thread.\n");
-
-                // do until the thread should be stopped
-                while ( m_StopScripting == false) {
-
-                    // check for pause button
-                    isPaused(true);
-
-                    // do something useful here
-
-
-                    // wait the desired time
-                    try { Thread.sleep( 500 ); } catch (InterruptedException ignore) {}
-                }
-
-                // clean up the thread
+                // do something useful here
+                // use PollingService.query to share the Instrument's answer
+                // with other tasks polling the same command at the same time
+            }
+            
+            
+            @Override
+            public void stopped() {
+                
+                // clean up the task
 
 
                 // Display a status message
-                m_GUI.DisplayStatusMessage("Thread stopped.\n");
+                m_GUI.DisplayStatusMessage("Task stopped.\n");
             }
         }//</editor-fold>
 
 
-        // make a new thread object
-        myThread myT = new myThread("Love All, Serve All");
+        // make a new task object
+        myTask myT = new myTask("Love All, Serve All");
+
+        // Display a status message
+        m_GUI.DisplayStatusMessage("Starting the task.\n");
 
-        // start the thread and return
-        myT.start();
+        // execute the task every 500 ms and return
+        PollingService.schedule(myT, 500);
     }//</editor-fold>
 
 
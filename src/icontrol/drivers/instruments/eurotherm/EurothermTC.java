@@ -349,7 +349,7 @@ public class EurothermTC extends Device {
         
         
         // send message and check response
-        ByteBuffer ans = QueryViaRS232(ByteBuffer.wrap(msg), m_WaitEOT);
+        ByteBuffer ans = QueryViaRS232(ByteBuffer.wrap(msg), m_WaitEOT, 5);
         
         // check length
         if (ans.limit() != 5) {
@@ -419,7 +419,7 @@ public class EurothermTC extends Device {
 
 
             // send message and check response
-            ans = QueryViaRS232(msg, m_WaitEOT);
+            ans = QueryViaRS232(msg, m_WaitEOT, 8);
             
             // log the answer
             str = "Received loopback data: " + RS232_Driver.ByteBufferToLogString(ans);
@@ -521,8 +521,8 @@ public class EurothermTC extends Device {
         
         
              
-        // send message and receive response
-        ByteBuffer ans = QueryViaRS232(msg, m_WaitEOT);
+        // send message and receive response (8 bytes are echoed)
+        ByteBuffer ans = QueryViaRS232(msg, m_WaitEOT, 8);
         
         
         
@@ -618,8 +618,8 @@ public class EurothermTC extends Device {
 //        try {Thread.sleep(m_WaitEOT);} catch (InterruptedException ex) {/*ignore*/}
         
 
-        // send message and check response
-        ByteBuffer ans = QueryViaRS232(msg, m_WaitEOT);
+        // send message and check response (9 bytes for one 32 bit value)
+        ByteBuffer ans = QueryViaRS232(msg, m_WaitEOT, 9);
          
         
         //////////////////
@@ -127,7 +127,8 @@ public class HP4140 extends Device {
      * 
      * @param FileExtension 
      * @throws IOException re-thrown from <code>SendToInstrument</code>
-     * @throws ScriptException When the data could not be saved to a file. 
+     * @throws ScriptException When the data could not be saved to a file, or
+     * when in replay mode. 
      */
     @AutoGUIAnnotation(
         DescriptionForUser = "<html>TODO</html>",
@@ -138,6 +139,10 @@ public class HP4140 extends Device {
     public void Measure(String FileExtension) 
            throws IOException, ScriptException {
         
+        // the Status Byte is read directly from the GPIB driver, which is not
+        // opened in replay mode
+        checkNotReplayed("Reading the Status Byte");
+        
         // send the command to start the measurement
         // W1 also addresses the instrument to send back data
         SendToInstrument("W1");
@@ -33,8 +33,11 @@ package icontrol.drivers.instruments;
 
 
 import icontrol.AutoGUIAnnotation;
+import icontrol.CompiledCommand;
 import static icontrol.Utilities.getDouble;
 import icontrol.drivers.Device;
+import icontrol.drivers.ScriptProfiler;
+import icontrol.drivers.PollingService;
 import icontrol.iC_Annotation;
 import icontrol.iC_ChartXY;
 import icontrol.iC_ChartXY.SeriesIdentification;
@@ -57,6 +60,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.DataFormatException;
@@ -132,7 +136,7 @@ public class iC_Instrument extends Device {
         DefaultValues="5")
     public void Wait(float WaitTimeInSeconds) {
         try {
-            Thread.sleep( Math.round(WaitTimeInSeconds*1000) );
+            ScriptProfiler.sleep( m_InstrumentName, Math.round(WaitTimeInSeconds*1000) );
         } catch (InterruptedException ex) { }
     }//</editor-fold>
 
@@ -394,9 +398,9 @@ public class iC_Instrument extends Device {
     
     
     /**
-     * Starts a new thread that executes the passed Command Lines at the given
-     * time interval, and displays the returned value in an XY-chart. A separate
-     * XY Series is used for the different Command Lines.  The values are stored
+     * Schedules a task (see <code>PollingService</code>) that executes the
+     * passed Command Lines at the given time interval, and displays the returned
+     * value in an XY-chart. A separate XY Series is used for the different Command Lines.  The values are stored
      * in a file together with the number of seconds elapsed since processing
      * of the script started. The chart is saved as a .png file at the end.<p>
      * 
@@ -451,14 +455,15 @@ public class iC_Instrument extends Device {
 
 
         /**
-         * Implement a new class from an anonymous inner class that extends
-         * Thread and implements run(), in which the actual job is done.<p>
+         * Implement a new class from an anonymous inner class that implements
+         * <code>PollingService.PollingTask</code>; <code>sample</code> is called
+         * periodically by the <code>PollingService</code>.<p>
          *
-         * The thread pauses, respectively, stops when <code>m_Paused</code>, respectively,
-         * <code>m_StopScripting</code> is true.
+         * No samples are taken while scripting is paused, and the task is 
+         * cancelled when <code>m_StopScripting</code> is true.
          */
-        // <editor-fold defaultstate="collapsed" desc="myThread as anonymous inner class">
-        class myThread extends Thread {
+        // <editor-fold defaultstate="collapsed" desc="myTask as anonymous inner class">
+        class myTask implements PollingService.PollingTask {
             /** The command lines to execute to obtain the values to be displayed */
             public ArrayList<String> m_CommandLines;
 
@@ -468,23 +473,30 @@ public class iC_Instrument extends Device {
             /** The file with the monitored temperature as png */
             public File m_FileForChart;
 
-            /** The time between two temperature measurements in sec */
-            public float m_TimeInterval;
-
             // Identification of the Data Series (handle to the series)
             private SeriesIdentification[] m_SeriesIDs;
 
             // holds the chart
             private iC_ChartXY m_Chart;
             
-            // is set to true when the thread has been startted
-            public boolean m_ThreadStarted = false;
+            // used to call DispatchCommand
+            private Device m_Device;
+            
+            // holds the compiled command lines so that they are not parsed
+            // and the Script-Methods are not searched in every sample
+            private CompiledCommand[] m_CompiledCommands;
 
             /**
              * Default constructor. Prepares the XY chart
              * @param YLabel The label for the Y axis
+             * @param CommandLines The command lines to execute
+             * @param dev The Device used to dispatch the command lines
              */
-            public myThread(String YLabel) {
+            public myTask(String YLabel, ArrayList<String> CommandLines, Device dev) {
+                
+                m_CommandLines = CommandLines;
+                m_Device = dev;
+                m_CompiledCommands = new CompiledCommand[m_CommandLines.size()];
 
                 // make a new XYChart object
                 m_Chart = new iC_ChartXY("Monitor",
@@ -503,15 +515,7 @@ public class iC_Instrument extends Device {
                 // switch off AntiAliasing for faster updates of the chart
                 // Not recommended; see javadoc to iC_ChartXY.setAntiAlias
                 //boolean old = m_Chart.setAntiAlias(false);
-            }
-
-
-            @Override
-            public void run() {
-                // local variables
-                double Result = 0.0;
-                Object obj=null;
-
+                
                 // add the new data series' to the chart
                 m_SeriesIDs = new SeriesIdentification[m_CommandLines.size()];
                 for (int i=0; i<m_CommandLines.size(); i++) {
@@ -521,101 +525,108 @@ public class iC_Instrument extends Device {
                             false, true, m_Chart.LINE_SOLID,
                             m_Chart.MARKER_CIRCLE);
                 }
+            }
 
-                // make a new Device object to call it's DispatchCommand method
-                // see Remark in javadoc (How to write new Instrument-Classes)
-                // TODO why did I not use 'this'? and why does it crash sometimes in test LM-500
-                Device dev = new Device();
-                
-                // set that the Thread has started
-                m_ThreadStarted = true;
-                
-                // do until the thread should be stopped
-                while ( m_StopScripting == false) {
 
-                    // check for pause button
-                    isPaused(true);
+            @Override
+            public void sample(long DueTime) {
+                // local variables
+                double Result = 0.0;
+                Object obj=null;
 
-                    // get elapsed time in seconds
-                    double Time = (System.currentTimeMillis() - m_tic) / 1000.0;
+                // get elapsed time in seconds
+                double Time = (System.currentTimeMillis() - m_tic) / 1000.0;
 
-                    // prepare the line to write in the file
-                    // use Local.US to ensure a '.' is used as comma
-                    // (in german a ',' is used as decimal point, which is sometimes
-                    // not recognized as decimal point by some other programs like
-                    // Origin, IgorPro, Matlab, Excel, ...
-                    String line = String.format(Locale.US, "%.3f", Time);
+                // prepare the line to write in the file
+                // use Local.US to ensure a '.' is used as comma
+                // (in german a ',' is used as decimal point, which is sometimes
+                // not recognized as decimal point by some other programs like
+                // Origin, IgorPro, Matlab, Excel, ...
+                String line = String.format(Locale.US, "%.3f", Time);
 
-                    
-                    // disable event notification upon adding new data points
-                    m_Chart.setNotify(false);
-
-
-                    // do for all command lines
-                    for (int i=0; i<m_CommandLines.size(); i++) {
-
-                        try {
-                            
-                            // getting and displaying data can take longer than
-                            // the default wait after the Stop button is pressed.
-                            // With the Eurother it happened that the instrument
-                            // was closed before this method exited, so check
-                            // Stop signal more often (directly before communication)
-                            if (m_StopScripting) {
-                                break;
-                            }
-
-                            // execute the command line
-                            obj = dev.DispatchCommand(m_CommandLines.get(i));
-
-                            // convert the Instrument's answer to a double
-                            Result = getDouble(obj.toString());
-                            
-
-                            // append to the line to write into the file
-                            line += String.format(Locale.US, "\t%e", Result);
-
-                            // add the datapoint to the graph
-                            m_Chart.AddXYDataPoint(m_SeriesIDs[i], Time, Result);
-
-                        } catch (Exception ex) {
-                                String str = "Executing the Command Line " + m_CommandLines.get(i) + "\n"
-                                    + "did not return a valid object.\n"
-                                    + "Returned object: " + (obj==null?"null":obj.toString()) + "\n"
-                                    + "Please check the Command Line, the connection to the Instrument,\n"
-                                    + "and the CPU load (which might cause sporadic communication errors).\n\n"
-                                    + ex.getMessage() + "\n";
-
-                                // log event
-                                m_Logger.severe(str);
-
-                                // display the event
-                                m_GUI.DisplayStatusMessage(str);
-                        }
-                    }
 
-                    // re-enable event notification upon adding new data points
-                    // also sends a trigger to update the chart
-                    m_Chart.setNotify(true);
-               
+                // disable event notification upon adding new data points
+                m_Chart.setNotify(false);
+
+
+                // do for all command lines
+                for (int i=0; i<m_CommandLines.size(); i++) {
 
-                    // write the line into the file
                     try {
-                        m_FileWriter.write(line);
-                        m_FileWriter.newLine();
 
-                    } catch (IOException ex) {
-                        String str = "Error writing to file in MonitorChart.\n";
-                        m_Logger.log(Level.SEVERE, "{0}{1}\n", new Object[]{str, ex.getMessage()});
-                        m_GUI.DisplayStatusMessage(str);
+                        // getting and displaying data can take longer than
+                        // the default wait after the Stop button is pressed.
+                        // With the Eurother it happened that the instrument
+                        // was closed before this method exited, so check
+                        // Stop signal more often (directly before communication)
+                        if (m_StopScripting) {
+                            break;
+                        }
+
+                        // compile the command line if not done already
+                        if (m_CompiledCommands[i] == null) {
+                            m_CompiledCommands[i] = m_Device.compileCommand(m_CommandLines.get(i));
+                        }
+                        final CompiledCommand cc = m_CompiledCommands[i];
+
+                        // execute the command line; other tasks polling the
+                        // same command at the same time share the result
+                        obj = PollingService.query(
+                                PollingService.makeKey(cc.InstrumentName, 
+                                        cc.Method.DeviceCommandName, cc.ConvertedParameters),
+                                DueTime, new Callable<Object>() {
+                                    @Override
+                                    public Object call() throws ScriptException {
+                                        return m_Device.DispatchCommand(cc);
+                                    }
+                                });
+
+                        // convert the Instrument's answer to a double
+                        Result = getDouble(obj.toString());
+
+
+                        // append to the line to write into the file
+                        line += String.format(Locale.US, "\t%e", Result);
+
+                        // add the datapoint to the graph
+                        m_Chart.AddXYDataPoint(m_SeriesIDs[i], Time, Result);
+
+                    } catch (Exception ex) {
+                            String str = "Executing the Command Line " + m_CommandLines.get(i) + "\n"
+                                + "did not return a valid object.\n"
+                                + "Returned object: " + (obj==null?"null":obj.toString()) + "\n"
+                                + "Please check the Command Line, the connection to the Instrument,\n"
+                                + "and the CPU load (which might cause sporadic communication errors).\n\n"
+                                + ex.getMessage() + "\n";
+
+                            // log event
+                            m_Logger.severe(str);
+
+                            // display the event
+                            m_GUI.DisplayStatusMessage(str);
                     }
+                }
 
+                // re-enable event notification upon adding new data points
+                // also sends a trigger to update the chart
+                m_Chart.setNotify(true);
 
-                    // wait the desired time
-                    try {
-                        Thread.sleep( Math.round(m_TimeInterval) );
-                    } catch (InterruptedException ex) {}
+
+                // write the line into the file
+                try {
+                    m_FileWriter.write(line);
+                    m_FileWriter.newLine();
+
+                } catch (IOException ex) {
+                    String str = "Error writing to file in MonitorChart.\n";
+                    m_Logger.log(Level.SEVERE, "{0}{1}\n", new Object[]{str, ex.getMessage()});
+                    m_GUI.DisplayStatusMessage(str);
                 }
+            }
+            
+            
+            @Override
+            public void stopped() {
 
                 // close the file
                 try {
@@ -630,7 +641,7 @@ public class iC_Instrument extends Device {
 
                 ////////////////////////
                 // save the chart as png
-                // after the thread has finished
+                // after the task has been stopped
                 try {
                     m_Chart.SaveAsPNG(m_FileForChart, 1024, 480);
                 } catch (IOException ex) {
@@ -728,21 +739,15 @@ public class iC_Instrument extends Device {
         }
 
 
-        /////////////////////
-        // prepare the thread
-
-        // make a new thread object
-        myThread myT = new myThread(YLabel);
+        ///////////////////
+        // prepare the task
 
-        // set the input channel in the thread object
-        myT.m_CommandLines = CommandLines;
+        // make a new task object
+        myTask myT = new myTask(YLabel, CommandLines, dev);
 
-        // pass the FileWriter to the thread
+        // pass the FileWriter to the task
         myT.m_FileWriter = fw;
 
-        // pass the Time Interval in sec
-        myT.m_TimeInterval = 1000 * TimeIntervall;
-
         // pass a new file for saving the graph as png
         myT.m_FileForChart = new File(FileName + ".png");
 
@@ -751,25 +756,8 @@ public class iC_Instrument extends Device {
         // Display a status message
         m_GUI.DisplayStatusMessage("Now starting MonitorChart.\n");
 
-        // start the thread and return
-        myT.start();
-        
-        // allow the thread to start
-        // Apparently it can happen that the stop signal is propagated to the
-        // Device class before the thread started, and the stop signal got
-        // lost somehow on the way (TODO 3* understand this)
-        // Test with 'test LM-500.iC' without the iC WaitForStop
-        // TODO wait here until the thread is running.
-        // 10ms delay help to propagate the StopSignal but the LM500
-        // is cleaned up before the thread can stop and the thread
-        // accesses it once when it is null
-        //try {Thread.sleep(10);} catch (InterruptedException ignore) {}
-        
-        // wait until the thread has started
-        // TODO 4* understand this and add it to the example code
-        while (myT.m_ThreadStarted == false) {
-            try {Thread.sleep(10);} catch (InterruptedException ignore) {}
-        }
+        // sample every TimeInterval seconds until scripting is stopped
+        PollingService.schedule(myT, Math.max(1, Math.round(1000 * TimeIntervall)));
         
     }//</editor-fold>
     
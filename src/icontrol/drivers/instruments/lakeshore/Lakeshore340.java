@@ -36,6 +36,7 @@ import icontrol.AutoGUIAnnotation;
 import icontrol.IcontrolView;
 import static icontrol.Utilities.getFloat;
 import icontrol.drivers.Device;
+import icontrol.drivers.ScriptProfiler;
 import icontrol.iC_Annotation;
 import icontrol.iC_ChartXY;
 import icontrol.iC_ChartXY.SeriesIdentification;
@@ -998,7 +999,7 @@ public class Lakeshore340 extends LakeshoreTC {
             }
             
             // wait a bit
-            try {Thread.sleep(AverageWaitTime);} catch (InterruptedException ex) {/*ignore*/}
+            try {ScriptProfiler.sleep(m_InstrumentName, AverageWaitTime);} catch (InterruptedException ex) {/*ignore*/}
         }
         
         // calculate average values
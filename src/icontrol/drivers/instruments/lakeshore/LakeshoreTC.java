@@ -35,6 +35,8 @@ import icontrol.IcontrolView;
 import static icontrol.Utilities.getInteger;
 import static icontrol.Utilities.getFloat;
 import icontrol.drivers.Device;
+import icontrol.drivers.ScriptProfiler;
+import icontrol.drivers.PollingService;
 import icontrol.iC_Annotation;
 import icontrol.iC_ChartXY;
 import icontrol.iC_ChartXY.SeriesIdentification;
@@ -46,6 +48,7 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Locale;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -471,7 +474,7 @@ public class LakeshoreTC extends Device {
                 }
 
                 // wait a bit
-                try { Thread.sleep(250); } catch (InterruptedException ex) {}
+                try { ScriptProfiler.sleep(m_InstrumentName, 250); } catch (InterruptedException ex) {}
 
                 // get current temperature
                 T = getTemp(Channel);
@@ -1022,8 +1025,8 @@ public class LakeshoreTC extends Device {
 
 
     /**
-     * Starts a new thread that reads the temperature of the given input channel
-     * at the given time interval and stores it in a file together with the
+     * Schedules a task (see <code>PollingService</code>) that reads the temperature
+     * of the given input channel at the given time interval and stores it in a file together with the
      * number of seconds elapsed since processing of the script started.<p>
      *
      * This methods performs a crude syntax check, hence it is called during
@@ -1053,14 +1056,15 @@ public class LakeshoreTC extends Device {
             throws DataFormatException {
 
         /**
-         * Implement a new class from an anonymous inner class that extends
-         * Thread and implements run(), in which the actual job is done.<p>
+         * Implement a new class from an anonymous inner class that implements
+         * <code>PollingService.PollingTask</code>; <code>sample</code> is called
+         * periodically by the <code>PollingService</code>.<p>
          *
-         * The thread pauses, respectively, stops when <code>m_Paused</code>, respectively,
-         * <code>m_StopScripting</code> is true.
+         * No samples are taken while scripting is paused, and the task is 
+         * cancelled when <code>m_StopScripting</code> is true.
          */
-        // <editor-fold defaultstate="collapsed" desc="myThread as anonymous inner class">
-        class myThread extends Thread {
+        // <editor-fold defaultstate="collapsed" desc="myTask as anonymous inner class">
+        class myTask implements PollingService.PollingTask {
             public String       m_InputChannel;
 
             /** The file with the monitored temperature as text */
@@ -1069,9 +1073,6 @@ public class LakeshoreTC extends Device {
             /** The file with the monitored temperature as png */
             public File         m_FileForChart;
 
-            /** The time between two temperature measurements in sec */
-            public float        m_TimeInterval;
-
 
             // Identification of the Data Series
             private SeriesIdentification    m_SeriesID;
@@ -1083,7 +1084,7 @@ public class LakeshoreTC extends Device {
             /**
              * Default constructor. Prepares the XY chart
              */
-            public myThread() {
+            public myTask() {
 
                 // make a new XYChart object
                 m_Chart = new iC_ChartXY("Monitoring '" + m_InstrumentName + "'",
@@ -1104,64 +1105,65 @@ public class LakeshoreTC extends Device {
 
 
             @Override
-            public void run() {
+            public void sample(long DueTime) {
                 // local variables
                 float Temp = 0.0f;
 
-                // do until the thread should be stopped
-                while ( m_StopScripting == false) {
-
-                    // check for pause button
-                    isPaused(true);
-
-                    // get temperature
-                    try {
-                        Temp = getTemp(m_InputChannel);
-
-                    } catch (Exception ex) {
-                        // an error is (not anymore) expected when in No-Communication-Mode
-                        // ignore it anyways. (ReadTemp now return -1.1 when in N-C-M)
-                        if ( !inNoCommunicationMode() ) {
-                            m_Logger.log(Level.SEVERE, "Lakeshore340#MonitorTemp: Could not read the temperature.", ex);
-
-                            m_GUI.DisplayStatusMessage("Error reading temperature in MonitorTemp.\n");
-
-                        } else {
-                            m_GUI.DisplayStatusMessage("Monitoring temperature in No-Communication-Mode.\n");
-                        }
+                // get temperature; other tasks polling the same channel
+                // at the same time share the result
+                try {
+                    Temp = PollingService.query(
+                            PollingService.makeKey(m_InstrumentName, "getTemp", new Object[]{m_InputChannel}),
+                            DueTime, new Callable<Float>() {
+                                @Override
+                                public Float call() throws Exception {
+                                    return getTemp(m_InputChannel);
+                                }
+                            });
+
+                } catch (Exception ex) {
+                    // an error is (not anymore) expected when in No-Communication-Mode
+                    // ignore it anyways. (ReadTemp now return -1.1 when in N-C-M)
+                    if ( !inNoCommunicationMode() ) {
+                        m_Logger.log(Level.SEVERE, "Lakeshore340#MonitorTemp: Could not read the temperature.", ex);
+
+                        m_GUI.DisplayStatusMessage("Error reading temperature in MonitorTemp.\n");
+
+                    } else {
+                        m_GUI.DisplayStatusMessage("Monitoring temperature in No-Communication-Mode.\n");
                     }
+                }
 
-                    // get elapsed time in seconds
-                    double Time = (System.currentTimeMillis() - m_tic) / 1000.0;
-
-
-                    // make the line to write in the file
-                    // use Local.US to ensure a '.' is used as comma
-                    // (in german a ',' is used as decimal point, which is sometimes
-                    // not recognized as decimal point by some other programs like
-                    // Origin, IgorPro, Matlab, Excel, ...
-                    String line =
-                            String.format(Locale.US, "%.3f\t%f\n", Time, Temp);
+                // get elapsed time in seconds
+                double Time = (System.currentTimeMillis() - m_tic) / 1000.0;
 
-                    // write into the file
-                    try {
-                        m_FileWriter.write(line);
 
-                    } catch (IOException ex) {
-                        m_Logger.log(Level.SEVERE, "MonitorTemp.run(): could not write to FileWriter.", ex);
+                // make the line to write in the file
+                // use Local.US to ensure a '.' is used as comma
+                // (in german a ',' is used as decimal point, which is sometimes
+                // not recognized as decimal point by some other programs like
+                // Origin, IgorPro, Matlab, Excel, ...
+                String line =
+                        String.format(Locale.US, "%.3f\t%f\n", Time, Temp);
 
-                        m_GUI.DisplayStatusMessage("Error writing to file in MonitorTemp.\n");
-                    }
+                // write into the file
+                try {
+                    m_FileWriter.write(line);
 
-                    // add the datapoint to the graph
-                    m_Chart.AddXYDataPoint(m_SeriesID, Time, Temp);
+                } catch (IOException ex) {
+                    m_Logger.log(Level.SEVERE, "MonitorTemp.sample(): could not write to FileWriter.", ex);
 
-                    // wait the desired time
-                    try {
-                        Thread.sleep( Math.round(m_TimeInterval) );
-                    } catch (InterruptedException ex) {}
+                    m_GUI.DisplayStatusMessage("Error writing to file in MonitorTemp.\n");
                 }
 
+                // add the datapoint to the graph
+                m_Chart.AddXYDataPoint(m_SeriesID, Time, Temp);
+            }
+            
+            
+            @Override
+            public void stopped() {
+
                 // close the file
                 try {
                     m_FileWriter.close();
@@ -1175,7 +1177,7 @@ public class LakeshoreTC extends Device {
 
                 ////////////////////////
                 // save the chart as png
-                // after the thread has finished
+                // after the task has been stopped
                 try {
                     m_Chart.SaveAsPNG(m_FileForChart, 1024, 480);
                 } catch (IOException ex) {
@@ -1225,21 +1227,18 @@ public class LakeshoreTC extends Device {
         }
 
 
-        /////////////////////
-        // prepare the thread
+        ///////////////////
+        // prepare the task
 
-        // make a new thread object
-        myThread myT = new myThread();
+        // make a new task object
+        myTask myT = new myTask();
 
-        // set the input channel in the thread object
+        // set the input channel in the task object
         myT.m_InputChannel = InputChannel;
 
-        // pass the FileWriter to the thread
+        // pass the FileWriter to the task
         myT.m_FileWriter = fw;
 
-        // pass the Time Interval in sec
-        myT.m_TimeInterval = 1000 * TimeIntervall;
-
         // pass a new file for saving the graph as png
         myT.m_FileForChart = new File(FileName + ".png");
 
@@ -1248,8 +1247,8 @@ public class LakeshoreTC extends Device {
         // Display a status message
         m_GUI.DisplayStatusMessage("Now starting to monitor the temperature.\n");
 
-        // start the thread and return
-        myT.start();
+        // sample every TimeInterval seconds until scripting is stopped
+        PollingService.schedule(myT, Math.max(1, Math.round(1000 * TimeIntervall)));
     }//</editor-fold>
 
     /** 
@@ -40,11 +40,14 @@ import icontrol.iC_Annotation;
 import icontrol.iC_ChartXY;
 import icontrol.iC_ChartXY.SeriesIdentification;
 import icontrol.drivers.Device.CommPorts;
+import icontrol.drivers.TMCTL_Driver;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -107,6 +110,68 @@ public class YokogawaDL9000 extends Device {
      */
     // change the Logger name to the name of your class
     private static final Logger m_Logger = Logger.getLogger("iC.Instruments.YokogawaDL9000");
+    
+    
+    /**
+     * Converts the samples of a waveform into voltage values while it is 
+     * received as Block Data (see <code>Device.StreamBinaryBlock</code>),
+     * so the waveform does not need to be held in memory as raw data. A 16 bit
+     * sample can be split between two chunks.
+     */
+    static class WaveformDecoder implements TMCTL_Driver.BlockDataConsumer {
+        
+        /** The converted voltages */
+        private final float[] m_Voltages;
+        
+        /** Scale (V/division) and offset of the waveform */
+        private final float m_Scale, m_Offset;
+        
+        /** 16 bit or 8 bit samples */
+        private final boolean m_Is16Bit;
+        
+        /** Index of the next voltage */
+        private int m_Index = 0;
+        
+        /** The first byte of a 16 bit sample that was split between chunks, or -1 */
+        private int m_HighByte = -1;
+        
+        
+        public WaveformDecoder(float[] Voltages, float Scale, float Offset, boolean Is16Bit) {
+            m_Voltages = Voltages;
+            m_Scale = Scale;
+            m_Offset = Offset;
+            m_Is16Bit = Is16Bit;
+        }
+        
+        @Override
+        public void begin(int NrDataBytes) {}
+        
+        @Override
+        public void accept(ByteBuffer Chunk) {
+            
+            while (Chunk.hasRemaining() && m_Index < m_Voltages.length) {
+                
+                if (m_Is16Bit) {
+                    short Sample;
+                    if (m_HighByte >= 0) {
+                        // complete a split sample (big endian like ByteBuffer.getShort)
+                        Sample = (short) ((m_HighByte << 8) | (Chunk.get() & 0xFF));
+                        m_HighByte = -1;
+                    } else if (Chunk.remaining() >= 2) {
+                        Sample = Chunk.getShort();
+                    } else {
+                        // the sample continues in the next chunk
+                        m_HighByte = Chunk.get() & 0xFF;
+                        break;
+                    }
+                    m_Voltages[m_Index++] = m_Scale * Sample / 3200f + m_Offset;
+                    
+                } else {
+                    m_Voltages[m_Index++] = m_Scale * Chunk.get() / 12.5f + m_Offset;
+                }
+            }
+        }
+    }
 
     
     /**
@@ -224,7 +289,7 @@ public class YokogawaDL9000 extends Device {
         long tic = System.currentTimeMillis();
         
         // lock the Lock
-        m_LockTMCTLlib.lock();
+        getCommLock().lock();
         
 
         // it's good to catch all exceptions to be able to release the lock in 
@@ -411,11 +476,8 @@ public class YokogawaDL9000 extends Device {
                 SendToInstrument(":Waveform:Start 0;End " + (NrDataPoints-1));
 
 
-                // request to send Waveform
-                SendToInstrument("Waveform:Send?");
-
-                // receive the waveform as Block Data
-                ByteBuffer DataBytes = m_TMCTL_Driver.ReceiveBlockData();
+                // request to send Waveform and receive it as Block Data
+                ByteBuffer DataBytes = QueryBinaryBlock("Waveform:Send?");
 
                 // initialize starting position
                 DataBytes.rewind();
@@ -455,7 +517,7 @@ public class YokogawaDL9000 extends Device {
         } finally {
             // unlock the Lock (probably not necessary as if an error occured
             // scripting stops and in the next run, a new Lock is instantiated)
-            m_LockTMCTLlib.unlock();
+            getCommLock().unlock();
         }
         
         // toc
@@ -931,7 +993,7 @@ public class YokogawaDL9000 extends Device {
 
         // lock the Lock
 
-        m_LockTMCTLlib.lock();
+        getCommLock().lock();
 
         
 
@@ -1293,15 +1355,9 @@ public class YokogawaDL9000 extends Device {
 
 
 
-                // request to send Waveform
-
-                SendToInstrument("Waveform:Send?");
-
-
+                // request to send Waveform and receive it as Block Data
 
-                // receive the waveform as Block Data
-
-                ByteBuffer DataBytes = m_TMCTL_Driver.ReceiveBlockData();
+                ByteBuffer DataBytes = QueryBinaryBlock("Waveform:Send?");
 
 
 
@@ -1381,7 +1437,7 @@ public class YokogawaDL9000 extends Device {
 
             // scripting stops and in the next run, a new Lock is instantiated)
 
-            m_LockTMCTLlib.unlock();
+            getCommLock().unlock();
 
         }
 
@@ -1671,7 +1727,7 @@ public class YokogawaDL9000 extends Device {
 
         // lock the Lock
 
-        m_LockTMCTLlib.lock();
+        getCommLock().lock();
 
         
 
@@ -2099,34 +2155,6 @@ HoldQuery = getFloat(dummy);
 
 
 
-                // set to receive entire waveform
-
-                SendToInstrument(":Waveform:Start 0;End " + (NrDataPoints-1));
-
-
-
-
-
-                // request to send Waveform
-
-                SendToInstrument("Waveform:Send?");
-
-
-
-                // receive the waveform as Block Data
-
-                ByteBuffer DataBytes = m_TMCTL_Driver.ReceiveBlockData();
-
-
-
-                // initialize starting position
-
-                DataBytes.rewind();
-
-
-
-
-
                 // query number of bits per data point of the currently selected trace
 
                 dummy = QueryInstrument("Waveform:Bits?").replaceFirst("(:.+)+\\s", "");
@@ -2147,28 +2175,43 @@ HoldQuery = getFloat(dummy);
 
 
 
-                // convert into voltage values
+                // set to receive entire waveform
 
-                for (int t=0; t < NrDataPoints; t++) {
+                SendToInstrument(":Waveform:Start 0;End " + (NrDataPoints-1));
 
 
 
-                    // get next voltage
+                // request to send Waveform, and convert it into voltage values
 
-                    if (Is16Bit) {
+                // while it is received as Block Data, and save the raw data if so desired
 
-                        TV_Matrix[ch][t] = Scale * DataBytes.getShort() / 3200f + Offset;
+                WaveformDecoder Decoder = new WaveformDecoder(TV_Matrix[ch], Scale, Offset, Is16Bit);
 
-                    } else {
+                if (m_iC_Properties.getInt("YokogawaDL9000.SaveHistory.SaveRawData", 0) == 1) {
 
-                        TV_Matrix[ch][t] = Scale * DataBytes.get() / 12.5f + Offset;
+                    FileChannel RawData = new FileOutputStream(
+
+                            m_GUI.getFileName(x + ".ch" + CurrentChannel + ".bin")).getChannel();
+
+                    try {
+
+                        StreamBinaryBlock("Waveform:Send?", Decoder, TMCTL_Driver.toChannel(RawData));
+
+                    } finally {
+
+                        RawData.close();
 
                     }
 
+                } else {
+
+                    StreamBinaryBlock("Waveform:Send?", Decoder);
+
                 }
 
             }   // end iterate through all channels to save
 
+
             
 
         } catch (ScriptException ex1) {
@@ -2493,7 +2536,7 @@ HoldQuery = getFloat(dummy);
 
             // scripting stops and in the next run, a new Lock is instantiated)
 
-            m_LockTMCTLlib.unlock();
+            getCommLock().unlock();
 
             m_GUI.DisplayStatusMessage("Script complete -- JMD");
 
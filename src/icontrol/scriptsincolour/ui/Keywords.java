@@ -11,7 +11,8 @@ import java.util.Set;
 public interface Keywords {
 
 	Set<String> IControl = new HashSet<String>(Arrays.asList(
-			"MAKE", "GPIB", "URL", "TMCTL"
+			"MAKE", "GPIB", "URL", "TMCTL", "PARALLEL", "BRANCH", "JOIN",
+			"SET", "FOR", "END", "LOG"
 			));
 	
 	Set<String> Python = new HashSet<String>(Arrays.asList(
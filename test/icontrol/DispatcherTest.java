@@ -0,0 +1,435 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol;
+
+import icontrol.Dispatcher.CompiledLine;
+import icontrol.Dispatcher.LineType;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.script.ScriptException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the Dispatcher class.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class DispatcherTest extends IcontrolTests {
+    
+    /** The Dispatcher to test */
+    private Dispatcher m_Dispatcher;
+    
+    /** Records the Status Messages of the scripts run by <code>runScript</code> */
+    private RecordingGUI m_RecordingGUI;
+    
+    /** Holds the iC Sub-Scripts INCLUDED by the tests */
+    @Rule
+    public TemporaryFolder m_Folder = new TemporaryFolder();
+    
+    
+    /**
+     * A GUI that records the Status Messages.
+     */
+    private static class RecordingGUI extends GUI_InterfaceMockup {
+        
+        /** The Status Messages */
+        final List<String> Messages = Collections.synchronizedList(new ArrayList<String>());
+        
+        @Override
+        public void DisplayStatusMessage(String StatusMessage) {
+            Messages.add(StatusMessage);
+        }
+        
+        @Override
+        public void DisplayStatusMessage(String StatusMessage, boolean AddTimeStamp) {
+            Messages.add(StatusMessage);
+        }
+        
+        @Override
+        public String DisplayStatusLine(String StatusText, boolean FadeOut) {
+            return StatusText;
+        }
+        
+        @Override
+        public void DoneScripting(boolean Erroroccurred) {}
+    }
+    
+    
+    @Before
+    public void setUp() {
+        m_RecordingGUI = new RecordingGUI();
+        m_Dispatcher = new Dispatcher(m_RecordingGUI);
+    }
+    
+    
+    /**
+     * Tests that <code>compileLine</code> identifies the type of the line
+     * and splits off the Arguments.
+     */
+    @Test
+    public void compileLine_LineTypes() throws ScriptException {
+        
+        Assert.assertEquals(LineType.SKIP, compile("").Type);
+        Assert.assertEquals(LineType.SKIP, compile("   % a comment").Type);
+        Assert.assertEquals(LineType.SKIP, compile("// a comment").Type);
+        
+        CompiledLine Compiled = compile("MAKE Tsample; Lakeshore 340; GPIB=12");
+        Assert.assertEquals(LineType.MAKE, Compiled.Type);
+        Assert.assertEquals(Arrays.asList("Tsample", "Lakeshore 340", "GPIB=12"), 
+                Compiled.Arguments);
+        
+        Compiled = compile("include Sub.iC");
+        Assert.assertEquals(LineType.INCLUDE, Compiled.Type);
+        Assert.assertEquals(Arrays.asList("Sub.iC"), Compiled.Arguments);
+        
+        // commands are compiled when they are dispatched
+        Compiled = compile("Tsample setTemp 300 % comment");
+        Assert.assertEquals(LineType.COMMAND, Compiled.Type);
+        Assert.assertEquals("Tsample setTemp 300 % comment", Compiled.Line);
+        Assert.assertNull(Compiled.Command);
+    }
+    
+    
+    /**
+     * Tests that consecutive Python lines are combined and executed with
+     * the last line.
+     */
+    @Test
+    public void compileLine_PythonLines() throws ScriptException {
+        
+        StringBuilder PythonCommands = new StringBuilder();
+        
+        CompiledLine First = m_Dispatcher.compileLine("|for i in range(3):", 
+                "  |  print i", PythonCommands, false, false);
+        Assert.assertEquals(LineType.SKIP, First.Type);
+        
+        CompiledLine Last = m_Dispatcher.compileLine("  |  print i", 
+                "Tsample setTemp 300", PythonCommands, false, false);
+        Assert.assertEquals(LineType.PYTHON, Last.Type);
+        Assert.assertEquals("for i in range(3):\n  print i\n", Last.PythonCommands);
+        Assert.assertEquals(0, PythonCommands.length());
+        
+        // a Python line that is the last line of the script
+        Last = m_Dispatcher.compileLine("|print 'done'", null, PythonCommands, false, false);
+        Assert.assertEquals(LineType.PYTHON, Last.Type);
+        Assert.assertEquals("print 'done'\n", Last.PythonCommands);
+    }
+    
+    
+    /**
+     * Tests that MAKE is rejected inside a FOR loop.
+     */
+    @Test(expected = ScriptException.class)
+    public void compileLine_MakeInLoop() throws ScriptException {
+        m_Dispatcher.compileLine("MAKE Tsample; Lakeshore 340; GPIB=12", null, 
+                new StringBuilder(), false, true);
+    }
+    
+    
+    /**
+     * Tests that SET and FOR commands are parsed into the variable and the
+     * operands, and that invalid commands are rejected.
+     */
+    @Test
+    public void compileLine_SetFor() throws ScriptException {
+        
+        CompiledLine Compiled = compile("SET Volt = 1.5e-3 % comment");
+        Assert.assertEquals(LineType.SET, Compiled.Type);
+        Assert.assertEquals("Volt", Compiled.Variable);
+        Assert.assertArrayEquals(new String[] {"1.5e-3"}, Compiled.Operands);
+        
+        Compiled = compile("for f = 1 : 10 : $fmax");
+        Assert.assertEquals(LineType.FOR, Compiled.Type);
+        Assert.assertEquals("f", Compiled.Variable);
+        Assert.assertArrayEquals(new String[] {"1", "10", "$fmax"}, Compiled.Operands);
+        Assert.assertFalse(Compiled.Logarithmic);
+        
+        Compiled = compile("FOR f = 1:5:1e6 LOG");
+        Assert.assertArrayEquals(new String[] {"1", "5", "1e6"}, Compiled.Operands);
+        Assert.assertTrue(Compiled.Logarithmic);
+        
+        Assert.assertEquals(LineType.END, compile("END").Type);
+        
+        // invalid commands
+        assertCompileFails("SET Volt 1", false);
+        assertCompileFails("SET 1Volt = 1", false);
+        assertCompileFails("FOR x = 1:2", false);
+        assertCompileFails("FOR x = 1:2:3 LIN", false);
+        
+        // not allowed inside a PARALLEL block
+        assertCompileFails("SET x = 1", true);
+        assertCompileFails("FOR x = 1:1:3", true);
+        assertCompileFails("END", true);
+    }
+    
+    
+    /**
+     * Tests that FOR loops generate linearly and logarithmically spaced 
+     * values, also in descending order, that loops can be nested, and that
+     * the values of SET and FOR variables are passed to Instrument-Commands.
+     */
+    @Test
+    public void run_For() {
+        
+        List<String> Messages = runScript(
+                "MAKE ic; iC-control; none",
+                "FOR x = 1:1:3",
+                "ic DisplayStatusMessage $x",
+                "END",
+                "FOR x = 0.3:-0.1:0.1",
+                "ic DisplayStatusMessage $x",
+                "END",
+                "FOR f = 1:1:100 LOG",
+                "ic DisplayStatusMessage $f",
+                "END");
+        Assert.assertEquals(Arrays.asList("1\n", "2\n", "3\n", "0.3\n", "0.2\n", "0.1\n",
+                "1\n", "10\n", "100\n"), Messages);
+        
+        Messages = runScript(
+                "MAKE ic; iC-control; none",
+                "SET n = 2",
+                "FOR a = 1:1:$n",
+                "FOR b = $a:1:$n",
+                "ic DisplayStatusMessage $b",
+                "END",
+                "ic DisplayStatusMessage $a",
+                "END",
+                "ic DisplayStatusMessage $a");
+        Assert.assertEquals(Arrays.asList("1\n", "2\n", "1\n", "2\n", "2\n", "2\n"), 
+                Messages);
+    }
+    
+    
+    /**
+     * Tests that the branches of a PARALLEL block are processed after JOIN,
+     * and that the script continues after the block.
+     */
+    @Test
+    public void run_Parallel() {
+        
+        List<String> Messages = runScript(
+                "MAKE ic; iC-control; none",
+                "PARALLEL",
+                "ic DisplayStatusMessage A1",
+                "ic DisplayStatusMessage A2",
+                "BRANCH",
+                "ic DisplayStatusMessage B1",
+                "JOIN",
+                "ic DisplayStatusMessage done");
+        
+        // the order of the branches is not defined, but the order within a branch is
+        Assert.assertEquals(4, Messages.size());
+        Assert.assertTrue(Messages.indexOf("A1\n") < Messages.indexOf("A2\n"));
+        Assert.assertTrue(Messages.contains("B1\n"));
+        Assert.assertEquals("done\n", Messages.get(3));
+    }
+    
+    
+    /**
+     * Tests that the structure of PARALLEL blocks is checked.
+     */
+    @Test
+    public void compileLine_ParallelStructure() throws ScriptException {
+        
+        // allowed inside a PARALLEL block
+        Assert.assertEquals(LineType.COMMAND, 
+                m_Dispatcher.compileLine("ic Wait 1", null, new StringBuilder(), true, false).Type);
+        Assert.assertEquals(LineType.BRANCH, 
+                m_Dispatcher.compileLine("BRANCH", null, new StringBuilder(), true, false).Type);
+        Assert.assertEquals(LineType.JOIN, 
+                m_Dispatcher.compileLine("join", null, new StringBuilder(), true, false).Type);
+        
+        // not allowed inside a PARALLEL block
+        assertCompileFails("PARALLEL", true);
+        assertCompileFails("MAKE ic; iC-control; none", true);
+        assertCompileFails("INCLUDE Sub.iC", true);
+        assertCompileFails("|print 1", true);
+        
+        // not allowed outside of a PARALLEL block
+        assertCompileFails("BRANCH", false);
+        assertCompileFails("JOIN", false);
+        
+        // no arguments allowed
+        assertCompileFails("PARALLEL 2", false);
+        assertCompileFails("JOIN now", true);
+    }
+    
+    
+    /**
+     * Tests that the Syntax-Check is skipped when neither the script nor
+     * the INCLUDED Sub-Script changed, and that it is done again when the
+     * Sub-Script changed.
+     */
+    @Test
+    public void syntaxCheck_Cache() throws IOException {
+        
+        File Sub = m_Folder.newFile("Sub.iC");
+        writeFile(Sub, "MAKE ic; iC-control; none\n");
+        
+        m_Dispatcher.setCommandList(new ArrayList<String>(Arrays.asList(
+                "INCLUDE " + Sub.getAbsolutePath(),
+                "ic DisplayStatusMessage A")));
+        m_Dispatcher.setSyntaxCheckMode(true);
+        
+        // the first Syntax-Check checks the script
+        Assert.assertFalse(syntaxCheckSkipped());
+        
+        // the script did not change
+        Assert.assertTrue(syntaxCheckSkipped());
+        
+        // the Sub-Script changed
+        writeFile(Sub, "MAKE ic; iC-control; none\n% a comment\n");
+        Assert.assertFalse(syntaxCheckSkipped());
+        Assert.assertTrue(syntaxCheckSkipped());
+        
+        // the script changed
+        m_Dispatcher.setCommandList(new ArrayList<String>(Arrays.asList(
+                "INCLUDE " + Sub.getAbsolutePath(),
+                "ic DisplayStatusMessage B")));
+        Assert.assertFalse(syntaxCheckSkipped());
+    }
+    
+    
+    /**
+     * Tests that an iC Sub-Script INCLUDED several times, also from another
+     * Sub-Script, is processed each time it is INCLUDED, and that the script
+     * continues after the INCLUDE command.
+     */
+    @Test
+    public void run_Include() throws IOException {
+        
+        File Sub = m_Folder.newFile("Sub.iC");
+        writeFile(Sub, "ic DisplayStatusMessage S1\nic DisplayStatusMessage S2\n");
+        
+        File Outer = m_Folder.newFile("Outer.iC");
+        writeFile(Outer, "INCLUDE " + Sub.getAbsolutePath() + "\nic DisplayStatusMessage O\n");
+        
+        List<String> Messages = runScript(
+                "MAKE ic; iC-control; none",
+                "INCLUDE " + Sub.getAbsolutePath(),
+                "INCLUDE " + Outer.getAbsolutePath(),
+                "ic DisplayStatusMessage M");
+        
+        Assert.assertEquals(Arrays.asList("S1\n", "S2\n", "S1\n", "S2\n", "O\n", "M\n"),
+                Messages);
+    }
+    
+    
+    /**
+     * Runs the Syntax-Check.
+     * 
+     * @return <code>true</code> if the Syntax-Check was skipped because the
+     * script did not change
+     */
+    private boolean syntaxCheckSkipped() {
+        
+        m_RecordingGUI.Messages.clear();
+        m_Dispatcher.run();
+        Assert.assertFalse("Syntax-Check failed", m_Dispatcher.getErrorFlag());
+        
+        return m_RecordingGUI.Messages.toString().contains("did not change");
+    }
+    
+    
+    /**
+     * Writes the content into the file.
+     */
+    private static void writeFile(File f, String Content) throws IOException {
+        FileWriter fw = new FileWriter(f);
+        try {
+            fw.write(Content);
+        } finally {
+            fw.close();
+        }
+    }
+    
+    
+    /**
+     * Runs the Syntax-Check and then the real run of the script with all 
+     * Instruments in No-Communication mode.
+     * 
+     * @return The Status Messages of the real run, except the messages of
+     * the MAKE and INCLUDE commands
+     */
+    private List<String> runScript(String... Lines) {
+        
+        m_Dispatcher.setCommandList(new ArrayList<String>(Arrays.asList(Lines)));
+        
+        m_Dispatcher.setSyntaxCheckMode(true);
+        m_Dispatcher.run();
+        Assert.assertFalse("Syntax-Check failed", m_Dispatcher.getErrorFlag());
+        
+        m_RecordingGUI.Messages.clear();
+        m_Dispatcher.setSyntaxCheckMode(false);
+        m_Dispatcher.run();
+        Assert.assertFalse("Run failed", m_Dispatcher.getErrorFlag());
+        
+        // skip the messages of the MAKE and INCLUDE commands
+        ArrayList<String> Messages = new ArrayList<String>();
+        for (String Message : m_RecordingGUI.Messages) {
+            if ( !Message.startsWith("Made ") && !Message.startsWith("Included file ") ) {
+                Messages.add(Message);
+            }
+        }
+        return Messages;
+    }
+    
+    
+    /**
+     * Asserts that compiling the line throws a ScriptException.
+     */
+    private void assertCompileFails(String Line, boolean InParallelBlock) {
+        try {
+            m_Dispatcher.compileLine(Line, null, new StringBuilder(), InParallelBlock, false);
+            Assert.fail("Expected a ScriptException for '" + Line + "'");
+        } catch (ScriptException ex) {
+            // expected
+        }
+    }
+    
+    
+    /**
+     * Compiles a single line outside of PARALLEL blocks and FOR loops.
+     */
+    private CompiledLine compile(String Line) throws ScriptException {
+        return m_Dispatcher.compileLine(Line, null, new StringBuilder(), false, false);
+    }
+}
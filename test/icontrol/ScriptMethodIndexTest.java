@@ -0,0 +1,135 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol;
+
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/**
+ * Tests for the ScriptMethodIndex class.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class ScriptMethodIndexTest {
+    
+    /**
+     * Tests that overloaded Script-Methods are found by their name and 
+     * number of arguments.
+     */
+    @Test
+    public void find_Overloads() {
+        
+        ScriptMethod Set0 = makeScriptMethod("setTemp");
+        ScriptMethod Set1 = makeScriptMethod("setTemp", Double.TYPE);
+        ScriptMethod Set2 = makeScriptMethod("setTemp", Double.TYPE, String.class);
+        ScriptMethod Get = makeScriptMethod("getTemp", Integer.TYPE);
+        
+        ScriptMethodIndex Index = new ScriptMethodIndex(Arrays.asList(Set0, Set1, Set2, Get));
+        
+        assertFound(Set0, Index.find("setTemp", 0));
+        assertFound(Set1, Index.find("setTemp", 1));
+        assertFound(Set2, Index.find("setTemp", 2));
+        assertFound(Get, Index.find("getTemp", 1));
+        
+        // wrong number of arguments, unknown name, and names are case sensitive
+        Assert.assertTrue(Index.find("setTemp", 3).isEmpty());
+        Assert.assertTrue(Index.find("getTemp", 0).isEmpty());
+        Assert.assertTrue(Index.find("setRange", 1).isEmpty());
+        Assert.assertTrue(Index.find("settemp", 1).isEmpty());
+        
+        Assert.assertTrue(Index.contains("setTemp"));
+        Assert.assertFalse(Index.contains("SetTemp"));
+    }
+    
+    
+    /**
+     * Tests that Script-Methods with the same name and number of arguments
+     * are all returned, so that the ambiguity can be reported.
+     */
+    @Test
+    public void find_SameNumberOfArguments() {
+        
+        ScriptMethod SetDouble = makeScriptMethod("setTemp", Double.TYPE);
+        ScriptMethod SetString = makeScriptMethod("setTemp", String.class);
+        
+        ScriptMethodIndex Index = new ScriptMethodIndex(Arrays.asList(SetDouble, SetString));
+        
+        List<ScriptMethod> Found = Index.find("setTemp", 1);
+        Assert.assertEquals(2, Found.size());
+        Assert.assertSame(SetDouble, Found.get(0));
+        Assert.assertSame(SetString, Found.get(1));
+    }
+    
+    
+    /**
+     * Tests that all Script-Methods are returned in the order they were
+     * found and that the list cannot be modified.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void getAll() {
+        
+        ScriptMethod A = makeScriptMethod("b");
+        ScriptMethod B = makeScriptMethod("a", Boolean.TYPE);
+        
+        ScriptMethodIndex Index = new ScriptMethodIndex(Arrays.asList(A, B));
+        Assert.assertEquals(2, Index.getAll().size());
+        Assert.assertSame(A, Index.getAll().get(0));
+        Assert.assertSame(B, Index.getAll().get(1));
+        
+        Index.getAll().clear();
+    }
+    
+    
+    /**
+     * Asserts that exactly the expected Script-Method was found. Note that
+     * <code>ScriptMethod.equals</code> only compares the names.
+     */
+    private static void assertFound(ScriptMethod Expected, List<ScriptMethod> Found) {
+        Assert.assertEquals(1, Found.size());
+        Assert.assertSame(Expected, Found.get(0));
+    }
+    
+    
+    /**
+     * Makes a Script-Method with the given name and parameter types.
+     */
+    private static ScriptMethod makeScriptMethod(String Name, Class<?>... ParameterTypes) {
+        
+        ScriptMethod met = new ScriptMethod();
+        met.DeviceCommandName = Name;
+        met.ParameterTypes = ParameterTypes;
+        
+        return met;
+    }
+}
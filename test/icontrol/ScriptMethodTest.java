@@ -0,0 +1,248 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import javax.script.ScriptException;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/**
+ * Tests for the ScriptMethod class.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class ScriptMethodTest {
+    
+    /**
+     * An Instrument stand-in with public Script-Methods.
+     */
+    public static class Probe {
+        
+        public double LastValue;
+        
+        public String setValue(double Value, int Channel, boolean Enable, String Unit) {
+            LastValue = Value;
+            return Channel + " " + Enable + " " + Unit;
+        }
+        
+        public void fail() throws IOException {
+            throw new IOException("Probe failed");
+        }
+        
+        public static int twice(int Value) {
+            return 2 * Value;
+        }
+        
+        public int length(String Text) {
+            return Text.length();
+        }
+    }
+    
+    
+    /**
+     * Tests that <code>prepareInvocation</code> builds the converters and the
+     * MethodHandle, and that <code>invoke</code> calls the method with the
+     * converted arguments.
+     */
+    @Test
+    public void invoke_WithHandle() throws Exception {
+        
+        ScriptMethod met = makeScriptMethod("setValue", 
+                Double.TYPE, Integer.TYPE, Boolean.TYPE, String.class);
+        met.prepareInvocation();
+        
+        Assert.assertNotNull(met.Handle);
+        Assert.assertEquals(4, met.Converters.length);
+        
+        // convert the Tokens of a Command-Line
+        String[] Tokens = {"1.5e-3", "+2", "true", "mV"};
+        Object[] Arguments = new Object[Tokens.length];
+        for (int i=0; i<Tokens.length; i++) {
+            Arguments[i] = met.Converters[i].convert(Tokens[i]);
+        }
+        Assert.assertEquals(1.5e-3, (Double) Arguments[0], 0);
+        Assert.assertEquals(2, Arguments[1]);
+        Assert.assertEquals(Boolean.TRUE, Arguments[2]);
+        Assert.assertEquals("mV", Arguments[3]);
+        
+        Probe Instance = new Probe();
+        Assert.assertEquals("2 true mV", met.invoke(Instance, Arguments));
+        Assert.assertEquals(1.5e-3, Instance.LastValue, 0);
+    }
+    
+    
+    /**
+     * Tests that exceptions thrown by the invoked method are wrapped in an 
+     * <code>InvocationTargetException</code> like <code>Method.invoke</code> does.
+     */
+    @Test
+    public void invoke_WrapsExceptions() throws Exception {
+        
+        ScriptMethod met = makeScriptMethod("fail");
+        met.prepareInvocation();
+        
+        try {
+            met.invoke(new Probe(), new Object[0]);
+            Assert.fail("Expected an InvocationTargetException");
+            
+        } catch (InvocationTargetException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IOException);
+            Assert.assertEquals("Probe failed", ex.getCause().getMessage());
+        }
+    }
+    
+    
+    /**
+     * Tests that static Script-Methods can be invoked; the Instance is ignored.
+     */
+    @Test
+    public void invoke_Static() throws Exception {
+        
+        ScriptMethod met = makeScriptMethod("twice", Integer.TYPE);
+        met.prepareInvocation();
+        
+        Assert.assertNotNull(met.Handle);
+        Assert.assertEquals(6, met.invoke(new Probe(), new Object[] {3}));
+    }
+    
+    
+    /**
+     * Tests that unsuitable arguments are reported as <code>IllegalArgumentException</code>
+     * like <code>Method.invoke</code> does, and not as an exception of the method.
+     */
+    @Test
+    public void invoke_IllegalArguments() throws Exception {
+        
+        ScriptMethod met = makeScriptMethod("setValue", 
+                Double.TYPE, Integer.TYPE, Boolean.TYPE, String.class);
+        met.prepareInvocation();
+        Probe Instance = new Probe();
+        
+        // wrong type
+        assertIllegalArgument(met, Instance, new Object[] {"1.5", 2, true, "mV"});
+        assertIllegalArgument(met, Instance, new Object[] {1.5, 2, true, 3});
+        
+        // null for a primitive
+        assertIllegalArgument(met, Instance, new Object[] {1.5, null, true, "mV"});
+        
+        // wrong number of arguments
+        assertIllegalArgument(met, Instance, new Object[] {1.5, 2, true});
+        assertIllegalArgument(met, Instance, null);
+        
+        // wrong Instance
+        assertIllegalArgument(met, "no Probe", new Object[] {1.5, 2, true, "mV"});
+        
+        // null for an Object is fine
+        Assert.assertEquals("2 true null", met.invoke(Instance, new Object[] {1.5, 2, true, null}));
+    }
+    
+    
+    /**
+     * Tests that widening conversions are applied like <code>Method.invoke</code>
+     * does, and that a NullPointerException thrown by the method itself is still
+     * wrapped in an <code>InvocationTargetException</code>.
+     */
+    @Test
+    public void invoke_Conversions() throws Exception {
+        
+        ScriptMethod met = makeScriptMethod("twice", Integer.TYPE);
+        met.prepareInvocation();
+        Assert.assertEquals(6, met.invoke(null, new Object[] {(short) 3}));
+        Assert.assertEquals(8, met.invoke(null, new Object[] {'\u0004'}));
+        assertIllegalArgument(met, null, new Object[] {3L});
+        
+        met = makeScriptMethod("length", String.class);
+        met.prepareInvocation();
+        Assert.assertEquals(3, met.invoke(new Probe(), new Object[] {"abc"}));
+        try {
+            met.invoke(new Probe(), new Object[] {null});
+            Assert.fail("Expected an InvocationTargetException");
+            
+        } catch (InvocationTargetException ex) {
+            Assert.assertTrue(ex.getCause() instanceof NullPointerException);
+        }
+    }
+    
+    
+    /**
+     * Tests the converters for the supported and an unsupported type.
+     */
+    @Test
+    public void getConverter() throws ScriptException {
+        
+        Assert.assertEquals(-3, ScriptMethod.getConverter(Integer.TYPE).convert("-3"));
+        Assert.assertEquals(2.5f, ScriptMethod.getConverter(Float.TYPE).convert("2.5"));
+        Assert.assertEquals(Boolean.FALSE, ScriptMethod.getConverter(Boolean.TYPE).convert("no"));
+        Assert.assertNull(ScriptMethod.getConverter(Long.TYPE));
+    }
+    
+    
+    /**
+     * Tests that a Token that is not a number is reported as a ScriptException.
+     */
+    @Test(expected = ScriptException.class)
+    public void getConverter_InvalidNumber() throws ScriptException {
+        ScriptMethod.getConverter(Double.TYPE).convert("1,5");
+    }
+    
+    
+    /**
+     * Asserts that <code>invoke</code> throws an <code>IllegalArgumentException</code>.
+     */
+    private static void assertIllegalArgument(ScriptMethod met, Object Instance, Object[] Arguments)
+            throws Exception {
+        try {
+            met.invoke(Instance, Arguments);
+            Assert.fail("Expected an IllegalArgumentException");
+            
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+    
+    
+    /**
+     * Makes a Script-Method for a method of <code>Probe</code>.
+     */
+    private static ScriptMethod makeScriptMethod(String Name, Class<?>... ParameterTypes) 
+            throws NoSuchMethodException {
+        
+        ScriptMethod met = new ScriptMethod();
+        met.DeviceCommandName = Name;
+        met.ParameterTypes = ParameterTypes;
+        met.ReferenceToMethod = Probe.class.getMethod(Name, ParameterTypes);
+        
+        return met;
+    }
+}
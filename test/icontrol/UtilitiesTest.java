@@ -0,0 +1,143 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/**
+ * Tests for the Utilities class.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class UtilitiesTest {
+    
+    /** The golden-test corpus for <code>Tokenizer</code> */
+    private static final String TOKENIZER_GOLDEN = "resources/TokenizerGolden.txt";
+    
+    
+    /**
+     * Tokenizes every Command Line in the golden-test corpus and compares the
+     * Tokens with the expected Tokens. The expected Tokens were generated with
+     * the original, Regex based implementation of <code>Tokenizer</code>, hence,
+     * this test assures that the Tokens are still identical, including escaped
+     * DELIMITERs, quoted Strings and the MAKE/INCLUDE rules.<p>
+     * 
+     * The corpus consists of lines starting with '&gt;' followed by the Command
+     * Line, and the expected Tokens each on a separate line starting with '='.
+     * Lines starting with '#' are comments.
+     */
+    @Test
+    public void Tokenizer_GoldenCorpus() throws IOException {
+        
+        InputStream is = UtilitiesTest.class.getResourceAsStream(TOKENIZER_GOLDEN);
+        Assert.assertNotNull("Could not find " + TOKENIZER_GOLDEN, is);
+        
+        BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        
+        String CommandLine = null;
+        ArrayList<String> Expected = new ArrayList<String>();
+        int NrOfCommandLines = 0;
+        try {
+            String Line;
+            while ( (Line = br.readLine()) != null ) {
+                
+                if (Line.startsWith(">")) {
+                    // check the previous Command Line
+                    if (CommandLine != null) {
+                        checkTokenizer(CommandLine, Expected);
+                        NrOfCommandLines++;
+                    }
+                    
+                    // remember the new Command Line
+                    CommandLine = Line.substring(1);
+                    Expected.clear();
+                    
+                } else if (Line.startsWith("=")) {
+                    Expected.add(Line.substring(1));
+                }
+            }
+            
+            // check the last Command Line
+            if (CommandLine != null) {
+                checkTokenizer(CommandLine, Expected);
+                NrOfCommandLines++;
+            }
+        } finally {
+            br.close();
+        }
+        
+        // make sure the corpus was not empty
+        Assert.assertTrue("The golden-test corpus is empty", NrOfCommandLines > 0);
+    }
+    
+    
+    /**
+     * Tests a few typical Command Lines.
+     */
+    @Test
+    public void Tokenizer_Examples() {
+        
+        checkTokenizer("MAKE Tsample;  Lakeshore 340; GPIB 9", 
+                "MAKE", "Tsample", "Lakeshore 340", "GPIB 9");
+        
+        checkTokenizer("PA Measure 0;   V3,  I3,V2 , I2; .tra\\;ns; \"Test ; Test\"", 
+                "PA", "Measure", "0", "V3,  I3,V2 , I2", ".tra;ns", "\"Test ; Test\"");
+        
+        checkTokenizer("INCLUDE /Users/kurtp/iC Test/incl.py % comment", 
+                "INCLUDE", "/Users/kurtp/iC Test/incl.py");
+        
+        checkTokenizer("   // a comment", "");
+    }
+    
+    
+    /**
+     * Asserts that <code>Utilities.Tokenizer</code> splits the Command Line
+     * into the expected Tokens.
+     */
+    private void checkTokenizer(String CommandLine, ArrayList<String> Expected) {
+        checkTokenizer(CommandLine, Expected.toArray(new String[Expected.size()]));
+    }
+    
+    private void checkTokenizer(String CommandLine, String... Expected) {
+        
+        ArrayList<String> Tokens = Utilities.Tokenizer(CommandLine);
+        
+        Assert.assertArrayEquals("Tokenizer(" + CommandLine + ")", 
+                Expected, Tokens.toArray(new String[Tokens.size()]));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import icontrol.IcontrolTests;
+import icontrol.drivers.Device.CommPorts;
+import java.net.URL;
+import javax.script.ScriptException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests for the CommLockRegistry class and for the Locks that Instruments
+ * get in <code>Device.OpenInstrument</code>.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class CommLockRegistryTest extends IcontrolTests {
+    
+    /** The Syntax-Check mode before the test */
+    private boolean m_SyntaxCheckMode;
+    
+    
+    /**
+     * The Instruments are opened in Syntax-Check mode, so no port is opened.
+     */
+    @Before
+    public void setUp() {
+        m_SyntaxCheckMode = new Device().inSyntaxCheckMode();
+        Device.setSyntaxCheckMode(true);
+    }
+    
+    @After
+    public void tearDown() {
+        Device.setSyntaxCheckMode(m_SyntaxCheckMode);
+    }
+    
+    
+    /**
+     * Tests that the same Lock is returned for the same resource.
+     */
+    @Test
+    public void getLock() {
+        
+        CommLockRegistry.CommLock Lock = CommLockRegistry.getLock("RS232 COM7");
+        
+        Assert.assertSame(Lock, CommLockRegistry.getLock("RS232 COM7"));
+        Assert.assertNotSame(Lock, CommLockRegistry.getLock("RS232 COM8"));
+        Assert.assertEquals("RS232 COM7", Lock.getResource());
+        Assert.assertTrue(CommLockRegistry.getLocks().contains(Lock));
+    }
+    
+    
+    /**
+     * Tests that all TMCTL Instruments share one Lock, because the TMCTL 
+     * library and the receive buffer of TMCTL_Driver are shared.
+     */
+    @Test
+    public void OpenInstrument_TMCTL() throws ScriptException {
+        
+        Device First = open(CommPorts.TMCTL, null, null, "91H123456");
+        Device Second = open(CommPorts.TMCTL, null, null, "91H654321");
+        
+        Assert.assertSame(First.getCommLock(), Second.getCommLock());
+        Assert.assertSame(CommLockRegistry.getLock("TMCTL"), First.getCommLock());
+        
+        // the same Lock as before the Instrument is opened
+        Device NotOpened = new Device();
+        NotOpened.m_UsedCommPort = CommPorts.TMCTL;
+        Assert.assertSame(First.getCommLock(), NotOpened.getCommLock());
+    }
+    
+    
+    /**
+     * Tests that GPIB Instruments share one Lock, while Instruments on 
+     * different COM ports or network sockets do not.
+     */
+    @Test
+    public void OpenInstrument_Resources() throws Exception {
+        
+        // GPIB
+        Assert.assertSame(open(CommPorts.GPIB, null, null, null).getCommLock(),
+                          open(CommPorts.GPIB, null, null, null).getCommLock());
+        
+        // RS232
+        Device COM1 = open(CommPorts.RS232, "COM1", null, null);
+        Assert.assertSame(COM1.getCommLock(), open(CommPorts.RS232, "COM1", null, null).getCommLock());
+        Assert.assertNotSame(COM1.getCommLock(), open(CommPorts.RS232, "COM2", null, null).getCommLock());
+        
+        // LAN, with and without the default port
+        URL Default = new URL("http://192.168.0.10");
+        URL Explicit = new URL("http://192.168.0.10:" + LAN_Driver.getPort(Default));
+        Device LAN = open(CommPorts.LAN, null, Default, null);
+        Assert.assertSame(LAN.getCommLock(), open(CommPorts.LAN, null, Explicit, null).getCommLock());
+        Assert.assertNotSame(LAN.getCommLock(), 
+                open(CommPorts.LAN, null, new URL("http://192.168.0.11"), null).getCommLock());
+        Assert.assertNotSame(LAN.getCommLock(), 
+                open(CommPorts.LAN, null, new URL("http://192.168.0.10:1234"), null).getCommLock());
+    }
+    
+    
+    /**
+     * Opens a new Device with the given communication port.
+     */
+    private Device open(CommPorts CommPort, String ComPortName, URL URL, String TMCTL_Address) 
+            throws ScriptException {
+        
+        Device dev = new Device();
+        dev.OpenInstrument("Locked", CommPort, 1, ComPortName, 9600, 8, 1, "none",
+                URL, "USBTMC(DL9000)", TMCTL_Address);
+        
+        return dev;
+    }
+}
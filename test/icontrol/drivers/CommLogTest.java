@@ -0,0 +1,289 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import icontrol.IcontrolTests;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests for the ring buffer of the CommLog class. The records written by the
+ * background thread are collected by a Handler of the Comm logger.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class CommLogTest extends IcontrolTests {
+    
+    /** The Comm logger */
+    private static final Logger m_Comm_Logger = Logger.getLogger("Comm");
+    
+    /** The level of the Comm logger before the test */
+    private Level m_Level;
+    
+    /** Was the Comm logger using the parent handlers before the test */
+    private boolean m_UseParentHandlers;
+    
+    /** Collects the records written by the background thread */
+    private Collector m_Collector;
+    
+    
+    @Before
+    public void setUp() {
+        m_Level = m_Comm_Logger.getLevel();
+        m_UseParentHandlers = m_Comm_Logger.getUseParentHandlers();
+        
+        // process all records and don't write them to the log files
+        CommLog.flush();
+        m_Collector = new Collector();
+        m_Comm_Logger.setLevel(Level.FINE);
+        m_Comm_Logger.setUseParentHandlers(false);
+        m_Comm_Logger.addHandler(m_Collector);
+    }
+    
+    @After
+    public void tearDown() {
+        m_Collector.m_Gate.countDown();
+        CommLog.flush();
+        
+        m_Comm_Logger.removeHandler(m_Collector);
+        m_Comm_Logger.setLevel(m_Level);
+        m_Comm_Logger.setUseParentHandlers(m_UseParentHandlers);
+    }
+    
+    
+    /**
+     * Tests that the records of several threads are all written, in the 
+     * order each thread logged them, and that <code>flush</code> returns 
+     * only after all records have been written.
+     */
+    @Test(timeout = 30000)
+    public void log_Ordering() throws Exception {
+        
+        final int NrThreads = 4;
+        final int NrRecords = 1000;
+        
+        // don't block the writer
+        m_Collector.m_Gate.countDown();
+        
+        Thread[] Threads = new Thread[NrThreads];
+        for (int t = 0; t < NrThreads; t++) {
+            final String Name = "Instr" + t;
+            Threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < NrRecords; i++) {
+                        CommLog.log(Name, CommLog.SENT, String.valueOf(i));
+                    }
+                }
+            });
+            Threads[t].start();
+        }
+        for (Thread t : Threads) {
+            t.join();
+        }
+        
+        CommLog.flush();
+        List<String> Messages = m_Collector.getMessages();
+        Assert.assertEquals(NrThreads * NrRecords, Messages.size());
+        
+        // the records of each thread are in order
+        int[] Next = new int[NrThreads];
+        for (String Message : Messages) {
+            // e.g. 12:00:00 <- Instr2: 17
+            String[] Parts = Message.split(" ");
+            Assert.assertEquals(CommLog.SENT, Parts[1]);
+            
+            int t = Integer.parseInt(Parts[2].substring(5, Parts[2].length() - 1));
+            Assert.assertEquals(Next[t]++, Integer.parseInt(Parts[3]));
+        }
+    }
+    
+    
+    /**
+     * Tests that a thread logging into the full ring buffer waits until the
+     * background thread has freed a slot, and that no record is lost.
+     */
+    @Test(timeout = 30000)
+    public void log_BufferFull() throws Exception {
+        
+        final int Size = getRecords().length;
+        
+        // the background thread blocks in the Handler while the buffer is filled
+        final CountDownLatch Logged = new CountDownLatch(1);
+        Thread Logging = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < Size + 10; i++) {
+                    CommLog.log("Full", CommLog.RECEIVED, String.valueOf(i));
+                }
+                Logged.countDown();
+            }
+        });
+        Logging.start();
+        
+        // the thread waits for a free slot
+        Assert.assertFalse(Logged.await(500, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(Logging.isAlive());
+        Assert.assertTrue(m_Collector.getMessages().size() <= 1);
+        
+        // let the background thread continue
+        m_Collector.m_Gate.countDown();
+        Assert.assertTrue(Logged.await(10, TimeUnit.SECONDS));
+        
+        CommLog.flush();
+        List<String> Messages = m_Collector.getMessages();
+        Assert.assertEquals(Size + 10, Messages.size());
+        for (int i = 0; i < Messages.size(); i++) {
+            Assert.assertTrue(Messages.get(i).endsWith("Full: " + i));
+        }
+    }
+    
+    
+    /**
+     * Tests that binary records are written as hexadecimal values, and that
+     * a slot releases it's payload after it was written if it is larger than
+     * <code>CommLog.MaxRetainedBytes</code>.
+     */
+    @Test(timeout = 30000)
+    public void log_Binary() throws Exception {
+        
+        m_Collector.m_Gate.countDown();
+        
+        // the hexadecimal values
+        CommLog.log("Binary", CommLog.RECEIVED, new byte[] {0x23, 0x00, (byte) 0xAF, 0x7F}, 1, 2);
+        CommLog.flush();
+        Assert.assertTrue(m_Collector.getMessages().get(0).endsWith("Binary: 0x 00 AF"));
+        
+        int MaxRetained = new icontrol.iC_Properties().getInt("CommLog.MaxRetainedBytes", 4096);
+        
+        // a small payload is retained in the slot, a large one is released
+        long Small = log(MaxRetained);
+        long Large = log(MaxRetained + 1);
+        CommLog.flush();
+        
+        Assert.assertEquals(MaxRetained, getData(Small).length);
+        Assert.assertTrue(getData(Large).length <= MaxRetained);
+        
+        // the large payload was logged completely
+        String Message = m_Collector.getMessages().get(2);
+        Assert.assertEquals(2 + 3 * (MaxRetained + 1), 
+                Message.substring(Message.indexOf("0x")).length());
+    }
+    
+    
+    /**
+     * Logs a binary record of the given length.
+     * 
+     * @return The sequence number of the record
+     */
+    private long log(int Length) throws Exception {
+        
+        Field f = CommLog.class.getDeclaredField("m_Head");
+        f.setAccessible(true);
+        long Sequence = ((AtomicLong) f.get(null)).get();
+        
+        CommLog.log("Binary", CommLog.SENT, new byte[Length], 0, Length);
+        
+        return Sequence;
+    }
+    
+    
+    /**
+     * @return The payload array of the slot used for the given sequence number
+     */
+    private byte[] getData(long Sequence) throws Exception {
+        
+        Object[] Records = getRecords();
+        Object R = Records[(int) (Sequence % Records.length)];
+        
+        Field f = R.getClass().getDeclaredField("Data");
+        f.setAccessible(true);
+        return (byte[]) f.get(R);
+    }
+    
+    
+    /**
+     * @return The ring buffer
+     */
+    private Object[] getRecords() throws Exception {
+        Field f = CommLog.class.getDeclaredField("m_Records");
+        f.setAccessible(true);
+        return (Object[]) f.get(null);
+    }
+    
+    
+    /**
+     * Collects the messages logged to the Comm logger. Blocks the background
+     * thread until <code>m_Gate</code> is opened.
+     */
+    private static class Collector extends Handler {
+        
+        final CountDownLatch m_Gate = new CountDownLatch(1);
+        
+        private final List<String> m_Messages = new ArrayList<String>();
+        
+        @Override
+        public void publish(LogRecord Record) {
+            try {
+                m_Gate.await();
+            } catch (InterruptedException ignore) {}
+            
+            synchronized (m_Messages) {
+                m_Messages.add(Record.getMessage());
+            }
+        }
+        
+        List<String> getMessages() {
+            synchronized (m_Messages) {
+                return new ArrayList<String>(m_Messages);
+            }
+        }
+        
+        @Override
+        public void flush() {}
+        
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import icontrol.IcontrolTests;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import javax.script.ScriptException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the CommReplay class and for replaying a recorded Comm trace
+ * with a Device.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class CommReplayTest extends IcontrolTests {
+    
+    /** The Syntax-Check mode before the test */
+    private boolean m_SyntaxCheckMode;
+    
+    /** The global No-Communication mode before the test */
+    private boolean m_NoCommunicationMode;
+    
+    /** The recorded trace */
+    private File m_TraceFile;
+    
+    @Rule
+    public TemporaryFolder m_Folder = new TemporaryFolder();
+    
+    
+    /**
+     * Records a small trace: the Instrument "Replayed" is queried for a
+     * measured value three times with different answers, and gets a command
+     * without answer in between; the Instrument "Other" answers the same 
+     * query differently.
+     */
+    @Before
+    public void setUp() throws IOException {
+        m_SyntaxCheckMode = new Device().inSyntaxCheckMode();
+        m_NoCommunicationMode = new Device().inNoCommunicationMode();
+        
+        m_TraceFile = m_Folder.newFile("replay.trace");
+        
+        CommTrace.open(m_TraceFile);
+        try {
+            record("Replayed", "*IDN?", "iC,Replay,0,1\n");
+            record("Replayed", "MEAS?", "1.0\n");
+            record("Other",    "MEAS?", "9.0\n");
+            record("Replayed", "RANGE 2", null);
+            record("Replayed", "MEAS?", "2.0\n");
+            record("Replayed", "MEAS?", "3.0\n");
+            record("Replayed", "CURV?", "#15ABCDE\n");
+            record("Replayed", "HIST?", "#19ABC\n");
+        } finally {
+            CommTrace.close();
+        }
+    }
+    
+    @After
+    public void tearDown() {
+        Device.setSyntaxCheckMode(m_SyntaxCheckMode);
+        Device.setNoCommunicationModeGlobal(m_NoCommunicationMode);
+    }
+    
+    
+    /**
+     * Tests that repeated queries return the answers in the recorded sequence,
+     * that the search wraps around at the end of the recording, and that the
+     * recordings of different Instruments are independent.
+     */
+    @Test
+    public void query_Cyclic() throws IOException {
+        
+        CommReplay Replay = new CommReplay(m_TraceFile, false);
+        
+        Assert.assertEquals("1.0\n", Replay.query("Replayed", "MEAS?"));
+        Assert.assertEquals("2.0\n", Replay.query("Replayed", "MEAS?"));
+        Assert.assertEquals("3.0\n", Replay.query("Replayed", "MEAS?"));
+        
+        // wraps around
+        Assert.assertEquals("1.0\n", Replay.query("Replayed", "MEAS?"));
+        
+        // other Instrument
+        Assert.assertEquals("9.0\n", Replay.query("Other", "MEAS?"));
+        Assert.assertEquals("9.0\n", Replay.query("Other", "MEAS?"));
+        
+        // the search starts after the last replayed exchange
+        Replay.query("Replayed", "*IDN?");
+        Assert.assertEquals("1.0\n", Replay.query("Replayed", "MEAS?"));
+        Replay.send("Replayed", "RANGE 2".getBytes("UTF-8"));
+        Assert.assertEquals("2.0\n", Replay.query("Replayed", "MEAS?"));
+        
+        // rewind
+        Replay.rewind();
+        Assert.assertEquals("1.0\n", Replay.query("Replayed", "MEAS?"));
+    }
+    
+    
+    /**
+     * Tests that a query without a recorded answer fails with an IOException.
+     */
+    @Test
+    public void query_NotRecorded() throws IOException {
+        
+        CommReplay Replay = new CommReplay(m_TraceFile, false);
+        
+        // the command was recorded without an answer
+        assertNotRecorded(Replay, "Replayed", "RANGE 2");
+        
+        // unknown message and unknown Instrument
+        assertNotRecorded(Replay, "Replayed", "VOLT?");
+        assertNotRecorded(Replay, "Unknown", "MEAS?");
+        
+        // sending an unknown message does not change the position
+        Replay.send("Replayed", "VOLT 1".getBytes("UTF-8"));
+        Assert.assertEquals("1.0\n", Replay.query("Replayed", "MEAS?"));
+    }
+    
+    
+    /**
+     * Tests that a Device in replay mode answers queries of the deprecated 
+     * Query/Send methods and <code>QueryInstrument</code> from the trace, and
+     * that accessing a driver directly fails with a ScriptException.
+     */
+    @Test
+    public void device_Replay() throws Exception {
+        
+        Device dev = makeReplayedDevice(new CommReplay(m_TraceFile, false));
+        
+        Assert.assertTrue(dev.inReplayMode());
+        
+        Assert.assertEquals("iC,Replay,0,1\n", dev.QueryInstrument("*IDN?"));
+        Assert.assertEquals("1.0\n", dev.QueryViaGPIB("MEAS?"));
+        dev.SendViaGPIB("RANGE 2");
+        Assert.assertEquals("2.0\n", dev.QueryViaRS232("MEAS?"));
+        Assert.assertEquals("3.0\n", dev.QueryViaTMCTL("MEAS?"));
+        
+        // sending wraps around to the recorded command
+        dev.SendViaTMCTL("RANGE 2");
+        Assert.assertEquals("2.0\n", dev.QueryViaLAN("MEAS?"));
+        dev.SendViaLAN("RANGE 2");
+        dev.SendViaRS232("RANGE 2");
+        Assert.assertEquals("2.0\n", dev.QueryInstrument("MEAS?"));
+        
+        // not recorded
+        try {
+            dev.QueryViaGPIB("VOLT?");
+            Assert.fail("Expected an IOException");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains("VOLT?"));
+        }
+        
+        // the drivers are not opened in replay mode
+        try {
+            dev.checkNotReplayed("Reading the Status Byte");
+            Assert.fail("Expected a ScriptException");
+        } catch (ScriptException ex) {
+            Assert.assertTrue(ex.getMessage().contains("not supported in replay mode"));
+        }
+        try {
+            dev.SpeedTest(1);
+            Assert.fail("Expected a ScriptException");
+        } catch (ScriptException ex) {
+            Assert.assertTrue(ex.getMessage().contains("not supported in replay mode"));
+        }
+        
+        // not in replay mode
+        Device Plain = new Device();
+        Assert.assertFalse(Plain.inReplayMode());
+        Plain.checkNotReplayed("Reading the Status Byte");
+    }
+    
+    
+    /**
+     * Tests that replayed binary blocks are returned in new buffers or in 
+     * the given buffer, and that incomplete blocks are rejected.
+     */
+    @Test
+    public void device_BinaryBlock() throws Exception {
+        
+        Device dev = makeReplayedDevice(new CommReplay(m_TraceFile, false));
+        
+        // new buffers do not share their data
+        ByteBuffer First = dev.QueryBinaryBlock("CURV?");
+        ByteBuffer Second = dev.QueryBinaryBlock("CURV?");
+        Assert.assertEquals("ABCDE", new String(toArray(First), "UTF-8"));
+        First.put(0, (byte)'X');
+        Assert.assertEquals("ABCDE", new String(toArray(Second), "UTF-8"));
+        
+        // the given buffer
+        ByteBuffer Buffer = ByteBuffer.allocate(8);
+        Assert.assertSame(Buffer, dev.QueryBinaryBlock("CURV?", Buffer));
+        Assert.assertEquals("ABCDE", new String(toArray(Buffer), "UTF-8"));
+        
+        // the buffer is too small
+        try {
+            dev.QueryBinaryBlock("CURV?", ByteBuffer.allocate(4));
+            Assert.fail("Expected an IOException");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains("does not fit"));
+        }
+        
+        // the length is larger than the data
+        try {
+            dev.QueryBinaryBlock("HIST?");
+            Assert.fail("Expected an IOException");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains("not a complete"));
+        }
+    }
+    
+    
+    /**
+     * Tests that a replayed binary block is passed to all Consumers of 
+     * <code>StreamBinaryBlock</code>, and that nothing is passed in 
+     * No-Communication mode.
+     */
+    @Test
+    public void device_StreamBinaryBlock() throws Exception {
+        
+        Device dev = makeReplayedDevice(new CommReplay(m_TraceFile, false));
+        
+        final ByteArrayOutputStream First = new ByteArrayOutputStream();
+        final ByteArrayOutputStream Second = new ByteArrayOutputStream();
+        final int[] Begin = new int[2];
+        
+        int NrBytes = dev.StreamBinaryBlock("CURV?", new TMCTL_Driver.BlockDataConsumer() {
+            @Override
+            public void begin(int NrDataBytes) {
+                Begin[0] = NrDataBytes;
+            }
+            
+            @Override
+            public void accept(ByteBuffer Chunk) {
+                byte[] Data = toArray(Chunk);
+                First.write(Data, 0, Data.length);
+                
+                // consume the chunk
+                Chunk.position(Chunk.limit());
+            }
+        }, new TMCTL_Driver.BlockDataConsumer() {
+            @Override
+            public void begin(int NrDataBytes) {
+                Begin[1] = NrDataBytes;
+            }
+            
+            @Override
+            public void accept(ByteBuffer Chunk) {
+                byte[] Data = toArray(Chunk);
+                Second.write(Data, 0, Data.length);
+            }
+        });
+        
+        Assert.assertEquals(5, NrBytes);
+        Assert.assertArrayEquals(new int[] {5, 5}, Begin);
+        Assert.assertEquals("ABCDE", First.toString("UTF-8"));
+        Assert.assertEquals("ABCDE", Second.toString("UTF-8"));
+        
+        // No-Communication mode
+        Device.setNoCommunicationModeGlobal(true);
+        First.reset();
+        Assert.assertEquals(0, dev.StreamBinaryBlock("CURV?", TMCTL_Driver.toChannel(
+                Channels.newChannel(First))));
+        Assert.assertEquals(0, First.size());
+    }
+    
+    
+    /**
+     * Returns the bytes from the position to the limit of the buffer.
+     */
+    private byte[] toArray(ByteBuffer Buffer) {
+        byte[] ret = new byte[Buffer.remaining()];
+        Buffer.duplicate().get(ret);
+        return ret;
+    }
+    
+    
+    /**
+     * Records a query or, if <code>Answer</code> is null, a command.
+     */
+    private void record(String InstrumentName, String Message, String Answer) {
+        
+        long Nanos = System.nanoTime();
+        CommTrace.write(InstrumentName, CommLog.SENT, Nanos, Message, null, 0);
+        
+        if (Answer != null) {
+            CommTrace.write(InstrumentName, CommLog.RECEIVED, Nanos + 1000, Answer, null, 0);
+        }
+    }
+    
+    
+    /**
+     * Asserts that querying the message fails with an IOException.
+     */
+    private void assertNotRecorded(CommReplay Replay, String InstrumentName, String Message) {
+        try {
+            Replay.query(InstrumentName, Message);
+            Assert.fail("Expected an IOException for " + Message);
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains(InstrumentName));
+        }
+    }
+    
+    
+    /**
+     * Makes a Device that replays the given trace. The replay is loaded in 
+     * <code>OpenInstrument</code> from the iC.properties, so the field is set
+     * directly; nothing is replayed in Syntax-Check or No-Communication mode.
+     */
+    private Device makeReplayedDevice(CommReplay Replay) throws Exception {
+        
+        Device.setSyntaxCheckMode(false);
+        Device.setNoCommunicationModeGlobal(false);
+        
+        Device dev = new Device();
+        
+        Field f = Device.class.getDeclaredField("m_Replay");
+        f.setAccessible(true);
+        f.set(dev, Replay);
+        
+        dev.m_InstrumentName = "Replayed";
+        
+        return dev;
+    }
+}
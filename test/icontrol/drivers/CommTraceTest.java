@@ -0,0 +1,401 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import icontrol.IcontrolTests;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the CommTrace class and for slicing and exporting a trace with
+ * the CommTraceTool.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class CommTraceTest extends IcontrolTests {
+    
+    /** The recorded trace */
+    private File m_TraceFile;
+    
+    /** The wall clock time (ms) at time 0 of the frames */
+    private long m_StartMillis;
+    
+    /** Time stamp format of the exported frames */
+    private final SimpleDateFormat m_TimeStampFormat = 
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    
+    @Rule
+    public TemporaryFolder m_Folder = new TemporaryFolder();
+    
+    
+    /**
+     * Records a trace with the frames at defined times: Instrument "A" is 
+     * queried at 0 s and at 6 s, and gets a command in No-Communication Mode
+     * at 9 s; Instrument "B" sends binary data at 3 s. Each of the 4 groups
+     * of frames is in a separate block of the index.
+     */
+    @Before
+    public void setUp() throws Exception {
+        
+        m_TraceFile = m_Folder.newFile("comm.trace");
+        
+        CommTrace.open(m_TraceFile);
+        try {
+            // get time 0 of the frames
+            Field f = CommTrace.class.getDeclaredField("m_Trace");
+            f.setAccessible(true);
+            Object Trace = f.get(null);
+            f = CommTrace.class.getDeclaredField("m_StartNanos");
+            f.setAccessible(true);
+            long StartNanos = f.getLong(Trace);
+            
+            write("A", CommLog.SENT, StartNanos, 0, "MEAS?");
+            write("A", CommLog.RECEIVED, StartNanos, 2500, "1.0\n");
+            
+            CommTrace.write("B", CommLog.SENT, StartNanos + 3000000000L, null, 
+                    new byte[] {1, 2, (byte) 0xFF, 4}, 3);
+            write("B", CommLog.RECEIVED, StartNanos, 3000100, "\"OK\"");
+            
+            write("A", CommLog.SENT, StartNanos, 6000000, "MEAS?");
+            write("A", CommLog.RECEIVED, StartNanos, 6050000, "2.0\n");
+            
+            write("A", CommLog.NOT_SENT, StartNanos, 9000000, "RANGE 2");
+        } finally {
+            CommTrace.close();
+        }
+        
+        DataInputStream In = new DataInputStream(new FileInputStream(m_TraceFile));
+        try {
+            m_StartMillis = CommTrace.readHeader(In);
+        } finally {
+            In.close();
+        }
+    }
+    
+    
+    /**
+     * Tests the header and the frames of the trace, including the frames that
+     * define the Instrument names, the binary flag, and the latency of the 
+     * received frames.
+     */
+    @Test
+    public void write_Frames() throws IOException {
+        
+        DataInputStream In = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(m_TraceFile)));
+        try {
+            long Start = CommTrace.readHeader(In);
+            Assert.assertTrue(Math.abs(System.currentTimeMillis() - Start) < 60000);
+            
+            assertFrame(CommTrace.readFrame(In), 0, 0, CommTrace.DIR_NAME, -1, "A");
+            assertFrame(CommTrace.readFrame(In), 0, 0, CommTrace.DIR_SENT, -1, "MEAS?");
+            assertFrame(CommTrace.readFrame(In), 2500, 0, CommTrace.DIR_RECEIVED, 2500, "1.0\n");
+            
+            assertFrame(CommTrace.readFrame(In), 3000000, 1, CommTrace.DIR_NAME, -1, "B");
+            CommTrace.Frame F = CommTrace.readFrame(In);
+            Assert.assertEquals(CommTrace.DIR_SENT | CommTrace.DIR_BINARY, F.Dir);
+            Assert.assertEquals(CommTrace.DIR_SENT, F.getDirection());
+            Assert.assertTrue(F.isBinary());
+            Assert.assertArrayEquals(new byte[] {1, 2, (byte) 0xFF}, F.Payload);
+            assertFrame(CommTrace.readFrame(In), 3000100, 1, CommTrace.DIR_RECEIVED, 100, "\"OK\"");
+            
+            assertFrame(CommTrace.readFrame(In), 6000000, 0, CommTrace.DIR_SENT, -1, "MEAS?");
+            assertFrame(CommTrace.readFrame(In), 6050000, 0, CommTrace.DIR_RECEIVED, 50000, "2.0\n");
+            assertFrame(CommTrace.readFrame(In), 9000000, 0, CommTrace.DIR_NOT_SENT, -1, "RANGE 2");
+            
+            // end of the trace
+            Assert.assertNull(CommTrace.readFrame(In));
+        } finally {
+            In.close();
+        }
+    }
+    
+    
+    /**
+     * Tests the entries of the index file: the Instrument names, and the time
+     * range, file offset, and Instrument mask of each block of frames.
+     */
+    @Test
+    public void write_Index() throws IOException {
+        
+        DataInputStream In = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(m_TraceFile.getPath() + CommTrace.INDEX_EXTENSION)));
+        try {
+            Assert.assertEquals(CommTrace.INDEX_NAME, In.readByte());
+            Assert.assertEquals(0, In.readShort());
+            Assert.assertEquals("A", In.readUTF());
+            
+            // first frame after the header
+            long Offset = CommTrace.MAGIC.length + 8;
+            assertBlock(In, 0, 2500, Offset, 1);
+            
+            Assert.assertEquals(CommTrace.INDEX_NAME, In.readByte());
+            Assert.assertEquals(1, In.readShort());
+            Assert.assertEquals("B", In.readUTF());
+            
+            // 3 frames of A with 4 + 15 bytes + payload
+            Offset += 3 * 19 + 1 + 5 + 4;
+            assertBlock(In, 3000000, 3000100, Offset, 2);
+            
+            // 3 frames of B
+            Offset += 3 * 19 + 1 + 3 + 4;
+            assertBlock(In, 6000000, 6050000, Offset, 1);
+            
+            Offset += 2 * 19 + 5 + 4;
+            assertBlock(In, 9000000, 9000000, Offset, 1);
+            
+            Assert.assertEquals(-1, In.read());
+        } finally {
+            In.close();
+        }
+    }
+    
+    
+    /**
+     * Tests exporting the whole trace as text, with the latency of the 
+     * received frames, and that the same is exported without index file.
+     */
+    @Test
+    public void export_Text() throws Exception {
+        
+        List<String> Expected = Arrays.asList(
+                time(0) + " <- A: MEAS?",
+                time(2) + " -> A: 1.0  [2.500 ms]",
+                time(3000) + " <- B: 0x 01 02 FF",
+                time(3000) + " -> B: \"OK\"  [0.100 ms]",
+                time(6000) + " <- A: MEAS?",
+                time(6050) + " -> A: 2.0  [50.000 ms]",
+                time(9000) + " <n A: RANGE 2");
+        
+        Assert.assertEquals(Expected, export(new CommTraceTool(), null, null));
+        
+        // without index
+        Assert.assertTrue(new File(m_TraceFile.getPath() + CommTrace.INDEX_EXTENSION).delete());
+        Assert.assertEquals(Expected, export(new CommTraceTool(), null, null));
+    }
+    
+    
+    /**
+     * Tests selecting the frames by time range.
+     */
+    @Test
+    public void export_TimeRange() throws Exception {
+        
+        // a full second between 1.5 s and 2.5 s, and between 6.5 s and 7.5 s
+        SimpleDateFormat Format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        String From = Format.format((m_StartMillis + 2500) / 1000 * 1000);
+        String To = Format.format((m_StartMillis + 7500) / 1000 * 1000);
+        
+        List<String> Expected = Arrays.asList(
+                time(3000) + " <- B: 0x 01 02 FF",
+                time(3000) + " -> B: \"OK\"  [0.100 ms]",
+                time(6000) + " <- A: MEAS?",
+                time(6050) + " -> A: 2.0  [50.000 ms]");
+        
+        Assert.assertEquals(Expected, export(new CommTraceTool(), From, To));
+        
+        // invalid time
+        try {
+            export(new CommTraceTool(), "yesterday", null);
+            Assert.fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+            Assert.assertTrue(ex.getMessage().contains("yesterday"));
+        }
+    }
+    
+    
+    /**
+     * Tests selecting the frames of one Instrument, and that the blocks of
+     * other Instruments are skipped by using the index.
+     */
+    @Test
+    public void export_Instrument() throws Exception {
+        
+        // overwrite the frames of the first block, which contains only "A"
+        RandomAccessFile Trace = new RandomAccessFile(m_TraceFile, "rw");
+        try {
+            byte[] Garbage = new byte[3 * 19 + 1 + 5 + 4];
+            Arrays.fill(Garbage, (byte) 0x7F);
+            Trace.seek(CommTrace.MAGIC.length + 8);
+            Trace.write(Garbage);
+        } finally {
+            Trace.close();
+        }
+        
+        CommTraceTool Tool = new CommTraceTool();
+        getInstruments(Tool).add("B");
+        
+        Assert.assertEquals(Arrays.asList(
+                time(3000) + " <- B: 0x 01 02 FF",
+                time(3000) + " -> B: \"OK\"  [0.100 ms]"),
+                export(Tool, null, null));
+    }
+    
+    
+    /**
+     * Tests selecting the slow queries with a minimum latency.
+     */
+    @Test
+    public void export_MinLatency() throws Exception {
+        
+        CommTraceTool Tool = new CommTraceTool();
+        set(Tool, "m_MinLatency", 10000);
+        
+        Assert.assertEquals(Arrays.asList(time(6050) + " -> A: 2.0  [50.000 ms]"),
+                export(Tool, null, null));
+    }
+    
+    
+    /**
+     * Tests exporting as CSV, including quoting the fields.
+     */
+    @Test
+    public void export_CSV() throws Exception {
+        
+        CommTraceTool Tool = new CommTraceTool();
+        set(Tool, "m_CSV", true);
+        getInstruments(Tool).add("B");
+        
+        Assert.assertEquals(Arrays.asList(
+                "Time,Instrument,Direction,Latency [ms],Message",
+                time(3000) + ",\"B\",<-,,\"0x 01 02 FF\"",
+                time(3000) + ",\"B\",->,0.100,\"\"\"OK\"\"\""),
+                export(Tool, null, null));
+    }
+    
+    
+    /**
+     * Writes a text frame at the given time.
+     */
+    private void write(String InstrumentName, String Direction, long StartNanos,
+                       long Micros, String Message) {
+        CommTrace.write(InstrumentName, Direction, StartNanos + 1000L * Micros, Message, null, 0);
+    }
+    
+    
+    /**
+     * Exports the trace with the given tool.
+     * 
+     * @return The exported lines
+     */
+    private List<String> export(CommTraceTool Tool, String From, String To) 
+            throws IOException {
+        
+        StringWriter sw = new StringWriter();
+        PrintWriter Writer = new PrintWriter(sw);
+        Tool.export(m_TraceFile, From, To, Writer);
+        Writer.flush();
+        
+        List<String> Lines = new ArrayList<String>();
+        for (String Line : sw.toString().split(System.getProperty("line.separator"))) {
+            if ( !Line.isEmpty() ) {
+                Lines.add(Line);
+            }
+        }
+        return Lines;
+    }
+    
+    
+    /**
+     * @return The time stamp of an exported frame at the given time (ms) 
+     * after time 0 of the trace
+     */
+    private String time(long Millis) {
+        return m_TimeStampFormat.format(m_StartMillis + Millis);
+    }
+    
+    
+    /**
+     * Asserts the content of a frame with a text payload.
+     */
+    private void assertFrame(CommTrace.Frame F, long Micros, int Id, byte Dir, 
+                             int Latency, String Payload) {
+        Assert.assertNotNull(F);
+        Assert.assertEquals(Micros, F.Micros);
+        Assert.assertEquals(Id, F.Id);
+        Assert.assertEquals(Dir, F.Dir);
+        Assert.assertFalse(F.isBinary());
+        Assert.assertEquals(Latency, F.Latency);
+        Assert.assertEquals(Payload, new String(F.Payload));
+    }
+    
+    
+    /**
+     * Asserts the next entry of the index is the given block.
+     */
+    private void assertBlock(DataInputStream In, long Start, long End, 
+                             long Offset, long Mask) throws IOException {
+        Assert.assertEquals(CommTrace.INDEX_BLOCK, In.readByte());
+        Assert.assertEquals(Start, In.readLong());
+        Assert.assertEquals(End, In.readLong());
+        Assert.assertEquals(Offset, In.readLong());
+        Assert.assertEquals(Mask, In.readLong());
+    }
+    
+    
+    /**
+     * @return The selected Instruments of the tool
+     */
+    @SuppressWarnings("unchecked")
+    private HashSet<String> getInstruments(CommTraceTool Tool) throws Exception {
+        Field f = CommTraceTool.class.getDeclaredField("m_Instruments");
+        f.setAccessible(true);
+        return (HashSet<String>) f.get(Tool);
+    }
+    
+    
+    /**
+     * Sets a private field of the tool.
+     */
+    private void set(CommTraceTool Tool, String FieldName, Object Value) throws Exception {
+        Field f = CommTraceTool.class.getDeclaredField(FieldName);
+        f.setAccessible(true);
+        f.set(Tool, Value);
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import icontrol.CompiledCommand;
+import icontrol.IcontrolTests;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.python.core.PyCode;
+import org.python.core.PyException;
+import org.python.util.PythonInterpreter;
+
+
+/**
+ * Tests for the Device class.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class DeviceTest extends IcontrolTests {
+    
+    /** The Syntax-Check mode before the test */
+    private boolean m_SyntaxCheckMode;
+    
+    
+    @Before
+    public void setUp() {
+        m_SyntaxCheckMode = new Device().inSyntaxCheckMode();
+    }
+    
+    @After
+    public void tearDown() {
+        Device.setSyntaxCheckMode(m_SyntaxCheckMode);
+    }
+    
+    
+    /**
+     * Tests that work submitted to the command queue is processed by the
+     * Instrument's queue thread in the order it was submitted.
+     */
+    @Test
+    public void submitToInstrument_Order() throws Exception {
+        
+        Device dev = makeQueuedDevice();
+        
+        final List<Integer> Order = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String> Threads = Collections.synchronizedList(new ArrayList<String>());
+        
+        ArrayList<CompletableFuture<Integer>> Futures = new ArrayList<CompletableFuture<Integer>>();
+        for (int i=0; i<20; i++) {
+            final int Nr = i;
+            Futures.add(dev.submitToInstrument(new Device.CommTask<Integer>() {
+                @Override
+                public Integer call() {
+                    Order.add(Nr);
+                    Threads.add(Thread.currentThread().getName());
+                    return 2 * Nr;
+                }
+            }));
+        }
+        
+        for (int i=0; i<20; i++) {
+            Assert.assertEquals(2 * i, (int) dev.waitForInstrument(Futures.get(i)));
+            Assert.assertEquals(i, (int) Order.get(i));
+            Assert.assertEquals("iC Command Queue Queued", Threads.get(i));
+        }
+        
+        dev.CloseInstrument();
+    }
+    
+    
+    /**
+     * Tests that work submitted from within the command queue is processed
+     * right away instead of waiting for itself.
+     */
+    @Test(timeout = 10000)
+    public void submitToInstrument_FromQueue() throws Exception {
+        
+        final Device dev = makeQueuedDevice();
+        
+        CompletableFuture<String> Outer = dev.submitToInstrument(new Device.CommTask<String>() {
+            @Override
+            public String call() throws IOException {
+                return dev.waitForInstrument( dev.submitToInstrument(new Device.CommTask<String>() {
+                    @Override
+                    public String call() {
+                        return Thread.currentThread().getName();
+                    }
+                }));
+            }
+        });
+        
+        Assert.assertEquals("iC Command Queue Queued", dev.waitForInstrument(Outer));
+        
+        dev.CloseInstrument();
+    }
+    
+    
+    /**
+     * Tests that work submitted while holding the Lock of the communication
+     * port is processed right away instead of waiting for the command queue,
+     * which would wait for the Lock.
+     */
+    @Test(timeout = 10000)
+    public void submitToInstrument_HoldingCommLock() throws Exception {
+        
+        final Device dev = makeQueuedDevice();
+        
+        dev.getCommLock().lock();
+        try {
+            CompletableFuture<String> Future = dev.submitToInstrument(new Device.CommTask<String>() {
+                @Override
+                public String call() {
+                    // like QueryInstrumentDirect
+                    dev.getCommLock().lock();
+                    try {
+                        return Thread.currentThread().getName();
+                    } finally {
+                        dev.getCommLock().unlock();
+                    }
+                }
+            });
+            Assert.assertEquals(Thread.currentThread().getName(), dev.waitForInstrument(Future));
+            
+            // and so are queries
+            Assert.assertEquals("", dev.QueryInstrument("*IDN?"));
+            
+        } finally {
+            dev.getCommLock().unlock();
+        }
+        
+        // without the Lock the command queue is used again
+        Assert.assertEquals("iC Command Queue Queued", dev.waitForInstrument(
+                dev.submitToInstrument(new Device.CommTask<String>() {
+                    @Override
+                    public String call() {
+                        return Thread.currentThread().getName();
+                    }
+                })));
+        
+        dev.CloseInstrument();
+    }
+    
+    
+    /**
+     * Tests that an IOException thrown by the work is re-thrown by 
+     * <code>waitForInstrument</code>, and that work submitted after the 
+     * Instrument was closed fails with an IOException.
+     */
+    @Test
+    public void waitForInstrument_Exceptions() throws Exception {
+        
+        Device dev = makeQueuedDevice();
+        
+        CompletableFuture<Void> Failing = dev.submitToInstrument(new Device.CommTask<Void>() {
+            @Override
+            public Void call() throws IOException {
+                throw new IOException("Instrument did not answer");
+            }
+        });
+        try {
+            dev.waitForInstrument(Failing);
+            Assert.fail("Expected an IOException");
+        } catch (IOException ex) {
+            Assert.assertEquals("Instrument did not answer", ex.getMessage());
+        }
+        
+        // submit after the queue was shut down
+        dev.CloseInstrument();
+        CompletableFuture<Void> Late = dev.SendToInstrumentAsync("*RST");
+        try {
+            Late.get();
+            Assert.fail("Expected an IOException");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IOException);
+        }
+    }
+    
+    
+    /**
+     * Tests that the work is processed right away in the calling thread if
+     * the command queue is not used.
+     */
+    @Test
+    public void submitToInstrument_WithoutQueue() throws Exception {
+        
+        Device dev = new Device();
+        
+        CompletableFuture<String> Future = dev.submitToInstrument(new Device.CommTask<String>() {
+            @Override
+            public String call() {
+                return Thread.currentThread().getName();
+            }
+        });
+        
+        Assert.assertTrue(Future.isDone());
+        Assert.assertEquals(Thread.currentThread().getName(), Future.get());
+    }
+    
+    
+    /**
+     * Tests that a Python block is compiled only once, and that a block with
+     * a syntax error is not cached.
+     */
+    @Test
+    public void getPythonCode_Cache() {
+        
+        PyCode First = Device.getPythonCode("x = 1\ny = x + 1\n");
+        
+        Assert.assertSame(First, Device.getPythonCode("x = 1\ny = x + 1\n"));
+        Assert.assertNotSame(First, Device.getPythonCode("x = 2\ny = x + 1\n"));
+        
+        for (int i=0; i<2; i++) {
+            try {
+                Device.getPythonCode("x = = 1");
+                Assert.fail("Expected a PyException");
+            } catch (PyException ex) {
+                // expected
+            }
+        }
+    }
+    
+    
+    /**
+     * Tests that the pre-warmed Python Interpreter is initialized like a new
+     * one, that it is taken only once, and that pre-warming again while an
+     * Interpreter is being pre-warmed does not start a second one.
+     */
+    @Test(timeout = 60000)
+    public void prewarmPythonInterpreter() throws Exception {
+        
+        PythonInterpreter Interpreter;
+        
+        // nothing pre-warmed
+        Device.takePrewarmedPythonInterpreter();
+        Assert.assertNull(Device.takePrewarmedPythonInterpreter());
+        
+        // a Stop pressed while pre-warming is not lost
+        Device.StopScripting();
+        try {
+            Device.prewarmPythonInterpreter();
+            Device.prewarmPythonInterpreter();
+            
+            Device.PrewarmedPython Prewarmed = Device.takePrewarmedPythonInterpreter();
+            Assert.assertNotNull(Prewarmed);
+            Assert.assertNotNull(Prewarmed.Output);
+            Assert.assertTrue(Device.m_StopScripting);
+            
+            Interpreter = Prewarmed.Interpreter;
+        } finally {
+            Device.m_StopScripting = false;
+        }
+        
+        // the iC objects are exported; _device is exported when it is taken
+        Assert.assertNull(Interpreter.get("_device"));
+        Assert.assertNotNull(Interpreter.get("iC_directory"));
+        Assert.assertNotNull(Interpreter.get("project_directory"));
+        
+        // it can be used
+        Interpreter.exec(Device.getPythonCode("x = 6 * 7\n"));
+        Assert.assertEquals(42, Interpreter.get("x").asInt());
+        
+        // it is taken only once
+        Assert.assertNull(Device.takePrewarmedPythonInterpreter());
+    }
+    
+    
+    /**
+     * Tests locating the data bytes of an IEEE 488.2 definite-length binary 
+     * block; the check that all data bytes have been received is done by the
+     * caller.
+     */
+    @Test
+    public void parseBinaryBlockHeader() throws IOException {
+        
+        // #9 with leading bytes
+        byte[] Data = "\n#9000000005ABCDE\n".getBytes("UTF-8");
+        Assert.assertArrayEquals(new int[] {12, 5}, 
+                Device.parseBinaryBlockHeader(Data, Data.length));
+        
+        // truncated header
+        Assert.assertNull(Device.parseBinaryBlockHeader(Data, 0));
+        Assert.assertNull(Device.parseBinaryBlockHeader(Data, 2));
+        Assert.assertNull(Device.parseBinaryBlockHeader(Data, 3));
+        Assert.assertNull(Device.parseBinaryBlockHeader(Data, 11));
+        Assert.assertArrayEquals(new int[] {12, 5}, 
+                Device.parseBinaryBlockHeader(Data, 12));
+        
+        // the length is larger than the data
+        Data = "#15AB".getBytes("UTF-8");
+        Assert.assertArrayEquals(new int[] {3, 5}, 
+                Device.parseBinaryBlockHeader(Data, Data.length));
+        
+        // #0 and invalid headers
+        assertInvalidHeader("#0ABC\n");
+        assertInvalidHeader("#A5ABCDE");
+        assertInvalidHeader("#2A5ABCDE");
+    }
+    
+    
+    /**
+     * Asserts that parsing the header fails with an IOException.
+     */
+    private void assertInvalidHeader(String Header) throws IOException {
+        byte[] Data = Header.getBytes("UTF-8");
+        try {
+            Device.parseBinaryBlockHeader(Data, Data.length);
+            Assert.fail("Expected an IOException for " + Header.trim());
+        } catch (IOException ignore) {
+            // expected
+        }
+    }
+    
+    
+    /**
+     * Tests calling Script-Methods from Python through an <code>InstrumentProxy</code>:
+     * the native Python arguments are converted to the types of the 
+     * Script-Method, a returned <code>double[][]</code> is passed to Python 
+     * as an array, and errors are raised as Python exceptions.
+     */
+    @Test
+    public void InstrumentProxy_ScriptMethod() throws Exception {
+        
+        HashMap<String, Device> UsedInstruments = Device.m_UsedInstruments;
+        Field f = Device.class.getDeclaredField("m_PythonInterpreter");
+        f.setAccessible(true);
+        Object Interpreter = f.get(null);
+        
+        PythonInterpreter Python = new PythonInterpreter();
+        try {
+            Device.setSyntaxCheckMode(false);
+            
+            ProxiedInstrument dev = new ProxiedInstrument();
+            dev.m_InstrumentName = "Calc";
+            HashMap<String, Device> Instruments = new HashMap<String, Device>();
+            Instruments.put("Calc", dev);
+            Device.setUsedInstruments(Instruments);
+            
+            // export the proxies
+            f.set(null, Python);
+            Method m = Device.class.getDeclaredMethod("exportInstrumentsToPython");
+            m.setAccessible(true);
+            m.invoke(null);
+            Assert.assertEquals("<Instrument Calc>", Python.eval("repr(Calc)").toString());
+            Assert.assertEquals("<Instrument Calc>", Python.eval("repr(instruments['Calc'])").toString());
+            
+            // native numbers and a String; the returned array is not converted to a String
+            Python.exec("data = Calc.getData(2, 1.5, 'x')\n");
+            double[][] Data = (double[][]) Python.get("data").__tojava__(double[][].class);
+            Assert.assertSame(dev.m_Data, Data);
+            Assert.assertArrayEquals(new double[] {1.5, 3.0}, Data[1], 0);
+            Assert.assertEquals(3.0, Python.eval("data[1][1]").asDouble(), 0);
+            Assert.assertEquals("x", dev.m_Name);
+            
+            // an integral float is accepted for an int, a Python int for a float
+            Python.exec("data = Calc.getData(3.0, 2, 'y')\n");
+            Assert.assertEquals(3, Python.eval("len(data)").asInt());
+            Python.exec("Calc.setScale(2, True)\n");
+            Assert.assertEquals(2f, dev.m_Scale, 0);
+            
+            // a fractional number for an int
+            assertPythonError(Python, "Calc.getData(2.5, 1.5, 'x')", "integer");
+            
+            // an exception thrown by the Script-Method
+            assertPythonError(Python, "Calc.getData(-1, 1.5, 'x')", "'getData' caused an error");
+            
+            // the proxy is passed to Java as the Instrument
+            Assert.assertSame(dev, Python.eval("Calc").__tojava__(ProxiedInstrument.class));
+            
+            // not a Script-Method
+            Assert.assertFalse(Python.eval("hasattr(Calc, 'NoSuchMethod')").__nonzero__());
+            
+            // the Instrument is not MADE anymore
+            Instruments.clear();
+            assertPythonError(Python, "Calc.getData(2, 1.5, 'x')", "not MADE");
+            
+        } finally {
+            f.set(null, Interpreter);
+            Device.setUsedInstruments(UsedInstruments);
+            Python.cleanup();
+        }
+    }
+    
+    
+    /**
+     * Tests that a <code>CompiledCommand</code> is compiled again when the 
+     * Instrument was re-MADE with a different Instrument-Class, and that the
+     * passed <code>CompiledCommand</code> is updated, so that it is compiled
+     * only once.
+     */
+    @Test
+    public void DispatchCommand_ReMadeInstrument() throws Exception {
+        
+        HashMap<String, Device> UsedInstruments = Device.m_UsedInstruments;
+        try {
+            Device.setSyntaxCheckMode(false);
+            
+            ProxiedInstrument dev = new ProxiedInstrument();
+            dev.m_InstrumentName = "Calc";
+            dev.m_InstrumentClassName = "Proxied";
+            HashMap<String, Device> Instruments = new HashMap<String, Device>();
+            Instruments.put("Calc", dev);
+            Device.setUsedInstruments(Instruments);
+            
+            CompiledCommand Command = dev.compileCommand("Calc setScale 2; true");
+            Assert.assertSame(dev, Command.DeviceInstance);
+            dev.DispatchCommand(Command);
+            Assert.assertEquals(2f, dev.m_Scale, 0);
+            
+            // re-MADE as the same class: just re-bound
+            ProxiedInstrument Same = new ProxiedInstrument();
+            Same.m_InstrumentName = "Calc";
+            Same.m_InstrumentClassName = "Proxied";
+            Instruments.put("Calc", Same);
+            Object[] Parameters = Command.ConvertedParameters;
+            
+            dev.DispatchCommand(Command);
+            Assert.assertEquals(2f, Same.m_Scale, 0);
+            Assert.assertSame(Same, Command.DeviceInstance);
+            Assert.assertSame(Parameters, Command.ConvertedParameters);
+            
+            // re-MADE as a different class: compiled again and updated
+            ScaledInstrument Other = new ScaledInstrument();
+            Other.m_InstrumentName = "Calc";
+            Other.m_InstrumentClassName = "Scaled";
+            Instruments.put("Calc", Other);
+            
+            dev.DispatchCommand(Command);
+            Assert.assertEquals(-2f, Other.m_Scale, 0);
+            Assert.assertSame(Other, Command.DeviceInstance);
+            Assert.assertSame(ScaledInstrument.class, Command.DeviceClass);
+            Assert.assertEquals("Scaled", Command.InstrumentClassName);
+            Assert.assertSame(ScaledInstrument.class, 
+                    Command.Method.ReferenceToMethod.getDeclaringClass());
+            Assert.assertNotSame(Parameters, Command.ConvertedParameters);
+            
+            // not compiled again
+            Parameters = Command.ConvertedParameters;
+            Other.m_Scale = 0;
+            dev.DispatchCommand(Command);
+            Assert.assertEquals(-2f, Other.m_Scale, 0);
+            Assert.assertSame(Parameters, Command.ConvertedParameters);
+            
+        } finally {
+            Device.setUsedInstruments(UsedInstruments);
+        }
+    }
+    
+    
+    /**
+     * Asserts that the Python statement raises an exception with the given 
+     * text in it's message.
+     */
+    private void assertPythonError(PythonInterpreter Python, String Statement, String Message) {
+        try {
+            Python.exec(Statement + "\n");
+            Assert.fail("Expected a Python exception for " + Statement);
+        } catch (PyException ex) {
+            Assert.assertTrue(ex.toString(), ex.toString().contains(Message));
+        }
+    }
+    
+    
+    /**
+     * Makes a Device that uses the command queue. The command queue is 
+     * enabled in <code>OpenInstrument</code> from the iC.properties, so the
+     * field is set directly; the command queue is not used in Syntax-Check mode.
+     */
+    private Device makeQueuedDevice() throws Exception {
+        
+        Device.setSyntaxCheckMode(false);
+        
+        Device dev = new Device();
+        
+        Field f = Device.class.getDeclaredField("m_UseCommandQueue");
+        f.setAccessible(true);
+        f.setBoolean(dev, true);
+        
+        dev.m_InstrumentName = "Queued";
+        
+        return dev;
+    }
+    
+    
+    /**
+     * An Instrument with Script-Methods that are called through an 
+     * <code>InstrumentProxy</code>.
+     */
+    public static class ProxiedInstrument extends Device {
+        
+        /** The last returned data */
+        double[][] m_Data;
+        
+        /** The last passed name */
+        String m_Name;
+        
+        /** The last passed scale */
+        float m_Scale;
+        
+        public double[][] getData(int Rows, double Step, String Name) {
+            
+            m_Data = new double[Rows][2];
+            for (int i=0; i<Rows; i++) {
+                m_Data[i][0] = i * Step;
+                m_Data[i][1] = 2 * i * Step;
+            }
+            m_Name = Name;
+            
+            return m_Data;
+        }
+        
+        public void setScale(float Scale, boolean Enabled) {
+            m_Scale = Enabled ? Scale : 0;
+        }
+    }
+    
+    
+    /**
+     * A different Instrument with the same Script-Method as 
+     * <code>ProxiedInstrument</code>.
+     */
+    public static class ScaledInstrument extends Device {
+        
+        /** The last passed scale */
+        float m_Scale;
+        
+        public void setScale(float Scale, boolean Inverted) {
+            m_Scale = Inverted ? -Scale : Scale;
+        }
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import com.sun.jna.ptr.IntByReference;
+import icontrol.IcontrolTests;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests for the GPIB_Prologix class. The native ftd2xx library is replaced
+ * by a fake FTDI chip that delivers the Instrument's answers with a delay
+ * and collects the written data.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class GPIB_PrologixTest extends IcontrolTests {
+    
+    /** The character set of the messages */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /** The status returned by the fake FTDI chip upon an I/O error */
+    private static final int FT_IO_ERROR = 4;
+    
+    /** Stands in for the native library */
+    private FakeFTDI m_FTDI;
+    
+    /** The driver */
+    private GPIB_Prologix m_Driver;
+    
+    
+    @Before
+    public void setUp() throws Exception {
+        
+        // replace the native library before the driver is created, so the 
+        // driver does not load it
+        m_FTDI = new FakeFTDI();
+        Class<?> Interface = Class.forName("icontrol.drivers.GPIB_Prologix$ftd2xx");
+        setStatic("m_ftd2xx", Proxy.newProxyInstance(Interface.getClassLoader(), 
+                new Class<?>[] {Interface}, m_FTDI));
+        
+        m_Driver = new GPIB_Prologix();
+        setStatic("m_ReceiveBuffer", ByteBuffer.allocate((Integer) get(m_Driver, "RECEIVE_BUFFER_SIZE")));
+        
+        // the controller's state is not known
+        setStatic("m_AddressedInstrument", -1);
+        setStatic("m_AutoRead", -1);
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        setStatic("m_ftd2xx", null);
+        setStatic("m_ReceiveBuffer", null);
+        setStatic("m_AddressedInstrument", -1);
+        setStatic("m_AutoRead", -1);
+    }
+    
+    
+    /**
+     * Tests that reading ends as soon as the data ends with the read 
+     * terminator, without waiting for the USB time out, and that a later
+     * answer remains in the receive queue.
+     */
+    @Test(timeout = 10000)
+    public void read_Terminator() throws Exception {
+        
+        set(m_Driver, "TIMEOUT_USB", 1000);
+        
+        m_FTDI.feed(0, "1.2");
+        m_FTDI.feed(30, "34\n");
+        m_FTDI.feed(300, "5.6\n");
+        
+        long Start = System.currentTimeMillis();
+        Assert.assertEquals("1.234\n", read(true));
+        Assert.assertTrue(System.currentTimeMillis() - Start < 250);
+        
+        Assert.assertEquals("5.6\n", read(true));
+    }
+    
+    
+    /**
+     * Tests that binary data is read until no more data arrived for the USB
+     * time out, even if it contains or ends with the read terminator, and
+     * that the read buffer grows for large blocks.
+     */
+    @Test(timeout = 10000)
+    public void read_Binary() throws Exception {
+        
+        set(m_Driver, "TIMEOUT_USB", 100);
+        
+        char[] Large = new char[1000];
+        Arrays.fill(Large, 'x');
+        Large[Large.length - 1] = '\n';
+        
+        m_FTDI.feed(0, "#14AB\nC");
+        m_FTDI.feed(20, "\n");
+        m_FTDI.feed(40, new String(Large));
+        
+        long Start = System.currentTimeMillis();
+        Assert.assertEquals("#14AB\nC\n" + new String(Large), read(false));
+        Assert.assertTrue(System.currentTimeMillis() - Start >= 40 + 100);
+    }
+    
+    
+    /**
+     * Tests that an answer without the read terminator ends when no more data
+     * arrived for the USB time out.
+     */
+    @Test(timeout = 10000)
+    public void read_NotTerminated() throws Exception {
+        
+        set(m_Driver, "TIMEOUT_USB", 100);
+        
+        m_FTDI.feed(0, "1.0");
+        
+        long Start = System.currentTimeMillis();
+        Assert.assertEquals("1.0", read(true));
+        long Elapsed = System.currentTimeMillis() - Start;
+        Assert.assertTrue(Elapsed >= 100);
+        Assert.assertTrue(Elapsed < 2000);
+    }
+    
+    
+    /**
+     * Tests that reading ends after the GPIB time out (plus the USB time out)
+     * if the Instrument does not answer.
+     */
+    @Test(timeout = 10000)
+    public void read_GPIBTimeOut() throws Exception {
+        
+        set(m_Driver, "TIMEOUT_USB", 50);
+        set(m_Driver, "TIMEOUT_GPIB", 300);
+        
+        long Start = System.currentTimeMillis();
+        Assert.assertEquals("", read(true));
+        long Elapsed = System.currentTimeMillis() - Start;
+        Assert.assertTrue(Elapsed >= 350);
+        Assert.assertTrue(Elapsed < 2000);
+    }
+    
+    
+    /**
+     * Tests that an error of the FTDI chip is thrown as IOException.
+     */
+    @Test(timeout = 10000)
+    public void read_Error() throws Exception {
+        
+        m_FTDI.m_Status = FT_IO_ERROR;
+        try {
+            read(true);
+            Assert.fail("Expected an IOException");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains("FT_IO_ERROR"));
+        }
+    }
+    
+    
+    /**
+     * Tests reading with a single <code>FT_Read</code> if polling the receive
+     * queue is disabled.
+     */
+    @Test(timeout = 10000)
+    public void read_NotPolled() throws Exception {
+        
+        set(m_Driver, "POLL_RX_QUEUE", false);
+        
+        m_FTDI.feed(0, "1.0\n2.0\n");
+        Assert.assertEquals("1.0\n2.0\n", read(true));
+    }
+    
+    
+    /**
+     * Tests that ++addr, the message, and ++read eoi of a query are sent in
+     * one transfer, and that ++addr is skipped while the same Instrument is
+     * addressed.
+     */
+    @Test(timeout = 10000)
+    public void query_Batched() throws Exception {
+        
+        m_Driver.Open(5);
+        Assert.assertEquals(Arrays.asList("++auto 0\r\n++addr 5\r\n++clr\n\r\n"), m_FTDI.m_Written);
+        m_FTDI.m_Written.clear();
+        
+        m_FTDI.feed(0, "1.0\n");
+        Assert.assertEquals("1.0", m_Driver.Query("MEAS?", true));
+        m_FTDI.feed(0, "2.0\n");
+        Assert.assertEquals("2.0\n", m_Driver.Query("MEAS?\r\n", false));
+        
+        Assert.assertEquals(Arrays.asList(
+                "MEAS?\r\n++read eoi\r\n",
+                "MEAS?\r\n++read eoi\r\n"), m_FTDI.m_Written);
+        
+        // Send and ReceiveBytes
+        m_FTDI.m_Written.clear();
+        Assert.assertEquals("RANGE 2\r\n".length(), m_Driver.Send("RANGE 2"));
+        m_FTDI.feed(0, "#13ABC\n");
+        Assert.assertEquals("#13ABC\n", new String(m_Driver.ReceiveBytes(), UTF8));
+        
+        Assert.assertEquals(Arrays.asList("RANGE 2\r\n", "++read eoi\r\n"), m_FTDI.m_Written);
+    }
+    
+    
+    /**
+     * Tests that ++addr is sent again after another Instrument on the same
+     * controller was addressed.
+     */
+    @Test(timeout = 10000)
+    public void query_AddressChanged() throws Exception {
+        
+        GPIB_Prologix Other = new GPIB_Prologix();
+        m_Driver.Open(5);
+        Other.Open(7);
+        m_FTDI.m_Written.clear();
+        
+        m_FTDI.feed(0, "1.0\n");
+        m_Driver.Query("MEAS?", true);
+        m_FTDI.feed(0, "7.0\n");
+        Assert.assertEquals("7.0", Other.Query("MEAS?", true));
+        m_FTDI.feed(0, "7.0\n");
+        Other.Query("MEAS?", true);
+        m_FTDI.feed(0, "1.0\n");
+        m_Driver.Query("MEAS?", true);
+        
+        Assert.assertEquals(Arrays.asList(
+                "++addr 5\r\nMEAS?\r\n++read eoi\r\n",
+                "++addr 7\r\nMEAS?\r\n++read eoi\r\n",
+                "MEAS?\r\n++read eoi\r\n",
+                "++addr 5\r\nMEAS?\r\n++read eoi\r\n"), m_FTDI.m_Written);
+    }
+    
+    
+    /**
+     * Tests that ++auto and ++addr are sent again after a failed write, 
+     * because the state of the controller is not known anymore.
+     */
+    @Test(timeout = 10000)
+    public void query_WriteFailed() throws Exception {
+        
+        m_Driver.Open(5);
+        m_FTDI.m_Written.clear();
+        
+        m_FTDI.m_WriteStatus = FT_IO_ERROR;
+        try {
+            m_Driver.Query("MEAS?", true);
+            Assert.fail("Expected an IOException");
+        } catch (IOException ex) {
+            Assert.assertTrue(ex.getMessage().contains("FT_IO_ERROR"));
+        }
+        
+        m_FTDI.feed(0, "1.0\n");
+        Assert.assertEquals("1.0", m_Driver.Query("MEAS?", true));
+        
+        Assert.assertEquals(Arrays.asList(
+                "++auto 0\r\n++addr 5\r\nMEAS?\r\n++read eoi\r\n"), m_FTDI.m_Written);
+    }
+    
+    
+    /**
+     * Tests that queries of an Instrument in <code>GPIB_Prologix.AutoReadAddresses</code>
+     * use ++auto 1 instead of ++read eoi, and that ++auto 0 is set again 
+     * before sending a command or querying another Instrument.
+     */
+    @Test(timeout = 10000)
+    public void query_AutoRead() throws Exception {
+        
+        GPIB_Prologix Other = new GPIB_Prologix();
+        Other.Open(5);
+        m_Driver.Open(9);
+        set(m_Driver, "m_UseAutoRead", true);
+        m_FTDI.m_Written.clear();
+        
+        m_FTDI.feed(0, "1.0\n");
+        Assert.assertEquals("1.0", m_Driver.Query("MEAS?", true));
+        m_FTDI.feed(0, "2.0\n");
+        Assert.assertEquals("2.0", m_Driver.Query("MEAS?", true));
+        
+        // a command without answer
+        Assert.assertEquals("RANGE 2\r\n".length(), m_Driver.Send("RANGE 2"));
+        
+        m_FTDI.feed(0, "3.0\n");
+        m_Driver.Query("MEAS?", true);
+        
+        // another Instrument
+        m_FTDI.feed(0, "5.0\n");
+        Assert.assertEquals("5.0", Other.Query("MEAS?", true));
+        
+        Assert.assertEquals(Arrays.asList(
+                "++auto 1\r\nMEAS?\r\n",
+                "MEAS?\r\n",
+                "++auto 0\r\nRANGE 2\r\n",
+                "++auto 1\r\nMEAS?\r\n",
+                "++auto 0\r\n++addr 5\r\nMEAS?\r\n++read eoi\r\n"), m_FTDI.m_Written);
+    }
+    
+    
+    /**
+     * Tests that ++addr is sent with each transfer if pipelining is disabled.
+     */
+    @Test(timeout = 10000)
+    public void query_NotPipelined() throws Exception {
+        
+        set(m_Driver, "PIPELINING", false);
+        m_Driver.Open(5);
+        m_FTDI.m_Written.clear();
+        
+        m_FTDI.feed(0, "1.0\n");
+        Assert.assertEquals("1.0", m_Driver.Query("MEAS?", true));
+        
+        Assert.assertEquals(Arrays.asList(
+                "++addr 5\r\n", "MEAS?\r\n", "++addr 5\r\n", "++read eoi\r\n"), m_FTDI.m_Written);
+    }
+    
+    
+    /**
+     * Reads an answer with <code>ReadBytesFromPrologix</code>.
+     */
+    private String read(boolean StopAtTerminator) throws Exception {
+        
+        Method m = GPIB_Prologix.class.getDeclaredMethod("ReadBytesFromPrologix", boolean.class);
+        m.setAccessible(true);
+        try {
+            return new String((byte[]) m.invoke(m_Driver, StopAtTerminator), UTF8);
+        } catch (InvocationTargetException ex) {
+            throw (Exception) ex.getCause();
+        }
+    }
+    
+    
+    /**
+     * Sets a private field of the driver.
+     */
+    private void set(GPIB_Prologix Driver, String FieldName, Object Value) throws Exception {
+        Field f = GPIB_Prologix.class.getDeclaredField(FieldName);
+        f.setAccessible(true);
+        f.set(Driver, Value);
+    }
+    
+    
+    /**
+     * Sets a private static field of the driver.
+     */
+    private void setStatic(String FieldName, Object Value) throws Exception {
+        set(null, FieldName, Value);
+    }
+    
+    
+    /**
+     * Gets a private field of the driver.
+     */
+    private Object get(GPIB_Prologix Driver, String FieldName) throws Exception {
+        Field f = GPIB_Prologix.class.getDeclaredField(FieldName);
+        f.setAccessible(true);
+        return f.get(Driver);
+    }
+    
+    
+    /**
+     * Stands in for the FTDI chip in the Prologix controller. The fed data 
+     * arrives in the receive queue after the given delay; <code>FT_Read</code>
+     * returns the bytes in the receive queue without waiting. The data 
+     * written with <code>FT_Write</code> is collected.
+     */
+    private static class FakeFTDI implements InvocationHandler {
+        
+        /** The data that did not arrive yet and the time it arrives */
+        private final List<byte[]> m_Pending = new ArrayList<byte[]>();
+        private final List<Long> m_Arrival = new ArrayList<Long>();
+        
+        /** The receive queue */
+        private byte[] m_RxQueue = new byte[0];
+        
+        /** The written data */
+        final List<String> m_Written = new ArrayList<String>();
+        
+        /** The status returned by <code>FT_GetStatus</code> and <code>FT_Read</code> */
+        volatile int m_Status = 0;
+        
+        /** The status returned by the next <code>FT_Write</code> */
+        volatile int m_WriteStatus = 0;
+        
+        
+        /**
+         * Data arrives in the receive queue after the given delay in ms.
+         */
+        synchronized void feed(long Delay, String Data) {
+            m_Pending.add(Data.getBytes(UTF8));
+            m_Arrival.add(System.currentTimeMillis() + Delay);
+        }
+        
+        /**
+         * Moves the data that arrived into the receive queue.
+         */
+        private void arrive() {
+            long Now = System.currentTimeMillis();
+            while ( !m_Pending.isEmpty() && m_Arrival.get(0) <= Now ) {
+                byte[] Data = m_Pending.remove(0);
+                m_Arrival.remove(0);
+                
+                int Length = m_RxQueue.length;
+                m_RxQueue = Arrays.copyOf(m_RxQueue, Length + Data.length);
+                System.arraycopy(Data, 0, m_RxQueue, Length, Data.length);
+            }
+        }
+        
+        /**
+         * Implements the native functions used by the driver.
+         */
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) {
+            
+            String Name = method.getName();
+            if ("FT_GetStatus".equals(Name)) {
+                arrive();
+                ((IntByReference) args[1]).setValue(m_RxQueue.length);
+                ((IntByReference) args[2]).setValue(0);
+                return m_Status;
+                
+            } else if ("FT_Read".equals(Name)) {
+                arrive();
+                ByteBuffer Buffer = (ByteBuffer) args[1];
+                int NrBytes = Math.min((Integer) args[2], m_RxQueue.length);
+                System.arraycopy(m_RxQueue, 0, Buffer.array(), 0, NrBytes);
+                m_RxQueue = Arrays.copyOfRange(m_RxQueue, NrBytes, m_RxQueue.length);
+                ((IntByReference) args[3]).setValue(NrBytes);
+                return m_Status;
+                
+            } else if ("FT_Write".equals(Name)) {
+                int Status = m_WriteStatus;
+                m_WriteStatus = 0;
+                if (Status == 0) {
+                    m_Written.add((String) args[1]);
+                    ((IntByReference) args[3]).setValue((Integer) args[2]);
+                }
+                return Status;
+            }
+            
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import icontrol.IcontrolTests;
+import icontrol.iC_Properties;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests for the LAN_Driver class. A local server socket stands in for the
+ * Instrument.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class LAN_DriverTest extends IcontrolTests {
+    
+    /** The character set of the messages */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /** The line feed terminator */
+    private static final byte[] LF = {'\n'};
+    
+    /** Accepts the connection of the driver */
+    private ServerSocket m_Server;
+    
+    /** The Instrument's end of the connection */
+    private Socket m_Instrument;
+    
+    /** The driver to test */
+    private LAN_Driver m_Driver;
+    
+    
+    @Before
+    public void setUp() throws Exception {
+        m_Server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        
+        m_Driver = new LAN_Driver();
+        m_Driver.OpenConnection(new URL("http://127.0.0.1:" + m_Server.getLocalPort()));
+        
+        m_Instrument = m_Server.accept();
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        m_Driver.CloseConnection();
+        m_Instrument.close();
+        m_Server.close();
+    }
+    
+    
+    /**
+     * Tests that an answer ends at the first terminator and that the data 
+     * after it is returned by the next call.
+     */
+    @Test
+    public void receive_Terminator() throws IOException {
+        
+        answer("1.0\n2.0\n3.");
+        Assert.assertEquals("1.0\n", receive(LF, 0));
+        Assert.assertEquals("2.0\n", receive(LF, 0));
+        
+        // the rest of the answer arrives later
+        answer("0\n");
+        Assert.assertEquals("3.0\n", receive(null, 0));
+        
+        // terminator with more than one byte
+        answer("A\rB\r\nC\r\n");
+        Assert.assertEquals("A\rB\r\n", receive(new byte[] {'\r', '\n'}, 0));
+        Assert.assertEquals("C\r\n", receive(new byte[] {'\r', '\n'}, 0));
+    }
+    
+    
+    /**
+     * Tests that an answer ends after the expected length unless a terminator
+     * comes first, and that the data after it is returned by the next call.
+     */
+    @Test
+    public void receive_ExpectedLength() throws IOException {
+        
+        // a binary block
+        answer("#15AB\nDE\n");
+        Assert.assertEquals("#15", receive(null, 3));
+        Assert.assertEquals("AB\nDE", receive(null, 5));
+        Assert.assertEquals("\n", receive(LF, 1));
+        
+        // the terminator comes first
+        answer("AB\nCDEF\n");
+        Assert.assertEquals("AB\n", receive(LF, 5));
+        Assert.assertEquals("CDE", receive(LF, 3));
+        Assert.assertEquals("F\n", receive(LF, 3));
+    }
+    
+    
+    /**
+     * Tests that data not read before the next message is sent is discarded.
+     */
+    @Test
+    public void send_DiscardsUnreadData() throws Exception {
+        
+        // an answer that is not read
+        answer("stale\nmore\n");
+        Assert.assertEquals("stale\n", receive(LF, 0));
+        Thread.sleep(200);
+        
+        m_Driver.Send("MEAS?\n".getBytes(UTF8));
+        
+        // the Instrument receives the message and answers
+        byte[] Message = new byte[6];
+        InputStream In = m_Instrument.getInputStream();
+        int Length = 0;
+        while (Length < Message.length) {
+            Length += In.read(Message, Length, Message.length - Length);
+        }
+        Assert.assertEquals("MEAS?\n", new String(Message, UTF8));
+        
+        answer("fresh\n");
+        Assert.assertEquals("fresh\n", receive(LF, 0));
+    }
+    
+    
+    /**
+     * Tests that an incomplete answer times out.
+     */
+    @Test(timeout = 30000)
+    public void receive_TimeOut() throws IOException {
+        
+        answer("incomplete");
+        try {
+            receive(LF, 0);
+            Assert.fail("Expected a SocketTimeoutException");
+        } catch (SocketTimeoutException ex) {
+            Assert.assertTrue(ex.getMessage().contains("Time out"));
+        }
+    }
+    
+    
+    /**
+     * Tests that an answer which arrives steadily may take longer than the 
+     * time out, because the time out restarts when data arrives.
+     */
+    @Test(timeout = 30000)
+    public void receive_SteadyStream() throws Exception {
+        
+        final int TimeOut = new iC_Properties().getInt("LAN_Driver.TimeOut", 3000);
+        
+        // send one byte every half time out
+        Thread Sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 4; i++) {
+                        answer(String.valueOf(i));
+                        Thread.sleep(TimeOut / 2);
+                    }
+                } catch (Exception ignore) {
+                    // the Receive below fails
+                }
+            }
+        });
+        Sender.start();
+        
+        Assert.assertEquals("0123", receive(null, 4));
+        Sender.join();
+    }
+    
+    
+    /**
+     * Tests that a complete answer is returned even if the Instrument closed
+     * the connection afterwards, and that the next call fails.
+     */
+    @Test(timeout = 30000)
+    public void receive_PeerClosed() throws IOException {
+        
+        answer("last\nincomplete");
+        m_Instrument.close();
+        
+        Assert.assertEquals("last\n", receive(LF, 0));
+        try {
+            receive(LF, 0);
+            Assert.fail("Expected an EOFException");
+        } catch (EOFException ex) {
+            Assert.assertTrue(ex.getMessage().contains("closed"));
+        }
+    }
+    
+    
+    /**
+     * Sends the answer from the Instrument to the driver.
+     */
+    private void answer(String Answer) throws IOException {
+        OutputStream Out = m_Instrument.getOutputStream();
+        Out.write(Answer.getBytes(UTF8));
+        Out.flush();
+    }
+    
+    
+    /**
+     * Receives an answer with the driver.
+     */
+    private String receive(byte[] Terminator, int ExpectedLength) throws IOException {
+        return new String(m_Driver.Receive(Terminator, ExpectedLength), UTF8);
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import icontrol.GUI_Interface;
+import icontrol.IcontrolTests;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/**
+ * Tests for the PollingService class.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class PollingServiceTest extends IcontrolTests {
+    
+    /** The period of the tasks in ms */
+    private static final long PERIOD = 100;
+    
+    
+    @After
+    public void tearDown() {
+        PollingService.cancelAll();
+        Device.m_StopScripting = false;
+    }
+    
+    
+    /**
+     * Tests that the samples are due at multiples of the period, starting
+     * with the next multiple, at a fixed rate.
+     */
+    @Test(timeout = 10000)
+    public void schedule_Aligned() throws Exception {
+        
+        Recorder Task = new Recorder();
+        
+        long Start = System.currentTimeMillis();
+        PollingService.schedule(Task, PERIOD);
+        long End = System.currentTimeMillis();
+        Task.awaitSamples(5);
+        
+        List<Long> DueTimes = Task.getDueTimes();
+        long First = DueTimes.get(0);
+        Assert.assertEquals(0, First % PERIOD);
+        Assert.assertTrue(First > Start && First <= End + PERIOD);
+        
+        for (int i = 1; i < DueTimes.size(); i++) {
+            Assert.assertEquals(First + i * PERIOD, (long) DueTimes.get(i));
+        }
+    }
+    
+    
+    /**
+     * Tests that a RuntimeException thrown by a sample does not cancel the task.
+     */
+    @Test(timeout = 10000)
+    public void schedule_SampleFails() throws Exception {
+        
+        Recorder Task = new Recorder() {
+            @Override
+            public void sample(long DueTime) {
+                super.sample(DueTime);
+                throw new IllegalStateException("Instrument not ready");
+            }
+        };
+        
+        PollingService.schedule(Task, PERIOD);
+        Task.awaitSamples(3);
+    }
+    
+    
+    /**
+     * Tests that <code>Device.StopScripting</code> cancels all tasks, that 
+     * <code>stopped</code> is called once per task, and that no samples 
+     * are taken afterwards.
+     */
+    @Test(timeout = 10000)
+    public void cancelAll_StopScripting() throws Exception {
+        
+        Recorder First = new Recorder();
+        Recorder Second = new Recorder();
+        PollingService.schedule(First, PERIOD);
+        PollingService.schedule(Second, 2 * PERIOD);
+        First.awaitSamples(2);
+        
+        Device.StopScripting();
+        
+        Assert.assertTrue(First.m_Stopped.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(Second.m_Stopped.await(5, TimeUnit.SECONDS));
+        
+        int NrSamples = First.getDueTimes().size();
+        Device.m_StopScripting = false;
+        Thread.sleep(3 * PERIOD);
+        
+        Assert.assertEquals(NrSamples, First.getDueTimes().size());
+        Assert.assertEquals(1, First.m_NrStopped.get());
+        
+        // cancelling again does not stop the tasks again
+        PollingService.cancelAll();
+        Thread.sleep(PERIOD);
+        Assert.assertEquals(1, First.m_NrStopped.get());
+    }
+    
+    
+    /**
+     * Tests that no samples are taken while scripting is paused, and that
+     * the due times of the samples after the pause remain aligned.
+     */
+    @Test(timeout = 10000)
+    public void schedule_Paused() throws Exception {
+        
+        final GUI_Interface GUI = Device.m_GUI;
+        final boolean[] Paused = {false};
+        
+        // a GUI that can be paused
+        Device.m_GUI = (GUI_Interface) Proxy.newProxyInstance(GUI_Interface.class.getClassLoader(),
+                new Class<?>[] {GUI_Interface.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object Proxy, Method Method, Object[] Args) 
+                           throws Throwable {
+                        if (Method.getName().equals("isPaused")) {
+                            return Paused[0];
+                        }
+                        try {
+                            return Method.invoke(GUI, Args);
+                        } catch (InvocationTargetException ex) {
+                            throw ex.getCause();
+                        }
+                    }
+                });
+        
+        try {
+            Recorder Task = new Recorder();
+            PollingService.schedule(Task, PERIOD);
+            Task.awaitSamples(2);
+            
+            Paused[0] = true;
+            Thread.sleep(PERIOD);
+            int NrSamples = Task.getDueTimes().size();
+            Thread.sleep(4 * PERIOD);
+            Assert.assertEquals(NrSamples, Task.getDueTimes().size());
+            
+            Paused[0] = false;
+            Task.awaitSamples(NrSamples + 2);
+            
+            // the samples in between were skipped
+            List<Long> DueTimes = Task.getDueTimes();
+            long Gap = DueTimes.get(NrSamples) - DueTimes.get(NrSamples - 1);
+            Assert.assertTrue(Gap >= 4 * PERIOD);
+            Assert.assertEquals(0, Gap % PERIOD);
+            
+        } finally {
+            Device.m_GUI = GUI;
+        }
+    }
+    
+    
+    /**
+     * Tests that a query with the same key and due time is executed once and
+     * it's result is shared, also with a task that waits for it, and that
+     * other keys and due times are queried again.
+     */
+    @Test(timeout = 10000)
+    public void query_Merged() throws Exception {
+        
+        final String Key = PollingService.makeKey("Tsample", "getTemp", new Object[]{"A"});
+        final AtomicInteger NrQueries = new AtomicInteger();
+        
+        // a slow query
+        final Callable<Double> Query = new Callable<Double>() {
+            @Override
+            public Double call() throws Exception {
+                Thread.sleep(300);
+                return 4.2 + NrQueries.getAndIncrement();
+            }
+        };
+        
+        // another task queries while the first one is waiting for the answer
+        final Double[] Other = new Double[1];
+        Thread OtherTask = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    Other[0] = PollingService.query(Key, 1000, Query);
+                } catch (Exception ignore) {
+                    // Other[0] remains null
+                }
+            }
+        });
+        OtherTask.start();
+        
+        Assert.assertEquals(4.2, PollingService.query(Key, 1000, Query), 0);
+        OtherTask.join();
+        Assert.assertEquals(4.2, Other[0], 0);
+        Assert.assertEquals(1, NrQueries.get());
+        
+        // a later query
+        Assert.assertEquals(4.2, PollingService.query(Key, 1000, Query), 0);
+        Assert.assertEquals(1, NrQueries.get());
+        
+        // another key and another due time
+        String OtherKey = PollingService.makeKey("Tsample", "getTemp", new Object[]{"B"});
+        Assert.assertEquals(5.2, PollingService.query(OtherKey, 1000, Query), 0);
+        Assert.assertEquals(6.2, PollingService.query(Key, 2000, Query), 0);
+        
+        // older results are forgotten
+        Assert.assertEquals(7.2, PollingService.query(Key, 1000, Query), 0);
+        Assert.assertEquals(4, NrQueries.get());
+    }
+    
+    
+    /**
+     * Tests that the Exception of a merged query is thrown to all tasks.
+     */
+    @Test
+    public void query_Exception() throws Exception {
+        
+        String Key = PollingService.makeKey("Tsample", "getTemp", new Object[]{"Failing"});
+        final AtomicInteger NrQueries = new AtomicInteger();
+        
+        Callable<Double> Query = new Callable<Double>() {
+            @Override
+            public Double call() throws Exception {
+                NrQueries.incrementAndGet();
+                throw new IOException("Time out");
+            }
+        };
+        
+        for (int i = 0; i < 2; i++) {
+            try {
+                PollingService.query(Key, 3000, Query);
+                Assert.fail("Expected an IOException");
+            } catch (IOException ex) {
+                Assert.assertEquals("Time out", ex.getMessage());
+            }
+        }
+        Assert.assertEquals(1, NrQueries.get());
+    }
+    
+    
+    /**
+     * Records the due times of the samples.
+     */
+    private static class Recorder implements PollingService.PollingTask {
+        
+        private final List<Long> m_DueTimes = new ArrayList<Long>();
+        
+        final AtomicInteger m_NrStopped = new AtomicInteger();
+        
+        final CountDownLatch m_Stopped = new CountDownLatch(1);
+        
+        @Override
+        public void sample(long DueTime) {
+            synchronized (m_DueTimes) {
+                m_DueTimes.add(DueTime);
+                m_DueTimes.notifyAll();
+            }
+        }
+        
+        @Override
+        public void stopped() {
+            m_NrStopped.incrementAndGet();
+            m_Stopped.countDown();
+        }
+        
+        List<Long> getDueTimes() {
+            synchronized (m_DueTimes) {
+                return new ArrayList<Long>(m_DueTimes);
+            }
+        }
+        
+        void awaitSamples(int NrSamples) throws InterruptedException {
+            synchronized (m_DueTimes) {
+                while (m_DueTimes.size() < NrSamples) {
+                    m_DueTimes.wait();
+                }
+            }
+        }
+    }
+}
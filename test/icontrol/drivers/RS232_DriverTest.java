@@ -0,0 +1,436 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import icontrol.IcontrolTests;
+import icontrol.iC_Properties;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests for the RS232_Driver class. The streams of the serial port are 
+ * replaced by a fake input stream that delivers the Instrument's answer 
+ * and an output stream that collects the sent bytes.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class RS232_DriverTest extends IcontrolTests {
+    
+    /** The character set of the messages */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /** The time out in ms after which no more data is expected */
+    private int m_TimeOut;
+    
+    /** The input stream of the serial port */
+    private FakeSerialInput m_Input;
+    
+    /** The output stream of the serial port */
+    private ByteArrayOutputStream m_Output;
+    
+    /** The driver to test */
+    private RS232_Driver m_Driver;
+    
+    
+    @Before
+    public void setUp() throws Exception {
+        m_TimeOut = new iC_Properties().getInt("RS232_Driver.TimeOut", 250);
+        m_Input = new FakeSerialInput();
+        m_Output = new ByteArrayOutputStream();
+        
+        m_Driver = new RS232_Driver();
+        set("m_PortName", "COM99");
+        set("m_InStream", m_Input);
+        set("m_OutStream", m_Output);
+        set("m_BlockingReads", true);
+        set("m_DrainEvents", false);
+    }
+    
+    
+    /**
+     * Tests that an answer is returned as soon as it ends with the terminator,
+     * also when the terminator arrives later.
+     */
+    @Test
+    public void receive_Terminator() throws Exception {
+        
+        m_Input.feed("1.0", 0);
+        m_Input.feed("\r\n", 50);
+        
+        long Start = System.currentTimeMillis();
+        Assert.assertEquals("1.0\r\n", receive(new byte[] {'\r', '\n'}, 0));
+        Assert.assertTrue(System.currentTimeMillis() - Start < m_TimeOut);
+        
+        // the answer ends when the received data ends with the terminator,
+        // so data received together with the terminator is part of the answer
+        m_Input.feed("A\nB\n", 0);
+        Assert.assertEquals("A\nB\n", receive(new byte[] {'\n'}, 0));
+    }
+    
+    
+    /**
+     * Tests that an answer is returned as soon as the expected number of 
+     * bytes has been received, and that the bytes after it are not consumed.
+     */
+    @Test
+    public void receive_ExpectedLength() throws Exception {
+        
+        m_Input.feed("ABCDEFGHIJ", 0);
+        Assert.assertEquals("ABCDEFGH", receive(null, 8));
+        Assert.assertEquals("IJ", receive(null, 2));
+        
+        // the terminator comes first
+        m_Input.feed("AB\n", 0);
+        m_Input.feed("CD", 100);
+        Assert.assertEquals("AB\n", receive(new byte[] {'\n'}, 5));
+        Assert.assertEquals("CD", receive(null, 2));
+    }
+    
+    
+    /**
+     * Tests that an answer without terminator and expected length ends after
+     * the time out, and that an empty answer is returned if nothing arrives.
+     */
+    @Test
+    public void receive_TimeOut() throws Exception {
+        
+        // the blocking read returns after the time out
+        long Start = System.currentTimeMillis();
+        Assert.assertEquals("", receive(null, 0));
+        Assert.assertTrue(System.currentTimeMillis() - Start >= m_TimeOut);
+        
+        m_Input.feed("1.0", 0);
+        m_Input.feed("2.0", 50);
+        Assert.assertEquals("1.02.0", receive(null, 0));
+    }
+    
+    
+    /**
+     * Tests receiving when the serial port does not support blocking reads,
+     * so the input stream is polled.
+     */
+    @Test
+    public void receive_Polling() throws Exception {
+        
+        set("m_BlockingReads", false);
+        
+        // the answer ends after no data was received for the time out
+        m_Input.feed("1.0", 0);
+        m_Input.feed("2.0", m_TimeOut / 2);
+        long Start = System.currentTimeMillis();
+        Assert.assertEquals("1.02.0", receive(null, 0));
+        Assert.assertTrue(System.currentTimeMillis() - Start >= m_TimeOut + m_TimeOut / 2);
+        
+        // terminated and fixed-length answers are returned right away
+        m_Input.feed("3.0\n", 50);
+        m_Input.feed("4", 100);
+        Start = System.currentTimeMillis();
+        Assert.assertEquals("3.0\n", receive(new byte[] {'\n'}, 0));
+        Assert.assertTrue(System.currentTimeMillis() - Start < m_TimeOut);
+        Assert.assertEquals("4", receive(null, 1));
+    }
+    
+    
+    /**
+     * Tests the answers of the EurothermTC (Modbus RTU frames without 
+     * terminator and with 5, 8, or 9 bytes), which arrive in several chunks. 
+     * An error reply is shorter than expected and ends after the time out.
+     */
+    @Test
+    public void receive_Eurotherm() throws Exception {
+        
+        for (int NrBytes : new int[] {5, 8, 9}) {
+            
+            byte[] Frame = new byte[NrBytes];
+            for (int i = 0; i < NrBytes; i++) {
+                Frame[i] = (byte) (0xF0 + i);
+            }
+            
+            m_Input.feed(Arrays.copyOf(Frame, 3), 0);
+            m_Input.feed(Arrays.copyOfRange(Frame, 3, NrBytes), 20);
+            
+            long Start = System.currentTimeMillis();
+            Assert.assertArrayEquals(Frame, m_Driver.Receive(null, NrBytes));
+            Assert.assertTrue(System.currentTimeMillis() - Start < m_TimeOut);
+        }
+        
+        // an error reply (5 bytes) instead of 8 bytes
+        byte[] Error = {1, (byte) 0x83, 2, (byte) 0xC0, (byte) 0xF1};
+        m_Input.feed(Error, 0);
+        long Start = System.currentTimeMillis();
+        Assert.assertArrayEquals(Error, m_Driver.Receive(null, 8));
+        Assert.assertTrue(System.currentTimeMillis() - Start >= m_TimeOut);
+    }
+    
+    
+    /**
+     * Tests that sending waits for the output buffer empty event instead of
+     * the computed transmission time.
+     */
+    @Test
+    public void send_DrainEvent() throws Exception {
+        
+        set("m_DrainEvents", true);
+        set("m_TimeToTransmit", 10f);
+        
+        // the serial port reports an empty output buffer after 30 ms
+        Thread Port = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(30);
+                    drained();
+                } catch (Exception ignore) {}
+            }
+        });
+        
+        long Start = System.currentTimeMillis();
+        Port.start();
+        m_Driver.Send("20 bytes to send ...".getBytes(UTF8), true);
+        long Elapsed = System.currentTimeMillis() - Start;
+        
+        Assert.assertEquals("20 bytes to send ...", m_Output.toString("UTF-8"));
+        Assert.assertTrue(Elapsed >= 30 && Elapsed < 150);
+        Assert.assertTrue((Boolean) get("m_DrainEvents"));
+        Port.join();
+    }
+    
+    
+    /**
+     * Tests that sending waits for the computed transmission time plus 
+     * <code>RS232_Driver.DrainMargin</code> when the output buffer empty event
+     * does not arrive, and for the computed time only afterwards.
+     */
+    @Test
+    public void send_DrainEventMissing() throws Exception {
+        
+        int Margin = new iC_Properties().getInt("RS232_Driver.DrainMargin", 50);
+        
+        set("m_DrainEvents", true);
+        set("m_TimeToTransmit", 10f);
+        
+        long Start = System.currentTimeMillis();
+        m_Driver.Send("10 bytes..".getBytes(UTF8), true);
+        Assert.assertTrue(System.currentTimeMillis() - Start >= 100 + Margin);
+        
+        // the port is assumed not to support the event
+        Assert.assertFalse((Boolean) get("m_DrainEvents"));
+        
+        Start = System.currentTimeMillis();
+        m_Driver.Send("10 bytes..".getBytes(UTF8), true);
+        Assert.assertTrue(System.currentTimeMillis() - Start >= 100);
+    }
+    
+    
+    /**
+     * Tests that sending waits for the computed transmission time when the
+     * serial port does not report an empty output buffer, and that empty
+     * messages are not sent.
+     */
+    @Test
+    public void send_ComputedTime() throws Exception {
+        
+        set("m_TimeToTransmit", 10f);
+        
+        long Start = System.currentTimeMillis();
+        m_Driver.Send("10 bytes..".getBytes(UTF8));
+        Assert.assertTrue(System.currentTimeMillis() - Start >= 100);
+        
+        Start = System.currentTimeMillis();
+        m_Driver.Send(new byte[0]);
+        Assert.assertTrue(System.currentTimeMillis() - Start < 50);
+        
+        Assert.assertEquals("10 bytes..", m_Output.toString("UTF-8"));
+    }
+    
+    
+    /**
+     * Tests that writes that do not wait (<code>RS232_Driver.CoalesceWrites</code>)
+     * return right away, and that the next Send that waits, or closing the 
+     * port, waits until all of them have been transmitted.
+     */
+    @Test
+    public void send_Coalesced() throws Exception {
+        
+        set("m_TimeToTransmit", 10f);
+        
+        long Start = System.currentTimeMillis();
+        m_Driver.Send("10 bytes..".getBytes(UTF8), false);
+        m_Driver.Send("10 bytes..".getBytes(UTF8), false);
+        Assert.assertTrue(System.currentTimeMillis() - Start < 100);
+        
+        // a query waits for all 21 bytes
+        m_Driver.Send("?".getBytes(UTF8), true);
+        Assert.assertTrue(System.currentTimeMillis() - Start >= 210);
+        
+        // nothing left to wait for
+        long Sent = System.currentTimeMillis();
+        m_Driver.waitUntilSent();
+        Assert.assertTrue(System.currentTimeMillis() - Sent < 50);
+        
+        // closing the port waits
+        Start = System.currentTimeMillis();
+        m_Driver.Send("10 bytes..".getBytes(UTF8), false);
+        m_Driver.ClosePort();
+        Assert.assertTrue(System.currentTimeMillis() - Start >= 100);
+        
+        Assert.assertEquals("10 bytes..10 bytes..?10 bytes..", m_Output.toString("UTF-8"));
+    }
+    
+    
+    /**
+     * Does what the serial port event listener does when the output buffer 
+     * is empty.
+     */
+    private void drained() throws Exception {
+        Object Lock = get("m_DrainLock");
+        synchronized (Lock) {
+            set("m_OutputEmpty", true);
+            Lock.notifyAll();
+        }
+    }
+    
+    
+    /**
+     * Receives an answer with the driver.
+     */
+    private String receive(byte[] Terminator, int ExpectedLength) throws IOException {
+        return new String(m_Driver.Receive(Terminator, ExpectedLength), UTF8);
+    }
+    
+    
+    /**
+     * Sets a private field of the driver.
+     */
+    private void set(String FieldName, Object Value) throws Exception {
+        Field f = RS232_Driver.class.getDeclaredField(FieldName);
+        f.setAccessible(true);
+        f.set(m_Driver, Value);
+    }
+    
+    
+    /**
+     * Gets a private field of the driver.
+     */
+    private Object get(String FieldName) throws Exception {
+        Field f = RS232_Driver.class.getDeclaredField(FieldName);
+        f.setAccessible(true);
+        return f.get(m_Driver);
+    }
+    
+    
+    /**
+     * Stands in for the input stream of a serial port. The data is fed with
+     * a delay as the Instrument would send it. Like RxTx with a receive time
+     * out, <code>read</code> waits at most the time out for data and then 
+     * returns 0.
+     */
+    private class FakeSerialInput extends InputStream {
+        
+        /** The data that has arrived but was not read */
+        private final ByteArrayOutputStream m_Arrived = new ByteArrayOutputStream();
+        
+        
+        /** Lets <code>Data</code> arrive after <code>Delay</code> ms */
+        void feed(final byte[] Data, final long Delay) {
+            if (Delay == 0) {
+                arrive(Data);
+                return;
+            }
+            
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(Delay);
+                    } catch (InterruptedException ignore) {}
+                    arrive(Data);
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+        
+        void feed(String Data, long Delay) {
+            feed(Data.getBytes(UTF8), Delay);
+        }
+        
+        private synchronized void arrive(byte[] Data) {
+            m_Arrived.write(Data, 0, Data.length);
+            notifyAll();
+        }
+        
+        @Override
+        public synchronized int available() {
+            return m_Arrived.size();
+        }
+        
+        @Override
+        public synchronized int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+        
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            
+            // wait for data
+            long Deadline = System.currentTimeMillis() + m_TimeOut;
+            long Remaining;
+            while (m_Arrived.size() == 0 && (Remaining = Deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(Remaining);
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+            
+            // return the data and keep the rest
+            byte[] Data = m_Arrived.toByteArray();
+            int Length = Math.min(len, Data.length);
+            System.arraycopy(Data, 0, b, off, Length);
+            
+            m_Arrived.reset();
+            m_Arrived.write(Data, Length, Data.length - Length);
+            
+            return Length;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Tests for the ScriptProfiler class.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class ScriptProfilerTest {
+    
+    /** Tolerance of the times in the report in s (they are written with 3 digits) */
+    private static final double DELTA = 0.0015;
+    
+    @Rule
+    public TemporaryFolder m_Folder = new TemporaryFolder();
+    
+    
+    @After
+    public void tearDown() {
+        ScriptProfiler.stop();
+    }
+    
+    
+    /**
+     * Tests that nothing is recorded when the profiler is not started.
+     */
+    @Test
+    public void disabled() throws Exception {
+        
+        ScriptProfiler.start();
+        ScriptProfiler.stop();
+        Assert.assertFalse(ScriptProfiler.isEnabled());
+        
+        long Start = ScriptProfiler.beginLine();
+        Assert.assertEquals(0, Start);
+        Assert.assertEquals(0, ScriptProfiler.beginIO());
+        ScriptProfiler.endIO("dev", 0);
+        ScriptProfiler.sleep("dev", 1);
+        ScriptProfiler.endLine("1", "dev Wait 1", "dev", Start);
+        
+        Assert.assertNull(findRow(writeReport(), "1"));
+    }
+    
+    
+    /**
+     * Tests that the wall time of a line is split into parse, lock wait, I/O,
+     * sleep and dispatch time, that nested I/O is counted once, and that the
+     * lines are sorted by the total time.
+     */
+    @Test
+    public void recordLines() throws Exception {
+        
+        ScriptProfiler.start();
+        Assert.assertTrue(ScriptProfiler.isEnabled());
+        
+        // line 1: parse, lock wait, nested I/O, sleep
+        long Start = ScriptProfiler.beginLine();
+        ScriptProfiler.addParseTime(System.nanoTime() - 2000000L);
+        
+        long IO = ScriptProfiler.beginIO();
+        ScriptProfiler.addLockWait(5000000L);
+        long Nested = ScriptProfiler.beginIO();
+        ScriptProfiler.endIO("dev", Nested);
+        ScriptProfiler.endIO("dev", IO);
+        
+        ScriptProfiler.sleep("dev", 30);
+        ScriptProfiler.endLine("1", "dev Wait 30", "dev", Start);
+        
+        // line 2 is processed twice and takes less time
+        for (int i=0; i<2; i++) {
+            Start = ScriptProfiler.beginLine();
+            ScriptProfiler.endLine("2 of Sub.iC", "dev getValue", "dev", Start);
+        }
+        
+        List<String> Report = writeReport();
+        
+        // Line, Count, Total, Parse, Dispatch, Lock wait, I/O, Sleep, Command-Line
+        String[] Line1 = findRow(Report, "1");
+        Assert.assertEquals("1", Line1[1]);
+        Assert.assertEquals(0.002, Double.parseDouble(Line1[3]), DELTA);
+        Assert.assertEquals(0.005, Double.parseDouble(Line1[5]), DELTA);
+        Assert.assertTrue(Double.parseDouble(Line1[7]) >= 0.03 - DELTA);
+        Assert.assertEquals("dev Wait 30", Line1[8]);
+        
+        Assert.assertTrue(Double.parseDouble(Line1[2]) >= Double.parseDouble(Line1[7]));
+        
+        String[] Line2 = findRow(Report, "2 of Sub.iC");
+        Assert.assertEquals("2", Line2[1]);
+        
+        // sorted by the total time
+        Assert.assertTrue(findIndex(Report, "1") < findIndex(Report, "2 of Sub.iC"));
+        
+        // the Instrument: 3 lines, 1 I/O call
+        String[] Dev = findRow(Report, "dev");
+        Assert.assertEquals("3", Dev[1]);
+        Assert.assertEquals(0.005, Double.parseDouble(Dev[5]), DELTA);
+        Assert.assertTrue(Double.parseDouble(Dev[7]) >= 0.03 - DELTA);
+        Assert.assertEquals("1", Dev[8]);
+        
+        // the top lines
+        String Top = ScriptProfiler.getTopLines(1);
+        Assert.assertTrue(Top.contains("dev Wait 30"));
+        Assert.assertFalse(Top.contains("dev getValue"));
+        
+        // start clears the statistics
+        ScriptProfiler.start();
+        Assert.assertNull(findRow(writeReport(), "1"));
+    }
+    
+    
+    /**
+     * Writes the report to a temporary file.
+     * @return The lines of the report
+     */
+    private List<String> writeReport() throws IOException {
+        File Report = new File(m_Folder.getRoot(), "Profile.txt");
+        ScriptProfiler.writeReport(Report.getPath());
+        return Files.readAllLines(Report.toPath(), Charset.defaultCharset());
+    }
+    
+    
+    /**
+     * @return The index of the row of the report with the given key, or -1
+     */
+    private static int findIndex(List<String> Report, String Key) {
+        for (int i=0; i<Report.size(); i++) {
+            if (Report.get(i).startsWith(Key + "\t")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    
+    /**
+     * @return The columns of the row of the report with the given key, or null
+     */
+    private static String[] findRow(List<String> Report, String Key) {
+        int Index = findIndex(Report, Key);
+        return Index < 0 ? null : Report.get(Index).split("\t");
+    }
+}
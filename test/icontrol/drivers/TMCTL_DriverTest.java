@@ -0,0 +1,219 @@
+/*
+ * This software was developed at the National Institute of Standards and
+ * Technology by a guest researcher in the course of his official duties and
+ * with the partial support of the Swiss National Science Foundation. Pursuant
+ * to title 17 Section 105 of the United States Code this software is not
+ * subject to copyright protection and is in the public domain. The
+ * Instrument-Control (iC) software is an experimental system. Neither NIST, nor
+ * the Swiss National Science Foundation nor any of the authors assumes any
+ * responsibility whatsoever for its use by other parties, and makes no
+ * guarantees, expressed or implied, about its quality, reliability, or any
+ * other characteristic. We would appreciate your citation if the software
+ * is used: http://dx.doi.org/10.6028/jres.117.010 .
+ *
+ * This software can be redistributed and/or modified freely under the terms of
+ * the GNU Public Licence and provided that any derivative works bear some
+ * notice that they are derived from it, and any modified versions bear some
+ * notice that they have been modified.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Public License for more details. http://www.fsf.org
+ *
+ * This software relies on other open source projects; please see the accompanying
+ * _ReadMe_iC.txt for a list of included packages. Thank's very much to those
+ * developers !! Without your effort, iC would not have been possible!
+ *
+ */
+package icontrol.drivers;
+
+import com.sun.jna.ptr.IntByReference;
+import icontrol.IcontrolTests;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+/**
+ * Tests for receiving Block Data with the TMCTL_Driver class. The native
+ * TMCTL library is replaced by a stand-in that sends a block in chunks of
+ * the size of the receive buffer.
+ *
+ * @author KPP (Kurt Pernstich: pernstich@alumni.ethz.ch)
+ * @version 0.1
+ *
+ */
+public class TMCTL_DriverTest extends IcontrolTests {
+    
+    /** The data bytes of the block sent by the stand-in */
+    private static final byte[] BLOCK = "ABCDEFGHIJ".getBytes();
+    
+    /** The static fields of TMCTL_Driver that are replaced for the test */
+    private Field m_TMCTL, m_ReceiveBuffer;
+    
+    /** The values of the fields before the test */
+    private Object m_OldTMCTL, m_OldReceiveBuffer;
+    
+    /** The driver using the stand-in */
+    private TMCTL_Driver m_Driver;
+    
+    
+    /**
+     * Replaces the native library before the driver is made, so it is not
+     * loaded, and uses a receive buffer of 4 bytes.
+     */
+    @Before
+    public void setUp() throws Exception {
+        
+        m_TMCTL = TMCTL_Driver.class.getDeclaredField("m_TMCTL");
+        m_TMCTL.setAccessible(true);
+        m_OldTMCTL = m_TMCTL.get(null);
+        
+        m_ReceiveBuffer = TMCTL_Driver.class.getDeclaredField("m_ReceiveBuffer");
+        m_ReceiveBuffer.setAccessible(true);
+        m_OldReceiveBuffer = m_ReceiveBuffer.get(null);
+        
+        Class<?> Library = Class.forName("icontrol.drivers.TMCTL_Driver$TMCTL");
+        m_TMCTL.set(null, Proxy.newProxyInstance(Library.getClassLoader(),
+                new Class<?>[] {Library}, new BlockSender()));
+        m_ReceiveBuffer.set(null, ByteBuffer.allocate(4));
+        
+        m_Driver = new TMCTL_Driver();
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        m_TMCTL.set(null, m_OldTMCTL);
+        m_ReceiveBuffer.set(null, m_OldReceiveBuffer);
+    }
+    
+    
+    /**
+     * Tests that each chunk is passed to all Consumers without the terminator,
+     * and that <code>toChannel</code> writes all data bytes.
+     */
+    @Test
+    public void StreamBlockData() throws IOException {
+        
+        ByteArrayOutputStream Stream = new ByteArrayOutputStream();
+        Recorder Chunks = new Recorder();
+        
+        int NrBytes = m_Driver.StreamBlockData(Chunks, 
+                TMCTL_Driver.toChannel(Channels.newChannel(Stream)));
+        
+        Assert.assertEquals(BLOCK.length, NrBytes);
+        Assert.assertEquals(BLOCK.length, Chunks.m_NrDataBytes);
+        Assert.assertEquals(Arrays.asList("ABCD", "EFGH", "IJ"), Chunks.m_Chunks);
+        Assert.assertArrayEquals(BLOCK, Stream.toByteArray());
+    }
+    
+    
+    /**
+     * Tests that <code>ReceiveBlockData</code> collects the data bytes.
+     */
+    @Test
+    public void ReceiveBlockData() throws IOException {
+        
+        ByteBuffer Data = m_Driver.ReceiveBlockData();
+        
+        Assert.assertEquals(BLOCK.length, Data.position());
+        Assert.assertArrayEquals(BLOCK, Arrays.copyOf(Data.array(), Data.position()));
+    }
+    
+    
+    /**
+     * Tests that an Exception of a Consumer is passed on and the receive
+     * buffer can be used again afterwards.
+     */
+    @Test
+    public void StreamBlockData_ConsumerFails() throws Exception {
+        
+        try {
+            m_Driver.StreamBlockData(new Recorder() {
+                @Override
+                public void accept(ByteBuffer Chunk) throws IOException {
+                    throw new IOException("Disk full");
+                }
+            });
+            Assert.fail("Expected an IOException");
+        } catch (IOException ex) {
+            Assert.assertEquals("Disk full", ex.getMessage());
+        }
+        
+        ByteBuffer Buffer = (ByteBuffer) m_ReceiveBuffer.get(null);
+        Assert.assertEquals(0, Buffer.position());
+        Assert.assertEquals(Buffer.capacity(), Buffer.limit());
+        
+        Assert.assertEquals(BLOCK.length, m_Driver.ReceiveBlockData().position());
+    }
+    
+    
+    /**
+     * Records the chunks passed by <code>StreamBlockData</code>.
+     */
+    private static class Recorder implements TMCTL_Driver.BlockDataConsumer {
+        
+        int m_NrDataBytes = -1;
+        
+        final List<String> m_Chunks = new ArrayList<String>();
+        
+        @Override
+        public void begin(int NrDataBytes) {
+            m_NrDataBytes = NrDataBytes;
+        }
+        
+        @Override
+        public void accept(ByteBuffer Chunk) throws IOException {
+            byte[] Data = new byte[Chunk.remaining()];
+            Chunk.get(Data);
+            m_Chunks.add(new String(Data));
+        }
+    }
+    
+    
+    /**
+     * Stands in for the native TMCTL library and sends <code>BLOCK</code>
+     * followed by a terminator as Block Data, as much as fits into the 
+     * buffer at a time. Other methods return 0 (no error).
+     */
+    private static class BlockSender implements InvocationHandler {
+        
+        /** The next byte to send */
+        private int m_Position;
+        
+        @Override
+        public Object invoke(Object Proxy, Method Method, Object[] Args) {
+            
+            if (Method.getName().equals("TmcReceiveBlockHeader")) {
+                m_Position = 0;
+                ((IntByReference) Args[1]).setValue(BLOCK.length);
+                
+            } else if (Method.getName().equals("TmcReceiveBlockData")) {
+                byte[] Data = Arrays.copyOf(BLOCK, BLOCK.length + 1);
+                Data[BLOCK.length] = '\n';
+                
+                int Length = Math.min((Integer) Args[2], Data.length - m_Position);
+                ((ByteBuffer) Args[1]).put(Data, m_Position, Length);
+                m_Position += Length;
+                
+                ((IntByReference) Args[3]).setValue(Length);
+                ((IntByReference) Args[4]).setValue(m_Position == Data.length ? 1 : 0);
+            }
+            
+            return 0;
+        }
+    }
+}
@@ -28,14 +28,30 @@
  */
 package icontrol.drivers.instruments.yokogawa;
 
+import icontrol.GUI_Interface;
 import icontrol.IcontrolTests;
 import icontrol.IcontrolAppMockup;
+import icontrol.drivers.CommLog;
+import icontrol.drivers.CommReplay;
+import icontrol.drivers.CommTrace;
+import icontrol.drivers.Device;
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.*;
 
 /**
@@ -46,6 +62,8 @@ import static org.junit.Assert.*;
  *
  */public class YokogawaDL9000Test extends IcontrolTests {
      
+    @Rule
+    public TemporaryFolder m_Folder = new TemporaryFolder();
 
     
     public YokogawaDL9000Test() {
@@ -95,4 +113,147 @@ import static org.junit.Assert.*;
         assertEquals(50, scope.setTimeBase(20.1), 0);
         
     }
+    
+    
+    /**
+     * Tests converting 16 bit samples that are split between chunks
+     */
+    @Test
+    public void WaveformDecoder_16Bit() {
+        
+        float[] Voltages = new float[3];
+        YokogawaDL9000.WaveformDecoder Decoder = 
+                new YokogawaDL9000.WaveformDecoder(Voltages, 1f, 0f, true);
+        
+        // 3200, -3200 split between the chunks, 1600, and one byte too many
+        Decoder.begin(7);
+        Decoder.accept(ByteBuffer.wrap(new byte[] {0x0C, (byte)0x80, (byte)0xF3}));
+        assertArrayEquals(new float[] {1f, 0f, 0f}, Voltages, 0f);
+        
+        Decoder.accept(ByteBuffer.wrap(new byte[] {(byte)0x80, 0x06, 0x40, 0x00}));
+        assertArrayEquals(new float[] {1f, -1f, 0.5f}, Voltages, 0f);
+    }
+    
+    
+    /**
+     * Tests converting 8 bit samples with scale and offset
+     */
+    @Test
+    public void WaveformDecoder_8Bit() {
+        
+        float[] Voltages = new float[3];
+        YokogawaDL9000.WaveformDecoder Decoder = 
+                new YokogawaDL9000.WaveformDecoder(Voltages, 2f, 1f, false);
+        
+        // the data is between position and limit
+        ByteBuffer Chunk = ByteBuffer.wrap(new byte[] {99, 25, -25, 0, 99});
+        Chunk.position(1).limit(3);
+        Decoder.accept(Chunk);
+        assertEquals(0, Chunk.remaining());
+        
+        Decoder.accept(ByteBuffer.wrap(new byte[] {0}));
+        assertArrayEquals(new float[] {5f, -3f, 1f}, Voltages, 1e-6f);
+    }
+    
+    
+    /**
+     * Tests saving a waveform by replaying a recorded Comm trace, so the 
+     * method runs without the oscilloscope and without the TMCTL library. 
+     * The waveform is received as Block Data with <code>QueryBinaryBlock</code>.
+     */
+    @Test
+    public void SaveWaveform_Replay() 
+           throws Exception {
+        
+        // record the answers of the scope (one channel with 4 samples of 16 bit)
+        File TraceFile = m_Folder.newFile("DL9000.trace");
+        CommTrace.open(TraceFile);
+        try {
+            record(":Status:Condition?", "0");
+            record(":Waveform:Length?", "4");
+            record(":Timebase:TDiv?", "1.0E-3");
+            record(":ACQuire:RLENgth?", "1000");
+            record(":Acquire:Mode?", "NORMAL");
+            record(":STATUS:EESR?", "0");
+            record(":Waveform:SRate?", "1.0E+6");
+            record(":Waveform:Trigger?", "2");
+            record(":TRIGger:POSition?", "50");
+            record(":TRIGger:DELay:TIME?", "0");
+            record(":TRIGger:HOLDoff?", "0");
+            record(":Channel1?", ":CHANNEL1:DISPLAY 1");
+            record("Waveform:Offset?", "0.5");
+            record("Waveform:Range?", "2.0");
+            
+            // 3200, -3200, 1600, 0 as Block Data
+            CommLog.log("DL9000", CommLog.SENT, "Waveform:Send?");
+            byte[] Block = {'#', '1', '8', 0x0C, (byte)0x80, (byte)0xF3, (byte)0x80, 0x06, 0x40, 0, 0, '\n'};
+            CommLog.log("DL9000", CommLog.RECEIVED, Block, 0, Block.length);
+            
+            record("Waveform:Bits?", "16");
+        } finally {
+            CommLog.flush();
+            CommTrace.close();
+        }
+        
+        // the waveform is saved in this file
+        final File WaveformFile = m_Folder.newFile("Waveform.wv.txt");
+        
+        boolean SyntaxCheckMode = new Device().inSyntaxCheckMode();
+        boolean NoCommunicationMode = new Device().inNoCommunicationMode();
+        Field GUI = Device.class.getDeclaredField("m_GUI");
+        GUI.setAccessible(true);
+        Object OriginalGUI = GUI.get(null);
+        
+        try {
+            Device.setSyntaxCheckMode(false);
+            Device.setNoCommunicationModeGlobal(false);
+            
+            // a GUI that returns the file name
+            GUI.set(null, Proxy.newProxyInstance(GUI_Interface.class.getClassLoader(),
+                    new Class<?>[] {GUI_Interface.class}, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if ("getFileName".equals(method.getName())) {
+                        return WaveformFile.getPath();
+                    }
+                    return method.getReturnType() == Boolean.TYPE ? false : null;
+                }
+            }));
+            
+            // the scope replays the trace
+            YokogawaDL9000 scope = new YokogawaDL9000();
+            Field f = Device.class.getDeclaredField("m_Replay");
+            f.setAccessible(true);
+            f.set(scope, new CommReplay(TraceFile, false));
+            f = Device.class.getDeclaredField("m_InstrumentName");
+            f.setAccessible(true);
+            f.set(scope, "DL9000");
+            
+            float[][] TV = scope.SaveWaveform("1", ".wv.txt", false);
+            
+            // time and voltages
+            assertArrayEquals(new float[] {0f, 1e-5f, 2e-5f, 3e-5f}, TV[0], 1e-10f);
+            assertArrayEquals(new float[] {2.5f, -1.5f, 1.5f, 0.5f}, TV[1], 1e-6f);
+            
+            // the file
+            List<String> Lines = Files.readAllLines(WaveformFile.toPath(), Charset.forName("UTF-8"));
+            // (with or without the time column)
+            assertTrue(Lines.get(Lines.size() - 5).endsWith("Ch1"));
+            assertTrue(Lines.get(Lines.size() - 1).endsWith("0.5"));
+            
+        } finally {
+            GUI.set(null, OriginalGUI);
+            Device.setSyntaxCheckMode(SyntaxCheckMode);
+            Device.setNoCommunicationModeGlobal(NoCommunicationMode);
+        }
+    }
+    
+    
+    /**
+     * Records a query of the DL9000 in the Comm trace.
+     */
+    private void record(String Message, String Answer) {
+        CommLog.log("DL9000", CommLog.SENT, Message);
+        CommLog.log("DL9000", CommLog.RECEIVED, Answer);
+    }
 }